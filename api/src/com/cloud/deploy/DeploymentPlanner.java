@@ -86,7 +86,8 @@ public interface DeploymentPlanner extends Adapter {
         firstfit,
         userdispersing,
         userconcentratedpod_random,
-        userconcentratedpod_firstfit;
+        userconcentratedpod_firstfit,
+        scored;
     }
 
     public enum PlannerResourceUsage {
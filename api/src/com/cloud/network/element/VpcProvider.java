@@ -28,6 +28,7 @@ import com.cloud.network.vpc.NetworkACLItem;
 import com.cloud.network.vpc.PrivateGateway;
 import com.cloud.network.vpc.StaticRouteProfile;
 import com.cloud.network.vpc.Vpc;
+import com.cloud.network.vpc.VpcConfigurationPlan;
 import com.cloud.vm.ReservationContext;
 
 public interface VpcProvider extends NetworkElement{
@@ -55,4 +56,14 @@ public interface VpcProvider extends NetworkElement{
     boolean applyStaticRoutes(Vpc vpc, List<StaticRouteProfile> routes) throws ResourceUnavailableException;
 
     boolean applyACLItemsToPrivateGw(PrivateGateway gateway, List<? extends NetworkACLItem> rules) throws ResourceUnavailableException;
+
+    /**
+     * Programs the acls of several tiers and private gateways, and the static routes of the vpc
+     * in a single pass over its routers
+     * @param vpc
+     * @param plan
+     * @return
+     * @throws ResourceUnavailableException
+     */
+    boolean applyVpcConfiguration(Vpc vpc, VpcConfigurationPlan plan) throws ResourceUnavailableException;
 }
@@ -58,6 +58,19 @@ public interface LoadBalancingRulesService {
 
     boolean deleteLoadBalancerRule(long lbRuleId, boolean apply);
 
+    /**
+     * Deletes several load balancer rules of the same network together; the remaining rules are then
+     * sent to the load balancing provider as a single set. Only deletion is batched: assigning vms to a
+     * load balancer still sends the whole rule set of the network on every call
+     *
+     * @param lbRuleIds
+     *            the ids of the rules to delete
+     * @param apply
+     *            whether to apply the remaining rules after revoking them
+     * @return true if all the rules were deleted
+     */
+    boolean deleteLoadBalancerRules(List<Long> lbRuleIds, boolean apply);
+
     /**
      * Create a stickiness policy to a load balancer from the given stickiness method name and parameters in
      * (name,value) pairs.
@@ -56,6 +56,19 @@ public interface RulesService {
      */
     boolean revokePortForwardingRule(long ruleId, boolean apply);
 
+    /**
+     * Revokes several port forwarding rules of the same network together; the rules of the affected ip
+     * addresses are then sent to the network elements as a single set. Only revocation is batched: creating
+     * a port forwarding rule still applies the rules of its ip address on every call
+     *
+     * @param ruleIds
+     *            the ids of the rules to revoke.
+     * @param apply
+     *            whether to apply the remaining rules after revoking them
+     * @return true if all the rules were revoked
+     */
+    boolean revokePortForwardingRules(List<Long> ruleIds, boolean apply);
+
     /**
      * List port forwarding rules assigned to an ip address
      *
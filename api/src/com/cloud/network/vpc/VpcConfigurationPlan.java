@@ -0,0 +1,87 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.vpc;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration to be programmed on the routers of a vpc in one go. Every tier,
+ * private gateway and the static routes form a section that fully replaces the
+ * matching part of the router configuration, so that providers can skip the
+ * sections that have not changed since they were last applied.
+ */
+public class VpcConfigurationPlan {
+    private final long vpcId;
+    private final Map<Long, List<? extends NetworkACLItem>> tierAcls = new LinkedHashMap<Long, List<? extends NetworkACLItem>>();
+    private final Map<Long, List<? extends NetworkACLItem>> privateGatewayAcls = new LinkedHashMap<Long, List<? extends NetworkACLItem>>();
+    private List<StaticRouteProfile> staticRoutes;
+
+    public VpcConfigurationPlan(long vpcId) {
+        this.vpcId = vpcId;
+    }
+
+    public long getVpcId() {
+        return vpcId;
+    }
+
+    /**
+     * @param networkId id of the vpc tier
+     * @param rules complete list of acl items of the tier
+     */
+    public void addTierAcls(long networkId, List<? extends NetworkACLItem> rules) {
+        tierAcls.put(networkId, rules);
+    }
+
+    /**
+     * @param networkId id of the private network of the gateway
+     * @param rules complete list of acl items of the gateway
+     */
+    public void addPrivateGatewayAcls(long networkId, List<? extends NetworkACLItem> rules) {
+        privateGatewayAcls.put(networkId, rules);
+    }
+
+    /**
+     * @param staticRoutes complete list of static routes of the vpc
+     */
+    public void setStaticRoutes(List<StaticRouteProfile> staticRoutes) {
+        this.staticRoutes = staticRoutes;
+    }
+
+    public Map<Long, List<? extends NetworkACLItem>> getTierAcls() {
+        return Collections.unmodifiableMap(tierAcls);
+    }
+
+    public Map<Long, List<? extends NetworkACLItem>> getPrivateGatewayAcls() {
+        return Collections.unmodifiableMap(privateGatewayAcls);
+    }
+
+    public List<StaticRouteProfile> getStaticRoutes() {
+        return staticRoutes;
+    }
+
+    public boolean isEmpty() {
+        return tierAcls.isEmpty() && privateGatewayAcls.isEmpty() && (staticRoutes == null || staticRoutes.isEmpty());
+    }
+
+    @Override
+    public String toString() {
+        return "VpcConfigurationPlan[vpc=" + vpcId + ", tiers=" + tierAcls.keySet() + ", privateGateways=" + privateGatewayAcls.keySet() + "]";
+    }
+}
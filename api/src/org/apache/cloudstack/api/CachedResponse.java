@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api;
+
+import static java.lang.annotation.ElementType.TYPE;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a read-only @APICommand whose serialized response may be served from the
+ * API server's short-lived response cache.
+ *
+ * Cached responses are scoped to the caller (domain, role and account) and to the
+ * canonicalized request parameters. An entry is dropped when its ttl expires or when
+ * an action event whose type starts with one of invalidateOn() completes.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ TYPE })
+public @interface CachedResponse {
+    /**
+     * Time to live of a cached response, in seconds
+     */
+    int ttl() default 5;
+
+    /**
+     * Action event type prefixes (see com.cloud.event.EventTypes) that invalidate
+     * every cached response of the command
+     */
+    String[] invalidateOn() default {};
+}
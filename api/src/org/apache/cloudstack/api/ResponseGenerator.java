@@ -231,6 +231,12 @@ public interface ResponseGenerator {
 
     IPAddressResponse createIPAddressResponse(IpAddress ipAddress);
 
+    /**
+     * Same as createIPAddressResponse() for each address, but the referenced
+     * entities are loaded for the whole list up front.
+     */
+    List<IPAddressResponse> createIPAddressResponses(List<? extends IpAddress> ipAddresses);
+
     GuestVlanRangeResponse createDedicatedGuestVlanRangeResponse(GuestVlan result);
 
     GlobalLoadBalancerResponse createGlobalLoadBalancerResponse(GlobalLoadBalancerRule globalLoadBalancerRule);
@@ -316,6 +322,12 @@ public interface ResponseGenerator {
 
     NetworkResponse createNetworkResponse(Network network);
 
+    /**
+     * Same as createNetworkResponse() for each network, but the referenced
+     * entities are loaded for the whole list up front.
+     */
+    List<NetworkResponse> createNetworkResponses(List<? extends Network> networks);
+
     UserResponse createUserResponse(User user);
 
     //List<UserResponse> createUserResponse(UserAccountJoinVO... users);
@@ -16,7 +16,6 @@
 // under the License.
 package org.apache.cloudstack.api.command.user.address;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.cloudstack.api.APICommand;
@@ -147,11 +146,9 @@ public class ListPublicIpAddressesCmd extends BaseListTaggedResourcesCmd {
     public void execute(){
         Pair<List<? extends IpAddress>, Integer> result = _mgr.searchForIPAddresses(this);
         ListResponse<IPAddressResponse> response = new ListResponse<IPAddressResponse>();
-        List<IPAddressResponse> ipAddrResponses = new ArrayList<IPAddressResponse>();
-        for (IpAddress ipAddress : result.first()) {
-            IPAddressResponse ipResponse = _responseGenerator.createIPAddressResponse(ipAddress);
+        List<IPAddressResponse> ipAddrResponses = _responseGenerator.createIPAddressResponses(result.first());
+        for (IPAddressResponse ipResponse : ipAddrResponses) {
             ipResponse.setObjectName("publicipaddress");
-            ipAddrResponses.add(ipResponse);
         }
 
         response.setResponses(ipAddrResponses, result.second());
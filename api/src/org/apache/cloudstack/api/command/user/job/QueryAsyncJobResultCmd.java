@@ -31,6 +31,8 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
 
     private static final String s_name = "queryasyncjobresultresponse";
 
+    public static final int MAX_WAIT_SECONDS = 60;
+
     /////////////////////////////////////////////////////
     //////////////// API parameters /////////////////////
     /////////////////////////////////////////////////////
@@ -39,6 +41,10 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
             required=true, description="the ID of the asychronous job")
     private Long id;
 
+    @Parameter(name=ApiConstants.TIMEOUT, type=CommandType.INTEGER, description="if set, wait up to this many seconds (at most "
+            + MAX_WAIT_SECONDS + ") for the job to complete before returning its status", since="4.3")
+    private Integer timeout;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -47,6 +53,13 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
         return id;
     }
 
+    public int getTimeout() {
+        if (timeout == null || timeout < 0) {
+            return 0;
+        }
+        return Math.min(timeout, MAX_WAIT_SECONDS);
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
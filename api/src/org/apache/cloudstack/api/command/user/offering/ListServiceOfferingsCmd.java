@@ -19,6 +19,7 @@ package org.apache.cloudstack.api.command.user.offering;
 import org.apache.cloudstack.api.APICommand;
 import org.apache.cloudstack.api.ApiConstants;
 import org.apache.cloudstack.api.BaseListCmd;
+import org.apache.cloudstack.api.CachedResponse;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.response.DomainResponse;
 import org.apache.cloudstack.api.response.ListResponse;
@@ -27,6 +28,7 @@ import org.apache.cloudstack.api.response.UserVmResponse;
 
 import org.apache.log4j.Logger;
 
+@CachedResponse(ttl = 10, invalidateOn = {"SERVICE.OFFERING.", "DOMAIN."})
 @APICommand(name = "listServiceOfferings", description="Lists all available service offerings.", responseObject=ServiceOfferingResponse.class)
 public class ListServiceOfferingsCmd extends BaseListCmd {
     public static final Logger s_logger = Logger.getLogger(ListServiceOfferingsCmd.class.getName());
@@ -22,6 +22,7 @@ import java.util.List;
 import org.apache.cloudstack.api.APICommand;
 import org.apache.cloudstack.api.ApiConstants;
 import org.apache.cloudstack.api.BaseListCmd;
+import org.apache.cloudstack.api.CachedResponse;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.BaseCmd.CommandType;
 import org.apache.cloudstack.api.response.DomainResponse;
@@ -32,6 +33,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.dc.DataCenter;
 
+@CachedResponse(ttl = 10, invalidateOn = {"ZONE.", "DOMAIN."})
 @APICommand(name = "listZones", description="Lists zones", responseObject=ZoneResponse.class)
 public class ListZonesByCmd extends BaseListCmd {
     public static final Logger s_logger = Logger.getLogger(ListZonesByCmd.class.getName());
@@ -0,0 +1,250 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.index;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.api.APICommand;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Read side of the api command index generated by {@link ApiCommandIndexProcessor}.
+ * Every jar that was compiled with the processor carries its own index file;
+ * they are all merged here.  Commands that are missing from the index (the
+ * jar was built without the processor, or by an incremental compile) are
+ * simply not found, and callers fall back to reflecting over the class.
+ */
+public class ApiCommandIndex {
+    private static final Logger s_logger = Logger.getLogger(ApiCommandIndex.class);
+
+    public static final String INDEX_RESOURCE = ApiCommandIndexProcessor.INDEX_RESOURCE;
+
+    private static ApiCommandIndex s_instance;
+
+    public static class CommandEntry {
+        private String name;
+        private String cmdClass;
+        private String responseClass;
+        private String description;
+        private String since;
+        private boolean includeInApiDoc;
+        private boolean async;
+        private List<ParameterEntry> params;
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCmdClass() {
+            return cmdClass;
+        }
+
+        public String getResponseClass() {
+            return responseClass;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getSince() {
+            return since;
+        }
+
+        public boolean isIncludeInApiDoc() {
+            return includeInApiDoc;
+        }
+
+        public boolean isAsync() {
+            return async;
+        }
+
+        public List<ParameterEntry> getParams() {
+            return params;
+        }
+    }
+
+    public static class ParameterEntry {
+        private String name;
+        private String description;
+        private String type;
+        private int length;
+        private boolean required;
+        private String since;
+        private boolean expose;
+        private boolean includeInApiDoc;
+        private String entityType;
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        public String getSince() {
+            return since;
+        }
+
+        public boolean isExpose() {
+            return expose;
+        }
+
+        public boolean isIncludeInApiDoc() {
+            return includeInApiDoc;
+        }
+
+        public String getEntityType() {
+            return entityType;
+        }
+    }
+
+    public static class ResponseFieldEntry {
+        private String name;
+        private String description;
+        private String type;
+        private String responseClass;
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the nested response class, or null if the field is not a nested response
+         */
+        public String getResponseClass() {
+            return responseClass;
+        }
+    }
+
+    private static class IndexFile {
+        private List<CommandEntry> commands;
+        private Map<String, List<ResponseFieldEntry>> responses;
+    }
+
+    private final Map<String, CommandEntry> _commandsByClass = new HashMap<String, CommandEntry>();
+    private final Map<String, List<ResponseFieldEntry>> _responses = new HashMap<String, List<ResponseFieldEntry>>();
+
+    public static synchronized ApiCommandIndex getInstance() {
+        if (s_instance == null) {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            s_instance = load(loader != null ? loader : ApiCommandIndex.class.getClassLoader());
+        }
+        return s_instance;
+    }
+
+    public static ApiCommandIndex load(ClassLoader loader) {
+        long startTime = System.nanoTime();
+        ApiCommandIndex index = new ApiCommandIndex();
+        Gson gson = new Gson();
+        try {
+            Enumeration<URL> urls = loader.getResources(INDEX_RESOURCE);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                Reader reader = new InputStreamReader(url.openStream(), "UTF-8");
+                try {
+                    index.add(gson.fromJson(reader, IndexFile.class));
+                } catch (JsonParseException e) {
+                    s_logger.warn("Ignoring malformed api command index " + url, e);
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            s_logger.warn("Unable to read api command index", e);
+        }
+        s_logger.info("Loaded " + index._commandsByClass.size() + " api commands from the command index in " + (System.nanoTime() - startTime) / 1000000.0 + " ms");
+        return index;
+    }
+
+    private void add(IndexFile file) {
+        if (file == null) {
+            return;
+        }
+        if (file.commands != null) {
+            for (CommandEntry command : file.commands) {
+                _commandsByClass.put(command.getCmdClass(), command);
+            }
+        }
+        if (file.responses != null) {
+            _responses.putAll(file.responses);
+        }
+    }
+
+    /**
+     * @return the indexed command, or null if the class was not indexed
+     */
+    public CommandEntry getCommand(String cmdClassName) {
+        return _commandsByClass.get(cmdClassName);
+    }
+
+    /**
+     * @return the api name of a command class, taken from the index or, if the class was not
+     * indexed, from its @APICommand annotation; null if the class is not an api command
+     */
+    public String getApiName(Class<?> cmdClass) {
+        CommandEntry command = getCommand(cmdClass.getName());
+        if (command != null) {
+            return command.getName();
+        }
+        APICommand at = cmdClass.getAnnotation(APICommand.class);
+        return at != null ? at.name() : null;
+    }
+
+    /**
+     * @return the declared fields of a response class, or null if the class was not indexed
+     */
+    public List<ResponseFieldEntry> getResponseFields(String responseClassName) {
+        return _responses.get(responseClassName);
+    }
+
+    public int size() {
+        return _commandsByClass.size();
+    }
+}
@@ -0,0 +1,333 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.index;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Compile time processor that writes every @APICommand of a module, with its
+ * parameters and response fields, into {@link #INDEX_RESOURCE}.
+ * The management server reads that file at startup instead of reflecting over
+ * every command class.
+ *
+ * This class is compiled on its own before the rest of the api module (see
+ * the api pom.xml), so it only refers to the annotations by name and must not
+ * depend on anything else in the module.
+ */
+@SupportedAnnotationTypes("org.apache.cloudstack.api.APICommand")
+public class ApiCommandIndexProcessor extends AbstractProcessor {
+    public static final String INDEX_RESOURCE = "META-INF/cloudstack/api-commands.json";
+
+    private static final String API_COMMAND = "org.apache.cloudstack.api.APICommand";
+    private static final String PARAMETER = "org.apache.cloudstack.api.Parameter";
+    private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    private static final String PARAM = "com.cloud.serializer.Param";
+    private static final String BASE_RESPONSE = "org.apache.cloudstack.api.BaseResponse";
+    private static final String BASE_CMD = "org.apache.cloudstack.api.BaseCmd";
+    private static final String BASE_ASYNC_CMD = "org.apache.cloudstack.api.BaseAsyncCmd";
+    private static final String BASE_ASYNC_CREATE_CMD = "org.apache.cloudstack.api.BaseAsyncCreateCmd";
+
+    private final Map<String, String> _commands = new LinkedHashMap<String, String>();
+    private final Map<String, String> _responses = new LinkedHashMap<String, String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!_commands.isEmpty()) {
+                writeIndex();
+            }
+            return false;
+        }
+
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    continue;
+                }
+                TypeElement cmdClass = (TypeElement)element;
+                AnnotationMirror apiCommand = findAnnotation(cmdClass, API_COMMAND);
+                try {
+                    _commands.put(cmdClass.getQualifiedName().toString(), commandEntry(cmdClass, apiCommand));
+                } catch (RuntimeException e) {
+                    // never fail the build over the index, the server falls back to reflection
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Unable to index api command: " + e, cmdClass);
+                }
+            }
+        }
+        return false;
+    }
+
+    private String commandEntry(TypeElement cmdClass, AnnotationMirror apiCommand) {
+        Map<String, Object> values = values(apiCommand);
+        TypeElement responseClass = asTypeElement((TypeMirror)values.get("responseObject"));
+        indexResponse(responseClass);
+
+        List<String> params = new ArrayList<String>();
+        for (TypeElement clazz = cmdClass; clazz != null; clazz = superclass(clazz)) {
+            String name = clazz.getQualifiedName().toString();
+            if (name.equals(BASE_CMD) || name.equals(BASE_ASYNC_CMD) || name.equals(BASE_ASYNC_CREATE_CMD)) {
+                continue;
+            }
+            for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+                AnnotationMirror parameter = findAnnotation(field, PARAMETER);
+                if (parameter != null) {
+                    params.add(parameterEntry(values(parameter)));
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{");
+        appendField(sb, "name", values.get("name")).append(',');
+        appendField(sb, "cmdClass", cmdClass.getQualifiedName().toString()).append(',');
+        appendField(sb, "responseClass", responseClass.getQualifiedName().toString()).append(',');
+        appendField(sb, "description", values.get("description")).append(',');
+        appendField(sb, "since", values.get("since")).append(',');
+        appendField(sb, "includeInApiDoc", values.get("includeInApiDoc")).append(',');
+        appendField(sb, "async", isAsync(cmdClass)).append(',');
+        quote(sb, "params").append(":[");
+        join(sb, params);
+        return sb.append("]}").toString();
+    }
+
+    private String parameterEntry(Map<String, Object> values) {
+        @SuppressWarnings("unchecked")
+        List<? extends AnnotationValue> entityTypes = (List<? extends AnnotationValue>)values.get("entityType");
+        TypeElement entityType = asTypeElement((TypeMirror)entityTypes.get(0).getValue());
+
+        StringBuilder sb = new StringBuilder("{");
+        appendField(sb, "name", values.get("name")).append(',');
+        appendField(sb, "description", values.get("description")).append(',');
+        appendField(sb, "type", ((VariableElement)values.get("type")).getSimpleName().toString()).append(',');
+        appendField(sb, "length", values.get("length")).append(',');
+        appendField(sb, "required", values.get("required")).append(',');
+        appendField(sb, "since", values.get("since")).append(',');
+        appendField(sb, "expose", values.get("expose")).append(',');
+        appendField(sb, "includeInApiDoc", values.get("includeInApiDoc")).append(',');
+        appendField(sb, "entityType", entityType.getQualifiedName().toString());
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Indexes the declared fields of a response class, and of every nested
+     * BaseResponse a field refers to.  Fields that are not serialized still
+     * get an (empty) entry, which is what the reflection based discovery
+     * has always returned.
+     */
+    private void indexResponse(TypeElement responseClass) {
+        String className = responseClass.getQualifiedName().toString();
+        if (_responses.containsKey(className)) {
+            return;
+        }
+        _responses.put(className, null);
+
+        List<String> fields = new ArrayList<String>();
+        for (VariableElement field : ElementFilter.fieldsIn(responseClass.getEnclosedElements())) {
+            AnnotationMirror serializedName = findAnnotation(field, SERIALIZED_NAME);
+            AnnotationMirror param = findAnnotation(field, PARAM);
+            if (serializedName == null || param == null) {
+                fields.add("{}");
+                continue;
+            }
+            Map<String, Object> paramValues = values(param);
+            StringBuilder sb = new StringBuilder("{");
+            appendField(sb, "name", values(serializedName).get("value")).append(',');
+            appendField(sb, "description", paramValues.get("description")).append(',');
+            appendField(sb, "type", simpleTypeName(field.asType()).toLowerCase());
+
+            TypeElement nested = asTypeElement((TypeMirror)paramValues.get("responseObject"));
+            TypeElement nestedSuper = nested != null ? superclass(nested) : null;
+            if (nestedSuper != null && nestedSuper.getQualifiedName().contentEquals(BASE_RESPONSE)) {
+                indexResponse(nested);
+                sb.append(',');
+                appendField(sb, "responseClass", nested.getQualifiedName().toString());
+            }
+            fields.add(sb.append('}').toString());
+        }
+
+        StringBuilder sb = new StringBuilder("[");
+        join(sb, fields);
+        _responses.put(className, sb.append(']').toString());
+    }
+
+    private void writeIndex() {
+        StringBuilder sb = new StringBuilder("{");
+        quote(sb, "commands").append(":[\n");
+        join(sb, new ArrayList<String>(_commands.values()), ",\n");
+        sb.append("\n],");
+        quote(sb, "responses").append(":{\n");
+        Iterator<Map.Entry<String, String>> it = _responses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            quote(sb, entry.getKey()).append(':').append(entry.getValue());
+            if (it.hasNext()) {
+                sb.append(",\n");
+            }
+        }
+        sb.append("\n}}\n");
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(sb.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Unable to write " + INDEX_RESOURCE + ": " + e);
+        }
+    }
+
+    private boolean isAsync(TypeElement cmdClass) {
+        for (TypeElement clazz = cmdClass; clazz != null; clazz = superclass(clazz)) {
+            String name = clazz.getQualifiedName().toString();
+            if (name.equals(BASE_ASYNC_CMD) || name.equals(BASE_ASYNC_CREATE_CMD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeElement superclass(TypeElement clazz) {
+        TypeMirror superType = clazz.getSuperclass();
+        if (superType.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement superClass = (TypeElement)((DeclaredType)superType).asElement();
+        return superClass.getQualifiedName().contentEquals("java.lang.Object") ? null : superClass;
+    }
+
+    private TypeElement asTypeElement(TypeMirror type) {
+        if (type == null || type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement)((DeclaredType)type).asElement();
+    }
+
+    private String simpleTypeName(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            return simpleTypeName(((ArrayType)type).getComponentType()) + "[]";
+        }
+        if (type.getKind() == TypeKind.DECLARED) {
+            return ((DeclaredType)type).asElement().getSimpleName().toString();
+        }
+        return type.toString();
+    }
+
+    private AnnotationMirror findAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement)mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(annotationName)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> values(AnnotationMirror mirror) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        Map<? extends ExecutableElement, ? extends AnnotationValue> elementValues = processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : elementValues.entrySet()) {
+            values.put(entry.getKey().getSimpleName().toString(), entry.getValue().getValue());
+        }
+        return values;
+    }
+
+    private static void join(StringBuilder sb, List<String> items) {
+        join(sb, items, ",");
+    }
+
+    private static void join(StringBuilder sb, List<String> items, String separator) {
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+            sb.append(items.get(i));
+        }
+    }
+
+    private static StringBuilder appendField(StringBuilder sb, String name, Object value) {
+        quote(sb, name).append(':');
+        if (value instanceof Boolean || value instanceof Number) {
+            return sb.append(value);
+        }
+        return quote(sb, value == null ? "" : value.toString());
+    }
+
+    private static StringBuilder quote(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int)c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.append('"');
+    }
+}
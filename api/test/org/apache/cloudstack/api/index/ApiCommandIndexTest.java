@@ -0,0 +1,147 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.BaseAsyncCmd;
+import org.apache.cloudstack.api.BaseAsyncCreateCmd;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.command.user.vm.DeployVMCmd;
+import org.apache.cloudstack.api.command.user.vm.ScaleVMCmd;
+import org.apache.cloudstack.api.index.ApiCommandIndex.CommandEntry;
+import org.apache.cloudstack.api.index.ApiCommandIndex.ParameterEntry;
+
+import com.cloud.utils.ReflectUtil;
+
+public class ApiCommandIndexTest {
+
+    /*
+     * The index of this module is generated while compiling it, so it has to describe
+     * exactly the commands the reflection based scan finds.
+     */
+    @Test
+    public void testIndexMatchesReflection() {
+        ApiCommandIndex index = ApiCommandIndex.load(getClass().getClassLoader());
+
+        Set<Class<?>> cmdClasses = new HashSet<Class<?>>();
+        for (Class<?> cmdClass : ReflectUtil.getClassesWithAnnotation(APICommand.class, new String[] {"org.apache.cloudstack.api"})) {
+            // the scan also returns subclasses of annotated commands
+            if (cmdClass.getAnnotation(APICommand.class) != null) {
+                cmdClasses.add(cmdClass);
+            }
+        }
+        assertFalse("No api command found by the scan", cmdClasses.isEmpty());
+        assertEquals("Index and scan should find the same commands", cmdClasses.size(), index.size());
+
+        for (Class<?> cmdClass : cmdClasses) {
+            APICommand at = cmdClass.getAnnotation(APICommand.class);
+            CommandEntry entry = index.getCommand(cmdClass.getName());
+            assertNotNull(cmdClass.getName() + " is not indexed", entry);
+            assertEquals(at.name(), entry.getName());
+            assertEquals(at.responseObject().getName(), entry.getResponseClass());
+            assertEquals(at.since(), entry.getSince());
+            assertEquals(at.includeInApiDoc(), entry.isIncludeInApiDoc());
+            assertEquals(cmdClass.getName() + " async flag", BaseAsyncCmd.class.isAssignableFrom(cmdClass), entry.isAsync());
+            assertNotNull(at.responseObject().getName() + " response fields are not indexed", index.getResponseFields(entry.getResponseClass()));
+
+            List<String> params = new ArrayList<String>();
+            for (Field field : ReflectUtil.getAllFieldsForClass(cmdClass, new Class<?>[] {BaseCmd.class, BaseAsyncCmd.class, BaseAsyncCreateCmd.class})) {
+                Parameter parameter = field.getAnnotation(Parameter.class);
+                if (parameter != null) {
+                    params.add(parameter.name());
+                }
+            }
+            List<String> indexedParams = new ArrayList<String>();
+            for (ParameterEntry param : entry.getParams()) {
+                indexedParams.add(param.getName());
+            }
+            Collections.sort(params);
+            Collections.sort(indexedParams);
+            assertEquals(cmdClass.getName() + " parameters", params, indexedParams);
+        }
+    }
+
+    @Test
+    public void testMissingEntryFallsBackToAnnotation() throws IOException {
+        File indexed = createIndexDir("{\"commands\":[{\"name\":\"scaleVirtualMachineFromIndex\",\"cmdClass\":\"" + ScaleVMCmd.class.getName()
+                + "\",\"responseClass\":\"\",\"description\":\"\",\"since\":\"\",\"includeInApiDoc\":true,\"async\":true,\"params\":[]}],\"responses\":{}}");
+        File malformed = createIndexDir("{\"commands\":[");
+
+        // no parent, so only the two index files above are visible
+        URLClassLoader loader = new URLClassLoader(new URL[] {indexed.toURI().toURL(), malformed.toURI().toURL()}, null);
+        ApiCommandIndex index = ApiCommandIndex.load(loader);
+
+        assertEquals("Malformed index files are skipped", 1, index.size());
+        assertEquals("scaleVirtualMachineFromIndex", index.getApiName(ScaleVMCmd.class));
+
+        assertNull(index.getCommand(DeployVMCmd.class.getName()));
+        assertEquals("Commands missing from the index are read from their annotation", DeployVMCmd.class.getAnnotation(APICommand.class).name(),
+                index.getApiName(DeployVMCmd.class));
+
+        assertNull("Not an api command", index.getApiName(String.class));
+    }
+
+    @Test
+    public void testNoIndexOnClasspath() throws IOException {
+        ApiCommandIndex index = ApiCommandIndex.load(new URLClassLoader(new URL[0], null));
+        assertEquals(0, index.size());
+        assertTrue(index.getApiName(DeployVMCmd.class).length() > 0);
+    }
+
+    private File createIndexDir(String content) throws IOException {
+        File dir = File.createTempFile("api-command-index", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        File file = new File(dir, ApiCommandIndex.INDEX_RESOURCE);
+        assertTrue(file.getParentFile().mkdirs());
+        // deleted in reverse order of registration
+        file.getParentFile().getParentFile().deleteOnExit();
+        file.getParentFile().deleteOnExit();
+        file.deleteOnExit();
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return dir;
+    }
+}
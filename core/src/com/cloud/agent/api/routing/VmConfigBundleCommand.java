@@ -0,0 +1,66 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The dhcp entries and vm data of a guest network, sent to a virtual router
+ * in one go instead of one DhcpEntryCommand and VmDataCommand per vm.  The
+ * resource ships them to the router as a single file which the router
+ * compares against the last bundle it applied; if that fails the entries are
+ * applied one by one the usual way.
+ */
+public class VmConfigBundleCommand extends NetworkElementCommand {
+    long version;
+    List<DhcpEntryCommand> dhcpEntries;
+    List<VmDataCommand> vmData;
+
+    protected VmConfigBundleCommand() {
+    }
+
+    public VmConfigBundleCommand(long version) {
+        this.version = version;
+        this.dhcpEntries = new ArrayList<DhcpEntryCommand>();
+        this.vmData = new ArrayList<VmDataCommand>();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<DhcpEntryCommand> getDhcpEntries() {
+        return dhcpEntries;
+    }
+
+    public List<VmDataCommand> getVmData() {
+        return vmData;
+    }
+
+    public void addDhcpEntry(DhcpEntryCommand cmd) {
+        dhcpEntries.add(cmd);
+    }
+
+    public void addVmData(VmDataCommand cmd) {
+        vmData.add(cmd);
+    }
+
+    public int size() {
+        return dhcpEntries.size() + vmData.size();
+    }
+}
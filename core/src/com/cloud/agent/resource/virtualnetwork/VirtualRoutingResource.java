@@ -28,7 +28,9 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -73,6 +75,7 @@ import com.cloud.agent.api.routing.SetStaticNatRulesCommand;
 import com.cloud.agent.api.routing.SetStaticRouteAnswer;
 import com.cloud.agent.api.routing.SetStaticRouteCommand;
 import com.cloud.agent.api.routing.Site2SiteVpnCfgCommand;
+import com.cloud.agent.api.routing.VmConfigBundleCommand;
 import com.cloud.agent.api.routing.VmDataCommand;
 import com.cloud.agent.api.routing.VpnUsersCfgCommand;
 import com.cloud.agent.api.to.DhcpTO;
@@ -154,6 +157,8 @@ public class VirtualRoutingResource implements Manager {
                 return execute((DeleteIpAliasCommand)cmd);
             } else if (cmd instanceof VmDataCommand) {
                 return execute((VmDataCommand)cmd);
+            } else if (cmd instanceof VmConfigBundleCommand) {
+                return execute((VmConfigBundleCommand)cmd);
             } else if (cmd instanceof CheckRouterCommand) {
                 return execute((CheckRouterCommand)cmd);
             } else if (cmd instanceof SetFirewallRulesCommand) {
@@ -481,6 +486,74 @@ public class VirtualRoutingResource implements Manager {
         return new Answer(cmd);
     }
 
+    protected Answer execute(final VmConfigBundleCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        String fileName = "vm_config_bundle_" + cmd.getVersion() + ".json";
+        File permKey = new File("/root/.ssh/id_rsa.cloud");
+        try {
+            SshHelper.scpTo(routerIp, 3922, "root", permKey, null, "/var/cache/cloud/", renderConfigBundle(cmd).getBytes(), fileName, null);
+
+            String result = routerProxy("apply_vm_config_bundle.py", routerIp, "-f /var/cache/cloud/" + fileName);
+            if (result == null) {
+                return new Answer(cmd);
+            }
+            s_logger.warn("Unable to apply config bundle " + cmd.getVersion() + " on router " + routerIp + " due to " + result);
+        } catch (Exception e) {
+            s_logger.warn("Unable to copy config bundle " + cmd.getVersion() + " to router " + routerIp, e);
+        }
+
+        // fall back to applying the entries one by one
+        s_logger.info("Applying the " + cmd.size() + " entries of config bundle " + cmd.getVersion() + " on router " + routerIp + " one by one");
+        int failed = 0;
+        for (DhcpEntryCommand dhcp : cmd.getDhcpEntries()) {
+            if (!execute(dhcp).getResult()) {
+                failed++;
+            }
+        }
+        for (VmDataCommand vmData : cmd.getVmData()) {
+            if (!execute(vmData).getResult()) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            return new Answer(cmd, false, failed + " of the " + cmd.size() + " entries of config bundle " + cmd.getVersion() + " failed");
+        }
+        return new Answer(cmd);
+    }
+
+    protected String renderConfigBundle(VmConfigBundleCommand cmd) {
+        List<Map<String, Object>> dhcp = new ArrayList<Map<String, Object>>();
+        for (DhcpEntryCommand entry : cmd.getDhcpEntries()) {
+            Map<String, Object> host = new LinkedHashMap<String, Object>();
+            host.put("mac", entry.getVmMac());
+            host.put("ip", entry.getVmIpAddress());
+            host.put("host", entry.getVmName());
+            host.put("router", entry.getDefaultRouter());
+            host.put("routes", entry.getStaticRoutes());
+            host.put("dns", entry.getDefaultDns());
+            host.put("ip6", entry.getVmIp6Address());
+            host.put("duid", entry.getVmIp6Address() != null ? entry.getDuid() : null);
+            host.put("default", entry.isDefault());
+            dhcp.add(host);
+        }
+
+        Map<String, List<String[]>> vmData = new LinkedHashMap<String, List<String[]>>();
+        for (VmDataCommand entry : cmd.getVmData()) {
+            List<String[]> data = vmData.get(entry.getVmIpAddress());
+            if (data == null) {
+                data = new ArrayList<String[]>();
+                vmData.put(entry.getVmIpAddress(), data);
+            }
+            data.addAll(entry.getVmData());
+        }
+
+        Map<String, Object> bundle = new LinkedHashMap<String, Object>();
+        bundle.put("version", cmd.getVersion());
+        bundle.put("dhcp", dhcp);
+        bundle.put("vmdata", vmData);
+        return new Gson().toJson(bundle);
+    }
+
     protected Answer execute(final IpAssocCommand cmd) {
         IpAddressTO[] ips = cmd.getIpAddresses();
         String[] results = new String[cmd.getIpAddresses().length];
@@ -0,0 +1,67 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.VmConfigBundleCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+
+public class VmConfigBundleRenderTest {
+
+    @Test
+    public void testRenderConfigBundle() {
+        VmConfigBundleCommand cmd = new VmConfigBundleCommand(7);
+        DhcpEntryCommand dhcp = new DhcpEntryCommand("02:00:4c:5a:00:01", "10.1.1.20", "vm-1", null, false);
+        dhcp.setDuid("00:03:00:01:02:00:4c:5a:00:01");
+        dhcp.setDefault(false);
+        cmd.addDhcpEntry(dhcp);
+        VmDataCommand first = new VmDataCommand("10.1.1.20", "vm-1", false);
+        first.addVmData("userdata", "user-data", "");
+        VmDataCommand second = new VmDataCommand("10.1.1.20", "vm-1", false);
+        second.addVmData("metadata", "local-hostname", "vm-1");
+        cmd.addVmData(first);
+        cmd.addVmData(second);
+
+        JsonObject bundle = new JsonParser().parse(new VirtualRoutingResource().renderConfigBundle(cmd)).getAsJsonObject();
+
+        assertEquals(7, bundle.get("version").getAsLong());
+        JsonArray dhcpEntries = bundle.getAsJsonArray("dhcp");
+        assertEquals(1, dhcpEntries.size());
+        JsonObject host = dhcpEntries.get(0).getAsJsonObject();
+        assertEquals("02:00:4c:5a:00:01", host.get("mac").getAsString());
+        assertEquals("vm-1", host.get("host").getAsString());
+        assertFalse(host.get("default").getAsBoolean());
+        // the duid only goes with an ipv6 address, as with dhcp_entry.sh
+        assertTrue(host.get("duid") == null || host.get("duid").isJsonNull());
+
+        // vm data of the same vm ends up in one list
+        JsonObject vmData = bundle.getAsJsonObject("vmdata");
+        JsonArray items = vmData.getAsJsonArray("10.1.1.20");
+        assertEquals(2, items.size());
+        assertEquals("local-hostname", items.get(1).getAsJsonArray().get(1).getAsString());
+    }
+}
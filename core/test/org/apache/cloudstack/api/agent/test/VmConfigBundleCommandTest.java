@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.agent.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.routing.DhcpEntryCommand;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.VmConfigBundleCommand;
+import com.cloud.agent.api.routing.VmDataCommand;
+import com.cloud.agent.transport.Request;
+
+public class VmConfigBundleCommandTest {
+
+    @Test
+    public void testSerDeser() throws Exception {
+        VmConfigBundleCommand cmd = new VmConfigBundleCommand(42);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, "169.254.1.10");
+        DhcpEntryCommand dhcp = new DhcpEntryCommand("02:00:4c:5a:00:01", "10.1.1.20", "vm-1", null, false);
+        dhcp.setDefaultRouter("10.1.1.1");
+        dhcp.setDefault(false);
+        cmd.addDhcpEntry(dhcp);
+        VmDataCommand vmData = new VmDataCommand("10.1.1.20", "vm-1", false);
+        vmData.addVmData("metadata", "local-hostname", "vm-1");
+        cmd.addVmData(vmData);
+        assertEquals(2, cmd.size());
+
+        Request request = Request.parse(new Request(2, 3, cmd, true).getBytes());
+        VmConfigBundleCommand parsed = (VmConfigBundleCommand)request.getCommand();
+
+        assertEquals(42, parsed.getVersion());
+        assertEquals("169.254.1.10", parsed.getAccessDetail(NetworkElementCommand.ROUTER_IP));
+        assertEquals(1, parsed.getDhcpEntries().size());
+        DhcpEntryCommand parsedDhcp = parsed.getDhcpEntries().get(0);
+        assertEquals("02:00:4c:5a:00:01", parsedDhcp.getVmMac());
+        assertEquals("10.1.1.1", parsedDhcp.getDefaultRouter());
+        assertFalse(parsedDhcp.isDefault());
+        assertEquals(1, parsed.getVmData().size());
+        assertEquals("10.1.1.20", parsed.getVmData().get(0).getVmIpAddress());
+        assertTrue(parsed.getVmData().get(0).getVmData().get(0)[2].equals("vm-1"));
+    }
+}
@@ -60,6 +60,9 @@ public interface AlertManager extends Manager {
     static final ConfigKey<Double> StorageAllocatedCapacityThreshold = new ConfigKey<Double>(Double.class, "cluster.storage.allocated.capacity.notificationthreshold", "Alert",
         "0.75", "Percentage (as a value between 0 and 1) of allocated storage utilization above which alerts will be sent about low storage available.", true,
         ConfigKey.Scope.Cluster, null);
+    static final ConfigKey<Integer> CapacityCheckHostsPerRun = new ConfigKey<Integer>("Alert", Integer.class, "capacity.check.hosts.per.run", "100",
+        "Number of hosts whose cpu/memory capacity is verified against their VMs by each run of the capacity checker, hosts are verified in turns; 0 verifies all of them every run. The capacity reserved for stopped VMs is recomputed on all hosts every run",
+        true);
     
     void clearAlert(short alertType, long dataCenterId, long podId);
 
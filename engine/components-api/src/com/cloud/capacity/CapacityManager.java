@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.List;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
@@ -47,10 +49,34 @@ public interface CapacityManager {
     static final ConfigKey<Double> StorageAllocatedCapacityDisableThreshold = new ConfigKey<Double>("Alert", Double.class, StorageAllocatedCapacityDisableThresholdCK, "0.85",
         "Percentage (as a value between 0 and 1) of allocated storage utilization above which allocators will disable using the pool for low allocated storage available.", true,
         ConfigKey.Scope.Zone);
+    static final ConfigKey<Boolean> CapacityIndexEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "capacity.index.enabled", "true",
+        "If true, the deployment planners read host cpu and memory capacity from an in memory index instead of the database", false);
+    static final ConfigKey<Integer> CapacityIndexReconcileInterval = new ConfigKey<Integer>("Advanced", Integer.class, "capacity.index.reconcile.interval", "60",
+        "Interval (in seconds) at which the in memory capacity index is reconciled against the database", false);
+    static final ConfigKey<Integer> CapacityUpdateRetries = new ConfigKey<Integer>("Advanced", Integer.class, "capacity.update.retries", "5",
+        "Number of times a host cpu/memory capacity update is retried with an optimistic conditional update before the rows are locked, 0 to always lock them", true);
+    static final ConfigKey<Integer> StorageAllocatedCapacityCacheTtl = new ConfigKey<Integer>("Storage", Integer.class, "storage.allocated.capacity.cache.ttl", "30",
+        "Seconds the allocated capacity of a storage pool is reused for when no volume on the pool changes state, 0 to always compute it", true);
 
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId);
 
     void allocateVmCapacity(VirtualMachine vm, boolean fromLastHost);
+
+    /**
+     * Reserves capacity on a host for several VMs at once, e.g. a batch deployment, without locking
+     * the capacity rows.  The VMs consume the reservation when they are started with fromLastHost,
+     * what they do not use has to be given back with releaseHostCapacity().
+     * @param hostId Id of the host
+     * @param cpu total cpu (in MHz) to reserve
+     * @param ram total memory (in bytes) to reserve
+     * @return false if the host does not have that much free capacity, nothing is reserved then
+     */
+    boolean reserveHostCapacity(long hostId, long cpu, long ram);
+
+    /**
+     * Gives back capacity reserved with reserveHostCapacity().
+     */
+    void releaseHostCapacity(long hostId, long cpu, long ram);
     
     /**
      * @param hostId Id of the host to check capacity
@@ -61,6 +87,20 @@ public interface CapacityManager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, float memoryOvercommitRatio, boolean considerReservedCapacity);
 
 	void updateCapacityForHost(Host host);
+
+    /**
+     * Recomputes the cpu and memory capacity of the hosts from the VMs on them, and fixes the
+     * capacity rows that drifted from it.
+     * @return the number of hosts whose capacity had drifted
+     */
+    int updateCapacityForHosts(List<? extends Host> hosts);
+
+    /**
+     * Recomputes only the capacity reserved on the hosts for their stopped VMs, releasing the
+     * reservations older than capacity.skipcounting.hours, and fixes the reserved capacity that drifted.
+     * @return the number of hosts whose reserved capacity had drifted
+     */
+    int updateReservedCapacityForHosts(List<? extends Host> hosts);
     
 	/**
      * @param pool storage pool
@@ -75,4 +115,9 @@ public interface CapacityManager {
      * @return true if the count of host's running VMs >= hypervisor limit
      */
     boolean checkIfHostReachMaxGuestLimit(Host host);
+
+    /**
+     * @return the in memory copy of the host cpu and memory capacities, or null if capacity.index.enabled is false
+     */
+    HostCapacityIndex getHostCapacityIndex();
 }
@@ -0,0 +1,400 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+
+/**
+ * In memory copy of the host cpu and memory rows of op_host_capacity, with the
+ * overcommit ratios and disable thresholds of every cluster, so the planners
+ * can rank clusters and check hosts without going to the database.
+ *
+ * The database stays the source of truth: CapacityManagerImpl pushes every
+ * row it commits into the index, and periodically reconciles the whole index
+ * against op_host_capacity to pick up changes made by anybody else.  The
+ * queries mirror the corresponding CapacityDao queries.
+ */
+public class HostCapacityIndex {
+    private static final Logger s_logger = Logger.getLogger(HostCapacityIndex.class);
+
+    static final String CPU_OVERCOMMIT_RATIO = "cpuOvercommitRatio";
+    static final String MEMORY_OVERCOMMIT_RATIO = "memoryOvercommitRatio";
+
+    /**
+     * Immutable snapshot of the compute capacity of one host.  Updates
+     * replace the snapshot, they never modify it.
+     */
+    public static class HostCapacity {
+        private final long _hostId;
+        private final Long _zoneId;
+        private final Long _podId;
+        private final Long _clusterId;
+        private final long _usedCpu;
+        private final long _reservedCpu;
+        private final long _totalCpu;
+        private final long _usedMemory;
+        private final long _reservedMemory;
+        private final long _totalMemory;
+        private final boolean _hasCpu;
+        private final boolean _hasMemory;
+        private final long _sequence;
+
+        private HostCapacity(HostCapacity base, CapacityVO row, long sequence) {
+            _hostId = row.getHostOrPoolId();
+            _zoneId = row.getDataCenterId();
+            _podId = row.getPodId();
+            _clusterId = row.getClusterId();
+            boolean cpu = row.getCapacityType() == Capacity.CAPACITY_TYPE_CPU;
+            _usedCpu = cpu ? row.getUsedCapacity() : (base != null ? base._usedCpu : 0);
+            _reservedCpu = cpu ? row.getReservedCapacity() : (base != null ? base._reservedCpu : 0);
+            _totalCpu = cpu ? row.getTotalCapacity() : (base != null ? base._totalCpu : 0);
+            _hasCpu = cpu || (base != null && base._hasCpu);
+            _usedMemory = !cpu ? row.getUsedCapacity() : (base != null ? base._usedMemory : 0);
+            _reservedMemory = !cpu ? row.getReservedCapacity() : (base != null ? base._reservedMemory : 0);
+            _totalMemory = !cpu ? row.getTotalCapacity() : (base != null ? base._totalMemory : 0);
+            _hasMemory = !cpu || (base != null && base._hasMemory);
+            _sequence = sequence;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public Long getZoneId() {
+            return _zoneId;
+        }
+
+        public Long getPodId() {
+            return _podId;
+        }
+
+        public Long getClusterId() {
+            return _clusterId;
+        }
+
+        public long getUsedCpu() {
+            return _usedCpu;
+        }
+
+        public long getReservedCpu() {
+            return _reservedCpu;
+        }
+
+        public long getTotalCpu() {
+            return _totalCpu;
+        }
+
+        public long getUsedMemory() {
+            return _usedMemory;
+        }
+
+        public long getReservedMemory() {
+            return _reservedMemory;
+        }
+
+        public long getTotalMemory() {
+            return _totalMemory;
+        }
+
+        boolean isComplete() {
+            return _hasCpu && _hasMemory;
+        }
+
+        boolean sameValues(HostCapacity other) {
+            return other != null && _usedCpu == other._usedCpu && _reservedCpu == other._reservedCpu && _totalCpu == other._totalCpu
+                    && _usedMemory == other._usedMemory && _reservedMemory == other._reservedMemory && _totalMemory == other._totalMemory;
+        }
+
+        long getUsed(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _usedCpu : _usedMemory;
+        }
+
+        long getReserved(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _reservedCpu : _reservedMemory;
+        }
+
+        long getTotal(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _totalCpu : _totalMemory;
+        }
+
+        boolean has(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _hasCpu : _hasMemory;
+        }
+    }
+
+    private final ConcurrentMap<Long, HostCapacity> _hosts = new ConcurrentHashMap<Long, HostCapacity>();
+    private volatile Map<Long, Map<String, String>> _clusterDetails = new HashMap<Long, Map<String, String>>();
+    private final AtomicLong _sequence = new AtomicLong();
+    private volatile boolean _ready;
+
+    private final AtomicLong _updates = new AtomicLong();
+    private final AtomicLong _drifted = new AtomicLong();
+
+    public boolean isReady() {
+        return _ready;
+    }
+
+    /**
+     * @return the capacity of the host, or null if the index does not know both its cpu and memory
+     */
+    public HostCapacity getHostCapacity(long hostId) {
+        HostCapacity capacity = _hosts.get(hostId);
+        return capacity != null && capacity.isComplete() ? capacity : null;
+    }
+
+    /**
+     * Records a committed op_host_capacity row.  Rows other than host cpu and
+     * memory are ignored.
+     */
+    public void update(CapacityVO row) {
+        if (row == null || row.getHostOrPoolId() == null
+                || (row.getCapacityType() != Capacity.CAPACITY_TYPE_CPU && row.getCapacityType() != Capacity.CAPACITY_TYPE_MEMORY)) {
+            return;
+        }
+        Long hostId = row.getHostOrPoolId();
+        while (true) {
+            HostCapacity current = _hosts.get(hostId);
+            HostCapacity updated = new HostCapacity(current, row, _sequence.incrementAndGet());
+            if (current == null ? _hosts.putIfAbsent(hostId, updated) == null : _hosts.replace(hostId, current, updated)) {
+                _updates.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    public void removeHost(long hostId) {
+        _hosts.remove(hostId);
+        _sequence.incrementAndGet();
+    }
+
+    /**
+     * @return the sequence to pass to {@link #reconcile}, taken before the rows are read
+     */
+    public long beginReconcile() {
+        return _sequence.get();
+    }
+
+    /**
+     * Replaces the content of the index with what was read from the database.
+     * Hosts updated after the read started keep their newer value.
+     * @param startSequence value of {@link #beginReconcile()} before the rows were read
+     * @param rows host cpu and memory rows of op_host_capacity
+     * @param clusterDetails details of every cluster that is not removed
+     * @return number of hosts whose indexed capacity did not match the database
+     */
+    public int reconcile(long startSequence, List<CapacityVO> rows, Map<Long, Map<String, String>> clusterDetails) {
+        Map<Long, HostCapacity> loaded = new HashMap<Long, HostCapacity>();
+        for (CapacityVO row : rows) {
+            if (row.getHostOrPoolId() == null
+                    || (row.getCapacityType() != Capacity.CAPACITY_TYPE_CPU && row.getCapacityType() != Capacity.CAPACITY_TYPE_MEMORY)) {
+                continue;
+            }
+            loaded.put(row.getHostOrPoolId(), new HostCapacity(loaded.get(row.getHostOrPoolId()), row, startSequence));
+        }
+
+        int drifted = 0;
+        for (Map.Entry<Long, HostCapacity> entry : loaded.entrySet()) {
+            HostCapacity current = _hosts.get(entry.getKey());
+            if (current != null && current._sequence > startSequence) {
+                continue;
+            }
+            if (current != null && !current.sameValues(entry.getValue())) {
+                drifted++;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Capacity index drifted for host " + entry.getKey() + ", correcting it from the database");
+                }
+            }
+            if (current == null) {
+                _hosts.putIfAbsent(entry.getKey(), entry.getValue());
+            } else {
+                _hosts.replace(entry.getKey(), current, entry.getValue());
+            }
+        }
+        for (Map.Entry<Long, HostCapacity> entry : _hosts.entrySet()) {
+            if (!loaded.containsKey(entry.getKey()) && entry.getValue()._sequence <= startSequence) {
+                _hosts.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        _clusterDetails = clusterDetails;
+        _drifted.addAndGet(drifted);
+        _ready = true;
+        return drifted;
+    }
+
+    private static String overcommitDetail(short capacityType) {
+        return capacityType == Capacity.CAPACITY_TYPE_CPU ? CPU_OVERCOMMIT_RATIO : MEMORY_OVERCOMMIT_RATIO;
+    }
+
+    private Double getClusterDetail(Map<Long, Map<String, String>> clusterDetails, Long clusterId, String name) {
+        Map<String, String> details = clusterDetails.get(clusterId);
+        String value = details != null ? details.get(name) : null;
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean inScope(HostCapacity capacity, long id, boolean isZone) {
+        Long scopeId = isZone ? capacity.getZoneId() : capacity.getPodId();
+        return scopeId != null && scopeId == id;
+    }
+
+    /**
+     * Same as CapacityDao.listClustersInZoneOrPodByHostCapacities(): clusters
+     * with at least one host having the cpu, and one having the memory, asked for.
+     */
+    public List<Long> listClustersByHostCapacities(long id, boolean isZone, int requiredCpu, long requiredRam) {
+        Map<Long, Map<String, String>> clusterDetails = _clusterDetails;
+        Set<Long> enoughCpu = new HashSet<Long>();
+        Set<Long> enoughRam = new HashSet<Long>();
+        for (HostCapacity capacity : _hosts.values()) {
+            Long clusterId = capacity.getClusterId();
+            if (!inScope(capacity, id, isZone) || clusterId == null || !clusterDetails.containsKey(clusterId)) {
+                continue;
+            }
+            // free capacity is computed as "total * ratio - used + reserved", exactly like the dao query
+            Double cpuRatio = getClusterDetail(clusterDetails, clusterId, CPU_OVERCOMMIT_RATIO);
+            if (cpuRatio != null && capacity.has(Capacity.CAPACITY_TYPE_CPU)
+                    && capacity.getTotalCpu() * cpuRatio - capacity.getUsedCpu() + capacity.getReservedCpu() >= requiredCpu) {
+                enoughCpu.add(clusterId);
+            }
+            Double memRatio = getClusterDetail(clusterDetails, clusterId, MEMORY_OVERCOMMIT_RATIO);
+            if (memRatio != null && capacity.has(Capacity.CAPACITY_TYPE_MEMORY)
+                    && capacity.getTotalMemory() * memRatio - capacity.getUsedMemory() + capacity.getReservedMemory() >= requiredRam) {
+                enoughRam.add(clusterId);
+            }
+        }
+        enoughCpu.retainAll(enoughRam);
+        return new ArrayList<Long>(enoughCpu);
+    }
+
+    /**
+     * Same as CapacityDao.orderClustersByAggregateCapacity(): clusters ordered
+     * by allocated / total (overcommitted) capacity, least used first.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, boolean isZone, short capacityType) {
+        Map<Long, Map<String, String>> clusterDetails = _clusterDetails;
+        Map<Long, long[]> sums = new HashMap<Long, long[]>();
+        for (HostCapacity capacity : _hosts.values()) {
+            Long clusterId = capacity.getClusterId();
+            if (!inScope(capacity, id, isZone) || clusterId == null || !capacity.has(capacityType)) {
+                continue;
+            }
+            long[] sum = sums.get(clusterId);
+            if (sum == null) {
+                sum = new long[2];
+                sums.put(clusterId, sum);
+            }
+            sum[0] += capacity.getUsed(capacityType) + capacity.getReserved(capacityType);
+            sum[1] += capacity.getTotal(capacityType);
+        }
+
+        final Map<Long, Double> clusterCapacityMap = new HashMap<Long, Double>();
+        for (Map.Entry<Long, long[]> entry : sums.entrySet()) {
+            Double ratio = getClusterDetail(clusterDetails, entry.getKey(), overcommitDetail(capacityType));
+            if (ratio == null) {
+                continue;
+            }
+            double total = entry.getValue()[1] * ratio;
+            clusterCapacityMap.put(entry.getKey(), total > 0 ? entry.getValue()[0] / total : 0);
+        }
+
+        List<Long> result = new ArrayList<Long>(clusterCapacityMap.keySet());
+        Collections.sort(result, new Comparator<Long>() {
+            @Override
+            public int compare(Long c1, Long c2) {
+                return clusterCapacityMap.get(c1).compareTo(clusterCapacityMap.get(c2));
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(result, clusterCapacityMap);
+    }
+
+    /**
+     * Same as CapacityDao.listClustersCrossingThreshold(): clusters of the zone
+     * whose allocated capacity, with the requested amount added, would be above
+     * their disable threshold.
+     * @param configName name of the threshold setting, looked up in the cluster details first
+     * @param globalThreshold value of the setting to use for clusters that do not override it
+     */
+    public List<Long> listClustersCrossingThreshold(short capacityType, long zoneId, String configName, float globalThreshold, long requested) {
+        Map<Long, Map<String, String>> clusterDetails = _clusterDetails;
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (HostCapacity capacity : _hosts.values()) {
+            Long clusterId = capacity.getClusterId();
+            if (!inScope(capacity, zoneId, true) || clusterId == null || !capacity.has(capacityType) || capacity.getTotal(capacityType) <= 0) {
+                continue;
+            }
+            Double ratio = getClusterDetail(clusterDetails, clusterId, overcommitDetail(capacityType));
+            if (ratio == null) {
+                continue;
+            }
+            double[] sum = sums.get(clusterId);
+            if (sum == null) {
+                sum = new double[2];
+                sums.put(clusterId, sum);
+            }
+            sum[0] += capacity.getUsed(capacityType) + capacity.getReserved(capacityType);
+            sum[1] += capacity.getTotal(capacityType) * ratio;
+        }
+
+        List<Long> result = new ArrayList<Long>();
+        for (Map.Entry<Long, double[]> entry : sums.entrySet()) {
+            Double threshold = getClusterDetail(clusterDetails, entry.getKey(), configName);
+            if (threshold == null) {
+                threshold = (double)globalThreshold;
+            }
+            if ((entry.getValue()[0] + requested) / entry.getValue()[1] > threshold) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    public int getHostCount() {
+        return _hosts.size();
+    }
+
+    public long getUpdateCount() {
+        return _updates.get();
+    }
+
+    /**
+     * @return number of host entries corrected by reconciliation so far
+     */
+    public long getDriftCount() {
+        return _drifted.get();
+    }
+}
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.deploy;
 
+import java.util.List;
+
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.exception.AffinityConflictException;
 import com.cloud.exception.InsufficientServerCapacityException;
@@ -42,6 +44,27 @@ public interface DeploymentPlanningManager extends Manager {
     DeployDestination planDeployment(VirtualMachineProfile vmProfile, DeploymentPlan plan,
             ExcludeList avoids) throws InsufficientServerCapacityException, AffinityConflictException;
 
+    /**
+     * Plans the deployment of several VMs at once.  The VMs must share their zone, service offering,
+     * template and hypervisor, so the cluster ordering and the host and storage pool allocators run
+     * once per cluster for the whole batch instead of once per VM, and every VM is placed against the
+     * same capacity snapshot minus what the VMs planned before it take.  Affinity groups and explicit
+     * dedication are processed for every VM, and VMs of the batch in the same host anti-affinity
+     * group are placed on different hosts.
+     *
+     * The cpu and memory of all the destinations are reserved at once through
+     * CapacityManager.reserveHostCapacity(): either the whole batch is reserved or nothing is.
+     * The destination host is then recorded as the last host of every VM, so the reservation
+     * follows the lifecycle of the reserved capacity of a stopped VM: starting the VM picks
+     * its last host and converts the reservation into used capacity, a failed start or an
+     * expunge releases it, and it is no longer counted after capacity.skipcounting.hours.
+     *
+     * @return the destination of every VM, in the order of vmProfiles
+     * @throws InsufficientServerCapacityException if any of the VMs cannot be placed
+     */
+    List<DeployDestination> planDeployments(List<VirtualMachineProfile> vmProfiles, DeploymentPlan plan,
+            ExcludeList avoids) throws InsufficientServerCapacityException, AffinityConflictException;
+
     String finalizeReservation(DeployDestination plannedDestination,
             VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids)
             throws InsufficientServerCapacityException, AffinityConflictException;
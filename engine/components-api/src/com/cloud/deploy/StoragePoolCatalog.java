@@ -0,0 +1,180 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VolumeDao;
+
+/**
+ * Storage pools, their clusters and allocated IOPS as seen by one planning session.  A deployment
+ * looks for pools for every volume of the VM, in every cluster it tries, and the pool allocators
+ * query the same pools over and over; within a session each of them is loaded only once.
+ *
+ * The session is bound to the thread between open() and close().  Outside of a session the
+ * static lookups go straight to the DAOs, so callers do not have to care whether one is open.
+ */
+public class StoragePoolCatalog {
+    private static final ThreadLocal<StoragePoolCatalog> s_current = new ThreadLocal<StoragePoolCatalog>();
+
+    private int _depth;
+    private final Map<String, List<StoragePoolVO>> _poolsByTags = new HashMap<String, List<StoragePoolVO>>();
+    private final Map<Long, StoragePool> _pools = new HashMap<Long, StoragePool>();
+    private final Map<Long, ClusterVO> _clusters = new HashMap<Long, ClusterVO>();
+    private final Map<Long, VolumeVO> _volumes = new HashMap<Long, VolumeVO>();
+    private final Map<Long, Long> _allocatedIops = new HashMap<Long, Long>();
+
+    /**
+     * Opens a session on the current thread, or joins the one already open.
+     */
+    public static StoragePoolCatalog open() {
+        StoragePoolCatalog catalog = s_current.get();
+        if (catalog == null) {
+            catalog = new StoragePoolCatalog();
+            s_current.set(catalog);
+        }
+        catalog._depth++;
+        return catalog;
+    }
+
+    public static StoragePoolCatalog current() {
+        return s_current.get();
+    }
+
+    public void close() {
+        if (--_depth == 0) {
+            s_current.remove();
+        }
+    }
+
+    public static List<StoragePoolVO> findPoolsByTags(PrimaryDataStoreDao poolDao, long dcId, long podId, Long clusterId, String[] tags) {
+        StoragePoolCatalog catalog = current();
+        if (catalog == null) {
+            return poolDao.findPoolsByTags(dcId, podId, clusterId, tags);
+        }
+        String key = "cluster-" + dcId + "-" + podId + "-" + clusterId + "-" + Arrays.toString(tags);
+        List<StoragePoolVO> pools = catalog._poolsByTags.get(key);
+        if (pools == null) {
+            pools = poolDao.findPoolsByTags(dcId, podId, clusterId, tags);
+            catalog._poolsByTags.put(key, pools);
+        }
+        // callers remove from the lists they get
+        return new ArrayList<StoragePoolVO>(pools);
+    }
+
+    public static List<StoragePoolVO> findZoneWideStoragePoolsByTags(PrimaryDataStoreDao poolDao, long dcId, String[] tags) {
+        StoragePoolCatalog catalog = current();
+        if (catalog == null) {
+            return poolDao.findZoneWideStoragePoolsByTags(dcId, tags);
+        }
+        String key = "zone-" + dcId + "-" + Arrays.toString(tags);
+        List<StoragePoolVO> pools = catalog._poolsByTags.get(key);
+        if (pools == null) {
+            pools = poolDao.findZoneWideStoragePoolsByTags(dcId, tags);
+            catalog._poolsByTags.put(key, pools);
+        }
+        return new ArrayList<StoragePoolVO>(pools);
+    }
+
+    public static List<StoragePoolVO> findZoneWideStoragePoolsByHypervisor(PrimaryDataStoreDao poolDao, long dcId, HypervisorType hypervisorType) {
+        StoragePoolCatalog catalog = current();
+        if (catalog == null) {
+            return poolDao.findZoneWideStoragePoolsByHypervisor(dcId, hypervisorType);
+        }
+        String key = "hypervisor-" + dcId + "-" + hypervisorType;
+        List<StoragePoolVO> pools = catalog._poolsByTags.get(key);
+        if (pools == null) {
+            pools = poolDao.findZoneWideStoragePoolsByHypervisor(dcId, hypervisorType);
+            catalog._poolsByTags.put(key, pools);
+        }
+        return new ArrayList<StoragePoolVO>(pools);
+    }
+
+    public static StoragePool getPool(DataStoreManager dataStoreMgr, long poolId) {
+        StoragePoolCatalog catalog = current();
+        if (catalog == null) {
+            return (StoragePool)dataStoreMgr.getPrimaryDataStore(poolId);
+        }
+        StoragePool pool = catalog._pools.get(poolId);
+        if (pool == null) {
+            pool = (StoragePool)dataStoreMgr.getPrimaryDataStore(poolId);
+            catalog._pools.put(poolId, pool);
+        }
+        return pool;
+    }
+
+    public static ClusterVO getCluster(ClusterDao clusterDao, long clusterId) {
+        StoragePoolCatalog catalog = current();
+        if (catalog == null) {
+            return clusterDao.findById(clusterId);
+        }
+        ClusterVO cluster = catalog._clusters.get(clusterId);
+        if (cluster == null) {
+            cluster = clusterDao.findById(clusterId);
+            catalog._clusters.put(clusterId, cluster);
+        }
+        return cluster;
+    }
+
+    public static VolumeVO getVolume(VolumeDao volumeDao, long volumeId) {
+        StoragePoolCatalog catalog = current();
+        if (catalog == null) {
+            return volumeDao.findById(volumeId);
+        }
+        VolumeVO volume = catalog._volumes.get(volumeId);
+        if (volume == null) {
+            volume = volumeDao.findById(volumeId);
+            catalog._volumes.put(volumeId, volume);
+        }
+        return volume;
+    }
+
+    /**
+     * @return sum of the min IOPS of the volumes on the pool
+     */
+    public static long getAllocatedIops(VolumeDao volumeDao, long poolId) {
+        StoragePoolCatalog catalog = current();
+        Long iops = catalog != null ? catalog._allocatedIops.get(poolId) : null;
+        if (iops == null) {
+            long currentIops = 0;
+            for (VolumeVO volume : volumeDao.findByPoolId(poolId, null)) {
+                Long minIops = volume.getMinIops();
+                if (minIops != null && minIops > 0) {
+                    currentIops += minIops;
+                }
+            }
+            iops = currentIops;
+            if (catalog != null) {
+                catalog._allocatedIops.put(poolId, iops);
+            }
+        }
+        return iops;
+    }
+}
@@ -0,0 +1,169 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.Pair;
+
+public class HostCapacityIndexTest {
+    private static final long ZONE = 1L;
+    private static final long POD = 2L;
+
+    HostCapacityIndex index;
+    Map<Long, Map<String, String>> clusterDetails;
+
+    private static CapacityVO capacity(long hostId, long clusterId, short type, long used, long reserved, long total) {
+        CapacityVO capacity = new CapacityVO(hostId, ZONE, POD, clusterId, used, total, type);
+        capacity.setReservedCapacity(reserved);
+        return capacity;
+    }
+
+    private static Map<String, String> details(String cpuRatio, String memoryRatio) {
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("cpuOvercommitRatio", cpuRatio);
+        details.put("memoryOvercommitRatio", memoryRatio);
+        return details;
+    }
+
+    @Before
+    public void setUp() {
+        index = new HostCapacityIndex();
+        clusterDetails = new HashMap<Long, Map<String, String>>();
+        clusterDetails.put(10L, details("1", "1"));
+        clusterDetails.put(20L, details("2", "1"));
+    }
+
+    private List<CapacityVO> rows() {
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        rows.add(capacity(1L, 10L, Capacity.CAPACITY_TYPE_CPU, 800, 0, 1000));
+        rows.add(capacity(1L, 10L, Capacity.CAPACITY_TYPE_MEMORY, 512, 0, 1024));
+        rows.add(capacity(2L, 20L, Capacity.CAPACITY_TYPE_CPU, 800, 0, 1000));
+        rows.add(capacity(2L, 20L, Capacity.CAPACITY_TYPE_MEMORY, 256, 0, 1024));
+        return rows;
+    }
+
+    @Test
+    public void testNotReadyUntilReconciled() {
+        assertFalse(index.isReady());
+        index.update(capacity(1L, 10L, Capacity.CAPACITY_TYPE_CPU, 800, 0, 1000));
+        assertFalse(index.isReady());
+        assertNull("only the cpu of the host is known", index.getHostCapacity(1L));
+
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+        assertTrue(index.isReady());
+        assertNotNull(index.getHostCapacity(1L));
+    }
+
+    @Test
+    public void testListClustersByHostCapacities() {
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+
+        // cluster 20 has a cpu overcommit ratio of 2
+        assertEquals(Arrays.asList(20L), index.listClustersByHostCapacities(ZONE, true, 500, 512));
+        List<Long> clusters = index.listClustersByHostCapacities(POD, false, 100, 512);
+        assertEquals(2, clusters.size());
+        assertTrue(index.listClustersByHostCapacities(ZONE, true, 100, 2048).isEmpty());
+        assertTrue(index.listClustersByHostCapacities(ZONE + 1, true, 100, 512).isEmpty());
+    }
+
+    @Test
+    public void testOrderClustersByAggregateCapacity() {
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+
+        Pair<List<Long>, Map<Long, Double>> cpuOrder = index.orderClustersByAggregateCapacity(ZONE, true, Capacity.CAPACITY_TYPE_CPU);
+        assertEquals(Arrays.asList(20L, 10L), cpuOrder.first());
+        assertEquals(0.4, cpuOrder.second().get(20L), 0.0001);
+        assertEquals(0.8, cpuOrder.second().get(10L), 0.0001);
+
+        Pair<List<Long>, Map<Long, Double>> memoryOrder = index.orderClustersByAggregateCapacity(ZONE, true, Capacity.CAPACITY_TYPE_MEMORY);
+        assertEquals(Arrays.asList(20L, 10L), memoryOrder.first());
+    }
+
+    @Test
+    public void testListClustersCrossingThreshold() {
+        clusterDetails.get(20L).put("cluster.cpu.allocated.capacity.disablethreshold", "0.3");
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+
+        List<Long> crossing = index.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, ZONE, "cluster.cpu.allocated.capacity.disablethreshold", 0.85f, 100);
+        assertEquals(2, crossing.size());
+        crossing = index.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, ZONE, "cluster.cpu.allocated.capacity.disablethreshold", 0.95f, 100);
+        assertEquals(Arrays.asList(20L), crossing);
+    }
+
+    @Test
+    public void testUpdateAndRemove() {
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+        index.update(capacity(1L, 10L, Capacity.CAPACITY_TYPE_CPU, 100, 50, 1000));
+
+        assertEquals(100, index.getHostCapacity(1L).getUsedCpu());
+        assertEquals(50, index.getHostCapacity(1L).getReservedCpu());
+        assertEquals(512, index.getHostCapacity(1L).getUsedMemory());
+
+        index.removeHost(1L);
+        assertNull(index.getHostCapacity(1L));
+        assertEquals(1, index.getHostCount());
+    }
+
+    @Test
+    public void testReconcileCorrectsDrift() {
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+        index.update(capacity(1L, 10L, Capacity.CAPACITY_TYPE_CPU, 100, 0, 1000));
+
+        assertEquals(1, index.reconcile(index.beginReconcile(), rows(), clusterDetails));
+        assertEquals(800, index.getHostCapacity(1L).getUsedCpu());
+        assertEquals(1, index.getDriftCount());
+    }
+
+    @Test
+    public void testReconcileKeepsNewerUpdates() {
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+
+        long sequence = index.beginReconcile();
+        // committed while the rows were being read
+        index.update(capacity(1L, 10L, Capacity.CAPACITY_TYPE_CPU, 100, 0, 1000));
+        index.update(capacity(3L, 10L, Capacity.CAPACITY_TYPE_CPU, 0, 0, 1000));
+        index.update(capacity(3L, 10L, Capacity.CAPACITY_TYPE_MEMORY, 0, 0, 1024));
+
+        assertEquals(0, index.reconcile(sequence, rows(), clusterDetails));
+        assertEquals(100, index.getHostCapacity(1L).getUsedCpu());
+        assertNotNull(index.getHostCapacity(3L));
+    }
+
+    @Test
+    public void testReconcileDropsRemovedHosts() {
+        index.reconcile(index.beginReconcile(), rows(), clusterDetails);
+
+        List<CapacityVO> rows = rows().subList(0, 2);
+        index.reconcile(index.beginReconcile(), rows, clusterDetails);
+        assertNull(index.getHostCapacity(2L));
+        assertEquals(1, index.getHostCount());
+    }
+}
@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VolumeDao;
+
+public class StoragePoolCatalogTest {
+    PrimaryDataStoreDao poolDao;
+    VolumeDao volumeDao;
+
+    @Before
+    public void setUp() {
+        poolDao = Mockito.mock(PrimaryDataStoreDao.class);
+        volumeDao = Mockito.mock(VolumeDao.class);
+        List<StoragePoolVO> pools = new ArrayList<StoragePoolVO>();
+        pools.add(Mockito.mock(StoragePoolVO.class));
+        Mockito.when(poolDao.findPoolsByTags(1L, 2L, 3L, null)).thenReturn(pools);
+    }
+
+    @After
+    public void tearDown() {
+        while (StoragePoolCatalog.current() != null) {
+            StoragePoolCatalog.current().close();
+        }
+    }
+
+    @Test
+    public void testNoSessionGoesToDao() {
+        StoragePoolCatalog.findPoolsByTags(poolDao, 1L, 2L, 3L, null);
+        StoragePoolCatalog.findPoolsByTags(poolDao, 1L, 2L, 3L, null);
+        Mockito.verify(poolDao, Mockito.times(2)).findPoolsByTags(1L, 2L, 3L, null);
+    }
+
+    @Test
+    public void testSessionLoadsOnce() {
+        StoragePoolCatalog catalog = StoragePoolCatalog.open();
+        List<StoragePoolVO> first = StoragePoolCatalog.findPoolsByTags(poolDao, 1L, 2L, 3L, null);
+        first.clear();
+        List<StoragePoolVO> second = StoragePoolCatalog.findPoolsByTags(poolDao, 1L, 2L, 3L, null);
+        catalog.close();
+
+        assertEquals("callers get their own copy of the list", 1, second.size());
+        Mockito.verify(poolDao, Mockito.times(1)).findPoolsByTags(1L, 2L, 3L, null);
+        assertNull(StoragePoolCatalog.current());
+    }
+
+    @Test
+    public void testNestedSessionsShareTheCatalog() {
+        StoragePoolCatalog outer = StoragePoolCatalog.open();
+        StoragePoolCatalog inner = StoragePoolCatalog.open();
+        assertSame(outer, inner);
+        inner.close();
+        assertSame(outer, StoragePoolCatalog.current());
+        outer.close();
+        assertNull(StoragePoolCatalog.current());
+    }
+
+    @Test
+    public void testAllocatedIops() {
+        List<VolumeVO> volumes = new ArrayList<VolumeVO>();
+        for (Long minIops : new Long[] {100L, null, 250L}) {
+            VolumeVO volume = Mockito.mock(VolumeVO.class);
+            Mockito.when(volume.getMinIops()).thenReturn(minIops);
+            volumes.add(volume);
+        }
+        Mockito.when(volumeDao.findByPoolId(5L, null)).thenReturn(volumes);
+
+        StoragePoolCatalog catalog = StoragePoolCatalog.open();
+        assertEquals(350L, StoragePoolCatalog.getAllocatedIops(volumeDao, 5L));
+        assertEquals(350L, StoragePoolCatalog.getAllocatedIops(volumeDao, 5L));
+        catalog.close();
+        Mockito.verify(volumeDao, Mockito.times(1)).findByPoolId(5L, null);
+    }
+}
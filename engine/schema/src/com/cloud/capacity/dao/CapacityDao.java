@@ -26,6 +26,28 @@ import com.cloud.utils.db.GenericDao;
 
 public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 	CapacityVO findByHostIdType(Long hostId, short capacityType);
+
+    /**
+     * @return the capacity rows of the given type for several hosts, with one query
+     */
+    List<CapacityVO> listByHostIdsType(List<Long> hostIds, short capacityType);
+
+    /**
+     * Writes the used and reserved capacity of the cpu and memory rows of a host, only if nobody changed
+     * them since they were read.  Both rows are written by the same statement, without locking them first.
+     * @param cpu cpu row holding the new used and reserved capacity
+     * @param memory memory row holding the new used and reserved capacity
+     * @return false if either row was modified concurrently, nothing was written then
+     */
+    boolean updateHostCapacityIfUnchanged(CapacityVO cpu, long expectedUsedCpu, long expectedReservedCpu,
+            CapacityVO memory, long expectedUsedMemory, long expectedReservedMemory);
+
+    /**
+     * Adds cpu and memory to the reserved capacity of the host only if used + reserved + requested still fits
+     * in total * overcommit ratio for both, as a single conditional update.
+     * @return false if the host does not have the capacity, nothing is reserved then
+     */
+    boolean reserveHostCapacityIfAvailable(long hostId, long cpu, float cpuOvercommitRatio, long memory, float memoryOvercommitRatio);
 	List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone);
 	List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, Long clusterId, String hostType);
 	boolean removeBy(Short capacityType, Long zoneId, Long podId, Long clusterId, Long hostId);
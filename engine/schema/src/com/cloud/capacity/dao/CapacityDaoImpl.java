@@ -56,12 +56,21 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
 
     private static final String ADD_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity + ? WHERE host_id = ? AND capacity_type = ?";
     private static final String SUBTRACT_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity - ? WHERE host_id = ? AND capacity_type = ?";
+    // cpu and memory rows of a host are written by a single statement, so that both or none are updated
+    private static final String UPDATE_HOST_CAPACITY_IF_UNCHANGED_SQL = "UPDATE `cloud`.`op_host_capacity` cpu, `cloud`.`op_host_capacity` mem "
+            + "SET cpu.used_capacity = ?, cpu.reserved_capacity = ?, mem.used_capacity = ?, mem.reserved_capacity = ? "
+            + "WHERE cpu.id = ? AND cpu.used_capacity = ? AND cpu.reserved_capacity = ? AND mem.id = ? AND mem.used_capacity = ? AND mem.reserved_capacity = ?";
+    private static final String RESERVE_HOST_CAPACITY_IF_AVAILABLE_SQL = "UPDATE `cloud`.`op_host_capacity` cpu, `cloud`.`op_host_capacity` mem "
+            + "SET cpu.reserved_capacity = cpu.reserved_capacity + ?, mem.reserved_capacity = mem.reserved_capacity + ? "
+            + "WHERE cpu.host_id = ? AND cpu.capacity_type = " + Capacity.CAPACITY_TYPE_CPU + " AND mem.host_id = ? AND mem.capacity_type = " + Capacity.CAPACITY_TYPE_MEMORY
+            + " AND cpu.used_capacity + cpu.reserved_capacity + ? <= cpu.total_capacity * ? AND mem.used_capacity + mem.reserved_capacity + ? <= mem.total_capacity * ?";
 
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART1 = "SELECT DISTINCT capacity.cluster_id  FROM `cloud`.`op_host_capacity` capacity INNER JOIN `cloud`.`cluster` cluster on (cluster.id = capacity.cluster_id AND cluster.removed is NULL)   INNER JOIN `cloud`.`cluster_details` cluster_details ON (cluster.id = cluster_details.cluster_id ) WHERE ";
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART2 = " AND capacity_type = ? AND cluster_details.name= ? AND ((total_capacity * cluster_details.value ) - used_capacity + reserved_capacity) >= ? AND capacity.cluster_id IN (SELECT distinct capacity.cluster_id  FROM `cloud`.`op_host_capacity` capacity INNER JOIN  `cloud`.`cluster_details` cluster_details ON (capacity.cluster_id = cluster_details.cluster_id ) WHERE ";
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART3 = " AND capacity_type = ? AND cluster_details.name= ? AND ((total_capacity * cluster_details.value) - used_capacity + reserved_capacity) >= ?) ";
 
     private final SearchBuilder<CapacityVO> _hostIdTypeSearch;
+    private final SearchBuilder<CapacityVO> _hostIdsTypeSearch;
     private final SearchBuilder<CapacityVO> _hostOrPoolIdSearch;
     private final SearchBuilder<CapacityVO> _allFieldsSearch;
     @Inject protected PrimaryDataStoreDao _storagePoolDao;
@@ -167,6 +176,11 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         _hostIdTypeSearch.and("type", _hostIdTypeSearch.entity().getCapacityType(), SearchCriteria.Op.EQ);
         _hostIdTypeSearch.done();
 
+        _hostIdsTypeSearch = createSearchBuilder();
+        _hostIdsTypeSearch.and("hostId", _hostIdsTypeSearch.entity().getHostOrPoolId(), SearchCriteria.Op.IN);
+        _hostIdsTypeSearch.and("type", _hostIdsTypeSearch.entity().getCapacityType(), SearchCriteria.Op.EQ);
+        _hostIdsTypeSearch.done();
+
         _hostOrPoolIdSearch = createSearchBuilder();
         _hostOrPoolIdSearch.and("hostId", _hostOrPoolIdSearch.entity().getHostOrPoolId(), SearchCriteria.Op.EQ);
         _hostOrPoolIdSearch.done();
@@ -447,6 +461,48 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         }
     }
 
+    @Override
+    public boolean updateHostCapacityIfUnchanged(CapacityVO cpu, long expectedUsedCpu, long expectedReservedCpu,
+            CapacityVO memory, long expectedUsedMemory, long expectedReservedMemory) {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(UPDATE_HOST_CAPACITY_IF_UNCHANGED_SQL);
+            pstmt.setLong(1, cpu.getUsedCapacity());
+            pstmt.setLong(2, cpu.getReservedCapacity());
+            pstmt.setLong(3, memory.getUsedCapacity());
+            pstmt.setLong(4, memory.getReservedCapacity());
+            pstmt.setLong(5, cpu.getId());
+            pstmt.setLong(6, expectedUsedCpu);
+            pstmt.setLong(7, expectedReservedCpu);
+            pstmt.setLong(8, memory.getId());
+            pstmt.setLong(9, expectedUsedMemory);
+            pstmt.setLong(10, expectedReservedMemory);
+            return pstmt.executeUpdate() == 2;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + UPDATE_HOST_CAPACITY_IF_UNCHANGED_SQL, e);
+        }
+    }
+
+    @Override
+    public boolean reserveHostCapacityIfAvailable(long hostId, long cpu, float cpuOvercommitRatio, long memory, float memoryOvercommitRatio) {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(RESERVE_HOST_CAPACITY_IF_AVAILABLE_SQL);
+            pstmt.setLong(1, cpu);
+            pstmt.setLong(2, memory);
+            pstmt.setLong(3, hostId);
+            pstmt.setLong(4, hostId);
+            pstmt.setLong(5, cpu);
+            pstmt.setFloat(6, cpuOvercommitRatio);
+            pstmt.setLong(7, memory);
+            pstmt.setFloat(8, memoryOvercommitRatio);
+            return pstmt.executeUpdate() == 2;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + RESERVE_HOST_CAPACITY_IF_AVAILABLE_SQL, e);
+        }
+    }
 
     @Override
     public CapacityVO findByHostIdType(Long hostId, short capacityType) {
@@ -456,6 +512,17 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         return findOneBy(sc);
     }  
 
+    @Override
+    public List<CapacityVO> listByHostIdsType(List<Long> hostIds, short capacityType) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<CapacityVO>();
+        }
+        SearchCriteria<CapacityVO> sc = _hostIdsTypeSearch.create();
+        sc.setParameters("hostId", hostIds.toArray());
+        sc.setParameters("type", capacityType);
+        return listBy(sc);
+    }
+
     @Override
     public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone){
     Transaction txn = Transaction.currentTxn();
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.host.dao;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.host.DetailVO;
@@ -28,5 +29,10 @@ public interface HostDetailsDao extends GenericDao<DetailVO, Long> {
     
     DetailVO findDetail(long hostId, String name);
 
+    /**
+     * @return the value of one detail for several hosts, by host id; hosts without the detail are not in the map
+     */
+    Map<Long, String> findDetail(List<Long> hostIds, String name);
+
 	void deleteDetails(long hostId);
 }
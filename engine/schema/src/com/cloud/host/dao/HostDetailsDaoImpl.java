@@ -39,6 +39,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class HostDetailsDaoImpl extends GenericDaoBase<DetailVO, Long> implements HostDetailsDao {
     protected final SearchBuilder<DetailVO> HostSearch;
     protected final SearchBuilder<DetailVO> DetailSearch;
+    protected final SearchBuilder<DetailVO> HostsDetailSearch;
 
     public HostDetailsDaoImpl() {
         HostSearch = createSearchBuilder();
@@ -49,6 +50,11 @@ public class HostDetailsDaoImpl extends GenericDaoBase<DetailVO, Long> implement
         DetailSearch.and("hostId", DetailSearch.entity().getHostId(), SearchCriteria.Op.EQ);
         DetailSearch.and("name", DetailSearch.entity().getName(), SearchCriteria.Op.EQ);
         DetailSearch.done();
+
+        HostsDetailSearch = createSearchBuilder();
+        HostsDetailSearch.and("hostId", HostsDetailSearch.entity().getHostId(), SearchCriteria.Op.IN);
+        HostsDetailSearch.and("name", HostsDetailSearch.entity().getName(), SearchCriteria.Op.EQ);
+        HostsDetailSearch.done();
     }
 
     @Override
@@ -64,6 +70,26 @@ public class HostDetailsDaoImpl extends GenericDaoBase<DetailVO, Long> implement
         return detail;
     }
 
+    @Override
+    public Map<Long, String> findDetail(List<Long> hostIds, String name) {
+        Map<Long, String> details = new HashMap<Long, String>(hostIds.size());
+        if (hostIds.isEmpty()) {
+            return details;
+        }
+        SearchCriteria<DetailVO> sc = HostsDetailSearch.create();
+        sc.setParameters("hostId", hostIds.toArray());
+        sc.setParameters("name", name);
+
+        for (DetailVO detail : search(sc, null)) {
+            if ("password".equals(name)) {
+                details.put(detail.getHostId(), DBEncryptionUtil.decrypt(detail.getValue()));
+            } else {
+                details.put(detail.getHostId(), detail.getValue());
+            }
+        }
+        return details;
+    }
+
     @Override
     public Map<String, String> findDetails(long hostId) {
         SearchCriteria<DetailVO> sc = HostSearch.create();
@@ -75,6 +75,15 @@ public interface IPAddressDao extends GenericDao<IPAddressVO, Long> {
 
     long countFreeIpsInVlan(long vlanDbId);
 
+    /**
+     * Marks a free address as allocating, in a single update that only succeeds
+     * if the address is still unallocated.
+     * @return false if the address was allocated in the meantime
+     */
+    boolean claim(long ipAddressId);
+
+    List<Long> listFreeIdsInVlan(long vlanDbId);
+
     void deletePublicIPRangeExceptAliasIP(long vlanDbId, String aliasIp);
 
     boolean deletePublicIPRange(long vlanDbId) ;
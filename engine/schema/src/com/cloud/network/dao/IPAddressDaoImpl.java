@@ -60,6 +60,8 @@ public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implemen
     protected GenericSearchBuilder<IPAddressVO, Long> AllocatedIpCountForAccount;    
     @Inject protected VlanDao _vlanDao;
     protected GenericSearchBuilder<IPAddressVO, Long> CountFreePublicIps;
+    protected GenericSearchBuilder<IPAddressVO, Long> FreeIdsInVlan;
+    protected SearchBuilder<IPAddressVO> UnallocatedById;
     @Inject ResourceTagDao _tagsDao;
 
     // make it public for JUnit test
@@ -134,6 +136,17 @@ public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implemen
         DeleteAllExceptGivenIp = createSearchBuilder();
         DeleteAllExceptGivenIp.and("vlanDbId", DeleteAllExceptGivenIp.entity().getVlanId(), Op.EQ);
         DeleteAllExceptGivenIp.and("ip", DeleteAllExceptGivenIp.entity().getAddress(), Op.NEQ);
+
+        FreeIdsInVlan = createSearchBuilder(Long.class);
+        FreeIdsInVlan.selectFields(FreeIdsInVlan.entity().getId());
+        FreeIdsInVlan.and("vlanDbId", FreeIdsInVlan.entity().getVlanId(), Op.EQ);
+        FreeIdsInVlan.and("allocated", FreeIdsInVlan.entity().getAllocatedTime(), Op.NULL);
+        FreeIdsInVlan.done();
+
+        UnallocatedById = createSearchBuilder();
+        UnallocatedById.and("id", UnallocatedById.entity().getId(), Op.EQ);
+        UnallocatedById.and("allocated", UnallocatedById.entity().getAllocatedTime(), Op.NULL);
+        UnallocatedById.done();
     }
 
     @Override
@@ -322,6 +335,24 @@ public class IPAddressDaoImpl extends GenericDaoBase<IPAddressVO, Long> implemen
         return findOneBy(sc);
     }
 
+    @Override
+    public boolean claim(long ipAddressId) {
+        SearchCriteria<IPAddressVO> sc = UnallocatedById.create();
+        sc.setParameters("id", ipAddressId);
+
+        IPAddressVO ip = createForUpdate();
+        ip.setAllocatedTime(new Date());
+        ip.setState(State.Allocating);
+        return update(ip, sc) == 1;
+    }
+
+    @Override
+    public List<Long> listFreeIdsInVlan(long vlanDbId) {
+        SearchCriteria<Long> sc = FreeIdsInVlan.create();
+        sc.setParameters("vlanDbId", vlanDbId);
+        return customSearch(sc, null);
+    }
+
     @Override
     public long countAllocatedIPsForAccount(long accountId) {
         SearchCriteria<Long> sc = AllocatedIpCountForAccount.create();
@@ -17,18 +17,24 @@
 package com.cloud.network.dao;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Local;
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
 
 import org.springframework.stereotype.Component;
 
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+
 import com.cloud.exception.UnsupportedServiceException;
 import com.cloud.network.Network.Provider;
 import com.cloud.network.Network.Service;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
-import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 
@@ -36,8 +42,22 @@ import com.cloud.utils.db.SearchCriteria;
 @Local(value=NetworkServiceMapDao.class) @DB()
 public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO, Long> implements NetworkServiceMapDao {
     final SearchBuilder<NetworkServiceMapVO> AllFieldsSearch;
-    final SearchBuilder<NetworkServiceMapVO> MultipleServicesSearch;
-    final GenericSearchBuilder<NetworkServiceMapVO, String> DistinctProvidersSearch;
+
+    @Inject
+    MessageBus _messageBus;
+
+    // rows read this soon after a local write are not cached, the write may not be committed yet
+    private static final long CACHE_WRITE_QUARANTINE = 5000;
+
+    private final ServiceMapCache<NetworkServiceMapVO> _servicesCache;
+    private final ServiceMapCache.Loader<NetworkServiceMapVO> _servicesLoader = new ServiceMapCache.Loader<NetworkServiceMapVO>() {
+        @Override
+        public List<NetworkServiceMapVO> load(long networkId) {
+            SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
+            sc.setParameters("networkId", networkId);
+            return listBy(sc);
+        }
+    };
     
     protected NetworkServiceMapDaoImpl() {
         super();
@@ -46,72 +66,63 @@ public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO
         AllFieldsSearch.and("service", AllFieldsSearch.entity().getService(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("provider", AllFieldsSearch.entity().getProvider(), SearchCriteria.Op.EQ);
         AllFieldsSearch.done();
-        
-        MultipleServicesSearch = createSearchBuilder();
-        MultipleServicesSearch.and("networkId", MultipleServicesSearch.entity().getNetworkId(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.and("service", MultipleServicesSearch.entity().getService(), SearchCriteria.Op.IN);
-        MultipleServicesSearch.and("provider", MultipleServicesSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.done();
-        
-        DistinctProvidersSearch = createSearchBuilder(String.class);
-        DistinctProvidersSearch.and("networkId", DistinctProvidersSearch.entity().getNetworkId(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.and("provider", DistinctProvidersSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.and("service", DistinctProvidersSearch.entity().getService(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.selectFields(DistinctProvidersSearch.entity().getProvider());
-        DistinctProvidersSearch.done();
+
+        _servicesCache = new ServiceMapCache<NetworkServiceMapVO>(Integer.parseInt(ServiceMapCache.TimeToLive.defaultValue()) * 1000L, CACHE_WRITE_QUARANTINE);
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+
+        _servicesCache.setTimeToLive(ServiceMapCache.TimeToLive.value() * 1000L);
+        // writes made by the other management servers arrive through the message bus
+        _servicesCache.subscribe(_messageBus, ServiceMapCache.NETWORK_TOPIC);
+        ServiceMapCache.register("NetworkServiceMap", _servicesCache);
+        return true;
+    }
+
+    protected List<NetworkServiceMapVO> getCachedServicesInNetwork(long networkId) {
+        return _servicesCache.get(networkId, _servicesLoader);
     }
     
     @Override
     public boolean areServicesSupportedInNetwork(long networkId, Service... services) {
-        SearchCriteria<NetworkServiceMapVO> sc = MultipleServicesSearch.create();
-        sc.setParameters("networkId", networkId);
-        
+        List<NetworkServiceMapVO> networkServices = getCachedServicesInNetwork(networkId);
+
         if (services != null) {
-            String[] servicesStr = new String[services.length];
-            
-            int i = 0;
+            Set<String> servicesStr = new HashSet<String>();
             for (Service service : services) {
-                servicesStr[i] = service.getName();
-                i++;
+                servicesStr.add(service.getName());
             }
-            
-            sc.setParameters("service", (Object[])servicesStr);
-        }
-        
-        List<NetworkServiceMapVO> networkServices = listBy(sc);
-        
-        if (services != null) {
-            if (networkServices.size() == services.length) {
-                return true;
+
+            int matches = 0;
+            for (NetworkServiceMapVO networkService : networkServices) {
+                if (servicesStr.contains(networkService.getService())) {
+                    matches++;
+                }
             }
-        } else if (!networkServices.isEmpty()) {
-            return true;
+            return matches == services.length;
         }
-        
-        return false;
+
+        return !networkServices.isEmpty();
     }
     
     @Override
     public boolean canProviderSupportServiceInNetwork(long networkId, Service service, Provider provider) {
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("service", service.getName());
-        sc.setParameters("provider", provider.getName());
-        if (findOneBy(sc) != null) {
-            return true;
-        } else {
-            return false;
+        for (NetworkServiceMapVO instance : getCachedServicesInNetwork(networkId)) {
+            if (instance.getService().equals(service.getName()) && instance.getProvider().equals(provider.getName())) {
+                return true;
+            }
         }
+        return false;
     }
     
     protected List<String> getServicesForProviderInNetwork(long networkId, Provider provider) {
         List<String> services = new ArrayList<String>();
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("provider", provider.getName());
-        List<NetworkServiceMapVO> map = listBy(sc);
-        for (NetworkServiceMapVO instance : map) {
-            services.add(instance.getService());
+        for (NetworkServiceMapVO instance : getCachedServicesInNetwork(networkId)) {
+            if (instance.getProvider().equals(provider.getName())) {
+                services.add(instance.getService());
+            }
         }
         
         return services;
@@ -119,58 +130,85 @@ public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO
     
     @Override
     public String getProviderForServiceInNetwork(long networkId, Service service) {
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("service", service.getName());
-        NetworkServiceMapVO ntwkSvc = findOneBy(sc);
-        if (ntwkSvc == null) {
-            throw new UnsupportedServiceException("Service " + service.getName() + " is not supported in the network id=" + networkId);
+        for (NetworkServiceMapVO instance : getCachedServicesInNetwork(networkId)) {
+            if (instance.getService().equals(service.getName())) {
+                return instance.getProvider();
+            }
         }
-        
-        return ntwkSvc.getProvider();
+        throw new UnsupportedServiceException("Service " + service.getName() + " is not supported in the network id=" + networkId);
     }
  
     @Override
     public List<NetworkServiceMapVO> getServicesInNetwork(long networkId) {
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        return listBy(sc);
+        return new ArrayList<NetworkServiceMapVO>(getCachedServicesInNetwork(networkId));
     }
     
+    @Override
+    public NetworkServiceMapVO persist(NetworkServiceMapVO entity) {
+        try {
+            return super.persist(entity);
+        } finally {
+            _servicesCache.invalidate(entity.getNetworkId());
+        }
+    }
+
+    @Override
+    public boolean remove(Long id) {
+        try {
+            return super.remove(id);
+        } finally {
+            _servicesCache.invalidateAll();
+        }
+    }
+
+    @Override
+    public boolean expunge(Long id) {
+        try {
+            return super.expunge(id);
+        } finally {
+            _servicesCache.invalidateAll();
+        }
+    }
+
     @Override
     public void deleteByNetworkId(long networkId) {
         SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
         sc.setParameters("networkId", networkId);
-        remove(sc);
+        try {
+            remove(sc);
+        } finally {
+            _servicesCache.invalidate(networkId);
+        }
     }
     
     @Override
     public List<String> getDistinctProviders(long networkId) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("networkId", networkId);
-        List<String> results = customSearch(sc, null);
+        List<String> results = new ArrayList<String>();
+        for (NetworkServiceMapVO instance : getCachedServicesInNetwork(networkId)) {
+            results.add(instance.getProvider());
+        }
         return results;
     }
     
     @Override
     public String isProviderForNetwork(long networkId, Provider provider) {
-    	SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("provider", provider.getName());
-        List<String> results = customSearch(sc, null);
-        if (results.isEmpty()) {
-        	return null;
-        } else {
-        	return results.get(0);
+        for (NetworkServiceMapVO instance : getCachedServicesInNetwork(networkId)) {
+            if (instance.getProvider().equals(provider.getName())) {
+                return instance.getProvider();
+            }
         }
+        return null;
     }
 
     @Override
     public List<String> getProvidersForServiceInNetwork(long networkId, Service service) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("service", service.getName());
-        return customSearch(sc, null);
+        List<String> results = new ArrayList<String>();
+        for (NetworkServiceMapVO instance : getCachedServicesInNetwork(networkId)) {
+            if (instance.getService().equals(service.getName())) {
+                results.add(instance.getProvider());
+            }
+        }
+        return results;
     }
     
 }
@@ -0,0 +1,225 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * In-memory copy of the service to provider rows of a network or network offering,
+ * keyed on the owner id.
+ *
+ * Every invalidation bumps the cache version; rows loaded while the version moved, or
+ * shortly after a write while the writing transaction may not have committed yet, are
+ * returned to the caller but not kept.  Entries also expire after a time to live.
+ *
+ * Once subscribed, every invalidation is also published on the message bus under the topic
+ * of the cache, with the owner id (null for all) as argument; invalidations published there
+ * by anybody else are applied to the cache.  That is how changes made by the other
+ * management servers are picked up right away.
+ */
+public class ServiceMapCache<T> implements ServiceMapCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(ServiceMapCache.class);
+
+    public static final String TOPIC = "servicemap";
+    public static final String NETWORK_TOPIC = "servicemap.network";
+    public static final String OFFERING_TOPIC = "servicemap.offering";
+
+    public static final ConfigKey<Integer> TimeToLive = new ConfigKey<Integer>(Integer.class, "servicemap.cache.ttl", "Advanced", "60",
+            "Seconds the service providers of a network or network offering are kept in memory, 0 disables the cache", false, ConfigKey.Scope.Global, null);
+
+    public interface Loader<T> {
+        List<T> load(long ownerId);
+    }
+
+    private final ConcurrentHashMap<Long, Entry<T>> _entries = new ConcurrentHashMap<Long, Entry<T>>();
+    private final AtomicLong _version = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+
+    private volatile long _timeToLive;
+    private volatile long _writeQuarantine;
+    private volatile long _lastWrite;
+
+    private volatile MessageBus _messageBus;
+    private volatile String _topic;
+
+    public ServiceMapCache(long timeToLiveMs, long writeQuarantineMs) {
+        _timeToLive = timeToLiveMs;
+        _writeQuarantine = writeQuarantineMs;
+    }
+
+    public static void register(String name, ServiceMapCache<?> cache) {
+        try {
+            JmxUtil.registerMBean("ServiceMapCache", name, cache);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register " + name + " cache MBean", e);
+        }
+    }
+
+    /**
+     * Publishes the invalidations of this cache on the message bus and applies the ones
+     * published there by others
+     */
+    public void subscribe(MessageBus messageBus, final String topic) {
+        _messageBus = messageBus;
+        _topic = topic;
+        messageBus.subscribe(topic, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if (topic.equals(senderAddress)) {
+                    // published by this cache, it is already invalidated
+                    return;
+                }
+                if (args instanceof Long) {
+                    invalidateLocally((Long)args);
+                } else {
+                    invalidateAllLocally();
+                }
+            }
+        });
+    }
+
+    public List<T> get(long ownerId, Loader<T> loader) {
+        long now = System.currentTimeMillis();
+        Entry<T> entry = _entries.get(ownerId);
+        if (entry != null && entry.expiresAt > now) {
+            _hits.incrementAndGet();
+            return entry.rows;
+        }
+
+        _misses.incrementAndGet();
+        long version = _version.get();
+        List<T> rows = Collections.unmodifiableList(new ArrayList<T>(loader.load(ownerId)));
+        if (_timeToLive > 0 && _version.get() == version && now - _lastWrite >= _writeQuarantine) {
+            _entries.put(ownerId, new Entry<T>(rows, now + _timeToLive));
+        } else if (entry != null) {
+            _entries.remove(ownerId, entry);
+        }
+        return rows;
+    }
+
+    public void invalidate(long ownerId) {
+        invalidateLocally(ownerId);
+        publish(ownerId);
+    }
+
+    @Override
+    public void invalidateAll() {
+        invalidateAllLocally();
+        publish(null);
+    }
+
+    protected void invalidateLocally(long ownerId) {
+        _lastWrite = System.currentTimeMillis();
+        _version.incrementAndGet();
+        _invalidations.incrementAndGet();
+        _entries.remove(ownerId);
+    }
+
+    protected void invalidateAllLocally() {
+        _lastWrite = System.currentTimeMillis();
+        _version.incrementAndGet();
+        _invalidations.incrementAndGet();
+        _entries.clear();
+    }
+
+    private void publish(Long ownerId) {
+        if (_messageBus != null) {
+            _messageBus.publish(_topic, _topic, PublishScope.LOCAL, ownerId);
+        }
+    }
+
+    public void setTimeToLive(long timeToLiveMs) {
+        _timeToLive = timeToLiveMs;
+        if (timeToLiveMs <= 0) {
+            _entries.clear();
+        }
+    }
+
+    @Override
+    public long getTimeToLiveSeconds() {
+        return _timeToLive / 1000;
+    }
+
+    @Override
+    public long getVersion() {
+        return _version.get();
+    }
+
+    @Override
+    public int getSize() {
+        return _entries.size();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public void resetStats() {
+        _hits.set(0);
+        _misses.set(0);
+        _invalidations.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceMapCache[size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + ", version=" + getVersion() + "]";
+    }
+
+    private static class Entry<T> {
+        final List<T> rows;
+        final long expiresAt;
+
+        Entry(List<T> rows, long expiresAt) {
+            this.rows = rows;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
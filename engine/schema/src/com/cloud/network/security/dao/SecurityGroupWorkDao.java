@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -45,5 +46,18 @@ public interface SecurityGroupWorkDao extends GenericDao<SecurityGroupWorkVO, Lo
 	
 	List<SecurityGroupWorkVO> findScheduledWork();
 
+    /**
+     * Takes scheduled work for vms running on the hosts managed by a management server
+     * and work that nobody took since before staleBefore.  Taken work carries the current
+     * ruleset log sequence number of its vm.
+     */
+    List<SecurityGroupWorkVO> take(long serverId, int limit, Date staleBefore);
+
+    List<Long> listScheduledVmIds(Collection<Long> vmIds);
+
+    int countScheduledWork();
+
+    int deleteScheduledWork();
+
     
 }
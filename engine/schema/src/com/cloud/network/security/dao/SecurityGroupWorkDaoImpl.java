@@ -16,8 +16,13 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 import javax.ejb.Local;
 
@@ -27,11 +32,14 @@ import org.springframework.stereotype.Component;
 import com.cloud.network.security.SecurityGroupWork;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.network.security.SecurityGroupWorkVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -47,6 +55,17 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
     private final SearchBuilder<SecurityGroupWorkVO> UntakenWorkSearch;
     private final SearchBuilder<SecurityGroupWorkVO> VmIdStepSearch;
     private final SearchBuilder<SecurityGroupWorkVO> CleanupSearch;
+    private final SearchBuilder<SecurityGroupWorkVO> ClaimSearch;
+    private final SearchBuilder<SecurityGroupWorkVO> ClaimedSearch;
+    private final GenericSearchBuilder<SecurityGroupWorkVO, Long> ScheduledVmIdsSearch;
+    private final GenericSearchBuilder<SecurityGroupWorkVO, Integer> CountScheduledSearch;
+
+    private static final String FIND_TAKEABLE_WORK = "SELECT w.id FROM op_nwgrp_work w " +
+            "LEFT JOIN vm_instance v ON w.instance_id = v.id LEFT JOIN host h ON v.host_id = h.id " +
+            "WHERE w.step = 'Scheduled' AND w.taken IS NULL AND w.mgmt_server_id IS NULL AND (h.mgmt_server_id = ? OR w.created < ?) " +
+            "ORDER BY v.host_id, w.id LIMIT ?";
+    private static final String UPDATE_SEQ_NO = "UPDATE op_nwgrp_work w, op_vm_ruleset_log l SET w.seq_no = l.logsequence " +
+            "WHERE w.instance_id = l.instance_id AND w.mgmt_server_id = ? AND w.step = 'Processing' AND w.id IN (";
 
 
     protected SecurityGroupWorkDaoImpl() {
@@ -72,6 +91,7 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
         VmIdSeqNumSearch = createSearchBuilder();
         VmIdSeqNumSearch.and("vmId", VmIdSeqNumSearch.entity().getInstanceId(), SearchCriteria.Op.EQ);
         VmIdSeqNumSearch.and("seqno", VmIdSeqNumSearch.entity().getLogsequenceNumber(), SearchCriteria.Op.EQ);
+        VmIdSeqNumSearch.and("step", VmIdSeqNumSearch.entity().getStep(), SearchCriteria.Op.EQ);
 
         VmIdSeqNumSearch.done();
 
@@ -87,6 +107,32 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
 
         CleanupSearch.done();
 
+        ClaimSearch = createSearchBuilder();
+        ClaimSearch.and("ids", ClaimSearch.entity().getId(), Op.IN);
+        ClaimSearch.and("server", ClaimSearch.entity().getServerId(), Op.NULL);
+        ClaimSearch.and("taken", ClaimSearch.entity().getDateTaken(), Op.NULL);
+        ClaimSearch.and("step", ClaimSearch.entity().getStep(), Op.EQ);
+        ClaimSearch.done();
+
+        ClaimedSearch = createSearchBuilder();
+        ClaimedSearch.and("ids", ClaimedSearch.entity().getId(), Op.IN);
+        ClaimedSearch.and("server", ClaimedSearch.entity().getServerId(), Op.EQ);
+        ClaimedSearch.and("step", ClaimedSearch.entity().getStep(), Op.EQ);
+        ClaimedSearch.done();
+
+        ScheduledVmIdsSearch = createSearchBuilder(Long.class);
+        ScheduledVmIdsSearch.selectFields(ScheduledVmIdsSearch.entity().getInstanceId());
+        ScheduledVmIdsSearch.and("vmIds", ScheduledVmIdsSearch.entity().getInstanceId(), Op.IN);
+        ScheduledVmIdsSearch.and("taken", ScheduledVmIdsSearch.entity().getDateTaken(), Op.NULL);
+        ScheduledVmIdsSearch.and("step", ScheduledVmIdsSearch.entity().getStep(), Op.EQ);
+        ScheduledVmIdsSearch.done();
+
+        CountScheduledSearch = createSearchBuilder(Integer.class);
+        CountScheduledSearch.select(null, Func.COUNT, CountScheduledSearch.entity().getId());
+        CountScheduledSearch.and("taken", CountScheduledSearch.entity().getDateTaken(), Op.NULL);
+        CountScheduledSearch.and("step", CountScheduledSearch.entity().getStep(), Op.EQ);
+        CountScheduledSearch.done();
+
 
     }
 
@@ -154,6 +200,8 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
         SearchCriteria<SecurityGroupWorkVO> sc = VmIdSeqNumSearch.create();
         sc.setParameters("vmId", vmId);
         sc.setParameters("seqno", logSequenceNumber);
+        // Only the work that was sent out for this seqno is waiting for the answer
+        sc.setParameters("step", Step.Processing);
 
         final Filter filter = new Filter(SecurityGroupWorkVO.class, null, true, 0l, 1l);
 
@@ -238,4 +286,101 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
     }
 
 
+    @Override
+    @DB
+    public List<SecurityGroupWorkVO> take(long serverId, int limit, Date staleBefore) {
+        List<Long> ids = new ArrayList<Long>();
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(FIND_TAKEABLE_WORK);
+            pstmt.setLong(1, serverId);
+            pstmt.setString(2, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), staleBefore));
+            pstmt.setInt(3, limit);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+        } catch (Exception e) {
+            throw new CloudRuntimeException("Unable to find security group work to take", e);
+        }
+        if (ids.isEmpty()) {
+            return new ArrayList<SecurityGroupWorkVO>();
+        }
+
+        // Another management server or worker thread may take some of the same rows in between.
+        // The rows that are still untaken are locked and only those are claimed and returned, so
+        // the claim never picks up work that someone else took.
+        SearchCriteria<SecurityGroupWorkVO> sc = ClaimSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        sc.setParameters("step", Step.Scheduled);
+
+        txn.start();
+        try {
+            List<SecurityGroupWorkVO> untaken = lockRows(sc, null, true);
+            if (untaken.isEmpty()) {
+                txn.commit();
+                return new ArrayList<SecurityGroupWorkVO>();
+            }
+            ids = new ArrayList<Long>(untaken.size());
+            for (SecurityGroupWorkVO vo : untaken) {
+                ids.add(vo.getId());
+            }
+            sc.setParameters("ids", ids.toArray());
+            SecurityGroupWorkVO work = createForUpdate();
+            work.setServerId(serverId);
+            work.setDateTaken(new Date());
+            work.setStep(Step.Processing);
+            update(work, sc);
+
+            StringBuilder sql = new StringBuilder(UPDATE_SEQ_NO);
+            for (int i = 0; i < ids.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            pstmt.setLong(1, serverId);
+            for (int i = 0; i < ids.size(); i++) {
+                pstmt.setLong(i + 2, ids.get(i));
+            }
+            pstmt.executeUpdate();
+
+            SearchCriteria<SecurityGroupWorkVO> claimed = ClaimedSearch.create();
+            claimed.setParameters("ids", ids.toArray());
+            claimed.setParameters("server", serverId);
+            claimed.setParameters("step", Step.Processing);
+            List<SecurityGroupWorkVO> result = listIncludingRemovedBy(claimed);
+            txn.commit();
+            return result;
+        } catch (Exception e) {
+            txn.rollback();
+            throw new CloudRuntimeException("Unable to take security group work", e);
+        }
+    }
+
+    @Override
+    public List<Long> listScheduledVmIds(Collection<Long> vmIds) {
+        if (vmIds == null || vmIds.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+        SearchCriteria<Long> sc = ScheduledVmIdsSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        sc.setParameters("step", Step.Scheduled);
+        return customSearchIncludingRemoved(sc, null);
+    }
+
+    @Override
+    public int countScheduledWork() {
+        SearchCriteria<Integer> sc = CountScheduledSearch.create();
+        sc.setParameters("step", Step.Scheduled);
+        List<Integer> count = customSearchIncludingRemoved(sc, null);
+        return count.isEmpty() ? 0 : count.get(0);
+    }
+
+    @Override
+    public int deleteScheduledWork() {
+        SearchCriteria<SecurityGroupWorkVO> sc = UntakenWorkSearch.create();
+        sc.setParameters("step", Step.Scheduled);
+        return expunge(sc);
+    }
+
 }
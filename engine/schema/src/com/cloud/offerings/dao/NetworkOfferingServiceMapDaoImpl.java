@@ -17,31 +17,51 @@
 package com.cloud.offerings.dao;
 
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Local;
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
 
 import org.springframework.stereotype.Component;
 
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+
 import com.cloud.network.Network.Provider;
 import com.cloud.network.Network.Service;
+import com.cloud.network.dao.ServiceMapCache;
 import com.cloud.offerings.NetworkOfferingServiceMapVO;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
-import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
-import com.cloud.utils.db.SearchCriteria.Func;
 
 @Component
 @Local(value=NetworkOfferingServiceMapDao.class) @DB()
 public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOfferingServiceMapVO, Long> implements NetworkOfferingServiceMapDao {
 
 	final SearchBuilder<NetworkOfferingServiceMapVO> AllFieldsSearch;
-    final SearchBuilder<NetworkOfferingServiceMapVO> MultipleServicesSearch;
-    final GenericSearchBuilder<NetworkOfferingServiceMapVO, String> ProvidersSearch;
-    final GenericSearchBuilder<NetworkOfferingServiceMapVO, String> ServicesSearch;
-    final GenericSearchBuilder<NetworkOfferingServiceMapVO, String> DistinctProvidersSearch;
+
+    @Inject
+    MessageBus _messageBus;
+
+    // rows read this soon after a local write are not cached, the write may not be committed yet
+    private static final long CACHE_WRITE_QUARANTINE = 5000;
+
+    private final ServiceMapCache<NetworkOfferingServiceMapVO> _servicesCache;
+    private final ServiceMapCache.Loader<NetworkOfferingServiceMapVO> _servicesLoader = new ServiceMapCache.Loader<NetworkOfferingServiceMapVO>() {
+        @Override
+        public List<NetworkOfferingServiceMapVO> load(long networkOfferingId) {
+            SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
+            sc.setParameters("networkOfferingId", networkOfferingId);
+            return listBy(sc);
+        }
+    };
 
     
     protected NetworkOfferingServiceMapDaoImpl() {
@@ -51,103 +71,91 @@ public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOffe
         AllFieldsSearch.and("service", AllFieldsSearch.entity().getService(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("provider", AllFieldsSearch.entity().getProvider(), SearchCriteria.Op.EQ);
         AllFieldsSearch.done();
-        
-        MultipleServicesSearch = createSearchBuilder();
-        MultipleServicesSearch.and("networkOfferingId", MultipleServicesSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.and("service", MultipleServicesSearch.entity().getService(), SearchCriteria.Op.IN);
-        MultipleServicesSearch.and("provider", MultipleServicesSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.done();
-        
-        ProvidersSearch = createSearchBuilder(String.class);
-        ProvidersSearch.and("networkOfferingId", ProvidersSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        ProvidersSearch.and("service", ProvidersSearch.entity().getService(), SearchCriteria.Op.EQ);
-        ProvidersSearch.select(null, Func.DISTINCT, ProvidersSearch.entity().getProvider());
-        ProvidersSearch.done();
-        
-        ServicesSearch = createSearchBuilder(String.class);
-        ServicesSearch.and("networkOfferingId", ServicesSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        ServicesSearch.select(null, Func.DISTINCT, ServicesSearch.entity().getService());
-        ServicesSearch.done();
-        
-        DistinctProvidersSearch = createSearchBuilder(String.class);
-        DistinctProvidersSearch.and("offId", DistinctProvidersSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.and("provider", DistinctProvidersSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.selectFields(DistinctProvidersSearch.entity().getProvider());
-        DistinctProvidersSearch.done();
+
+        _servicesCache = new ServiceMapCache<NetworkOfferingServiceMapVO>(Integer.parseInt(ServiceMapCache.TimeToLive.defaultValue()) * 1000L, CACHE_WRITE_QUARANTINE);
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+
+        _servicesCache.setTimeToLive(ServiceMapCache.TimeToLive.value() * 1000L);
+        // writes made by the other management servers arrive through the message bus
+        _servicesCache.subscribe(_messageBus, ServiceMapCache.OFFERING_TOPIC);
+        ServiceMapCache.register("NetworkOfferingServiceMap", _servicesCache);
+        return true;
+    }
+
+    protected List<NetworkOfferingServiceMapVO> getCachedServices(long networkOfferingId) {
+        return _servicesCache.get(networkOfferingId, _servicesLoader);
     }
     
     @Override
     public boolean areServicesSupportedByNetworkOffering(long networkOfferingId, Service... services) {
-        SearchCriteria<NetworkOfferingServiceMapVO> sc = MultipleServicesSearch.create();
-        sc.setParameters("networkOfferingId", networkOfferingId);
+        List<NetworkOfferingServiceMapVO> offeringServices = getCachedServices(networkOfferingId);
         
         if (services != null) {
-            String[] servicesStr = new String[services.length];
-            
-            int i = 0;
+            Set<String> servicesStr = new HashSet<String>();
             for (Service service : services) {
-                servicesStr[i] = service.getName();
-                i++;
+                servicesStr.add(service.getName());
             }
-            
-            sc.setParameters("service", (Object[])servicesStr);
-        }
-        
-        List<NetworkOfferingServiceMapVO> offeringServices = listBy(sc);
-        
-        if (services != null) {
-            if (offeringServices.size() == services.length) {
-                return true;
+
+            int matches = 0;
+            for (NetworkOfferingServiceMapVO offeringService : offeringServices) {
+                if (servicesStr.contains(offeringService.getService())) {
+                    matches++;
+                }
             }
-        } else if (!offeringServices.isEmpty()) {
-            return true;
+            return matches == services.length;
         }
         
-        return false;
+        return !offeringServices.isEmpty();
     }
  
     @Override
     public List<NetworkOfferingServiceMapVO> listByNetworkOfferingId(long networkOfferingId) {
-        SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        return listBy(sc);
+        return new ArrayList<NetworkOfferingServiceMapVO>(getCachedServices(networkOfferingId));
     }
     
     @Override
     public void deleteByOfferingId(long networkOfferingId) {
         SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
         sc.setParameters("networkOfferingId", networkOfferingId);
-        remove(sc);
+        try {
+            remove(sc);
+        } finally {
+            _servicesCache.invalidate(networkOfferingId);
+        }
     }
     
     @Override
     public List<String> listProvidersForServiceForNetworkOffering(long networkOfferingId, Service service) {
-    	SearchCriteria<String> sc = ProvidersSearch.create();;
-    	
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        sc.setParameters("service", service.getName());
-        
-        return customSearch(sc, null);
+        Set<String> providers = new LinkedHashSet<String>();
+        for (NetworkOfferingServiceMapVO instance : getCachedServices(networkOfferingId)) {
+            if (instance.getService().equals(service.getName())) {
+                providers.add(instance.getProvider());
+            }
+        }
+        return new ArrayList<String>(providers);
     }
 
     @Override
     public boolean isProviderForNetworkOffering(long networkOfferingId, Provider provider) {
-    	SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();;
-    	
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        sc.setParameters("provider", provider.getName());
-        
-        if (findOneBy(sc) != null) {
-            return true;
+        for (NetworkOfferingServiceMapVO instance : getCachedServices(networkOfferingId)) {
+            if (instance.getProvider().equals(provider.getName())) {
+                return true;
+            }
         }
         return false;
     }
     
     @Override
     public List<String> listServicesForNetworkOffering(long networkOfferingId) {
-    	SearchCriteria<String> sc = ServicesSearch.create();;
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        return customSearch(sc, null);
+        Set<String> services = new LinkedHashSet<String>();
+        for (NetworkOfferingServiceMapVO instance : getCachedServices(networkOfferingId)) {
+            services.add(instance.getService());
+        }
+        return new ArrayList<String>(services);
     }
     
     @Override
@@ -158,14 +166,40 @@ public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOffe
         sc.setParameters("service", entity.getService());
         sc.setParameters("provider", entity.getProvider());
         NetworkOfferingServiceMapVO mappingInDb = findOneBy(sc);
-        return mappingInDb!=null? mappingInDb : super.persist(entity); 
+        if (mappingInDb != null) {
+            return mappingInDb;
+        }
+        try {
+            return super.persist(entity);
+        } finally {
+            _servicesCache.invalidate(entity.getNetworkOfferingId());
+        }
 	}
+
+    @Override
+    public boolean remove(Long id) {
+        try {
+            return super.remove(id);
+        } finally {
+            _servicesCache.invalidateAll();
+        }
+    }
+
+    @Override
+    public boolean expunge(Long id) {
+        try {
+            return super.expunge(id);
+        } finally {
+            _servicesCache.invalidateAll();
+        }
+    }
     
     @Override
     public List<String> getDistinctProviders(long offId) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("offId", offId);
-        List<String> results = customSearch(sc, null);
+        List<String> results = new ArrayList<String>();
+        for (NetworkOfferingServiceMapVO instance : getCachedServices(offId)) {
+            results.add(instance.getProvider());
+        }
         return results;
     }
 }
@@ -34,4 +34,12 @@ public interface ResourceTagDao extends GenericDao<ResourceTagVO, Long>{
     
     List<? extends ResourceTag> listBy(long resourceId, TaggedResourceType resourceType);
 
+    /**
+     * Lists the tags of several resources of the same type in one query.
+     * @param resourceIds
+     * @param resourceType
+     * @return tags of all resources, in no particular order
+     */
+    List<? extends ResourceTag> listBy(List<Long> resourceIds, TaggedResourceType resourceType);
+
 }
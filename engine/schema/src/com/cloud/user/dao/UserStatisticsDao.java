@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.user.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -29,6 +30,8 @@ public interface UserStatisticsDao extends GenericDao<UserStatisticsVO, Long> {
 
     List<UserStatisticsVO> listBy(long accountId);
 
+    List<UserStatisticsVO> listByDeviceIds(Collection<Long> deviceIds);
+
     List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit);
 
 	List<UserStatisticsVO> listUpdatedStats();
@@ -19,6 +19,7 @@ package com.cloud.user.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -47,6 +48,7 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
                                                                     "where (agg_bytes_received < net_bytes_received + current_bytes_received) OR (agg_bytes_sent < net_bytes_sent + current_bytes_sent)";
     private final SearchBuilder<UserStatisticsVO> AllFieldsSearch;
     private final SearchBuilder<UserStatisticsVO> AccountSearch;
+    private final SearchBuilder<UserStatisticsVO> DevicesSearch;
 
 
     public UserStatisticsDaoImpl() {
@@ -54,6 +56,10 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         AccountSearch.and("account", AccountSearch.entity().getAccountId(), SearchCriteria.Op.EQ);
         AccountSearch.done();
 
+        DevicesSearch = createSearchBuilder();
+        DevicesSearch.and("device", DevicesSearch.entity().getDeviceId(), SearchCriteria.Op.IN);
+        DevicesSearch.done();
+
         AllFieldsSearch = createSearchBuilder();
         AllFieldsSearch.and("account", AllFieldsSearch.entity().getAccountId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("dc", AllFieldsSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
@@ -95,6 +101,16 @@ public class UserStatisticsDaoImpl extends GenericDaoBase<UserStatisticsVO, Long
         return search(sc, null);
     }
 
+    @Override
+    public List<UserStatisticsVO> listByDeviceIds(Collection<Long> deviceIds) {
+        if (deviceIds == null || deviceIds.isEmpty()) {
+            return new ArrayList<UserStatisticsVO>();
+        }
+        SearchCriteria<UserStatisticsVO> sc = DevicesSearch.create();
+        sc.setParameters("device", deviceIds.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public List<UserStatisticsVO> listActiveAndRecentlyDeleted(Date minRemovedDate, int startIndex, int limit) {
         List<UserStatisticsVO> userStats = new ArrayList<UserStatisticsVO>();
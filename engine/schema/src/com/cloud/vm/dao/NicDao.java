@@ -21,10 +21,13 @@ import com.cloud.vm.NicVO;
 import com.cloud.vm.VirtualMachine;
 
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
 
 public interface NicDao extends GenericDao<NicVO, Long> {
     List<NicVO> listByVmId(long instanceId);
+
+    List<NicVO> listByVmIds(Collection<Long> instanceIds);
     
     List<String> listIpAddressInNetwork(long networkConfigId);
     List<NicVO> listByVmIdIncludingRemoved(long instanceId);
@@ -17,6 +17,8 @@
 package com.cloud.vm.dao;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.annotation.PostConstruct;
@@ -44,6 +46,7 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
     private  SearchBuilder<NicVO> AllFieldsSearch;
     private GenericSearchBuilder<NicVO, String> IpSearch;
     private SearchBuilder<NicVO> NonReleasedSearch;
+    private SearchBuilder<NicVO> InstancesSearch;
     private GenericSearchBuilder<NicVO, Integer> CountBy;
     private GenericSearchBuilder<NicVO, Integer> CountByForStartingVms;
 
@@ -80,6 +83,10 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
         NonReleasedSearch.and("network", NonReleasedSearch.entity().getNetworkId(), Op.EQ);
         NonReleasedSearch.and("state", NonReleasedSearch.entity().getState(), Op.NOTIN);
         NonReleasedSearch.done();
+
+        InstancesSearch = createSearchBuilder();
+        InstancesSearch.and("instances", InstancesSearch.entity().getInstanceId(), Op.IN);
+        InstancesSearch.done();
         
         CountBy = createSearchBuilder(Integer.class);
         CountBy.select(null, Func.COUNT, CountBy.entity().getId());
@@ -111,6 +118,16 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
         return listBy(sc);
     }
     
+    @Override
+    public List<NicVO> listByVmIds(Collection<Long> instanceIds) {
+        if (instanceIds == null || instanceIds.isEmpty()) {
+            return new ArrayList<NicVO>();
+        }
+        SearchCriteria<NicVO> sc = InstancesSearch.create();
+        sc.setParameters("instances", instanceIds.toArray());
+        return listBy(sc);
+    }
+    
     @Override
     public List<NicVO> listByVmIdIncludingRemoved(long instanceId) {
         SearchCriteria<NicVO> sc = AllFieldsSearch.create();
@@ -99,6 +99,18 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     public Long countRunningByHostId(long hostId);
 
+    /**
+     * Counts the running VMs of several hosts with one query.
+     * @return running VM count by host id, hosts without running VMs are not in the map
+     */
+    Map<Long, Long> countRunningByHostIds(List<Long> hostIds);
+
+    /**
+     * Counts the Starting, Running, Stopping and Migrating VMs of every host with one query.
+     * @return VM count by host id, hosts without such VMs are not in the map
+     */
+    Map<Long, Long> countActiveByHostId();
+
     Pair<List<Long>, Map<Long, Double>> listClusterIdsInZoneByVmCount(long zoneId, long accountId);
 
     Pair<List<Long>, Map<Long, Double>> listClusterIdsInPodByVmCount(long podId, long accountId);
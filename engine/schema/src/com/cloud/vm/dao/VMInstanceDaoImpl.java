@@ -105,6 +105,10 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
 
     private static final String ORDER_HOSTS_NUMBER_OF_VMS_FOR_ACCOUNT_PART2 = " GROUP BY host.id ORDER BY 2 ASC ";
 
+    private static final String COUNT_RUNNING_VMS_BY_HOSTS = "SELECT host_id, COUNT(*) FROM `cloud`.`vm_instance` WHERE state = 'Running' AND removed IS NULL AND host_id IN (";
+
+    private static final String COUNT_ACTIVE_VMS_BY_HOST = "SELECT host_id, COUNT(*) FROM `cloud`.`vm_instance` WHERE state IN ('Starting', 'Running', 'Stopping', 'Migrating') AND host_id IS NOT NULL AND removed IS NULL GROUP BY host_id";
+
     @Inject protected HostDao _hostDao;
 
     public VMInstanceDaoImpl() {
@@ -482,6 +486,50 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return customSearch(sc, null).get(0);
     }
 
+    @Override
+    public Map<Long, Long> countRunningByHostIds(List<Long> hostIds) {
+        Map<Long, Long> counts = new HashMap<Long, Long>();
+        if (hostIds.isEmpty()) {
+            return counts;
+        }
+        StringBuilder sql = new StringBuilder(COUNT_RUNNING_VMS_BY_HOSTS);
+        for (int i = 0; i < hostIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(") GROUP BY host_id");
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            for (int i = 0; i < hostIds.size(); i++) {
+                pstmt.setLong(i + 1, hostIds.get(i));
+            }
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                counts.put(rs.getLong(1), rs.getLong(2));
+            }
+            return counts;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+    }
+
+    @Override
+    public Map<Long, Long> countActiveByHostId() {
+        Map<Long, Long> counts = new HashMap<Long, Long>();
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(COUNT_ACTIVE_VMS_BY_HOST);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                counts.put(rs.getLong(1), rs.getLong(2));
+            }
+            return counts;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + COUNT_ACTIVE_VMS_BY_HOST, e);
+        }
+    }
+
     @Override
     public Pair<List<Long>, Map<Long, Double>> listClusterIdsInZoneByVmCount(long zoneId, long accountId) {
         Transaction txn = Transaction.currentTxn();
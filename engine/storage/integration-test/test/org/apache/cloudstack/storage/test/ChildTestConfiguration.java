@@ -18,6 +18,7 @@ package org.apache.cloudstack.storage.test;
 
 import java.io.IOException;
 
+import com.cloud.api.ApiResponseCache;
 import com.cloud.event.ActionEventUtils;
 import com.cloud.event.dao.EventDaoImpl;
 import org.apache.cloudstack.acl.APIChecker;
@@ -109,7 +110,7 @@ import com.cloud.vm.snapshot.dao.VMSnapshotDaoImpl;
         VMSnapshotDaoImpl.class, OCFS2ManagerImpl.class, ClusterDetailsDaoImpl.class, SecondaryStorageVmDaoImpl.class,
         ConsoleProxyDaoImpl.class, StoragePoolWorkDaoImpl.class, StorageCacheManagerImpl.class, UserDaoImpl.class,
         DataCenterDaoImpl.class, StoragePoolDetailsDaoImpl.class, DomainDaoImpl.class, DownloadMonitorImpl.class,
-        AccountDaoImpl.class, ActionEventUtils.class, EventDaoImpl.class}, includeFilters = { @Filter(value = Library.class, type = FilterType.CUSTOM) },
+        AccountDaoImpl.class, ActionEventUtils.class, ApiResponseCache.class, EventDaoImpl.class}, includeFilters = { @Filter(value = Library.class, type = FilterType.CUSTOM) },
         useDefaultFilters = false)
 public class ChildTestConfiguration extends TestConfiguration {
 
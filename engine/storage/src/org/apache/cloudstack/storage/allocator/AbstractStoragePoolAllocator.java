@@ -38,6 +38,7 @@ import com.cloud.dc.ClusterVO;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.deploy.DeploymentPlan;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.deploy.StoragePoolCatalog;
 import com.cloud.storage.DiskOfferingVO;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageManager;
@@ -184,7 +185,7 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
         }
 
         Long clusterId = pool.getClusterId();
-        ClusterVO cluster = _clusterDao.findById(clusterId);
+        ClusterVO cluster = StoragePoolCatalog.getCluster(_clusterDao, clusterId);
         if (!(cluster.getHypervisorType() == dskCh.getHypervisorType())) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("StoragePool's Cluster does not have required hypervisorType, skipping this pool");
@@ -193,7 +194,7 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
         }
 
         // check capacity
-        Volume volume = _volumeDao.findById(dskCh.getVolumeId());
+        Volume volume = StoragePoolCatalog.getVolume(_volumeDao, dskCh.getVolumeId());
         List<Volume> requestVolumes = new ArrayList<Volume>();
         requestVolumes.add(volume);
         return storageMgr.storagePoolHasEnoughSpace(requestVolumes, pool);
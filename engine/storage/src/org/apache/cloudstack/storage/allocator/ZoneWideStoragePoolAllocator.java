@@ -32,6 +32,7 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.deploy.DeploymentPlan;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.deploy.StoragePoolCatalog;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.storage.StoragePool;
 import com.cloud.storage.Volume;
@@ -49,7 +50,7 @@ public class ZoneWideStoragePoolAllocator extends AbstractStoragePoolAllocator {
 
     @Override
     protected boolean filter(ExcludeList avoid, StoragePool pool, DiskProfile dskCh, DeploymentPlan plan) {
-        Volume volume = _volumeDao.findById(dskCh.getVolumeId());
+        Volume volume = StoragePoolCatalog.getVolume(_volumeDao, dskCh.getVolumeId());
         List<Volume> requestVolumes = new ArrayList<Volume>();
         requestVolumes.add(volume);
 
@@ -64,7 +65,7 @@ public class ZoneWideStoragePoolAllocator extends AbstractStoragePoolAllocator {
 	    s_logger.debug("ZoneWideStoragePoolAllocator to find storage pool");
 		List<StoragePool> suitablePools = new ArrayList<StoragePool>();
 
-        List<StoragePoolVO> storagePools = _storagePoolDao.findZoneWideStoragePoolsByTags(plan.getDataCenterId(), dskCh.getTags());
+        List<StoragePoolVO> storagePools = StoragePoolCatalog.findZoneWideStoragePoolsByTags(_storagePoolDao, plan.getDataCenterId(), dskCh.getTags());
 
         if (storagePools == null) {
             storagePools = new ArrayList<StoragePoolVO>();
@@ -78,14 +79,15 @@ public class ZoneWideStoragePoolAllocator extends AbstractStoragePoolAllocator {
             }
         }
 
-        List<StoragePoolVO> storagePoolsByHypervisor = _storagePoolDao.findZoneWideStoragePoolsByHypervisor(plan.getDataCenterId(), dskCh.getHypervisorType());
+        List<StoragePoolVO> storagePoolsByHypervisor = StoragePoolCatalog.findZoneWideStoragePoolsByHypervisor(_storagePoolDao, plan.getDataCenterId(),
+                dskCh.getHypervisorType());
 
         storagePools.retainAll(storagePoolsByHypervisor);
 
         storagePools.addAll(anyHypervisorStoragePools);
 
         // add remaining pools in zone, that did not match tags, to avoid set
-        List<StoragePoolVO> allPools = _storagePoolDao.findZoneWideStoragePoolsByTags(plan.getDataCenterId(), null);
+        List<StoragePoolVO> allPools = StoragePoolCatalog.findZoneWideStoragePoolsByTags(_storagePoolDao, plan.getDataCenterId(), null);
         allPools.removeAll(storagePools);
         for (StoragePoolVO pool : allPools) {
             avoid.addPool(pool.getId());
@@ -95,7 +97,7 @@ public class ZoneWideStoragePoolAllocator extends AbstractStoragePoolAllocator {
             if (suitablePools.size() == returnUpTo) {
                 break;
             }
-            StoragePool pol = (StoragePool) this.dataStoreMgr.getPrimaryDataStore(storage.getId());
+            StoragePool pol = StoragePoolCatalog.getPool(dataStoreMgr, storage.getId());
             if (filter(avoid, pol, dskCh, plan)) {
                 suitablePools.add(pol);
             } else {
@@ -52,6 +52,17 @@ public interface ClusterManager extends Manager {
 
     void registerDispatcher(Dispatcher dispatcher);
 
+    /**
+     * Publish a notification to all of the other management server nodes, it is delivered
+     * asynchronously to the listeners registered on the topic there.
+     * @param topic topic of the notification
+     * @param content notification content
+     */
+    void broadcastNotification(String topic, String content);
+
+    void registerNotificationListener(String topic, NotificationListener listener);
+    void unregisterNotificationListener(String topic, NotificationListener listener);
+
     ManagementServerHost getPeer(String peerName);
     
     String getSelfPeerName();
@@ -62,4 +73,8 @@ public interface ClusterManager extends Manager {
         String getName();
         String dispatch(ClusterServicePdu pdu);
     }
+
+    public interface NotificationListener {
+        void onNotification(String sourcePeer, String topic, String content);
+    }
 }
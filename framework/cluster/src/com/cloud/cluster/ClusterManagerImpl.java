@@ -100,6 +100,10 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     protected Dispatcher _dispatcher;
 
+    private final Map<String, List<NotificationListener>> _notificationListeners = new HashMap<String, List<NotificationListener>>();
+    private volatile List<ManagementServerHostVO> _notificationPeers = null;
+    private volatile long _notificationPeersRefreshedAt = 0;
+
     //
     // pay attention to _mshostId and _msid
     // _mshostId is the primary key of management host table
@@ -138,6 +142,49 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         _dispatcher = dispatcher;
     }
 
+    @Override
+    public void registerNotificationListener(String topic, NotificationListener listener) {
+        synchronized (_notificationListeners) {
+            List<NotificationListener> listeners = _notificationListeners.get(topic);
+            if (listeners == null) {
+                listeners = new ArrayList<NotificationListener>();
+                _notificationListeners.put(topic, listeners);
+            }
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+        }
+    }
+
+    @Override
+    public void unregisterNotificationListener(String topic, NotificationListener listener) {
+        synchronized (_notificationListeners) {
+            List<NotificationListener> listeners = _notificationListeners.get(topic);
+            if (listeners != null) {
+                listeners.remove(listener);
+            }
+        }
+    }
+
+    private void dispatchNotification(ClusterServicePdu pdu) {
+        List<NotificationListener> listeners;
+        synchronized (_notificationListeners) {
+            List<NotificationListener> registered = _notificationListeners.get(pdu.getTopic());
+            if (registered == null || registered.isEmpty()) {
+                return;
+            }
+            listeners = new ArrayList<NotificationListener>(registered);
+        }
+
+        for (NotificationListener listener : listeners) {
+            try {
+                listener.onNotification(pdu.getSourcePeer(), pdu.getTopic(), pdu.getJsonPackage());
+            } catch (Throwable e) {
+                s_logger.warn("Unexpected exception when delivering notification on topic " + pdu.getTopic() + " from " + pdu.getSourcePeer(), e);
+            }
+        }
+    }
+
     private ClusterServiceRequestPdu popRequestPdu(long ackSequenceId) {
         synchronized(_outgoingPdusWaitingForAck) {
             if(_outgoingPdusWaitingForAck.get(ackSequenceId) != null) {
@@ -303,6 +350,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 		                    } else {
                                 s_logger.warn("Original request has already been cancelled. pdu: " + pdu.getJsonPackage());
 		                    }
+		                } else if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_NOTIFICATION) {
+		                    dispatchNotification(pdu);
 		                } else {
                             String result = _dispatcher.dispatch(pdu);
 		                    if(result == null)
@@ -369,6 +418,33 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
+    public void broadcastNotification(String topic, String content) {
+        // notifications can be frequent, the active peer list is refreshed once per heartbeat interval
+        long now = System.currentTimeMillis();
+        List<ManagementServerHostVO> peers = _notificationPeers;
+        if (peers == null || now - _notificationPeersRefreshedAt > HeartbeatInterval.value()) {
+            peers = _mshostDao.getActiveList(new Date(DateUtil.currentGMTTime().getTime() - HeartbeatThreshold.value()));
+            _notificationPeers = peers;
+            _notificationPeersRefreshedAt = now;
+        }
+
+        for (ManagementServerHostVO peer : peers) {
+            String peerName = Long.toString(peer.getMsid());
+            if (getSelfPeerName().equals(peerName)) {
+                continue; // Skip myself.
+            }
+
+            ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setSourcePeer(getSelfPeerName());
+            pdu.setDestPeer(peerName);
+            pdu.setPduType(ClusterServicePdu.PDU_TYPE_NOTIFICATION);
+            pdu.setTopic(topic);
+            pdu.setJsonPackage(content);
+            addOutgoingClusterPdu(pdu);
+        }
+    }
+
     public void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError) {
         ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
@@ -20,6 +20,7 @@ public class ClusterServicePdu {
 	public final static int PDU_TYPE_MESSAGE = 0;
 	public final static int PDU_TYPE_REQUEST = 1;
 	public final static int PDU_TYPE_RESPONSE = 2;
+	public final static int PDU_TYPE_NOTIFICATION = 3;
 	
     private long sequenceId;
     private long ackSequenceId;
@@ -30,6 +31,7 @@ public class ClusterServicePdu {
     private long agentId;
     private boolean stopOnError;
     private String jsonPackage;
+    private String topic;
     
     private int pduType = PDU_TYPE_MESSAGE;
     
@@ -102,6 +104,14 @@ public class ClusterServicePdu {
         this.jsonPackage = jsonPackage;
     }
     
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
     public int getPduType() {
     	return pduType;
     }
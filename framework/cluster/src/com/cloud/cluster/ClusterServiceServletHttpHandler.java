@@ -165,6 +165,7 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         String gsonPackage = (String)req.getParams().getParameter("gsonPackage");
         String stopOnError = (String)req.getParams().getParameter("stopOnError");
         String pduType = (String)req.getParams().getParameter("pduType");
+        String topic = (String)req.getParams().getParameter("topic");
 
         ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(sourcePeer);
@@ -175,6 +176,7 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         pdu.setJsonPackage(gsonPackage);
         pdu.setStopOnError("1".equals(stopOnError));
         pdu.setPduType(Integer.parseInt(pduType));
+        pdu.setTopic(topic);
         
         manager.OnReceiveClusterServicePdu(pdu);
         return "true";
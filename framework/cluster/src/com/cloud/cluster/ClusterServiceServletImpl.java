@@ -59,6 +59,9 @@ public class ClusterServiceServletImpl implements ClusterService {
         method.addParameter("gsonPackage", pdu.getJsonPackage());
         method.addParameter("stopOnError", pdu.isStopOnError() ? "1" : "0");
         method.addParameter("pduType", Integer.toString(pdu.getPduType()));
+        if (pdu.getTopic() != null) {
+            method.addParameter("topic", pdu.getTopic());
+        }
 
         return executePostMethod(client, method);
     }
@@ -17,6 +17,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -50,6 +51,16 @@ public interface GenericDao<T, ID extends Serializable> {
     T findById(ID id);
     
     T findByIdIncludingRemoved(ID id);
+
+    /**
+     * Look for entity beans by a set of database ids in a single query.  Rows that
+     * are removed are not returned and the order of the result is not defined.
+     * @param ids database ids of the entity beans.
+     * @return entity beans that were found.
+     */
+    List<T> listByIds(Collection<ID> ids);
+
+    List<T> listByIdsIncludingRemoved(Collection<ID> ids);
     
     T findById(ID id, boolean fresh);
 
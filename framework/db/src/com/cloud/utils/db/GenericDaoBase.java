@@ -946,6 +946,26 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return findById(id, true, null);
     }
 
+    @Override @DB()
+    public List<T> listByIds(Collection<ID> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.IN, ids.toArray());
+        return search(sc, null, null, false);
+    }
+
+    @Override @DB()
+    public List<T> listByIdsIncludingRemoved(Collection<ID> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.IN, ids.toArray());
+        return searchIncludingRemoved(sc, null, null, false);
+    }
+
     @Override @DB()
     public T findById(final ID id, boolean fresh) {
         if(!fresh) {
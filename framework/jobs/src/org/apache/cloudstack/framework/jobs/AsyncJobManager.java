@@ -122,4 +122,17 @@ public interface AsyncJobManager extends Manager {
 
     AsyncJob queryJob(long jobId, boolean updatePollTime);
 
+    /**
+     * Long-poll form of queryJob, the caller is blocked until the job is completed
+     * or the timeout is reached. Completion of a job run by this management server is
+     * detected from job state notifications on the message bus, a job run by a peer is
+     * polled for. The poll time of the job is not updated while it is being waited on.
+     * Past job.max.waiters concurrent waiters, the job is returned without waiting.
+     *
+     * @param jobId job to wait for
+     * @param timeoutInMilliSeconds maximum time to wait
+     * @return the job as of the completion or the timeout
+     */
+    AsyncJob waitForJobCompletion(long jobId, long timeoutInMilliSeconds);
+
 }
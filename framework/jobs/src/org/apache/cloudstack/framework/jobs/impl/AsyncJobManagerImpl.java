@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -50,6 +51,7 @@ import org.apache.cloudstack.framework.jobs.dao.AsyncJobJournalDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.MessageDetector;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.jobs.JobInfo.Status;
@@ -82,6 +84,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         "Time (in minutes) for async-jobs to be kept in system", true, ConfigKey.Scope.Global, 60l);
     private static final ConfigKey<Long> JobCancelThresholdMinutes = new ConfigKey<Long>(Long.class, "job.cancel.threshold.minutes", "Advanced", "60",
         "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", true, ConfigKey.Scope.Global, 60l);
+    static final ConfigKey<Integer> JobMaxWaiters = new ConfigKey<Integer>(Integer.class, "job.max.waiters", "Advanced", "50",
+        "Maximum number of queryAsyncJobResult calls waiting for jobs at the same time on a management server, the calls above it return the job status right away",
+        true, ConfigKey.Scope.Global, null);
 
     private static final Logger s_logger = Logger.getLogger(AsyncJobManagerImpl.class);
 
@@ -91,13 +96,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int JOB_WAIT_RECHECK_INTERVAL = 10000;	// 10 seconds
+    private static final int JOB_WAIT_PEER_POLL_INTERVAL = 2000;	// 2 seconds
 
     @Inject
     private SyncQueueItemDao _queueItemDao;
     @Inject
     private SyncQueueManager _queueMgr;
     @Inject
-    private AsyncJobDao _jobDao;
+    AsyncJobDao _jobDao;
     @Inject
     private AsyncJobJournalDao _journalDao;
     @Inject
@@ -113,6 +120,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     private volatile long _executionRunNumber = 1;
 
+    // jobs being waited on through waitForJobCompletion(), with the number of waiters on each
+    private final Map<Long, JobWaiter> _jobWaiters = new HashMap<Long, JobWaiter>();
+    // total number of waiters; guarded by _jobWaiters
+    private int _waiterCount;
+
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
 
@@ -123,7 +135,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, JobMaxWaiters};
     }
 
     @Override
@@ -436,13 +448,109 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     public AsyncJob queryJob(long jobId, boolean updatePollTime) {
         AsyncJobVO job = _jobDao.findById(jobId);
 
-        if (updatePollTime) {
+        // a job that is being waited on is known to be watched, skip the poll time write
+        if (updatePollTime && !isJobWaitedOn(jobId)) {
             job.setLastPolled(DateUtil.currentGMTTime());
             _jobDao.update(jobId, job);
         }
         return job;
     }
 
+    @Override
+    public AsyncJob waitForJobCompletion(long jobId, long timeoutInMilliSeconds) {
+        JobWaiter waiter = null;
+        synchronized (_jobWaiters) {
+            // every waiter holds a request thread, past the limit the caller gets the job as it is
+            if (_waiterCount < JobMaxWaiters.value()) {
+                _waiterCount++;
+                waiter = _jobWaiters.get(jobId);
+                if (waiter == null) {
+                    waiter = new JobWaiter();
+                    _jobWaiters.put(jobId, waiter);
+                }
+                waiter.count++;
+            }
+        }
+        if (waiter == null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Too many waiters, returning the status of job-" + jobId + " without waiting");
+            }
+            return queryJob(jobId, true);
+        }
+
+        try {
+            long startTick = System.currentTimeMillis();
+
+            // take the generation before reading the job, a wakeup in between is then not missed
+            long seen;
+            synchronized (waiter) {
+                seen = waiter.generation;
+            }
+            AsyncJobVO job = _jobDao.findById(jobId);
+            while (job != null && !job.getStatus().done()) {
+                long remaining = timeoutInMilliSeconds - (System.currentTimeMillis() - startTick);
+                if (remaining <= 0) {
+                    break;
+                }
+
+                // Completions are only notified on the local message bus, so a job run by a
+                // peer management server is polled for; a local one is re-checked in case
+                // a notification got lost
+                Long executingMsid = job.getExecutingMsid();
+                long interval = executingMsid != null && executingMsid == getMsid() ? JOB_WAIT_RECHECK_INTERVAL : JOB_WAIT_PEER_POLL_INTERVAL;
+                synchronized (waiter) {
+                    if (waiter.generation == seen) {
+                        try {
+                            waiter.wait(Math.min(remaining, interval));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    seen = waiter.generation;
+                }
+                job = _jobDao.findById(jobId);
+            }
+            return job;
+        } finally {
+            synchronized (_jobWaiters) {
+                _waiterCount--;
+                if (--waiter.count == 0) {
+                    _jobWaiters.remove(jobId);
+                }
+            }
+        }
+    }
+
+    private boolean isJobWaitedOn(long jobId) {
+        synchronized (_jobWaiters) {
+            return _jobWaiters.containsKey(jobId);
+        }
+    }
+
+    void wakeupJobWaiters(long jobId) {
+        JobWaiter waiter;
+        synchronized (_jobWaiters) {
+            waiter = _jobWaiters.get(jobId);
+        }
+
+        if (waiter != null) {
+            synchronized (waiter) {
+                waiter.generation++;
+                waiter.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Shared by all the threads waiting on a job. Every wakeup bumps the generation and each
+     * waiter remembers the last one it has seen, so no waiter consumes another one's wakeup.
+     */
+    private static class JobWaiter {
+        int count;
+        long generation;
+    }
+
     private void scheduleExecution(final AsyncJobVO job) {
         scheduleExecution(job, false);
     }
@@ -924,6 +1032,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         AsyncJobExecutionContext.init(this, _joinMapDao);
         OutcomeImpl.init(this);
 
+        _messageBus.subscribe(AsyncJob.Topics.JOB_STATE, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if (args instanceof Long) {
+                    wakeupJobWaiters((Long)args);
+                }
+            }
+        });
+
         return true;
     }
 
@@ -0,0 +1,130 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.config.impl.ConfigDepotImpl;
+import org.apache.cloudstack.framework.config.impl.ConfigurationVO;
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
+import org.apache.cloudstack.jobs.JobInfo.Status;
+
+public class AsyncJobManagerImplTest {
+    private static final long JOB_ID = 42L;
+    private static final int WAITERS = 16;
+
+    AsyncJobManagerImpl _jobMgr;
+    AsyncJobVO _job;
+
+    @Before
+    public void setUp() {
+        _job = new AsyncJobVO();
+        _job.setStatus(Status.IN_PROGRESS);
+
+        _jobMgr = new AsyncJobManagerImpl();
+        _jobMgr._jobDao = Mockito.mock(AsyncJobDao.class);
+        Mockito.when(_jobMgr._jobDao.findById(JOB_ID)).thenAnswer(new Answer<AsyncJobVO>() {
+            @Override
+            public AsyncJobVO answer(InvocationOnMock invocation) throws Throwable {
+                // widen the window between reading the job and going to wait
+                Thread.sleep((long)(Math.random() * 5));
+                AsyncJobVO job = new AsyncJobVO();
+                job.setStatus(_job.getStatus());
+                return job;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        ConfigKey.init(null);
+    }
+
+    @Test
+    public void testConcurrentWaitersAreAllWokenUp() throws Exception {
+        final CountDownLatch started = new CountDownLatch(WAITERS);
+        ExecutorService executor = Executors.newFixedThreadPool(WAITERS);
+        List<Future<AsyncJob>> waiters = new ArrayList<Future<AsyncJob>>();
+        for (int i = 0; i < WAITERS; i++) {
+            waiters.add(executor.submit(new Callable<AsyncJob>() {
+                @Override
+                public AsyncJob call() throws Exception {
+                    started.countDown();
+                    return _jobMgr.waitForJobCompletion(JOB_ID, 60000);
+                }
+            }));
+        }
+        started.await();
+
+        // several wakeups while the job runs, every waiter goes back to sleep
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(10);
+            _jobMgr.wakeupJobWaiters(JOB_ID);
+        }
+
+        _job.setStatus(Status.SUCCEEDED);
+        long startTick = System.currentTimeMillis();
+        _jobMgr.wakeupJobWaiters(JOB_ID);
+
+        for (Future<AsyncJob> waiter : waiters) {
+            // well below the 10 second re-check interval, so only the wakeup can have ended the wait
+            AsyncJob job = waiter.get(5, TimeUnit.SECONDS);
+            assertNotNull(job);
+            assertEquals(Status.SUCCEEDED, job.getStatus());
+        }
+        assertTrue("Waiters should return on the wakeup", System.currentTimeMillis() - startTick < 5000);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWaitersOverTheLimitReturnRightAway() {
+        ConfigDepotImpl depot = Mockito.mock(ConfigDepotImpl.class);
+        ConfigurationDao configDao = Mockito.mock(ConfigurationDao.class);
+        Mockito.when(depot.global()).thenReturn(configDao);
+        Mockito.when(configDao.findById(AsyncJobManagerImpl.JobMaxWaiters.key())).thenReturn(
+                new ConfigurationVO("Advanced", "DEFAULT", "AsyncJobManager", AsyncJobManagerImpl.JobMaxWaiters.key(), "0", null));
+        ConfigKey.init(depot);
+
+        long startTick = System.currentTimeMillis();
+        AsyncJob job = _jobMgr.waitForJobCompletion(JOB_ID, 60000);
+        assertEquals(Status.IN_PROGRESS, job.getStatus());
+        assertTrue("The call should not wait", System.currentTimeMillis() - startTick < 1000);
+        // answered like a plain poll
+        Mockito.verify(_jobMgr._jobDao).update(Mockito.eq(JOB_ID), Mockito.any(AsyncJobVO.class));
+    }
+}
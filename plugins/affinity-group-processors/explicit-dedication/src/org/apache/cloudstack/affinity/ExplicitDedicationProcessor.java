@@ -25,6 +25,7 @@ import javax.inject.Inject;
 
 import org.apache.log4j.Logger;
 
+import org.apache.cloudstack.affinity.AffinityConstraintIndex.Dedications;
 import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
 import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
 
@@ -78,6 +79,8 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
     protected AffinityGroupDao _affinityGroupDao;
     @Inject
     protected AffinityGroupVMMapDao _affinityGroupVMMapDao;
+    @Inject
+    protected AffinityConstraintIndex _constraintIndex;
 
     /**
      * This method will process the affinity group of type 'Explicit Dedication' for a deployment of a VM that demands dedicated resources.
@@ -95,6 +98,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
         List<DedicatedResourceVO> resourceList = new ArrayList<DedicatedResourceVO>();
 
         if (vmGroupMappings != null && !vmGroupMappings.isEmpty()) {
+            Dedications dedications = _constraintIndex.getDedications();
 
             for (AffinityGroupVMMapVO vmGroupMapping : vmGroupMappings) {
                 if (vmGroupMapping != null) {
@@ -105,7 +109,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
 
                     long affinityGroupId = vmGroupMapping.getAffinityGroupId();
 
-                    List<DedicatedResourceVO> dr = _dedicatedDao.listByAffinityGroupId(affinityGroupId);
+                    List<DedicatedResourceVO> dr = dedications.listByAffinityGroupId(affinityGroupId);
                     resourceList.addAll(dr);
 
                 }
@@ -239,7 +243,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
             } else {
                 // check all resources under this zone
                 if (resourceList != null && resourceList.size() != 0) {
-                    avoid = updateAvoidList(resourceList, avoid, dc);
+                    avoid = updateAvoidList(resourceList, dedications, avoid, dc);
                 } else {
                     avoid.addDataCenter(dc.getId());
                     if (s_logger.isDebugEnabled()) {
@@ -257,7 +261,8 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
 
     }
 
-    private ExcludeList updateAvoidList(List<DedicatedResourceVO> dedicatedResources, ExcludeList avoidList, DataCenter dc) {
+    private ExcludeList updateAvoidList(List<DedicatedResourceVO> dedicatedResources, Dedications dedications,
+            ExcludeList avoidList, DataCenter dc) {
         ExcludeList includeList = new ExcludeList();
         for (DedicatedResourceVO dr : dedicatedResources) {
             if (dr.getHostId() != null){
@@ -272,7 +277,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all hosts inside this in includeList
                 List<HostVO> hostList = _hostDao.findByClusterId(dr.getClusterId());
                 for (HostVO host : hostList) {
-                    DedicatedResourceVO dHost = _dedicatedDao.findByHostId(host.getId());
+                    DedicatedResourceVO dHost = dedications.findByHostId(host.getId());
                     if (dHost != null && !dedicatedResources.contains(dHost)) {
                         avoidList.addHost(host.getId());
                     } else {
@@ -288,7 +293,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all cluster under this pod in includeList
                 List<ClusterVO> clusterList = _clusterDao.listByPodId(dr.getPodId());
                 for (ClusterVO cluster : clusterList) {
-                    DedicatedResourceVO dCluster = _dedicatedDao.findByClusterId(cluster.getId());
+                    DedicatedResourceVO dCluster = dedications.findByClusterId(cluster.getId());
                     if (dCluster != null && !dedicatedResources.contains(dCluster)) {
                         avoidList.addCluster(cluster.getId());
                     } else {
@@ -298,7 +303,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all hosts inside this pod in includeList
                 List<HostVO> hostList = _hostDao.findByPodId(dr.getPodId());
                 for (HostVO host : hostList) {
-                    DedicatedResourceVO dHost = _dedicatedDao.findByHostId(host.getId());
+                    DedicatedResourceVO dHost = dedications.findByHostId(host.getId());
                     if (dHost != null && !dedicatedResources.contains(dHost)) {
                         avoidList.addHost(host.getId());
                     } else {
@@ -312,7 +317,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all Pod under this data center in includeList
                 List<HostPodVO> podList = _podDao.listByDataCenterId(dr.getDataCenterId());
                 for (HostPodVO pod : podList) {
-                    DedicatedResourceVO dPod = _dedicatedDao.findByPodId(pod.getId());
+                    DedicatedResourceVO dPod = dedications.findByPodId(pod.getId());
                     if (dPod != null && !dedicatedResources.contains(dPod)) {
                         avoidList.addPod(pod.getId());
                     } else {
@@ -321,7 +326,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 }
                 List<ClusterVO> clusterList = _clusterDao.listClustersByDcId(dr.getDataCenterId());
                 for (ClusterVO cluster : clusterList) {
-                    DedicatedResourceVO dCluster = _dedicatedDao.findByClusterId(cluster.getId());
+                    DedicatedResourceVO dCluster = dedications.findByClusterId(cluster.getId());
                     if (dCluster != null && !dedicatedResources.contains(dCluster)) {
                         avoidList.addCluster(cluster.getId());
                     } else {
@@ -331,7 +336,7 @@ public class ExplicitDedicationProcessor extends AffinityProcessorBase implement
                 //add all hosts inside this in includeList
                 List<HostVO> hostList = _hostDao.listByDataCenterId(dr.getDataCenterId());
                 for (HostVO host : hostList) {
-                    DedicatedResourceVO dHost = _dedicatedDao.findByHostId(host.getId());
+                    DedicatedResourceVO dHost = dedications.findByHostId(host.getId());
                     if (dHost != null && !dedicatedResources.contains(dHost)) {
                         avoidList.addHost(host.getId());
                     } else {
@@ -16,8 +16,10 @@
 // under the License.
 package org.apache.cloudstack.affinity;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -75,42 +77,53 @@ public class HostAntiAffinityProcessor extends AffinityProcessorBase implements
 
         for (AffinityGroupVMMapVO vmGroupMapping : vmGroupMappings) {
             if (vmGroupMapping != null) {
-                AffinityGroupVO group = _affinityGroupDao.findById(vmGroupMapping.getAffinityGroupId());
+                long groupId = vmGroupMapping.getAffinityGroupId();
 
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Processing affinity group " + group.getName() + " for VM Id: " + vm.getId());
+                    s_logger.debug("Processing affinity group " + groupId + " for VM Id: " + vm.getId());
                 }
 
-                List<Long> groupVMIds = _affinityGroupVMMapDao.listVmIdsByAffinityGroup(group.getId());
-                groupVMIds.remove(vm.getId());
-
-                for (Long groupVMId : groupVMIds) {
-                    VMInstanceVO groupVM = _vmInstanceDao.findById(groupVMId);
-                    if (groupVM != null && !groupVM.isRemoved()) {
-                        if (groupVM.getHostId() != null) {
-                            avoid.addHost(groupVM.getHostId());
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Added host " + groupVM.getHostId() + " to avoid set, since VM "
-                                        + groupVM.getId() + " is present on the host");
-                            }
-                        } else if (VirtualMachine.State.Stopped.equals(groupVM.getState())
-                                && groupVM.getLastHostId() != null) {
-                            long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - groupVM.getUpdateTime().getTime()) / 1000;
-                            if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
-                                avoid.addHost(groupVM.getLastHostId());
-                                if (s_logger.isDebugEnabled()) {
-                                    s_logger.debug("Added host " + groupVM.getLastHostId() + " to avoid set, since VM "
-                                            + groupVM.getId() + " is present on the host, in Stopped state but has reserved capacity");
-                                }
-                            }
-                        }
-                    }
+                Set<Long> hostIds = listHostsInUse(groupId, vm.getId());
+                for (Long hostId : hostIds) {
+                    avoid.addHost(hostId);
+                }
+                if (s_logger.isDebugEnabled() && !hostIds.isEmpty()) {
+                    s_logger.debug("Added hosts " + hostIds + " to avoid set, since VMs of affinity group " + groupId
+                            + " are present on them or hold reserved capacity on them");
                 }
             }
         }
 
     }
     
+    /**
+     * @return the hosts the other VMs of the group run on or, when stopped recently, still hold
+     *         capacity on; the VMs are loaded with one query
+     */
+    private Set<Long> listHostsInUse(long groupId, long vmId) {
+        Set<Long> hostIds = new HashSet<Long>();
+        List<Long> groupVMIds = _affinityGroupVMMapDao.listVmIdsByAffinityGroup(groupId);
+        groupVMIds.remove(vmId);
+        if (groupVMIds.isEmpty()) {
+            return hostIds;
+        }
+
+        for (VMInstanceVO groupVM : _vmInstanceDao.listByIds(groupVMIds)) {
+            if (groupVM.isRemoved()) {
+                continue;
+            }
+            if (groupVM.getHostId() != null) {
+                hostIds.add(groupVM.getHostId());
+            } else if (VirtualMachine.State.Stopped.equals(groupVM.getState()) && groupVM.getLastHostId() != null) {
+                long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - groupVM.getUpdateTime().getTime()) / 1000;
+                if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
+                    hostIds.add(groupVM.getLastHostId());
+                }
+            }
+        }
+        return hostIds;
+    }
+
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
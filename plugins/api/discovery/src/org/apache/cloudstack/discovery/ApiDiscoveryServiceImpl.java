@@ -25,6 +25,10 @@ import com.google.gson.annotations.SerializedName;
 import org.apache.cloudstack.acl.APIChecker;
 import org.apache.cloudstack.api.*;
 import org.apache.cloudstack.api.command.user.discovery.ListApisCmd;
+import org.apache.cloudstack.api.index.ApiCommandIndex;
+import org.apache.cloudstack.api.index.ApiCommandIndex.CommandEntry;
+import org.apache.cloudstack.api.index.ApiCommandIndex.ParameterEntry;
+import org.apache.cloudstack.api.index.ApiCommandIndex.ResponseFieldEntry;
 import org.apache.cloudstack.api.response.ApiDiscoveryResponse;
 import org.apache.cloudstack.api.response.ApiParameterResponse;
 import org.apache.cloudstack.api.response.ApiResponseResponse;
@@ -70,25 +74,55 @@ public class ApiDiscoveryServiceImpl implements ApiDiscoveryService {
 
     protected Map<String, List<String>> cacheResponseMap(Set<Class<?>> cmdClasses) {
         Map<String, List<String>> responseApiNameListMap = new HashMap<String, List<String>>();
+        ApiCommandIndex index = ApiCommandIndex.getInstance();
+        int indexed = 0;
 
         for(Class<?> cmdClass: cmdClasses) {
-            APICommand apiCmdAnnotation = cmdClass.getAnnotation(APICommand.class);
-            if (apiCmdAnnotation == null) {
-                apiCmdAnnotation = cmdClass.getSuperclass().getAnnotation(APICommand.class);
-            }
-            if (apiCmdAnnotation == null
-                    || !apiCmdAnnotation.includeInApiDoc()
-                    || apiCmdAnnotation.name().isEmpty()) {
-                continue;
+            String apiName;
+            String responseName;
+            ApiDiscoveryResponse response;
+
+            CommandEntry cmdEntry = index.getCommand(cmdClass.getName());
+            if (cmdEntry != null) {
+                // built at compile time, no need to reflect over the command
+                if (!cmdEntry.isIncludeInApiDoc() || cmdEntry.getName().isEmpty()) {
+                    continue;
+                }
+                apiName = cmdEntry.getName();
+                response = getCmdRequestMap(cmdEntry);
+                responseName = cmdEntry.getResponseClass();
+                List<ResponseFieldEntry> responseFields = index.getResponseFields(responseName);
+                if (responseFields != null) {
+                    for (ResponseFieldEntry responseField : responseFields) {
+                        response.addApiResponse(getFieldResponseMap(index, responseField));
+                    }
+                }
+                indexed++;
+            } else {
+                APICommand apiCmdAnnotation = cmdClass.getAnnotation(APICommand.class);
+                if (apiCmdAnnotation == null) {
+                    apiCmdAnnotation = cmdClass.getSuperclass().getAnnotation(APICommand.class);
+                }
+                if (apiCmdAnnotation == null
+                        || !apiCmdAnnotation.includeInApiDoc()
+                        || apiCmdAnnotation.name().isEmpty()) {
+                    continue;
+                }
+
+                apiName = apiCmdAnnotation.name();
+                response = getCmdRequestMap(cmdClass, apiCmdAnnotation);
+                responseName = apiCmdAnnotation.responseObject().getName();
+
+                Field[] responseFields = apiCmdAnnotation.responseObject().getDeclaredFields();
+                for(Field responseField: responseFields) {
+                    ApiResponseResponse responseResponse = getFieldResponseMap(responseField);
+                    response.addApiResponse(responseResponse);
+                }
             }
 
-            String apiName = apiCmdAnnotation.name();
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Found api: " + apiName);
             }
-            ApiDiscoveryResponse response = getCmdRequestMap(cmdClass, apiCmdAnnotation);
-
-            String responseName = apiCmdAnnotation.responseObject().getName();
             if (!responseName.contains("SuccessResponse")) {
                 if (!responseApiNameListMap.containsKey(responseName)) {
                     responseApiNameListMap.put(responseName, new ArrayList<String>());
@@ -97,16 +131,10 @@ public class ApiDiscoveryServiceImpl implements ApiDiscoveryService {
             }
             response.setRelated(responseName);
 
-
-            Field[] responseFields = apiCmdAnnotation.responseObject().getDeclaredFields();
-            for(Field responseField: responseFields) {
-                ApiResponseResponse responseResponse = getFieldResponseMap(responseField);
-                response.addApiResponse(responseResponse);
-            }
-
             response.setObjectName("api");
             s_apiNameDiscoveryResponseMap.put(apiName, response);
         }
+        s_logger.debug("Api Discovery Service: " + indexed + " of " + cmdClasses.size() + " commands loaded from the api command index");
 
         for (String apiName : s_apiNameDiscoveryResponseMap.keySet()) {
             ApiDiscoveryResponse response = s_apiNameDiscoveryResponseMap.get(apiName);
@@ -163,6 +191,51 @@ public class ApiDiscoveryServiceImpl implements ApiDiscoveryService {
         return responseResponse;
     }
 
+    private ApiResponseResponse getFieldResponseMap(ApiCommandIndex index, ResponseFieldEntry fieldEntry) {
+        ApiResponseResponse responseResponse = new ApiResponseResponse();
+        if (fieldEntry.getName() != null) {
+            responseResponse.setName(fieldEntry.getName());
+            responseResponse.setDescription(fieldEntry.getDescription());
+            responseResponse.setType(fieldEntry.getType());
+            if (fieldEntry.getResponseClass() != null) {
+                List<ResponseFieldEntry> nestedFields = index.getResponseFields(fieldEntry.getResponseClass());
+                if (nestedFields != null) {
+                    for (ResponseFieldEntry nestedField : nestedFields) {
+                        responseResponse.addApiResponse(getFieldResponseMap(index, nestedField));
+                    }
+                }
+            }
+        }
+        return responseResponse;
+    }
+
+    private ApiDiscoveryResponse getCmdRequestMap(CommandEntry cmdEntry) {
+        ApiDiscoveryResponse response = new ApiDiscoveryResponse();
+        response.setName(cmdEntry.getName());
+        response.setDescription(cmdEntry.getDescription());
+        if (!cmdEntry.getSince().isEmpty()) {
+            response.setSince(cmdEntry.getSince());
+        }
+        response.setAsync(cmdEntry.isAsync());
+
+        for (ParameterEntry param : cmdEntry.getParams()) {
+            if (param.isExpose() && param.isIncludeInApiDoc()) {
+                ApiParameterResponse paramResponse = new ApiParameterResponse();
+                paramResponse.setName(param.getName());
+                paramResponse.setDescription(param.getDescription());
+                paramResponse.setType(param.getType().toLowerCase());
+                paramResponse.setLength(param.getLength());
+                paramResponse.setRequired(param.isRequired());
+                if (!param.getSince().isEmpty()) {
+                    paramResponse.setSince(param.getSince());
+                }
+                paramResponse.setRelated(param.getEntityType());
+                response.addParam(paramResponse);
+            }
+        }
+        return response;
+    }
+
     private ApiDiscoveryResponse getCmdRequestMap(Class<?> cmdClass, APICommand apiCmdAnnotation) {
         String apiName = apiCmdAnnotation.name();
         ApiDiscoveryResponse response = new ApiDiscoveryResponse();
@@ -35,4 +35,6 @@ public interface ApiRateLimitService extends PluggableService{
     public void setMaxAllowed(int max);
 
     public void setEnabled(boolean enabled);
+
+    public void setCommandWeight(String apiName, int weight);
 }
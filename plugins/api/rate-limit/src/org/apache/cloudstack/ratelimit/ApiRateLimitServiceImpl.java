@@ -19,6 +19,7 @@ package org.apache.cloudstack.ratelimit;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -35,12 +36,15 @@ import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 
+import com.cloud.cluster.ManagementServerHost;
+import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.configuration.Config;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.RequestLimitException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.AdapterBase;
 
 import org.springframework.stereotype.Component;
@@ -50,6 +54,8 @@ import org.springframework.stereotype.Component;
 public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker, ApiRateLimitService {
 	private static final Logger s_logger = Logger.getLogger(ApiRateLimitServiceImpl.class);
 
+	public static final String SLIDING_WINDOW_STORE = "slidingwindow";
+
 	/**
 	 * True if api rate limiting is enabled
 	 */
@@ -67,12 +73,31 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 
 	private LimitStore _store = null;
 
+	/**
+	 * Cost of each api counted against the limit, apis not listed here cost 1.
+	 */
+	private final Map<String, Integer> commandWeights = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * True if the limit is shared by all the management servers of the cluster
+	 */
+	private boolean clusterAware = false;
+
+	private volatile int activeMgmtServers = 1;
+
+	private volatile long activeMgmtServersCheckedAt = 0;
+
+	private static final long MGMT_SERVER_COUNT_REFRESH_INTERVAL = 60000;
+
 	@Inject
 	AccountService _accountService;
 
     @Inject
     ConfigurationDao _configDao;
 
+    @Inject
+    ManagementServerHostDao _msHostDao;
+
 	@Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
@@ -91,20 +116,27 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             if (maxReqs != null) {
                 maxAllowed = Integer.parseInt(maxReqs);
             }
+            parseCommandWeights(_configDao.getValue(Config.ApiLimitCommandWeights.key()));
+            clusterAware = Boolean.parseBoolean(_configDao.getValue(Config.ApiLimitClusterAware.key()));
+
             // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
             int maxElements = 10000;
             String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
             if ( cachesize != null ){
                 maxElements = Integer.parseInt(cachesize);
             }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements );
-            cacheStore.setCache(cache);
-            _store = cacheStore;
-
+            if (SLIDING_WINDOW_STORE.equalsIgnoreCase(_configDao.getValue(Config.ApiLimitStore.key()))) {
+                _store = new SlidingWindowLimitStore(maxElements);
+                s_logger.info("Sliding window limit store created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements);
+            } else {
+                EhcacheLimitStore cacheStore = new EhcacheLimitStore();
+                CacheManager cm = CacheManager.create();
+                Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
+                cm.addCache(cache);
+                s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements );
+                cacheStore.setCache(cache);
+                _store = cacheStore;
+            }
         }
 
         return true;
@@ -121,12 +153,12 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             /* Populate the entry, thus unlocking any underlying mutex */
             entry = _store.create(caller.getId(), timeToLive);
             response.setApiIssued(0);
-            response.setApiAllowed(maxAllowed);
+            response.setApiAllowed(getMaxAllowed());
             response.setExpireAfter(timeToLive);
         }
         else{
             response.setApiIssued(entry.getCounter());
-            response.setApiAllowed(maxAllowed - entry.getCounter());
+            response.setApiAllowed(getMaxAllowed() - entry.getCounter());
             response.setExpireAfter(entry.getExpireDuration());
         }
 
@@ -168,10 +200,10 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             entry = _store.create(accountId, timeToLive);
         }
 
-        /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
-        int current = entry.incrementAndGet();
+        /* Add the api cost to the client count and see whether we have hit the maximum allowed clients yet. */
+        int current = entry.addAndGet(getCommandWeight(apiCommandName));
 
-        if (current <= maxAllowed) {
+        if (current <= getMaxAllowed()) {
             s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
             return true;
         } else {
@@ -184,6 +216,59 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     }
 
 
+    private int getCommandWeight(String apiCommandName) {
+        if (apiCommandName == null) {
+            return 1;
+        }
+        Integer weight = commandWeights.get(apiCommandName);
+        return weight == null ? 1 : weight;
+    }
+
+    /*
+     * Parses weights given as a comma separated list of apiName=weight pairs
+     */
+    private void parseCommandWeights(String weights) {
+        if (weights == null) {
+            return;
+        }
+        for (String pair : weights.split(",")) {
+            String[] tokens = pair.trim().split("=");
+            if (tokens.length != 2 || tokens[0].trim().isEmpty()) {
+                s_logger.warn("Ignoring invalid api weight '" + pair + "' in " + Config.ApiLimitCommandWeights.key());
+                continue;
+            }
+            setCommandWeight(tokens[0].trim(), NumbersUtil.parseInt(tokens[1].trim(), 1));
+        }
+    }
+
+    /*
+     * In cluster aware mode every management server enforces its share of the limit,
+     * so the budget of an account is shared by the whole management server cluster.
+     *
+     * The split is static: each of the N management servers that are Up allows
+     * ceil(maxAllowed / N) calls per interval and counts locally, nothing is exchanged
+     * between the servers. An account whose calls are balanced evenly gets about
+     * maxAllowed calls in total (up to N - 1 more because of the rounding), while an
+     * account pinned to a single management server only gets that server's share.
+     * The server count is refreshed every MGMT_SERVER_COUNT_REFRESH_INTERVAL ms.
+     */
+    private int getMaxAllowed() {
+        if (!clusterAware || _msHostDao == null) {
+            return maxAllowed;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - activeMgmtServersCheckedAt > MGMT_SERVER_COUNT_REFRESH_INTERVAL) {
+            activeMgmtServersCheckedAt = now;
+            try {
+                activeMgmtServers = Math.max(1, _msHostDao.listBy(ManagementServerHost.State.Up).size());
+            } catch (Exception e) {
+                s_logger.warn("Unable to count active management servers, keep using " + activeMgmtServers, e);
+            }
+        }
+        return Math.max(1, (maxAllowed + activeMgmtServers - 1) / activeMgmtServers);
+    }
+
     @Override
     public List<Class<?>> getCommands() {
         List<Class<?>> cmdList = new ArrayList<Class<?>>();
@@ -212,5 +297,14 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
 
     }
 
+    @Override
+    public void setCommandWeight(String apiName, int weight) {
+        if (weight < 1) {
+            commandWeights.remove(apiName);
+        } else {
+            commandWeights.put(apiName, weight);
+        }
+    }
+
 
 }
@@ -0,0 +1,109 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free Limit store keeping one sliding window counter per account.
+ *
+ * Entries live in an open addressing table indexed by the primitive account id, so a
+ * lookup neither boxes the key nor takes a lock. When the probe range of an account is
+ * full, an expired entry is recycled first, otherwise the home slot is overwritten.
+ * Slots are only ever replaced with compare and set, so when several threads create the
+ * entry of the same account at once they all end up counting on the one that got installed.
+ */
+public class SlidingWindowLimitStore implements LimitStore {
+
+    private static final int MAX_PROBES = 16;
+
+    private final AtomicReferenceArray<SlidingWindowStoreEntry> table;
+
+    private final int mask;
+
+    public SlidingWindowLimitStore(int maxElements) {
+        int capacity = Integer.highestOneBit(Math.max(MAX_PROBES, maxElements) * 2 - 1) << 1;
+        table = new AtomicReferenceArray<SlidingWindowStoreEntry>(capacity);
+        mask = capacity - 1;
+    }
+
+    private int slot(long account) {
+        long h = account * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    @Override
+    public StoreEntry get(Long account) {
+        long key = account;
+        int home = slot(key);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            SlidingWindowStoreEntry entry = table.get((home + i) & mask);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.getAccount() == key) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public StoreEntry create(Long account, int timeToLiveInSecs) {
+        long key = account;
+        SlidingWindowStoreEntry created = new SlidingWindowStoreEntry(key, timeToLiveInSecs);
+        int home = slot(key);
+        retry: for (;;) {
+            int victim = -1;
+            SlidingWindowStoreEntry victimEntry = null;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int index = (home + i) & mask;
+                SlidingWindowStoreEntry entry = table.get(index);
+                if (entry == null || entry.getAccount() == key) {
+                    if (table.compareAndSet(index, entry, created)) {
+                        return created;
+                    }
+                    SlidingWindowStoreEntry current = table.get(index);
+                    if (current != null && current.getAccount() == key) {
+                        // a concurrent create for the same account won, count on its entry so no hit is lost
+                        return current;
+                    }
+                    continue retry;
+                }
+                if (victim < 0 && entry.isExpired()) {
+                    victim = index;
+                    victimEntry = entry;
+                }
+            }
+
+            if (victim < 0) {
+                victim = home;
+                victimEntry = table.get(home);
+            }
+            if (table.compareAndSet(victim, victimEntry, created)) {
+                return created;
+            }
+        }
+    }
+
+    @Override
+    public void resetCounters() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+}
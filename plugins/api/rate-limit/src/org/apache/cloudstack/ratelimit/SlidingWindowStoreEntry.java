@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free sliding window counter for one account.
+ *
+ * The current window index, the previous window count and the current window count are
+ * packed into a single long so that a check is one CAS. The usage reported is the
+ * sliding window estimate: previous count weighted by the part of the previous window
+ * still covered, plus the current count.
+ */
+public class SlidingWindowStoreEntry implements StoreEntry {
+
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = (1L << (64 - 2 * COUNT_BITS)) - 1;
+
+    private final long account;
+
+    private final long interval;
+
+    private final AtomicLong state;
+
+    SlidingWindowStoreEntry(long account, int timeToLive) {
+        this.account = account;
+        this.interval = Math.max(1, timeToLive) * 1000L;
+        this.state = new AtomicLong(pack(currentWindow(System.currentTimeMillis()), 0, 0));
+    }
+
+    public long getAccount() {
+        return account;
+    }
+
+    @Override
+    public int getCounter() {
+        long now = System.currentTimeMillis();
+        long s = roll(state.get(), currentWindow(now));
+        return estimate(previous(s), current(s), now);
+    }
+
+    @Override
+    public int incrementAndGet() {
+        return addAndGet(1);
+    }
+
+    @Override
+    public int addAndGet(int weight) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long expected = state.get();
+            long s = roll(expected, currentWindow(now));
+            long current = Math.min(current(s) + weight, COUNT_MASK);
+            long updated = pack(window(s), previous(s), current);
+            if (state.compareAndSet(expected, updated)) {
+                return estimate(previous(updated), current, now);
+            }
+        }
+    }
+
+    @Override
+    public boolean isExpired() {
+        long s = state.get();
+        return ((currentWindow(System.currentTimeMillis()) - window(s)) & WINDOW_MASK) > 1;
+    }
+
+    @Override
+    public long getExpireDuration() {
+        return interval - System.currentTimeMillis() % interval;
+    }
+
+    private long currentWindow(long now) {
+        return (now / interval) & WINDOW_MASK;
+    }
+
+    private int estimate(long previous, long current, long now) {
+        double remaining = 1.0 - (double)(now % interval) / interval;
+        return (int)Math.ceil(previous * remaining + current);
+    }
+
+    /*
+     * Moves the packed state forward to the given window, shifting or dropping the counts
+     */
+    private static long roll(long s, long window) {
+        long w = window(s);
+        if (w == window) {
+            return s;
+        } else if (((window - 1) & WINDOW_MASK) == w) {
+            return pack(window, current(s), 0);
+        }
+        return pack(window, 0, 0);
+    }
+
+    private static long pack(long window, long previous, long current) {
+        return (window << (2 * COUNT_BITS)) | (previous << COUNT_BITS) | current;
+    }
+
+    private static long window(long s) {
+        return (s >>> (2 * COUNT_BITS)) & WINDOW_MASK;
+    }
+
+    private static long previous(long s) {
+        return (s >>> COUNT_BITS) & COUNT_MASK;
+    }
+
+    private static long current(long s) {
+        return s & COUNT_MASK;
+    }
+}
@@ -26,6 +26,8 @@ public interface StoreEntry {
 
     int incrementAndGet();
 
+    int addAndGet(int weight);  /* weight is the cost of the api being counted */
+
     boolean isExpired();
 
     long getExpireDuration();  /* seconds to reset counter */
@@ -56,6 +56,11 @@ public class StoreEntryImpl implements StoreEntry {
         return this.counter.incrementAndGet();
     }
 
+    @Override
+    public int addAndGet(int weight) {
+        return this.counter.addAndGet(weight);
+    }
+
     @Override
     public int getCounter(){
         return this.counter.get();
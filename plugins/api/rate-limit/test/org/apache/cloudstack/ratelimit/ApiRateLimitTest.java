@@ -236,6 +236,24 @@ public class ApiRateLimitTest {
 
     }
 
+    @Test
+    public void commandWeightIsCounted() throws Exception {
+        try {
+            int allowedRequests = 10;
+            _limitService.setMaxAllowed(allowedRequests);
+            _limitService.setTimeToLive(1);
+            _limitService.setCommandWeight("deployVirtualMachine", 5);
+
+            User key = this.createFakeUser();
+
+            assertTrue("The first weighted request should be allowed", _limitService.checkAccess(key, "deployVirtualMachine"));
+            assertTrue("The second weighted request should be allowed", _limitService.checkAccess(key, "deployVirtualMachine"));
+            assertFalse("A third weighted request exceeds the limit", isUnderLimit(key));
+        } finally {
+            _limitService.setCommandWeight("deployVirtualMachine", 0);
+        }
+    }
+
     @Test
     public void disableApiLimit() throws Exception {
         try {
@@ -0,0 +1,162 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SlidingWindowLimitStoreTest {
+
+    @Test
+    public void createAndGet() {
+        SlidingWindowLimitStore store = new SlidingWindowLimitStore(100);
+        assertNull("No entry before create", store.get(5L));
+
+        StoreEntry entry = store.create(5L, 1);
+        assertSame("Created entry is returned by get", entry, store.get(5L));
+        assertNull("Other accounts are not affected", store.get(6L));
+
+        store.resetCounters();
+        assertNull("Reset drops every entry", store.get(5L));
+    }
+
+    @Test
+    public void recreateResetsCounter() {
+        SlidingWindowLimitStore store = new SlidingWindowLimitStore(100);
+        StoreEntry entry = store.create(5L, 10);
+        entry.addAndGet(3);
+        assertEquals(3, store.get(5L).getCounter());
+
+        store.create(5L, 10);
+        assertEquals(0, store.get(5L).getCounter());
+    }
+
+    @Test
+    public void weightsAreAdded() {
+        StoreEntry entry = new SlidingWindowStoreEntry(5L, 10);
+        assertEquals(1, entry.incrementAndGet());
+        assertEquals(6, entry.addAndGet(5));
+        assertEquals(6, entry.getCounter());
+        assertFalse(entry.isExpired());
+        assertTrue(entry.getExpireDuration() <= 10000);
+    }
+
+    @Test
+    public void previousWindowIsStillCounted() throws Exception {
+        StoreEntry entry = new SlidingWindowStoreEntry(5L, 1);
+        entry.addAndGet(100);
+
+        // wait until the next window started, the previous one still covers most of it
+        Thread.sleep(entry.getExpireDuration() + 50);
+        int counter = entry.getCounter();
+        assertTrue("Previous window should still weigh in, counter=" + counter, counter > 0 && counter < 100);
+
+        Thread.sleep(2100);
+        assertEquals("Counter is cleared after two windows", 0, entry.getCounter());
+        assertTrue(entry.isExpired());
+    }
+
+    @Test
+    public void manyAccountsFitInStore() {
+        SlidingWindowLimitStore store = new SlidingWindowLimitStore(1000);
+        for (long account = 1; account <= 1000; account++) {
+            store.create(account, 10).incrementAndGet();
+        }
+        int found = 0;
+        for (long account = 1; account <= 1000; account++) {
+            if (store.get(account) != null) {
+                found++;
+            }
+        }
+        assertEquals(1000, found);
+    }
+
+    @Test
+    public void concurrentIncrementsAreNotLost() throws Exception {
+        final StoreEntry entry = new SlidingWindowStoreEntry(5L, 60);
+        final int threads = 64;
+        final int perThread = 1000;
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch endGate = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        for (int j = 0; j < perThread; j++) {
+                            entry.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        endGate.countDown();
+                    }
+                }
+            });
+        }
+        startGate.countDown();
+        endGate.await();
+        executor.shutdown();
+
+        assertEquals(0, failures.get());
+        assertTrue("All increments should be counted", entry.getCounter() >= threads * perThread);
+    }
+
+    @Test
+    public void concurrentCreatesShareOneEntry() throws Exception {
+        final SlidingWindowLimitStore store = new SlidingWindowLimitStore(100);
+        final int threads = 32;
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch endGate = new CountDownLatch(threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        StoreEntry entry = store.get(5L);
+                        if (entry == null) {
+                            entry = store.create(5L, 60);
+                        }
+                        entry.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        endGate.countDown();
+                    }
+                }
+            });
+        }
+        startGate.countDown();
+        endGate.await();
+        executor.shutdown();
+
+        assertEquals("Every hit should land on the installed entry", threads, store.get(5L).getCounter());
+    }
+}
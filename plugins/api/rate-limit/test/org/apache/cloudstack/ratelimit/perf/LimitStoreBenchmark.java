@@ -0,0 +1,108 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit.perf;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+import org.apache.cloudstack.ratelimit.EhcacheLimitStore;
+import org.apache.cloudstack.ratelimit.LimitStore;
+import org.apache.cloudstack.ratelimit.SlidingWindowLimitStore;
+import org.apache.cloudstack.ratelimit.StoreEntry;
+import org.junit.Test;
+
+/**
+ * Measures the per check overhead of the limit stores under 64 concurrent threads.
+ * Excluded from the regular build, run it explicitly with -Dtest=LimitStoreBenchmark.
+ */
+public class LimitStoreBenchmark {
+
+    private static final int THREADS = 64;
+    private static final int CHECKS_PER_THREAD = 200000;
+    private static final int ACCOUNTS = 1000;
+
+    @Test
+    public void benchmarkEhcacheLimitStore() throws Exception {
+        EhcacheLimitStore store = new EhcacheLimitStore();
+        CacheManager cm = CacheManager.create();
+        Cache cache = new Cache("api-limit-benchmark", ACCOUNTS * 2, false, false, 60, 60);
+        cm.addCache(cache);
+        store.setCache(cache);
+        try {
+            run("ehcache", store, false);
+            run("ehcache", store, true);
+        } finally {
+            cm.removeCache("api-limit-benchmark");
+        }
+    }
+
+    @Test
+    public void benchmarkSlidingWindowLimitStore() throws Exception {
+        SlidingWindowLimitStore store = new SlidingWindowLimitStore(ACCOUNTS * 2);
+        run("slidingwindow", store, false);
+        run("slidingwindow", store, true);
+    }
+
+    /*
+     * With a shared account every thread checks the same counter, otherwise the threads
+     * spread their checks over ACCOUNTS accounts.
+     */
+    private void run(String name, final LimitStore store, final boolean sharedAccount) throws Exception {
+        store.resetCounters();
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch endGate = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startGate.await();
+                        for (int j = 0; j < CHECKS_PER_THREAD; j++) {
+                            long account = sharedAccount ? 1 : (thread * 31 + j) % ACCOUNTS + 1;
+                            StoreEntry entry = store.get(account);
+                            if (entry == null) {
+                                entry = store.create(account, 60);
+                            }
+                            entry.addAndGet(1);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        endGate.countDown();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        startGate.countDown();
+        endGate.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        long checks = (long)THREADS * CHECKS_PER_THREAD;
+        System.out.println(String.format("%s (%s): %d checks by %d threads in %d ms, %.1f ns per check", name,
+                sharedAccount ? "shared account" : ACCOUNTS + " accounts", checks, THREADS, elapsed / 1000000, (double)elapsed / checks));
+    }
+}
@@ -17,10 +17,21 @@
 package com.cloud.network.ovs;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -31,6 +42,7 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
@@ -53,6 +65,7 @@ import com.cloud.network.ovs.dao.OvsTunnelInterfaceDao;
 import com.cloud.network.ovs.dao.OvsTunnelInterfaceVO;
 import com.cloud.network.ovs.dao.OvsTunnelNetworkDao;
 import com.cloud.network.ovs.dao.OvsTunnelNetworkVO;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -73,10 +86,23 @@ public class OvsTunnelManagerImpl extends ManagerBase implements OvsTunnelManage
     public static final Logger s_logger =
             Logger.getLogger(OvsTunnelManagerImpl.class.getName());
 
+    // Tunnels of a network not needed by the VM being started are created by a
+    // small pool of their own, and only this many of them are queued per network
+    static final int BACKGROUND_TUNNEL_WORKERS = 2;
+    static final int MAX_BACKGROUND_TUNNELS_PER_NETWORK = 100;
+
     boolean _isEnabled;
-    ScheduledExecutorService _executorPool;
+    int _tunnelCreateWait;
+    ExecutorService _executorPool;
+    ExecutorService _backgroundPool;
     ScheduledExecutorService _cleanupExecutor;
 
+    // Tunnel creations currently in flight, keyed by network/from/to, so that
+    // concurrent VM starts on the same network do not create a tunnel twice
+    private final ConcurrentMap<String, TunnelFuture> _pendingTunnels = new ConcurrentHashMap<String, TunnelFuture>();
+    // network id -> background tunnel creations queued or running
+    private final Map<Long, Integer> _backgroundTunnels = new HashMap<Long, Integer>();
+
     @Inject
     ConfigurationDao _configDao;
     @Inject
@@ -102,13 +128,30 @@ public class OvsTunnelManagerImpl extends ManagerBase implements OvsTunnelManage
         _isEnabled = Boolean.parseBoolean(_configDao.getValue(Config.OvsTunnelNetwork.key()));
 
         if (_isEnabled) {
-            _executorPool = Executors.newScheduledThreadPool(10, new NamedThreadFactory("OVS"));
+            int workers = NumbersUtil.parseInt(_configDao.getValue(Config.OvsTunnelCreateWorkers.key()), 10);
+            _tunnelCreateWait = NumbersUtil.parseInt(_configDao.getValue(Config.OvsTunnelCreateWait.key()), 60);
+            _executorPool = Executors.newFixedThreadPool(Math.max(1, workers), new NamedThreadFactory("OVS"));
+            _backgroundPool = Executors.newFixedThreadPool(BACKGROUND_TUNNEL_WORKERS, new NamedThreadFactory("OVS-Background"));
             _cleanupExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("OVS-Cleanup"));
         }
 
         return true;
     }
 
+    @Override
+    public boolean stop() {
+        if (_executorPool != null) {
+            _executorPool.shutdown();
+        }
+        if (_backgroundPool != null) {
+            _backgroundPool.shutdown();
+        }
+        if (_cleanupExecutor != null) {
+            _cleanupExecutor.shutdown();
+        }
+        return true;
+    }
+
     @DB
     protected OvsTunnelNetworkVO createTunnelRecord(long from, long to,
             long networkId, int key) {
@@ -268,6 +311,113 @@ public class OvsTunnelManagerImpl extends ManagerBase implements OvsTunnelManage
 		}
 	}
 	
+	private String getTunnelKey(long from, long to, long networkId) {
+	    return networkId + ":" + from + ":" + to;
+	}
+
+    /**
+     * Creates the record for a single tunnel if it is missing and asks the
+     * source host to set the tunnel up. Runs on the OVS executor.
+     */
+    protected class CreateTunnelTask extends ManagedContextRunnable {
+        private final OvsCreateTunnelCommand _cmd;
+
+        public CreateTunnelTask(OvsCreateTunnelCommand cmd) {
+            _cmd = cmd;
+        }
+
+        @Override
+        protected void runInContext() {
+            long from = _cmd.getFrom();
+            long to = _cmd.getTo();
+            try {
+                if (_tunnelNetworkDao.getByFromToNetwork(from, to, _cmd.getNetworkId()) == null) {
+                    createTunnelRecord(from, to, _cmd.getNetworkId(), _cmd.getKey());
+                }
+                s_logger.debug("Ask host " + from +
+                        " to create gre tunnel to " + to);
+                Answer[] answers = _agentMgr.send(from, new Commands(_cmd));
+                handleCreateTunnelAnswer(answers);
+            } catch (Exception e) {
+                s_logger.warn("Ovs Tunnel network created tunnel from " + from +
+                        " to " + to + " failed", e);
+            }
+        }
+    }
+
+    protected class TunnelFuture extends FutureTask<Object> {
+        private final String _tunnelKey;
+        private final long _networkId;
+        private final boolean _background;
+
+        public TunnelFuture(OvsCreateTunnelCommand cmd, String tunnelKey, boolean background) {
+            super(new CreateTunnelTask(cmd), null);
+            _tunnelKey = tunnelKey;
+            _networkId = cmd.getNetworkId();
+            _background = background;
+        }
+
+        @Override
+        protected void done() {
+            _pendingTunnels.remove(_tunnelKey, this);
+            if (_background) {
+                releaseBackgroundTunnel(_networkId);
+            }
+        }
+    }
+
+    /**
+     * @return the creation of the tunnel, or null if the network has too many
+     *         background creations queued already
+     */
+    private Future<?> submitCreateTunnel(OvsCreateTunnelCommand cmd, boolean background) {
+        String tunnelKey = getTunnelKey(cmd.getFrom(), cmd.getTo(), cmd.getNetworkId());
+        while (true) {
+            if (background && !reserveBackgroundTunnel(cmd.getNetworkId())) {
+                return null;
+            }
+            TunnelFuture task = new TunnelFuture(cmd, tunnelKey, background);
+            TunnelFuture pending = _pendingTunnels.putIfAbsent(tunnelKey, task);
+            if (pending == null) {
+                (background ? _backgroundPool : _executorPool).execute(task);
+                return task;
+            }
+            if (background) {
+                releaseBackgroundTunnel(cmd.getNetworkId());
+            }
+            // a tunnel needed now is not left queued behind background repairs,
+            // cancelling the queued creation removes it from the pending ones
+            if (!background && pending._background && pending.cancel(false)) {
+                continue;
+            }
+            s_logger.debug("Creation of tunnel from " + cmd.getFrom() +
+                    " to " + cmd.getTo() + " is already in progress");
+            return pending;
+        }
+    }
+
+    private boolean reserveBackgroundTunnel(long networkId) {
+        synchronized (_backgroundTunnels) {
+            Integer queued = _backgroundTunnels.get(networkId);
+            if (queued != null && queued >= MAX_BACKGROUND_TUNNELS_PER_NETWORK) {
+                return false;
+            }
+            _backgroundTunnels.put(networkId, queued == null ? 1 : queued + 1);
+            return true;
+        }
+    }
+
+    private void releaseBackgroundTunnel(long networkId) {
+        synchronized (_backgroundTunnels) {
+            Integer queued = _backgroundTunnels.get(networkId);
+            if (queued == null || queued <= 1) {
+                _backgroundTunnels.remove(networkId);
+            } else {
+                _backgroundTunnels.put(networkId, queued - 1);
+            }
+        }
+    }
+
 	@DB
     protected void CheckAndCreateTunnel(VirtualMachine instance,
             Network nw, DeployDestination dest) {
@@ -298,85 +448,101 @@ public class OvsTunnelManagerImpl extends ManagerBase implements OvsTunnelManage
         if (routers.size() != 0) {
             ins.addAll(routers);
         }
-        List<Long> toHostIds = new ArrayList<Long>();
-        List<Long> fromHostIds = new ArrayList<Long>();
+        Set<Long> hostIds = new LinkedHashSet<Long>();
+        hostIds.add(hostId);
         for (VMInstanceVO v : ins) {
-            Long rh = v.getHostId();
-            if (rh == null || rh.longValue() == hostId) {
-                continue;
-            }
-            OvsTunnelNetworkVO ta =
-                    _tunnelNetworkDao.getByFromToNetwork(hostId,
-                            rh.longValue(), nw.getId());
-            // Try and create the tunnel even if a previous attempt failed
-            if (ta == null || ta.getState().equals("FAILED")) {
-                s_logger.debug("Attempting to create tunnel from:" +
-                        hostId + " to:" + rh.longValue());
-                if (ta == null) {
-                    this.createTunnelRecord(hostId, rh.longValue(),
-                            nw.getId(), key);
-                }
-                if (!toHostIds.contains(rh)) {
-                    toHostIds.add(rh);
-                }
+            if (v.getHostId() != null) {
+                hostIds.add(v.getHostId());
             }
+        }
 
-            ta = _tunnelNetworkDao.getByFromToNetwork(rh.longValue(),
-                    hostId, nw.getId());
-            // Try and create the tunnel even if a previous attempt failed            
-            if (ta == null || ta.getState().equals("FAILED")) {
-                s_logger.debug("Attempting to create tunnel from:" +
-                        rh.longValue() + " to:" + hostId);
-                if (ta == null) {
-                    this.createTunnelRecord(rh.longValue(), hostId,
-                            nw.getId(), key);
+        // Load all the tunnels of the network at once and work out which
+        // host pairs of the mesh are missing
+        Map<String, OvsTunnelNetworkVO> tunnels = new HashMap<String, OvsTunnelNetworkVO>();
+        for (OvsTunnelNetworkVO t : _tunnelNetworkDao.listByNetwork(nw.getId())) {
+            tunnels.put(getTunnelKey(t.getFrom(), t.getTo(), nw.getId()), t);
+        }
+        List<long[]> missing = new ArrayList<long[]>();
+        Set<Long> endpointHostIds = new LinkedHashSet<Long>();
+        for (Long from : hostIds) {
+            for (Long to : hostIds) {
+                if (from.equals(to)) {
+                    continue;
                 }
-                if (!fromHostIds.contains(rh)) {
-                    fromHostIds.add(rh);
+                OvsTunnelNetworkVO ta = tunnels.get(getTunnelKey(from, to, nw.getId()));
+                // Try and create the tunnel even if a previous attempt failed
+                if (ta == null || ta.getState().equals("FAILED")) {
+                    s_logger.debug("Attempting to create tunnel from:" +
+                            from + " to:" + to);
+                    missing.add(new long[] {from, to});
+                    endpointHostIds.add(from);
+                    endpointHostIds.add(to);
                 }
             }
         }
+
         //TODO: Should we propagate the exception here?
         try {
-            String myIp = getGreEndpointIP(dest.getHost(), nw);
-            if (myIp == null)
-                throw new GreTunnelException("Unable to retrieve the source " +
-                        "endpoint for the GRE tunnel." +
-                        "Failure is on host:" + dest.getHost().getId());
-            boolean noHost = true;
-            for (Long i : toHostIds) {
-                HostVO rHost = _hostDao.findById(i);
-                String otherIp = getGreEndpointIP(rHost, nw);
-                if (otherIp == null)
-                    throw new GreTunnelException("Unable to retrieve the remote " +
-                            "endpoint for the GRE tunnel." +
-                            "Failure is on host:" + rHost.getId());
-                Commands cmds = new Commands(
-                        new OvsCreateTunnelCommand(otherIp, key,
-                                Long.valueOf(hostId), i, nw.getId(), myIp));
-                s_logger.debug("Ask host " + hostId +
-                        " to create gre tunnel to " + i);
-                Answer[] answers = _agentMgr.send(hostId, cmds);
-                handleCreateTunnelAnswer(answers);
-                noHost = false;
+            Map<Long, String> endpoints = new HashMap<Long, String>();
+            for (Long i : endpointHostIds) {
+                HostVO host = _hostDao.findById(i);
+                String ip = host == null ? null : getGreEndpointIP(host, nw);
+                if (ip == null) {
+                    s_logger.warn("Unable to retrieve the endpoint for the GRE tunnel." +
+                            "Failure is on host:" + i);
+                    continue;
+                }
+                endpoints.put(i, ip);
             }
 
-            for (Long i : fromHostIds) {
-                HostVO rHost = _hostDao.findById(i);
-                String otherIp = getGreEndpointIP(rHost, nw);
-                Commands cmds = new Commands(
-                        new OvsCreateTunnelCommand(myIp, key, i,
-                                Long.valueOf(hostId),
-                                nw.getId(), otherIp));
-                s_logger.debug("Ask host " + i +
-                        " to create gre tunnel to " + hostId);
-                Answer[] answers = _agentMgr.send(i, cmds);
-                handleCreateTunnelAnswer(answers);
-                noHost = false;
+            // Tunnels from and to the destination host are needed by the VM
+            // being started and are submitted first; the rest of the mesh is
+            // repaired in the background, what does not fit in the background
+            // queue of the network is left to the next VM start
+            List<Future<?>> required = new ArrayList<Future<?>>();
+            List<long[]> backgroundPairs = new ArrayList<long[]>();
+            for (long[] pair : missing) {
+                String fromIp = endpoints.get(pair[0]);
+                String toIp = endpoints.get(pair[1]);
+                if (fromIp == null || toIp == null) {
+                    continue;
+                }
+                if (pair[0] == hostId || pair[1] == hostId) {
+                    required.add(submitCreateTunnel(new OvsCreateTunnelCommand(toIp, key,
+                            pair[0], pair[1], nw.getId(), fromIp), false));
+                } else {
+                    backgroundPairs.add(pair);
+                }
+            }
+            int background = 0;
+            for (long[] pair : backgroundPairs) {
+                if (submitCreateTunnel(new OvsCreateTunnelCommand(endpoints.get(pair[1]), key,
+                        pair[0], pair[1], nw.getId(), endpoints.get(pair[0])), true) == null) {
+                    break;
+                }
+                background++;
+            }
+            if (!backgroundPairs.isEmpty()) {
+                s_logger.debug("Creating " + background + " of " + backgroundPairs.size() + " missing tunnels of network " +
+                        nw.getId() + " in the background");
             }
+
+            long deadline = System.currentTimeMillis() + _tunnelCreateWait * 1000L;
+            for (Future<?> f : required) {
+                try {
+                    f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    s_logger.warn("Timed out waiting for the tunnels of host " + hostId +
+                            " on network " + nw.getId() + ", they will be completed in the background");
+                    break;
+                } catch (ExecutionException e) {
+                    s_logger.warn("Ovs Tunnel network created tunnel failed", e.getCause());
+                }
+            }
+
             // If no tunnels have been configured, perform the bridge setup anyway
             // This will ensure VIF rules will be triggered
-            if (noHost) {
+            if (required.isEmpty()) {
                 Commands cmds = new Commands(
                         new OvsSetupBridgeCommand(key, hostId, nw.getId()));
                 s_logger.debug("Ask host " + hostId +
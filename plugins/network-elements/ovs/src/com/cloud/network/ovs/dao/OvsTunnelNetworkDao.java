@@ -27,4 +27,5 @@ public interface OvsTunnelNetworkDao extends
 	void removeByFromNetwork(long from, long networkId);
 	void removeByFromToNetwork(long from, long to, long networkId);
 	List<OvsTunnelNetworkVO> listByToNetwork(long to, long networkId);
+	List<OvsTunnelNetworkVO> listByNetwork(long networkId);
 }
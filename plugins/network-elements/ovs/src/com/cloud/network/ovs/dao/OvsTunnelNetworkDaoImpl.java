@@ -81,6 +81,13 @@ public class OvsTunnelNetworkDaoImpl extends
         return listBy(sc);
     }
 
+    @Override
+    public List<OvsTunnelNetworkVO> listByNetwork(long networkId) {
+        SearchCriteria<OvsTunnelNetworkVO> sc = fromToNetworkSearch.create();
+        sc.setParameters("network_id", networkId);
+        return listBy(sc);
+    }
+
     @Override
     public void removeByFromToNetwork(long from, long to, long networkId) {
         SearchCriteria<OvsTunnelNetworkVO> sc = fromToNetworkSearch.create();
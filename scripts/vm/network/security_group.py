@@ -793,6 +793,12 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
         logging.debug("Rules already programmed for vm " + vm_name)
         return 'true'
 
+    if not 1 in changes[:5] and signature not in (None, '', 'null'):
+        logging.debug("Rules of vm " + vm_name + " did not change, only updating seqno to " + seqno)
+        if write_rule_log_for_vm(vmName, vm_id, vm_ip, domId, signature, seqno) == False:
+            return 'false'
+        return 'true'
+
     if changes[0] or changes[1] or changes[2] or changes[3]:
         default_network_rules(vmName, vm_id, vm_ip, vmMac, vif, brname, sec_ips)
 
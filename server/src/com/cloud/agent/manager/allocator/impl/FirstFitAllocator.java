@@ -18,9 +18,13 @@ package com.cloud.agent.manager.allocator.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -32,20 +36,28 @@ import org.springframework.stereotype.Component;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.agent.manager.allocator.impl.HostCandidates.Rejection;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.HostCapacityIndex.HostCapacity;
+import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
-import com.cloud.dc.ClusterDetailsVO;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.AllocationAlgorithm;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.deploy.HostRanker;
+import com.cloud.deploy.HostScoringContext;
 import com.cloud.host.DetailVO;
 import com.cloud.host.Host;
 import com.cloud.host.Host.Type;
 import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
 import com.cloud.offering.ServiceOffering;
-import com.cloud.org.Cluster;
 import com.cloud.resource.ResourceManager;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.GuestOSCategoryVO;
@@ -104,6 +116,19 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     protected String _allocationAlgorithm = "random";
     @Inject
     CapacityManager _capacityMgr;
+    @Inject
+    CapacityDao _capacityDao;
+    @Inject
+    HypervisorCapabilitiesDao _hypervisorCapabilitiesDao;
+    @Inject
+    HostRanker _hostRanker;
+
+    private final Map<Rejection, AtomicLong> _rejections = new EnumMap<Rejection, AtomicLong>(Rejection.class);
+    {
+        for (Rejection rejection : Rejection.values()) {
+            _rejections.put(rejection, new AtomicLong());
+        }
+    }
 
     @Override
     public List<Host> allocateTo(VirtualMachineProfile vmProfile, DeploymentPlan plan, Type type,
@@ -168,8 +193,7 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
                 }
 
                 if (hasSvcOfferingTag && hasTemplateTag) {
-                    hostsMatchingOfferingTag.retainAll(hostsMatchingTemplateTag);
-                    clusterHosts = _hostDao.listByHostTag(type, clusterId, podId, dcId, hostTagOnTemplate);
+                    hostsMatchingOfferingTag.retainAll(new HashSet<HostVO>(hostsMatchingTemplateTag));
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("Found " + hostsMatchingOfferingTag.size() + " Hosts satisfying both tags, host ids are:" + hostsMatchingOfferingTag);
                     }
@@ -187,12 +211,12 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
         // add all hosts that we are not considering to the avoid list
         List<HostVO> allhostsInCluster = _hostDao.listAllUpAndEnabledNonHAHosts(type, clusterId, podId, dcId, null);
-        allhostsInCluster.removeAll(clusterHosts);
+        allhostsInCluster.removeAll(new HashSet<HostVO>(clusterHosts));
         for (HostVO host : allhostsInCluster) {
             avoid.addHost(host.getId());
         }
 
-        return allocateTo(plan, offering, template, avoid, clusterHosts, returnUpTo, considerReservedCapacity, account);
+        return allocateTo(vmProfile, plan, offering, template, avoid, clusterHosts, returnUpTo, considerReservedCapacity, account);
     }
 
     @Override
@@ -217,32 +241,33 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         boolean hasSvcOfferingTag = hostTagOnOffering != null ? true : false;
         boolean hasTemplateTag = hostTagOnTemplate != null ? true : false;
 
+        // retain through sets, retaining a list in a list is quadratic in the number of hosts
         String haVmTag = (String)vmProfile.getParameter(VirtualMachineProfile.Param.HaTag);
         if (haVmTag != null) {
-            hosts.retainAll(_hostDao.listByHostTag(type, clusterId, podId, dcId, haVmTag));
+            hosts.retainAll(new HashSet<HostVO>(_hostDao.listByHostTag(type, clusterId, podId, dcId, haVmTag)));
         } else {
             if (hostTagOnOffering == null && hostTagOnTemplate == null) {
-                hosts.retainAll(_resourceMgr.listAllUpAndEnabledNonHAHosts(type, clusterId, podId, dcId));
+                hosts.retainAll(new HashSet<HostVO>(_resourceMgr.listAllUpAndEnabledNonHAHosts(type, clusterId, podId, dcId)));
             } else {
                 if (hasSvcOfferingTag) {
-                    hosts.retainAll(_hostDao.listByHostTag(type, clusterId, podId, dcId, hostTagOnOffering));
+                    hosts.retainAll(new HashSet<HostVO>(_hostDao.listByHostTag(type, clusterId, podId, dcId, hostTagOnOffering)));
                 }
 
                 if (hasTemplateTag) {
-                    hosts.retainAll(_hostDao.listByHostTag(type, clusterId, podId, dcId, hostTagOnTemplate));
+                    hosts.retainAll(new HashSet<HostVO>(_hostDao.listByHostTag(type, clusterId, podId, dcId, hostTagOnTemplate)));
                 }
             }
         }
 
         if (!hosts.isEmpty()) {
-            suitableHosts = allocateTo(plan, offering, template, avoid, hosts, returnUpTo, considerReservedCapacity,
+            suitableHosts = allocateTo(vmProfile, plan, offering, template, avoid, hosts, returnUpTo, considerReservedCapacity,
                     account);
         }
 
         return suitableHosts;
     }
 
-    protected List<Host> allocateTo(DeploymentPlan plan, ServiceOffering offering, VMTemplateVO template, ExcludeList avoid, List<? extends Host> hosts, int returnUpTo,
+    protected List<Host> allocateTo(VirtualMachineProfile vmProfile, DeploymentPlan plan, ServiceOffering offering, VMTemplateVO template, ExcludeList avoid, List<? extends Host> hosts, int returnUpTo,
             boolean considerReservedCapacity, Account account) {
         if (_allocationAlgorithm.equals("random") || _allocationAlgorithm.equals("userconcentratedpod_random")) {
             // Shuffle this so that we don't check the hosts in the same order.
@@ -257,7 +282,8 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
         // We will try to reorder the host lists such that we give priority to hosts that have
         // the minimums to support a VM's requirements
-        hosts = prioritizeHosts(template, hosts);
+        Map<Long, Integer> priorities = new HashMap<Long, Integer>();
+        hosts = prioritizeHosts(template, hosts, priorities);
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Found " + hosts.size() + " hosts for allocation after prioritization: " + hosts);
@@ -268,50 +294,92 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         }
 
         List<Host> suitableHosts = new ArrayList<Host>();
+        Map<Rejection, Integer> rejections = new EnumMap<Rejection, Integer>(Rejection.class);
 
+        // the avoid set is checked first, the hosts in it are not worth prefetching anything for
+        List<Host> candidateHosts = new ArrayList<Host>(hosts.size());
         for (Host host : hosts) {
-            if (suitableHosts.size() == returnUpTo) {
-                break;
-            }
             if (avoid.shouldAvoid(host)) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() + " is in avoid set, skipping this and trying other available hosts");
                 }
+                countRejection(rejections, Rejection.Avoided);
                 continue;
             }
+            candidateHosts.add(host);
+        }
 
-            //find number of guest VMs occupying capacity on this host.
-            if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId()
-                            + " already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
+        HostCandidates candidates = prefetchCandidates(candidateHosts);
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
+        List<Integer> indexesToCheck = new ArrayList<Integer>(candidates.size());
+        if (loadIndexedCapacities(candidates)) {
+            // The capacity index is local to this management server and can lag behind the
+            // others, so it only rejects hosts early; the capacity of the hosts it lets through
+            // is checked again against op_host_capacity. Hosts it does not know yet are let through.
+            for (int i = 0; i < candidates.size(); i++) {
+                if (!candidates.hasCapacity(i)) {
+                    indexesToCheck.add(i);
+                    continue;
+                }
+                Rejection rejection = candidates.check(i, offering.getCpu(), offering.getSpeed(), ram_requested, considerReservedCapacity);
+                if (rejection == null) {
+                    indexesToCheck.add(i);
+                } else {
+                    rejectHost(candidates, i, rejection, rejections, avoid);
                 }
-                continue;
             }
+        } else {
+            for (int i = 0; i < candidates.size(); i++) {
+                indexesToCheck.add(i);
+            }
+        }
+        loadCapacities(candidates, indexesToCheck);
 
-            boolean numCpusGood = host.getCpus().intValue() >= offering.getCpu();
-            boolean cpuFreqGood = host.getSpeed().intValue() >= offering.getSpeed();
-            int cpu_requested = offering.getCpu() * offering.getSpeed();
-            long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
-            boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
-                    considerReservedCapacity);
-
-            if (numCpusGood && cpuFreqGood && hostHasCapacity) {
+        // ranking needs all the suitable hosts, not the first ones found
+        boolean scored = _allocationAlgorithm.equals(AllocationAlgorithm.scored.toString());
+        List<Integer> suitableIndexes = new ArrayList<Integer>();
+        for (int i : indexesToCheck) {
+            if (!scored && suitableHosts.size() == returnUpTo) {
+                break;
+            }
+            Host host = candidates.getHost(i);
+            Rejection rejection = candidates.check(i, offering.getCpu(), offering.getSpeed(), ram_requested, considerReservedCapacity);
+            if (rejection == null) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Found a suitable host, adding to list: " + host.getId());
                 }
                 suitableHosts.add(host);
-            } else {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Not using host " + host.getId() + "; numCpusGood: " + numCpusGood + "; cpuFreqGood: " + cpuFreqGood + ", host has capacity?" + hostHasCapacity);
+                suitableIndexes.add(i);
+                continue;
+            }
+            rejectHost(candidates, i, rejection, rejections, avoid);
+        }
+
+        if (s_logger.isDebugEnabled() && !rejections.isEmpty()) {
+            s_logger.debug("Hosts rejected by filter: " + rejections);
+        }
+
+        if (scored && !suitableIndexes.isEmpty()) {
+            // the guest OS category priority stays the first sort key, the score orders the hosts
+            // of the same priority
+            Map<Integer, List<Integer>> indexesByPriority = new TreeMap<Integer, List<Integer>>();
+            for (int i : suitableIndexes) {
+                Integer priority = priorities.get(candidates.getId(i));
+                priority = priority != null ? priority : 0;
+                List<Integer> indexes = indexesByPriority.get(priority);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>();
+                    indexesByPriority.put(priority, indexes);
+                }
+                indexes.add(i);
+            }
+            HostScoringContext context = _hostRanker.createContext(vmProfile, candidates, offering.getCpu() * offering.getSpeed(), ram_requested);
+            suitableHosts = new ArrayList<Host>();
+            int rankUpTo = returnUpTo == RETURN_UPTO_ALL ? suitableIndexes.size() : returnUpTo;
+            for (List<Integer> indexes : indexesByPriority.values()) {
+                for (int i : _hostRanker.topK(candidates, indexes, context, rankUpTo - suitableHosts.size())) {
+                    suitableHosts.add(candidates.getHost(i));
                 }
-                avoid.addHost(host.getId());
             }
         }
 
@@ -322,6 +390,144 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return suitableHosts;
     }
 
+    private void rejectHost(HostCandidates candidates, int i, Rejection rejection, Map<Rejection, Integer> rejections, ExcludeList avoid) {
+        Host host = candidates.getHost(i);
+        countRejection(rejections, rejection);
+        if (rejection == Rejection.MaxGuestsReached) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId()
+                        + " already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
+            }
+            return;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Not using host " + host.getId() + "; " + rejection + " check failed, " + candidates.describeCapacity(i));
+        }
+        avoid.addHost(host.getId());
+    }
+
+    /**
+     * Loads running VM counts, guest limits and overcommit ratios of all the hosts with one query each.
+     */
+    protected HostCandidates prefetchCandidates(List<? extends Host> hosts) {
+        HostCandidates candidates = new HostCandidates(hosts);
+        if (candidates.size() == 0) {
+            return candidates;
+        }
+        List<Long> hostIds = new ArrayList<Long>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            hostIds.add(candidates.getId(i));
+        }
+
+        Map<Long, Long> runningVms = _vmInstanceDao.countRunningByHostIds(hostIds);
+        Map<String, Long> maxGuestLimits = new HashMap<String, Long>();
+        Map<Long, float[]> overcommitRatios = new HashMap<Long, float[]>();
+        for (int i = 0; i < candidates.size(); i++) {
+            Host host = candidates.getHost(i);
+            HypervisorType hypervisorType = host.getHypervisorType();
+            String hypervisorVersion = host.getHypervisorVersion();
+            String limitKey = hypervisorType + "-" + hypervisorVersion;
+            Long maxGuests = maxGuestLimits.get(limitKey);
+            if (maxGuests == null) {
+                maxGuests = _hypervisorCapabilitiesDao.getMaxGuestsLimit(hypervisorType, hypervisorVersion);
+                maxGuestLimits.put(limitKey, maxGuests);
+            }
+            Long vmCount = runningVms.get(host.getId());
+            candidates.setRunningVms(i, vmCount != null ? vmCount : 0, maxGuests);
+
+            float[] ratios = overcommitRatios.get(host.getClusterId());
+            if (ratios == null) {
+                ratios = getOvercommitRatios(host.getClusterId());
+                overcommitRatios.put(host.getClusterId(), ratios);
+            }
+            candidates.setOvercommitRatios(i, ratios[0], ratios[1]);
+        }
+        return candidates;
+    }
+
+    /**
+     * Sets the capacities of the hosts from the capacity index of the CapacityManager.
+     * @return false if the index is not ready and nothing was set
+     */
+    protected boolean loadIndexedCapacities(HostCandidates candidates) {
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+        if (capacityIndex == null || !capacityIndex.isReady()) {
+            return false;
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            HostCapacity capacity = capacityIndex.getHostCapacity(candidates.getId(i));
+            if (capacity != null) {
+                candidates.setCapacity(i, capacity.getUsedCpu(), capacity.getReservedCpu(), capacity.getTotalCpu(),
+                        capacity.getUsedMemory(), capacity.getReservedMemory(), capacity.getTotalMemory());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the capacities of the given hosts from their op_host_capacity rows, with one query per
+     * capacity type.  A host without both rows is left without capacity.
+     */
+    protected void loadCapacities(HostCandidates candidates, List<Integer> indexes) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        List<Long> hostIds = new ArrayList<Long>(indexes.size());
+        for (int i : indexes) {
+            hostIds.add(candidates.getId(i));
+        }
+        Map<Long, CapacityVO> cpuCapacities = new HashMap<Long, CapacityVO>();
+        for (CapacityVO capacity : _capacityDao.listByHostIdsType(hostIds, CapacityVO.CAPACITY_TYPE_CPU)) {
+            cpuCapacities.put(capacity.getHostOrPoolId(), capacity);
+        }
+        Map<Long, CapacityVO> memoryCapacities = new HashMap<Long, CapacityVO>();
+        for (CapacityVO capacity : _capacityDao.listByHostIdsType(hostIds, CapacityVO.CAPACITY_TYPE_MEMORY)) {
+            memoryCapacities.put(capacity.getHostOrPoolId(), capacity);
+        }
+        for (int i : indexes) {
+            CapacityVO cpu = cpuCapacities.get(candidates.getId(i));
+            CapacityVO memory = memoryCapacities.get(candidates.getId(i));
+            if (cpu != null && memory != null) {
+                candidates.setCapacity(i, cpu.getUsedCapacity(), cpu.getReservedCapacity(), cpu.getTotalCapacity(),
+                        memory.getUsedCapacity(), memory.getReservedCapacity(), memory.getTotalCapacity());
+            } else {
+                candidates.clearCapacity(i);
+            }
+        }
+    }
+
+    private float[] getOvercommitRatios(Long clusterId) {
+        float[] ratios = new float[] {1, 1};
+        if (clusterId == null) {
+            return ratios;
+        }
+        Map<String, String> details = _clusterDetailsDao.findDetails(clusterId);
+        if (details.get("cpuOvercommitRatio") != null) {
+            ratios[0] = Float.parseFloat(details.get("cpuOvercommitRatio"));
+        }
+        if (details.get("memoryOvercommitRatio") != null) {
+            ratios[1] = Float.parseFloat(details.get("memoryOvercommitRatio"));
+        }
+        return ratios;
+    }
+
+    private void countRejection(Map<Rejection, Integer> rejections, Rejection rejection) {
+        Integer count = rejections.get(rejection);
+        rejections.put(rejection, count == null ? 1 : count + 1);
+        _rejections.get(rejection).incrementAndGet();
+    }
+
+    /**
+     * @return number of hosts each filter rejected since the allocator started
+     */
+    public Map<Rejection, Long> getRejectionCounts() {
+        Map<Rejection, Long> counts = new EnumMap<Rejection, Long>(Rejection.class);
+        for (Map.Entry<Rejection, AtomicLong> entry : _rejections.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
     private List<? extends Host> reorderHostsByNumberOfVms(DeploymentPlan plan, List<? extends Host> hosts, Account account) {
         if (account == null) {
             return hosts;
@@ -359,7 +565,11 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return true;
     }
 
-    protected List<? extends Host> prioritizeHosts(VMTemplateVO template, List<? extends Host> hosts) {
+    /**
+     * @param priorities if not null, receives the guest OS category priority of the hosts returned:
+     *        0 when the host has the category of the template, 1 when it has none, 2 when it has another one
+     */
+    protected List<? extends Host> prioritizeHosts(VMTemplateVO template, List<? extends Host> hosts, Map<Long, Integer> priorities) {
         if (template == null) {
             return hosts;
         }
@@ -393,8 +603,9 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         // If a host is tagged with a different guest OS category than the template, move it to a low priority list
         List<Host> highPriorityHosts = new ArrayList<Host>();
         List<Host> lowPriorityHosts = new ArrayList<Host>();
+        Map<Long, String> hostGuestOSCategories = getHostGuestOSCategories(hostsToCheck);
         for (Host host : hostsToCheck) {
-            String hostGuestOSCategory = getHostGuestOSCategory(host);
+            String hostGuestOSCategory = hostGuestOSCategories.get(host.getId());
             if (hostGuestOSCategory == null) {
                 continue;
             } else if (templateGuestOSCategory.equals(hostGuestOSCategory)) {
@@ -418,6 +629,18 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
             }
         }
 
+        if (priorities != null) {
+            for (Host host : highPriorityHosts) {
+                priorities.put(host.getId(), 0);
+            }
+            for (Host host : prioritizedHosts) {
+                priorities.put(host.getId(), 1);
+            }
+            for (Host host : lowPriorityHosts) {
+                priorities.put(host.getId(), 2);
+            }
+        }
+
         // Merge the lists
         prioritizedHosts.addAll(0, highPriorityHosts);
         prioritizedHosts.addAll(lowPriorityHosts);
@@ -468,6 +691,41 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         }
     }
 
+    /**
+     * Same as getHostGuestOSCategory() for a list of hosts, with one query for the host details
+     * and one per distinct category.
+     */
+    protected Map<Long, String> getHostGuestOSCategories(List<? extends Host> hosts) {
+        Map<Long, String> hostCategories = new HashMap<Long, String>();
+        if (hosts.isEmpty()) {
+            return hostCategories;
+        }
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (Host host : hosts) {
+            hostIds.add(host.getId());
+        }
+
+        Map<Long, String> categoryNames = new HashMap<Long, String>();
+        for (Map.Entry<Long, String> detail : _hostDetailsDao.findDetail(hostIds, "guest.os.category.id").entrySet()) {
+            long guestOSCategoryId;
+            try {
+                guestOSCategoryId = Long.parseLong(detail.getValue());
+            } catch (Exception e) {
+                continue;
+            }
+
+            if (!categoryNames.containsKey(guestOSCategoryId)) {
+                GuestOSCategoryVO guestOSCategory = _guestOSCategoryDao.findById(guestOSCategoryId);
+                categoryNames.put(guestOSCategoryId, guestOSCategory != null ? guestOSCategory.getName() : null);
+            }
+            String categoryName = categoryNames.get(guestOSCategoryId);
+            if (categoryName != null) {
+                hostCategories.put(detail.getKey(), categoryName);
+            }
+        }
+        return hostCategories;
+    }
+
     protected String getTemplateGuestOSCategory(VMTemplateVO template) {
         long guestOSId = template.getGuestOSId();
         GuestOSVO guestOS = _guestOSDao.findById(guestOSId);
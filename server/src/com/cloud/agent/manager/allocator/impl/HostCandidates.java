@@ -0,0 +1,182 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.host.Host;
+
+/**
+ * The attributes the host allocators filter on, loaded for a whole list of candidate hosts with
+ * a few queries and kept in arrays indexed like the list.  The filters then run over the arrays
+ * in one pass instead of going to the database for every host.
+ */
+public class HostCandidates {
+    public enum Rejection {
+        Avoided, MaxGuestsReached, CpuCount, CpuSpeed, Capacity
+    }
+
+    private final List<Host> _hosts;
+    final long[] _ids;
+    final int[] _cpus;
+    final long[] _speeds;
+    final long[] _runningVms;
+    final long[] _maxGuests;
+    final float[] _cpuOvercommitRatios;
+    final float[] _memoryOvercommitRatios;
+    final boolean[] _hasCapacity;
+    final long[] _usedCpu;
+    final long[] _reservedCpu;
+    final long[] _totalCpu;
+    final long[] _usedMemory;
+    final long[] _reservedMemory;
+    final long[] _totalMemory;
+
+    public HostCandidates(List<? extends Host> hosts) {
+        _hosts = new ArrayList<Host>(hosts);
+        int size = _hosts.size();
+        _ids = new long[size];
+        _cpus = new int[size];
+        _speeds = new long[size];
+        _runningVms = new long[size];
+        _maxGuests = new long[size];
+        _cpuOvercommitRatios = new float[size];
+        _memoryOvercommitRatios = new float[size];
+        _hasCapacity = new boolean[size];
+        _usedCpu = new long[size];
+        _reservedCpu = new long[size];
+        _totalCpu = new long[size];
+        _usedMemory = new long[size];
+        _reservedMemory = new long[size];
+        _totalMemory = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            Host host = _hosts.get(i);
+            _ids[i] = host.getId();
+            _cpus[i] = host.getCpus() != null ? host.getCpus() : 0;
+            _speeds[i] = host.getSpeed() != null ? host.getSpeed() : 0;
+        }
+    }
+
+    public int size() {
+        return _hosts.size();
+    }
+
+    public Host getHost(int i) {
+        return _hosts.get(i);
+    }
+
+    public long getId(int i) {
+        return _ids[i];
+    }
+
+    public void setRunningVms(int i, long runningVms, long maxGuests) {
+        _runningVms[i] = runningVms;
+        _maxGuests[i] = maxGuests;
+    }
+
+    public void setOvercommitRatios(int i, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+        _cpuOvercommitRatios[i] = cpuOvercommitRatio;
+        _memoryOvercommitRatios[i] = memoryOvercommitRatio;
+    }
+
+    public void setCapacity(int i, long usedCpu, long reservedCpu, long totalCpu, long usedMemory, long reservedMemory, long totalMemory) {
+        _hasCapacity[i] = true;
+        _usedCpu[i] = usedCpu;
+        _reservedCpu[i] = reservedCpu;
+        _totalCpu[i] = totalCpu;
+        _usedMemory[i] = usedMemory;
+        _reservedMemory[i] = reservedMemory;
+        _totalMemory[i] = totalMemory;
+    }
+
+    public boolean hasCapacity(int i) {
+        return _hasCapacity[i];
+    }
+
+    public void clearCapacity(int i) {
+        _hasCapacity[i] = false;
+    }
+
+    /**
+     * Applies the guest limit, cpu and capacity filters to a host, in the order FirstFitAllocator
+     * always did.  The capacity is checked the way CapacityManager.checkIfHostHasCapacity() does
+     * when not allocating from the reserved capacity of the last host.
+     * @return why the host does not fit, null if it does
+     */
+    public Rejection check(int i, int cpus, int speed, long ramRequested, boolean considerReservedCapacity) {
+        if (_runningVms[i] >= _maxGuests[i]) {
+            return Rejection.MaxGuestsReached;
+        }
+        if (_cpus[i] < cpus) {
+            return Rejection.CpuCount;
+        }
+        if (_speeds[i] < speed) {
+            return Rejection.CpuSpeed;
+        }
+        if (!_hasCapacity[i]) {
+            return Rejection.Capacity;
+        }
+        long cpuRequested = cpus * speed;
+        long reservedCpu = considerReservedCapacity ? _reservedCpu[i] : 0;
+        long reservedMemory = considerReservedCapacity ? _reservedMemory[i] : 0;
+        long totalCpu = (long)(_totalCpu[i] * _cpuOvercommitRatios[i]);
+        long totalMemory = (long)(_totalMemory[i] * _memoryOvercommitRatios[i]);
+        if (reservedCpu + _usedCpu[i] + cpuRequested > totalCpu || reservedMemory + _usedMemory[i] + ramRequested > totalMemory) {
+            return Rejection.Capacity;
+        }
+        return null;
+    }
+
+    public long getRunningVms(int i) {
+        return _runningVms[i];
+    }
+
+    public long getMaxGuests(int i) {
+        return _maxGuests[i];
+    }
+
+    /**
+     * @return fraction of the cpu capacity, overcommit included, left free on the host once
+     *         the requested cpu is placed on it; 0 when the host has no capacity known
+     */
+    public double getCpuHeadroom(int i, long cpuRequested) {
+        return headroom(_hasCapacity[i], _totalCpu[i] * _cpuOvercommitRatios[i], _usedCpu[i] + _reservedCpu[i] + cpuRequested);
+    }
+
+    /**
+     * @return fraction of the memory, overcommit included, left free on the host once the
+     *         requested memory is placed on it; 0 when the host has no capacity known
+     */
+    public double getMemoryHeadroom(int i, long ramRequested) {
+        return headroom(_hasCapacity[i], _totalMemory[i] * _memoryOvercommitRatios[i], _usedMemory[i] + _reservedMemory[i] + ramRequested);
+    }
+
+    private static double headroom(boolean hasCapacity, double total, long allocated) {
+        if (!hasCapacity || total <= 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, (total - allocated) / total));
+    }
+
+    public String describeCapacity(int i) {
+        return "used cpu: " + _usedCpu[i] + ", reserved cpu: " + _reservedCpu[i] + ", total cpu: " + _totalCpu[i] + " (x" + _cpuOvercommitRatios[i]
+                + "), used mem: " + _usedMemory[i] + ", reserved mem: " + _reservedMemory[i] + ", total mem: " + _totalMemory[i] + " (x"
+                + _memoryOvercommitRatios[i] + ")";
+    }
+}
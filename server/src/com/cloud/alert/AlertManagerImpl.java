@@ -19,6 +19,8 @@ package com.cloud.alert;
 import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -105,7 +107,7 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
     @Inject private DataCenterIpAddressDao _privateIPAddressDao;
     @Inject private PrimaryDataStoreDao _storagePoolDao;
     @Inject private ConfigurationDao _configDao;
-    @Inject private ResourceManager _resourceMgr;
+    @Inject protected ResourceManager _resourceMgr;
     @Inject private ConfigurationManager _configMgr;
     @Inject
     protected ConfigDepot _configDepot;
@@ -119,6 +121,10 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
     private double _directNetworkPublicIpCapacityThreshold = 0.75;
     private double _localStorageCapacityThreshold = 0.75;
     Map<Short,Double> _capacityTypeThresholdMap = new HashMap<Short, Double>();
+    // the capacity checker verifies hosts in turns, by id, starting after this one
+    private long _lastVerifiedHostId = 0;
+    private long _hostsVerified = 0;
+    private long _hostsDrifted = 0;
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -313,75 +319,141 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
             // Calculate CPU and RAM capacities
             // 	get all hosts...even if they are not in 'UP' state
             List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
-            for (HostVO host : hosts) {
-                _capacityMgr.updateCapacityForHost(host);
-            }
+            _capacityMgr.updateCapacityForHosts(hosts);
 
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Done executing cpu/ram capacity update");
-                s_logger.debug("Executing storage capacity update");
             }
-            // Calculate storage pool capacity
-            List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-            for (StoragePoolVO pool : storagePools) {
-                long disk = _capacityMgr.getAllocatedPoolCapacity(pool, null);
-                if (pool.isShared()){
-                    _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, disk);
-                }else {
-                    _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_LOCAL_STORAGE, disk);
-                }
+            recalculateStorageAndNetworkCapacity();
+
+        } catch (Throwable t) {
+            s_logger.error("Caught exception in recalculating capacity", t);
+        }
+    }
+
+    /**
+     * What the capacity checker runs instead of recalculateCapacity().  Host cpu and memory capacity is
+     * kept up to date as VMs change state, so only a slice of the hosts is verified against their VMs
+     * every run; hosts whose capacity drifted are recalibrated and reported.  The capacity reserved for
+     * stopped VMs expires with time rather than with a state change, so it is recomputed on the other
+     * hosts every run as well.
+     */
+    @DB
+    public void verifyCapacity() {
+        try {
+            List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
+            List<HostVO> slice = getHostsToVerify(hosts, CapacityCheckHostsPerRun.value());
+
+            List<HostVO> others = new ArrayList<HostVO>(hosts);
+            others.removeAll(slice);
+            _capacityMgr.updateReservedCapacityForHosts(others);
+
+            int drifted = _capacityMgr.updateCapacityForHosts(slice);
+            _hostsVerified += slice.size();
+            _hostsDrifted += drifted;
+            if (drifted > 0) {
+                s_logger.warn("Capacity of " + drifted + " out of " + slice.size() + " verified hosts had drifted from their VMs and was recalibrated, "
+                        + _hostsDrifted + " out of " + _hostsVerified + " verified so far");
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Verified cpu/ram capacity of " + slice.size() + " out of " + hosts.size() + " hosts, no drift");
             }
 
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Done executing storage capacity update");
-                s_logger.debug("Executing capacity updates for public ip and Vlans");
+            recalculateStorageAndNetworkCapacity();
+        } catch (Throwable t) {
+            s_logger.error("Caught exception in verifying capacity", t);
+        }
+    }
+
+    protected List<HostVO> getHostsToVerify(List<HostVO> hosts, int hostsPerRun) {
+        if (hostsPerRun <= 0 || hosts.size() <= hostsPerRun) {
+            return hosts;
+        }
+        List<HostVO> sorted = new ArrayList<HostVO>(hosts);
+        Collections.sort(sorted, new Comparator<HostVO>() {
+            @Override
+            public int compare(HostVO host1, HostVO host2) {
+                return host1.getId() < host2.getId() ? -1 : (host1.getId() == host2.getId() ? 0 : 1);
             }
+        });
+
+        List<HostVO> slice = new ArrayList<HostVO>(hostsPerRun);
+        for (HostVO host : sorted) {
+            if (slice.size() < hostsPerRun && host.getId() > _lastVerifiedHostId) {
+                slice.add(host);
+            }
+        }
+        // wrap around to the first hosts
+        for (HostVO host : sorted) {
+            if (slice.size() >= hostsPerRun || host.getId() > _lastVerifiedHostId) {
+                break;
+            }
+            slice.add(host);
+        }
+        _lastVerifiedHostId = slice.get(slice.size() - 1).getId();
+        return slice;
+    }
 
-            List<DataCenterVO> datacenters = _dcDao.listAll();
-            for (DataCenterVO datacenter : datacenters) {
-                long dcId = datacenter.getId();
+    private void recalculateStorageAndNetworkCapacity() {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Executing storage capacity update");
+        }
+        // Calculate storage pool capacity
+        List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
+        for (StoragePoolVO pool : storagePools) {
+            long disk = _capacityMgr.getAllocatedPoolCapacity(pool, null);
+            if (pool.isShared()){
+                _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, disk);
+            }else {
+                _storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_LOCAL_STORAGE, disk);
+            }
+        }
 
-                //NOTE
-                //What happens if we have multiple vlans? Dashboard currently shows stats
-                //with no filter based on a vlan
-                //ideal way would be to remove out the vlan param, and filter only on dcId
-                //implementing the same
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Done executing storage capacity update");
+            s_logger.debug("Executing capacity updates for public ip and Vlans");
+        }
 
-                // Calculate new Public IP capacity for Virtual Network
-                if (datacenter.getNetworkType() == NetworkType.Advanced){
-                    createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_VIRTUAL_NETWORK_PUBLIC_IP, datacenter.getAllocationState());
-                }
+        List<DataCenterVO> datacenters = _dcDao.listAll();
+        for (DataCenterVO datacenter : datacenters) {
+            long dcId = datacenter.getId();
 
-                // Calculate new Public IP capacity for Direct Attached Network
-                createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_DIRECT_ATTACHED_PUBLIC_IP, datacenter.getAllocationState());
+            //NOTE
+            //What happens if we have multiple vlans? Dashboard currently shows stats
+            //with no filter based on a vlan
+            //ideal way would be to remove out the vlan param, and filter only on dcId
+            //implementing the same
 
-                if (datacenter.getNetworkType() == NetworkType.Advanced){
-                    //Calculate VLAN's capacity
-                    createOrUpdateVlanCapacity(dcId, datacenter.getAllocationState());
-                }
+            // Calculate new Public IP capacity for Virtual Network
+            if (datacenter.getNetworkType() == NetworkType.Advanced){
+                createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_VIRTUAL_NETWORK_PUBLIC_IP, datacenter.getAllocationState());
             }
 
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Done capacity updates for public ip and Vlans");
-                s_logger.debug("Executing capacity updates for private ip");
+            // Calculate new Public IP capacity for Direct Attached Network
+            createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_DIRECT_ATTACHED_PUBLIC_IP, datacenter.getAllocationState());
+
+            if (datacenter.getNetworkType() == NetworkType.Advanced){
+                //Calculate VLAN's capacity
+                createOrUpdateVlanCapacity(dcId, datacenter.getAllocationState());
             }
+        }
 
-            // Calculate new Private IP capacity
-            List<HostPodVO> pods = _podDao.listAll();
-            for (HostPodVO pod : pods) {
-                long podId = pod.getId();
-                long dcId = pod.getDataCenterId();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Done capacity updates for public ip and Vlans");
+            s_logger.debug("Executing capacity updates for private ip");
+        }
 
-                createOrUpdateIpCapacity(dcId, podId, CapacityVO.CAPACITY_TYPE_PRIVATE_IP, _configMgr.findPodAllocationState(pod));
-            }
+        // Calculate new Private IP capacity
+        List<HostPodVO> pods = _podDao.listAll();
+        for (HostPodVO pod : pods) {
+            long podId = pod.getId();
+            long dcId = pod.getDataCenterId();
 
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Done executing capacity updates for private ip");
-                s_logger.debug("Done recalculating system capacity");
-            }
+            createOrUpdateIpCapacity(dcId, podId, CapacityVO.CAPACITY_TYPE_PRIVATE_IP, _configMgr.findPodAllocationState(pod));
+        }
 
-        } catch (Throwable t) {
-            s_logger.error("Caught exception in recalculating capacity", t);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Done executing capacity updates for private ip");
+            s_logger.debug("Done recalculating system capacity");
         }
     }
 
@@ -390,12 +462,9 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
     private void createOrUpdateVlanCapacity(long dcId, AllocationState capacityState) {
 
         SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
-
-        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
-        capacitySC = _capacityDao.createSearchCriteria();
         capacitySC.addAnd("dataCenterId", SearchCriteria.Op.EQ, dcId);
         capacitySC.addAnd("capacityType", SearchCriteria.Op.EQ, Capacity.CAPACITY_TYPE_VLAN);
-        capacities = _capacityDao.search(capacitySC, null);
+        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
 
         int totalVlans = _dcDao.countZoneVlans(dcId, false);
         int allocatedVlans = _dcDao.countZoneVlans(dcId, true);
@@ -419,16 +488,13 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     public void createOrUpdateIpCapacity(Long dcId, Long podId, short capacityType, AllocationState capacityState){
         SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
-
-        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
-        capacitySC = _capacityDao.createSearchCriteria();
         capacitySC.addAnd("podId", SearchCriteria.Op.EQ, podId);
         capacitySC.addAnd("dataCenterId", SearchCriteria.Op.EQ, dcId);
         capacitySC.addAnd("capacityType", SearchCriteria.Op.EQ, capacityType);
 
         int totalIPs;
         int allocatedIPs;
-        capacities = _capacityDao.search(capacitySC, null);
+        List<CapacityVO> capacities = _capacityDao.search(capacitySC, null);
         if (capacityType == CapacityVO.CAPACITY_TYPE_PRIVATE_IP){
             totalIPs = _privateIPAddressDao.countIPs(podId, dcId, false);
             allocatedIPs = _privateIPAddressDao.countIPs(podId, dcId, true);
@@ -471,7 +537,7 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     public void checkForAlerts(){
 
-        recalculateCapacity();
+        verifyCapacity();
 
         // abort if we can't possibly send an alert...
         if (_emailAlert == null) {
@@ -857,6 +923,7 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {CPUCapacityThreshold, MemoryCapacityThreshold, StorageAllocatedCapacityThreshold, StorageCapacityThreshold};
+        return new ConfigKey<?>[] {CPUCapacityThreshold, MemoryCapacityThreshold, StorageAllocatedCapacityThreshold, StorageCapacityThreshold,
+            CapacityCheckHostsPerRun};
     }
 }
@@ -18,6 +18,7 @@ package com.cloud.api;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -31,6 +32,7 @@ import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
 import org.apache.cloudstack.api.ApiCommandJobType;
 import org.apache.cloudstack.api.ApiConstants.HostDetails;
 import org.apache.cloudstack.api.ApiConstants.VMDetails;
+import org.apache.cloudstack.api.InternalIdentity;
 import org.apache.cloudstack.api.response.AccountResponse;
 import org.apache.cloudstack.api.response.AsyncJobResponse;
 import org.apache.cloudstack.api.response.DiskOfferingResponse;
@@ -248,6 +250,7 @@ import com.cloud.storage.dao.VMTemplateDao;
 import com.cloud.storage.dao.VMTemplateDetailsDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.storage.snapshot.SnapshotPolicy;
+import com.cloud.tags.dao.ResourceTagDao;
 import com.cloud.template.TemplateManager;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.Account;
@@ -268,6 +271,7 @@ import com.cloud.uservm.UserVm;
 import com.cloud.utils.EnumUtils;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.vm.ConsoleProxyVO;
 import com.cloud.vm.DomainRouterVO;
 import com.cloud.vm.InstanceGroup;
@@ -366,6 +370,7 @@ public class ApiDBUtils {
     static AutoScaleVmGroupDao _asVmGroupDao;
     static CounterDao _counterDao;
     static ResourceTagJoinDao _tagJoinDao;
+    static ResourceTagDao _resourceTagDao;
     static EventJoinDao _eventJoinDao;
     static InstanceGroupJoinDao _vmGroupJoinDao;
     static UserAccountJoinDao _userAccountJoinDao;
@@ -478,6 +483,7 @@ public class ApiDBUtils {
     @Inject private AutoScaleVmGroupDao asVmGroupDao;
     @Inject private CounterDao counterDao;
     @Inject private ResourceTagJoinDao tagJoinDao;
+    @Inject private ResourceTagDao resourceTagDao;
     @Inject private EventJoinDao eventJoinDao;
     @Inject private InstanceGroupJoinDao vmGroupJoinDao;
     @Inject private UserAccountJoinDao userAccountJoinDao;
@@ -588,6 +594,7 @@ public class ApiDBUtils {
         _counterDao = counterDao;
         _asVmGroupPolicyMapDao = asVmGroupPolicyMapDao;
         _tagJoinDao = tagJoinDao;
+        _resourceTagDao = resourceTagDao;
         _vmGroupJoinDao = vmGroupJoinDao;
         _eventJoinDao = eventJoinDao;
         _userAccountJoinDao = userAccountJoinDao;
@@ -768,7 +775,8 @@ public class ApiDBUtils {
     // ///////////////////////////////////////////////////////////
 
     public static Account findAccountById(Long accountId) {
-        return _accountDao.findByIdIncludingRemoved(accountId);
+        AccountVO account = prefetched(AccountVO.class, accountId);
+        return account != null ? account : _accountDao.findByIdIncludingRemoved(accountId);
     }
 
     public static Account findAccountByIdIncludingRemoved(Long accountId) {
@@ -797,7 +805,8 @@ public class ApiDBUtils {
     }
 
     public static DomainVO findDomainById(Long domainId) {
-        return _domainDao.findByIdIncludingRemoved(domainId);
+        DomainVO domain = prefetched(DomainVO.class, domainId);
+        return domain != null ? domain : _domainDao.findByIdIncludingRemoved(domainId);
     }
 
     public static DomainVO findDomainByIdIncludingRemoved(Long domainId) {
@@ -905,11 +914,13 @@ public class ApiDBUtils {
     }
 
     public static UserVm findUserVmById(Long vmId) {
-        return _userVmDao.findById(vmId);
+        UserVmVO vm = prefetched(UserVmVO.class, vmId);
+        return vm != null ? vm : _userVmDao.findById(vmId);
     }
 
     public static VlanVO findVlanById(long vlanDbId) {
-        return _vlanDao.findById(vlanDbId);
+        VlanVO vlan = prefetched(VlanVO.class, vlanDbId);
+        return vlan != null ? vlan : _vlanDao.findById(vlanDbId);
     }
 
     public static VolumeVO findVolumeById(Long volumeId) {
@@ -929,7 +940,8 @@ public class ApiDBUtils {
     }
 
     public static DataCenterVO findZoneById(Long zoneId) {
-        return _zoneDao.findById(zoneId);
+        DataCenterVO zone = prefetched(DataCenterVO.class, zoneId);
+        return zone != null ? zone : _zoneDao.findById(zoneId);
     }
 
     public static Long getAccountIdForVlan(long vlanDbId) {
@@ -990,7 +1002,8 @@ public class ApiDBUtils {
     }
 
     public static NetworkOfferingVO findNetworkOfferingById(long networkOfferingId) {
-        return _networkOfferingDao.findByIdIncludingRemoved(networkOfferingId);
+        NetworkOfferingVO offering = prefetched(NetworkOfferingVO.class, networkOfferingId);
+        return offering != null ? offering : _networkOfferingDao.findByIdIncludingRemoved(networkOfferingId);
     }
 
     public static List<? extends Vlan> listVlanByNetworkId(long networkId) {
@@ -998,7 +1011,8 @@ public class ApiDBUtils {
     }
 
     public static PhysicalNetworkVO findPhysicalNetworkById(long id) {
-        return _physicalNetworkDao.findById(id);
+        PhysicalNetworkVO pnet = prefetched(PhysicalNetworkVO.class, id);
+        return pnet != null ? pnet : _physicalNetworkDao.findById(id);
     }
 
     public static PhysicalNetworkTrafficTypeVO findPhysicalNetworkTrafficTypeById(long id) {
@@ -1006,7 +1020,8 @@ public class ApiDBUtils {
     }
 
     public static NetworkVO findNetworkById(long id) {
-        return _networkDao.findById(id);
+        NetworkVO network = prefetched(NetworkVO.class, id);
+        return network != null ? network : _networkDao.findById(id);
     }
 
     public static Map<Service, Map<Capability, String>> getNetworkCapabilities(long networkId, long zoneId) {
@@ -1018,7 +1033,7 @@ public class ApiDBUtils {
     }
 
     public static Long getVlanNetworkId(long vlanId) {
-        VlanVO vlan = _vlanDao.findById(vlanId);
+        VlanVO vlan = findVlanById(vlanId);
         if (vlan != null) {
             return vlan.getNetworkId();
         } else {
@@ -1159,6 +1174,13 @@ public class ApiDBUtils {
     }
 
     public static List<? extends ResourceTag> listByResourceTypeAndId(TaggedResourceType type, long resourceId) {
+        EntityPrefetchContext context = EntityPrefetchContext.current();
+        if (context != null) {
+            List<ResourceTag> tags = context.getTags(type, resourceId);
+            if (tags != null) {
+                return tags;
+            }
+        }
         return _taggedResourceService.listByResourceTypeAndId(type, resourceId);
     }
     public static List<ConditionVO> getAutoScalePolicyConditions(long policyId)
@@ -1251,7 +1273,8 @@ public class ApiDBUtils {
     }
 
     public static VpcVO findVpcById(long vpcId){
-        return _vpcDao.findById(vpcId);
+        VpcVO vpc = prefetched(VpcVO.class, vpcId);
+        return vpc != null ? vpc : _vpcDao.findById(vpcId);
     }
 
     public static SnapshotPolicy findSnapshotPolicyById(long policyId){
@@ -1444,6 +1467,10 @@ public class ApiDBUtils {
     }
 
     public static ResourceTagJoinVO findResourceTagViewById(Long tagId){
+        ResourceTagJoinVO prefetchedTag = prefetched(ResourceTagJoinVO.class, tagId);
+        if (prefetchedTag != null) {
+            return prefetchedTag;
+        }
         List<ResourceTagJoinVO> tags = _tagJoinDao.searchByIds(tagId);
         if ( tags != null && tags.size() > 0 ){
             return tags.get(0);
@@ -1688,4 +1715,128 @@ public class ApiDBUtils {
     public static boolean isAdmin(Account account) {
         return _accountService.isAdmin(account.getType());
     }
+
+    ///////////////////////////////////////////////////////////////////////
+    //  Batch prefetch for list responses                                //
+    ///////////////////////////////////////////////////////////////////////
+
+    private static <T> T prefetched(Class<T> type, Object id) {
+        EntityPrefetchContext context = EntityPrefetchContext.current();
+        return context != null ? context.get(type, id) : null;
+    }
+
+    private static <V extends InternalIdentity> List<V> prefetch(EntityPrefetchContext context, Class<V> type, GenericDao<V, Long> dao, Set<Long> ids,
+            boolean includingRemoved) {
+        ids.remove(null);
+        List<V> found = includingRemoved ? dao.listByIdsIncludingRemoved(ids) : dao.listByIds(ids);
+        for (V vo : found) {
+            context.put(type, vo.getId(), vo);
+        }
+        return found;
+    }
+
+    private static void prefetchTags(EntityPrefetchContext context, TaggedResourceType type, List<Long> resourceIds) {
+        context.putTags(type, resourceIds, _resourceTagDao.listBy(resourceIds, type));
+    }
+
+    /**
+     * Loads everything createNetworkResponse() looks up for the given networks
+     * into the context, one query per referenced table.
+     */
+    public static void prefetchNetworkResponseData(EntityPrefetchContext context, List<? extends Network> networks) {
+        if (networks.isEmpty()) {
+            return;
+        }
+        Set<Long> zoneIds = new HashSet<Long>();
+        Set<Long> physicalNetworkIds = new HashSet<Long>();
+        Set<Long> offeringIds = new HashSet<Long>();
+        Set<Long> networkIds = new HashSet<Long>();
+        Set<Long> accountIds = new HashSet<Long>();
+        Set<Long> domainIds = new HashSet<Long>();
+        Set<Long> vpcIds = new HashSet<Long>();
+        List<Long> ids = new ArrayList<Long>(networks.size());
+        for (Network network : networks) {
+            ids.add(network.getId());
+            if (network instanceof NetworkVO) {
+                context.put(NetworkVO.class, network.getId(), (NetworkVO)network);
+            }
+            zoneIds.add(network.getDataCenterId());
+            physicalNetworkIds.add(network.getPhysicalNetworkId());
+            offeringIds.add(network.getNetworkOfferingId());
+            networkIds.add(network.getRelated());
+            accountIds.add(network.getAccountId());
+            domainIds.add(network.getDomainId());
+            vpcIds.add(network.getVpcId());
+        }
+        // related usually points back at the network itself
+        networkIds.removeAll(ids);
+
+        prefetch(context, DataCenterVO.class, _zoneDao, zoneIds, false);
+        prefetch(context, PhysicalNetworkVO.class, _physicalNetworkDao, physicalNetworkIds, false);
+        prefetch(context, NetworkOfferingVO.class, _networkOfferingDao, offeringIds, true);
+        prefetch(context, NetworkVO.class, _networkDao, networkIds, false);
+        prefetch(context, AccountVO.class, _accountDao, accountIds, true);
+        prefetch(context, DomainVO.class, _domainDao, domainIds, true);
+        prefetch(context, VpcVO.class, _vpcDao, vpcIds, false);
+        prefetchTags(context, TaggedResourceType.Network, ids);
+    }
+
+    /**
+     * Loads everything createIPAddressResponse() looks up for the given
+     * addresses into the context, one query per referenced table.
+     */
+    public static void prefetchIpAddressResponseData(EntityPrefetchContext context, List<? extends IpAddress> ipAddresses) {
+        if (ipAddresses.isEmpty()) {
+            return;
+        }
+        Set<Long> vlanIds = new HashSet<Long>();
+        Set<Long> zoneIds = new HashSet<Long>();
+        Set<Long> accountIds = new HashSet<Long>();
+        Set<Long> domainIds = new HashSet<Long>();
+        Set<Long> vmIds = new HashSet<Long>();
+        Set<Long> networkIds = new HashSet<Long>();
+        Set<Long> vpcIds = new HashSet<Long>();
+        Set<Long> physicalNetworkIds = new HashSet<Long>();
+        List<Long> ids = new ArrayList<Long>(ipAddresses.size());
+        for (IpAddress ip : ipAddresses) {
+            ids.add(ip.getId());
+            vlanIds.add(ip.getVlanId());
+            zoneIds.add(ip.getDataCenterId());
+            if (ip.getAllocatedToAccountId() != null) {
+                accountIds.add(ip.getAccountId());
+                domainIds.add(ip.getDomainId());
+            }
+            vmIds.add(ip.getAssociatedWithVmId());
+            networkIds.add(ip.getAssociatedWithNetworkId());
+            vpcIds.add(ip.getVpcId());
+            physicalNetworkIds.add(ip.getPhysicalNetworkId());
+        }
+
+        for (VlanVO vlan : prefetch(context, VlanVO.class, _vlanDao, vlanIds, false)) {
+            networkIds.add(vlan.getNetworkId());
+        }
+        prefetch(context, DataCenterVO.class, _zoneDao, zoneIds, false);
+        prefetch(context, AccountVO.class, _accountDao, accountIds, true);
+        prefetch(context, DomainVO.class, _domainDao, domainIds, true);
+        prefetch(context, UserVmVO.class, _userVmDao, vmIds, false);
+        prefetch(context, NetworkVO.class, _networkDao, networkIds, false);
+        prefetch(context, VpcVO.class, _vpcDao, vpcIds, false);
+        prefetch(context, PhysicalNetworkVO.class, _physicalNetworkDao, physicalNetworkIds, false);
+        prefetchTags(context, TaggedResourceType.PublicIpAddress, ids);
+    }
+
+    /**
+     * Loads the tag views referenced by a page of join view rows with one
+     * query, instead of one findResourceTagViewById() per row.
+     */
+    public static void prefetchResourceTagViews(EntityPrefetchContext context, Set<Long> tagIds) {
+        tagIds.remove(null);
+        tagIds.remove(0L);
+        if (tagIds.isEmpty()) {
+            return;
+        }
+        for (ResourceTagJoinVO tag : _tagJoinDao.searchByIds(tagIds.toArray(new Long[tagIds.size()]))) {
+            context.put(ResourceTagJoinVO.class, tag.getId(), tag);
+        }
+    }
 }
@@ -0,0 +1,302 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.api.CachedResponse;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+import com.cloud.configuration.Config;
+import com.cloud.user.Account;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Short-lived cache of serialized responses for read-only API commands annotated
+ * with @CachedResponse.
+ *
+ * Entries live in a size bounded LRU map and are keyed on the API name, the response
+ * type, the calling account (domain, role and id) and the sorted request parameters.
+ * Invalidation is per command: every matching action event bumps the generation of
+ * the commands listening on it, which makes all their existing entries stale at once.
+ */
+public class ApiResponseCache extends ManagerBase implements ApiResponseCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(ApiResponseCache.class);
+
+    // request parameters that differ between otherwise identical requests
+    private static final String[] s_volatileParams = {"sessionkey", "signature", "signatureversion", "apikey", "expires", "_", "httpmethod", "response"};
+
+    @Inject
+    ConfigurationDao _configDao;
+
+    private boolean _enabled = true;
+    private int _maxSize = 1000;
+    private Map<String, CacheEntry> _entries;
+
+    private final Map<String, CommandStats> _stats = new ConcurrentHashMap<String, CommandStats>();
+    private final Map<String, String[]> _invalidators = new ConcurrentHashMap<String, String[]>();
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _enabled = Boolean.parseBoolean(_configDao.getValue(Config.ApiResponseCacheEnabled.key()));
+        _maxSize = NumbersUtil.parseInt(_configDao.getValue(Config.ApiResponseCacheSize.key()), 1000);
+        _entries = createLruMap(_maxSize);
+
+        try {
+            JmxUtil.registerMBean("ApiServer", "ApiResponseCache", this);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register ApiResponseCache MBean", e);
+        }
+        return true;
+    }
+
+    private static Map<String, CacheEntry> createLruMap(final int maxSize) {
+        return new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the caching policy of the command, null if its responses must never be cached
+     */
+    public CachedResponse getPolicy(Class<?> cmdClass) {
+        if (!_enabled || _entries == null) {
+            return null;
+        }
+        return cmdClass.getAnnotation(CachedResponse.class);
+    }
+
+    public String buildKey(String apiName, Map<String, String> params, String responseType, Account caller) {
+        List<String> names = new ArrayList<String>(params.keySet());
+        Collections.sort(names);
+
+        StringBuilder sb = new StringBuilder(apiName);
+        sb.append('|').append(responseType);
+        sb.append('|').append(caller.getDomainId()).append('/').append(caller.getType()).append('/').append(caller.getId());
+        for (String name : names) {
+            if (isVolatileParam(name)) {
+                continue;
+            }
+            sb.append('|').append(name.toLowerCase()).append('=').append(params.get(name));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isVolatileParam(String name) {
+        if (name.startsWith("ctx")) {
+            return true;
+        }
+        for (String volatileParam : s_volatileParams) {
+            if (volatileParam.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String get(String apiName, String key) {
+        CommandStats stats = getStats(apiName);
+        CacheEntry entry;
+        synchronized (_entries) {
+            entry = _entries.get(key);
+            if (entry != null && (entry.expiresAt < System.currentTimeMillis() || entry.generation != stats.generation.get())) {
+                _entries.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            stats.misses.incrementAndGet();
+            return null;
+        }
+        stats.hits.incrementAndGet();
+        return entry.response;
+    }
+
+    /**
+     * Has to be called before the command is dispatched; the response it produces is stored with the
+     * returned generation, so an invalidation that happens while the command runs makes it stale
+     *
+     * @return the current generation of the cached responses of the command
+     */
+    public long getGeneration(String apiName, CachedResponse policy) {
+        if (policy.invalidateOn().length > 0 && !_invalidators.containsKey(apiName)) {
+            _invalidators.put(apiName, policy.invalidateOn());
+        }
+        return getStats(apiName).generation.get();
+    }
+
+    public void put(String apiName, String key, String response, CachedResponse policy, long generation) {
+        if (response == null || policy.ttl() <= 0) {
+            return;
+        }
+
+        CacheEntry entry = new CacheEntry(response, System.currentTimeMillis() + policy.ttl() * 1000L, generation);
+        synchronized (_entries) {
+            _entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Invalidates the cached responses of every command that listens on the given event type
+     */
+    public void onActionEvent(String eventType) {
+        if (eventType == null || _invalidators.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<String, String[]> invalidator : _invalidators.entrySet()) {
+            for (String prefix : invalidator.getValue()) {
+                if (eventType.startsWith(prefix)) {
+                    getStats(invalidator.getKey()).generation.incrementAndGet();
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Invalidated cached responses of " + invalidator.getKey() + " on event " + eventType);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private CommandStats getStats(String apiName) {
+        CommandStats stats = _stats.get(apiName);
+        if (stats == null) {
+            synchronized (_stats) {
+                stats = _stats.get(apiName);
+                if (stats == null) {
+                    stats = new CommandStats();
+                    _stats.put(apiName, stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    @Override
+    public int getSize() {
+        if (_entries == null) {
+            return 0;
+        }
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _maxSize;
+    }
+
+    @Override
+    public long getHits() {
+        long hits = 0;
+        for (CommandStats stats : _stats.values()) {
+            hits += stats.hits.get();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getMisses() {
+        long misses = 0;
+        for (CommandStats stats : _stats.values()) {
+            misses += stats.misses.get();
+        }
+        return misses;
+    }
+
+    @Override
+    public Map<String, Double> getHitRates() {
+        Map<String, Double> rates = new HashMap<String, Double>();
+        for (Map.Entry<String, CommandStats> entry : _stats.entrySet()) {
+            long hits = entry.getValue().hits.get();
+            long total = hits + entry.getValue().misses.get();
+            rates.put(entry.getKey(), total == 0 ? 0d : (double)hits / total);
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getHitCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, CommandStats> entry : _stats.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().hits.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getMissCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, CommandStats> entry : _stats.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().misses.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public void clear() {
+        if (_entries == null) {
+            return;
+        }
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    private static class CacheEntry {
+        final String response;
+        final long expiresAt;
+        final long generation;
+
+        CacheEntry(String response, long expiresAt, long generation) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.generation = generation;
+        }
+    }
+
+    private static class CommandStats {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong generation = new AtomicLong();
+    }
+}
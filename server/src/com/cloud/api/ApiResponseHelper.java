@@ -713,6 +713,21 @@ public class ApiResponseHelper implements ResponseGenerator {
         return ipResponse;
     }
 
+    @Override
+    public List<IPAddressResponse> createIPAddressResponses(List<? extends IpAddress> ipAddresses) {
+        List<IPAddressResponse> responses = new ArrayList<IPAddressResponse>(ipAddresses.size());
+        EntityPrefetchContext context = EntityPrefetchContext.open();
+        try {
+            ApiDBUtils.prefetchIpAddressResponseData(context, ipAddresses);
+            for (IpAddress ipAddress : ipAddresses) {
+                responses.add(createIPAddressResponse(ipAddress));
+            }
+        } finally {
+            context.close();
+        }
+        return responses;
+    }
+
     @Override
     public LoadBalancerResponse createLoadBalancerResponse(LoadBalancer loadBalancer) {
         LoadBalancerResponse lbResponse = new LoadBalancerResponse();
@@ -1914,6 +1929,10 @@ public class ApiResponseHelper implements ResponseGenerator {
             _accountMgr.checkAccess(caller, null, true, jobOwner);
         }
 
+        if (cmd.getTimeout() > 0) {
+            // long-poll, return as soon as the job completes instead of having the client poll again
+            return createAsyncJobResponse(_jobMgr.waitForJobCompletion(cmd.getId(), cmd.getTimeout() * 1000L));
+        }
         return createAsyncJobResponse(_jobMgr.queryJob(cmd.getId(), true));
     }
 
@@ -2309,6 +2328,21 @@ public class ApiResponseHelper implements ResponseGenerator {
         return response;
     }
 
+    @Override
+    public List<NetworkResponse> createNetworkResponses(List<? extends Network> networks) {
+        List<NetworkResponse> responses = new ArrayList<NetworkResponse>(networks.size());
+        EntityPrefetchContext context = EntityPrefetchContext.open();
+        try {
+            ApiDBUtils.prefetchNetworkResponseData(context, networks);
+            for (Network network : networks) {
+                responses.add(createNetworkResponse(network));
+            }
+        } finally {
+            context.close();
+        }
+        return responses;
+    }
+
     @Override
     public Long getSecurityGroupId(String groupName, long accountId) {
         SecurityGroup sg = ApiDBUtils.getSecurityGroup(groupName, accountId);
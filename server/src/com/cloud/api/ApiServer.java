@@ -84,12 +84,12 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import org.apache.cloudstack.acl.APIChecker;
-import org.apache.cloudstack.api.APICommand;
 import org.apache.cloudstack.api.ApiErrorCode;
 import org.apache.cloudstack.api.BaseAsyncCmd;
 import org.apache.cloudstack.api.BaseAsyncCreateCmd;
 import org.apache.cloudstack.api.BaseCmd;
 import org.apache.cloudstack.api.BaseListCmd;
+import org.apache.cloudstack.api.CachedResponse;
 import org.apache.cloudstack.api.ResponseObject;
 import org.apache.cloudstack.api.ServerApiException;
 import org.apache.cloudstack.api.command.admin.host.ListHostsCmd;
@@ -109,6 +109,7 @@ import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
 import org.apache.cloudstack.api.command.user.vmgroup.ListVMGroupsCmd;
 import org.apache.cloudstack.api.command.user.volume.ListVolumesCmd;
 import org.apache.cloudstack.api.command.user.zone.ListZonesByCmd;
+import org.apache.cloudstack.api.index.ApiCommandIndex;
 import org.apache.cloudstack.api.response.AsyncJobResponse;
 import org.apache.cloudstack.api.response.CreateCmdResponse;
 import org.apache.cloudstack.api.response.ExceptionResponse;
@@ -161,6 +162,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     public static boolean encodeApiResponse = false;
     public static String jsonContentType = "text/javascript";
     @Inject ApiDispatcher _dispatcher;
+    @Inject ApiResponseCache _responseCache;
 
     @Inject private AccountManager _accountMgr;
     @Inject private DomainManager _domainMgr;
@@ -222,12 +224,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
         }
 
+        ApiCommandIndex commandIndex = ApiCommandIndex.getInstance();
         for(Class<?> cmdClass: cmdClasses) {
-            APICommand at = cmdClass.getAnnotation(APICommand.class);
-            if (at == null) {
+            String apiName = commandIndex.getApiName(cmdClass);
+            if (apiName == null) {
                 throw new CloudRuntimeException(String.format("%s is claimed as a API command, but it doesn't have @APICommand annotation", cmdClass.getName()));
             }
-            String apiName = at.name();
             if (_apiNameCmdClassMap.containsKey(apiName)) {
                 s_logger.error("API Cmd class " + cmdClass.getName() + " has non-unique apiname" + apiName);
                 continue;
@@ -366,8 +368,23 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                     cmdObj.setResponseType(responseType);
                     cmdObj.setHttpMethod(paramMap.get("httpmethod").toString());
 
-                    // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
+                    // Read-only commands may be answered from the response cache, scoped to the caller
+                    CachedResponse cachePolicy = (cmdObj instanceof BaseAsyncCmd) ? null : _responseCache.getPolicy(cmdClass);
+                    String cacheKey = null;
+                    if (cachePolicy != null) {
+                        cacheKey = _responseCache.buildKey(command[0], paramMap, responseType, CallContext.current().getCallingAccount());
+                        response = _responseCache.get(command[0], cacheKey);
+                    }
+
+                    if (response == null) {
+                        // taken before dispatch so that changes made while the command runs are not masked
+                        long cacheGeneration = (cachePolicy != null) ? _responseCache.getGeneration(command[0], cachePolicy) : 0;
+                        // This is where the command is either serialized, or directly dispatched
+                        response = queueCommand(cmdObj, paramMap);
+                        if (cachePolicy != null) {
+                            _responseCache.put(command[0], cacheKey, response, cachePolicy, cacheGeneration);
+                        }
+                    }
                     buildAuditTrail(auditTrailSb, command[0], response);
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
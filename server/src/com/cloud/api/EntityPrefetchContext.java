@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.server.ResourceTag;
+import com.cloud.server.ResourceTag.TaggedResourceType;
+
+/**
+ * Request scoped identity map used while assembling list responses.  The
+ * batch response methods load the entities referenced by a whole page of
+ * results with a handful of IN queries and park them here, so the per-item
+ * lookups done through ApiDBUtils do not each go to the database.
+ *
+ * The context is bound to the current thread and reference counted, so
+ * nested open()/close() pairs share the same map and only the outermost
+ * close() discards it.
+ */
+public class EntityPrefetchContext {
+    private static final ThreadLocal<EntityPrefetchContext> s_current = new ThreadLocal<EntityPrefetchContext>();
+
+    private final Map<Class<?>, Map<Object, Object>> _entities = new HashMap<Class<?>, Map<Object, Object>>();
+    private final Map<TaggedResourceType, Map<Long, List<ResourceTag>>> _tags = new HashMap<TaggedResourceType, Map<Long, List<ResourceTag>>>();
+    private int _refCount;
+    private long _hits;
+
+    private EntityPrefetchContext() {
+    }
+
+    public static EntityPrefetchContext open() {
+        EntityPrefetchContext context = s_current.get();
+        if (context == null) {
+            context = new EntityPrefetchContext();
+            s_current.set(context);
+        }
+        context._refCount++;
+        return context;
+    }
+
+    public static EntityPrefetchContext current() {
+        return s_current.get();
+    }
+
+    public void close() {
+        if (--_refCount <= 0) {
+            s_current.remove();
+        }
+    }
+
+    public <T> void put(Class<T> type, Object id, T entity) {
+        if (id == null || entity == null) {
+            return;
+        }
+        Map<Object, Object> entities = _entities.get(type);
+        if (entities == null) {
+            entities = new HashMap<Object, Object>();
+            _entities.put(type, entities);
+        }
+        entities.put(id, entity);
+    }
+
+    public <T> T get(Class<T> type, Object id) {
+        Map<Object, Object> entities = _entities.get(type);
+        if (entities == null || id == null) {
+            return null;
+        }
+        Object entity = entities.get(id);
+        if (entity != null) {
+            _hits++;
+        }
+        return type.cast(entity);
+    }
+
+    /**
+     * Records the tags of a batch of resources.  Every id passed in gets an
+     * entry, so a resource without tags is known to have none.
+     */
+    public void putTags(TaggedResourceType type, List<Long> resourceIds, List<? extends ResourceTag> tags) {
+        Map<Long, List<ResourceTag>> byResource = _tags.get(type);
+        if (byResource == null) {
+            byResource = new HashMap<Long, List<ResourceTag>>();
+            _tags.put(type, byResource);
+        }
+        for (Long resourceId : resourceIds) {
+            byResource.put(resourceId, new ArrayList<ResourceTag>());
+        }
+        for (ResourceTag tag : tags) {
+            List<ResourceTag> list = byResource.get(tag.getResourceId());
+            if (list != null) {
+                list.add(tag);
+            }
+        }
+    }
+
+    /**
+     * @return the prefetched tags of the resource, or null if the resource was not prefetched
+     */
+    public List<ResourceTag> getTags(TaggedResourceType type, long resourceId) {
+        Map<Long, List<ResourceTag>> byResource = _tags.get(type);
+        if (byResource == null) {
+            return null;
+        }
+        List<ResourceTag> tags = byResource.get(resourceId);
+        if (tags != null) {
+            _hits++;
+        }
+        return tags;
+    }
+
+    public long getHits() {
+        return _hits;
+    }
+}
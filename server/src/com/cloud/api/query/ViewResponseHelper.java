@@ -17,6 +17,7 @@
 package com.cloud.api.query;
 
 import com.cloud.api.ApiDBUtils;
+import com.cloud.api.EntityPrefetchContext;
 import com.cloud.api.query.vo.AccountJoinVO;
 import com.cloud.api.query.vo.AffinityGroupJoinVO;
 import com.cloud.api.query.vo.AsyncJobJoinVO;
@@ -71,8 +72,10 @@ import com.cloud.api.query.vo.TemplateJoinVO;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Helper class to generate response from DB view VO objects.
@@ -260,17 +263,29 @@ public class ViewResponseHelper {
 
     public static List<VolumeResponse> createVolumeResponse(VolumeJoinVO... volumes) {
         Hashtable<Long, VolumeResponse> vrDataList = new Hashtable<Long, VolumeResponse>();
-        for (VolumeJoinVO vr : volumes) {
-            VolumeResponse vrData = vrDataList.get(vr.getId());
-            if ( vrData == null ){
-                // first time encountering this volume
-                vrData = ApiDBUtils.newVolumeResponse(vr);
+        EntityPrefetchContext context = EntityPrefetchContext.open();
+        try {
+            // load the tags of the whole page at once
+            Set<Long> tagIds = new HashSet<Long>();
+            for (VolumeJoinVO vr : volumes) {
+                tagIds.add(vr.getTagId());
             }
-            else{
-                // update tags
-                vrData = ApiDBUtils.fillVolumeDetails(vrData, vr);
+            ApiDBUtils.prefetchResourceTagViews(context, tagIds);
+
+            for (VolumeJoinVO vr : volumes) {
+                VolumeResponse vrData = vrDataList.get(vr.getId());
+                if ( vrData == null ){
+                    // first time encountering this volume
+                    vrData = ApiDBUtils.newVolumeResponse(vr);
+                }
+                else{
+                    // update tags
+                    vrData = ApiDBUtils.fillVolumeDetails(vrData, vr);
+                }
+                vrDataList.put(vr.getId(), vrData);
             }
-            vrDataList.put(vr.getId(), vrData);
+        } finally {
+            context.close();
         }
         return new ArrayList<VolumeResponse>(vrDataList.values());
     }
@@ -20,8 +20,11 @@ import java.net.URI;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -35,6 +38,7 @@ import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.agent.AgentManager;
@@ -70,6 +74,7 @@ import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
 import com.cloud.storage.VMTemplateStoragePoolVO;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.Volume;
 import com.cloud.storage.VolumeVO;
 import com.cloud.storage.dao.VMTemplatePoolDao;
 import com.cloud.storage.dao.VolumeDao;
@@ -136,6 +141,12 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     ClusterDetailsDao _clusterDetailsDao;
     private int _vmCapacityReleaseInterval;
     private ScheduledExecutorService _executor;
+
+    // allocated capacity of the storage pools, computed from all their volumes, snapshots and templates
+    private final ConcurrentHashMap<Long, AllocatedPoolCapacity> _allocatedPoolCapacity = new ConcurrentHashMap<Long, AllocatedPoolCapacity>();
+    private final ConcurrentHashMap<Long, Long> _allocatedPoolCapacityInvalidated = new ConcurrentHashMap<Long, Long>();
+    private final AtomicLong _allocatedPoolCapacitySeq = new AtomicLong();
+    HostCapacityIndex _capacityIndex;
     long _extraBytesPerVolume = 0;
 
     @Inject
@@ -152,6 +163,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         _agentManager.registerForHostEvents(new StorageCapacityListener(_capacityDao, _storageMgr), true, false, false);
         _agentManager.registerForHostEvents(new ComputeCapacityListener(_capacityDao, this), true, false, false);
 
+        if (CapacityIndexEnabled.value()) {
+            _capacityIndex = new HostCapacityIndex();
+        }
         return true;
     }
 
@@ -159,18 +173,157 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        _resourceMgr.registerResourceEvent(ResourceListener.EVENT_DELETE_HOST_AFTER, this);
+        if (_capacityIndex != null) {
+            int interval = CapacityIndexReconcileInterval.value();
+            _executor.scheduleWithFixedDelay(new CapacityIndexReconcileTask(), 0, interval, TimeUnit.SECONDS);
+        }
+        Volume.State.getStateMachine().registerListener(new PoolCapacityVolumeListener());
         return true;
     }
 
+    private static class AllocatedPoolCapacity {
+        final long _bytes;
+        final long _computedAt;
+        final long _seq;
+
+        AllocatedPoolCapacity(long bytes, long computedAt, long seq) {
+            _bytes = bytes;
+            _computedAt = computedAt;
+            _seq = seq;
+        }
+    }
+
+    /**
+     * Drops the allocated capacity of the pool a volume is on whenever the volume is created, resized,
+     * migrated or destroyed, the next allocation recomputes it.
+     */
+    protected class PoolCapacityVolumeListener implements StateListener<Volume.State, Volume.Event, Volume> {
+        @Override
+        public boolean preStateTransitionEvent(Volume.State oldState, Volume.Event event, Volume.State newState, Volume vo, boolean status, Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(Volume.State oldState, Volume.Event event, Volume.State newState, Volume vo, boolean status, Object opaque) {
+            if (vo.getPoolId() != null) {
+                invalidateAllocatedPoolCapacity(vo.getPoolId());
+            }
+            return true;
+        }
+    }
+
+    private void invalidateAllocatedPoolCapacity(long poolId) {
+        _allocatedPoolCapacityInvalidated.put(poolId, _allocatedPoolCapacitySeq.incrementAndGet());
+        _allocatedPoolCapacity.remove(poolId);
+    }
+
+    @Override
+    public HostCapacityIndex getHostCapacityIndex() {
+        return _capacityIndex;
+    }
+
+    private void updateCapacityIndex(CapacityVO... capacities) {
+        if (_capacityIndex == null) {
+            return;
+        }
+        for (CapacityVO capacity : capacities) {
+            _capacityIndex.update(capacity);
+        }
+    }
+
+    /**
+     * Reloads the host cpu and memory capacities and the cluster details from the database,
+     * so that changes done by other management servers or directly in the database end up in the index.
+     */
+    protected class CapacityIndexReconcileTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                long sequence = _capacityIndex.beginReconcile();
+
+                Map<Long, Map<String, String>> clusterDetails = new HashMap<Long, Map<String, String>>();
+                for (ClusterVO cluster : _clusterDao.listAll()) {
+                    clusterDetails.put(cluster.getId(), _clusterDetailsDao.findDetails(cluster.getId()));
+                }
+                SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+                sc.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+                List<CapacityVO> capacities = _capacityDao.search(sc, null);
+
+                int drifted = _capacityIndex.reconcile(sequence, capacities, clusterDetails);
+                if (drifted > 0) {
+                    s_logger.info("Corrected " + drifted + " host entries of the capacity index from the database");
+                } else if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Capacity index is in sync with the database for " + _capacityIndex.getHostCount() + " hosts");
+                }
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reconcile the capacity index with the database", e);
+            }
+        }
+    }
+
     @Override
     public boolean stop() {
         _executor.shutdownNow();
         return true;
     }
 
+    /**
+     * Change to the used and reserved capacity of a host, applied to freshly read rows.
+     */
+    protected interface CapacityChange {
+        void apply(CapacityVO capacityCpu, CapacityVO capacityMem);
+    }
+
+    /**
+     * Applies the change to the cpu and memory rows of the host.  The rows are written with a
+     * conditional update that only succeeds if nobody changed them since they were read, and the
+     * change is recomputed on the new values when it does not.  If that keeps failing the rows are
+     * locked, like it was always done before.
+     */
+    protected void updateHostCapacity(long hostId, CapacityVO capacityCpu, CapacityVO capacityMem, CapacityChange change) {
+        long cpuCapacityId = capacityCpu.getId();
+        long memCapacityId = capacityMem.getId();
+
+        int retries = CapacityUpdateRetries.value();
+        for (int attempt = 0; attempt < retries && capacityCpu != null && capacityMem != null; attempt++) {
+            long usedCpu = capacityCpu.getUsedCapacity();
+            long reservedCpu = capacityCpu.getReservedCapacity();
+            long usedMem = capacityMem.getUsedCapacity();
+            long reservedMem = capacityMem.getReservedCapacity();
+            change.apply(capacityCpu, capacityMem);
+
+            if (_capacityDao.updateHostCapacityIfUnchanged(capacityCpu, usedCpu, reservedCpu, capacityMem, usedMem, reservedMem)) {
+                updateCapacityIndex(capacityCpu, capacityMem);
+                return;
+            }
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Capacity of host " + hostId + " was changed concurrently, retrying the update (attempt " + (attempt + 1) + " of " + retries + ")");
+            }
+            capacityCpu = _capacityDao.findById(cpuCapacityId);
+            capacityMem = _capacityDao.findById(memCapacityId);
+        }
+
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        try {
+            capacityCpu = _capacityDao.lockRow(cpuCapacityId, true);
+            capacityMem = _capacityDao.lockRow(memCapacityId, true);
+            change.apply(capacityCpu, capacityMem);
+            _capacityDao.update(capacityCpu.getId(), capacityCpu);
+            _capacityDao.update(capacityMem.getId(), capacityMem);
+            txn.commit();
+        } catch (RuntimeException e) {
+            txn.rollback();
+            throw e;
+        }
+        updateCapacityIndex(capacityCpu, capacityMem);
+    }
+
     @DB
     @Override
-    public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId) {
+    public boolean releaseVmCapacity(VirtualMachine vm, final boolean moveFromReserved, final boolean moveToReservered, final Long hostId) {
         ServiceOfferingVO svo = _offeringsDao.findById(vm.getServiceOfferingId());
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO capacityMemory = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
@@ -183,85 +336,80 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             return false;
         }
 
-        Transaction txn = Transaction.currentTxn();
         try {
-            txn.start();
-
-            capacityCpu = _capacityDao.lockRow(capacityCpu.getId(), true);
-            capacityMemory = _capacityDao.lockRow(capacityMemory.getId(), true);
-
-            long usedCpu = capacityCpu.getUsedCapacity();
-            long usedMem = capacityMemory.getUsedCapacity();
-            long reservedCpu = capacityCpu.getReservedCapacity();
-            long reservedMem = capacityMemory.getReservedCapacity();
-            long actualTotalCpu = capacityCpu.getTotalCapacity();
-            float cpuOvercommitRatio =Float.parseFloat(_clusterDetailsDao.findDetail(clusterId,"cpuOvercommitRatio").getValue());
-            float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId,"memoryOvercommitRatio").getValue());
-            int vmCPU = svo.getCpu() * svo.getSpeed();
-            long vmMem = svo.getRamSize() * 1024L * 1024L;
-            long actualTotalMem = capacityMemory.getTotalCapacity();
-            long totalMem = (long) (actualTotalMem * memoryOvercommitRatio);
-            long totalCpu = (long) (actualTotalCpu * cpuOvercommitRatio);
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
-                s_logger.debug("Hosts's actual total RAM: " + actualTotalMem + " and RAM after applying overprovisioning: " + totalMem);
-            }
+            final float cpuOvercommitRatio =Float.parseFloat(_clusterDetailsDao.findDetail(clusterId,"cpuOvercommitRatio").getValue());
+            final float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId,"memoryOvercommitRatio").getValue());
+            final int vmCPU = svo.getCpu() * svo.getSpeed();
+            final long vmMem = svo.getRamSize() * 1024L * 1024L;
+
+            updateHostCapacity(hostId, capacityCpu, capacityMemory, new CapacityChange() {
+                @Override
+                public void apply(CapacityVO capacityCpu, CapacityVO capacityMemory) {
+                    long usedCpu = capacityCpu.getUsedCapacity();
+                    long usedMem = capacityMemory.getUsedCapacity();
+                    long reservedCpu = capacityCpu.getReservedCapacity();
+                    long reservedMem = capacityMemory.getReservedCapacity();
+                    long actualTotalCpu = capacityCpu.getTotalCapacity();
+                    long actualTotalMem = capacityMemory.getTotalCapacity();
+                    long totalMem = (long) (actualTotalMem * memoryOvercommitRatio);
+                    long totalCpu = (long) (actualTotalCpu * cpuOvercommitRatio);
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
+                        s_logger.debug("Hosts's actual total RAM: " + actualTotalMem + " and RAM after applying overprovisioning: " + totalMem);
+                    }
 
 
-            if (!moveFromReserved) {
-                /* move resource from used */
-                if (usedCpu >= vmCPU) {
-                    capacityCpu.setUsedCapacity(usedCpu - vmCPU);
-                }
-                if (usedMem >= vmMem) {
-                    capacityMemory.setUsedCapacity(usedMem - vmMem);
-                }
-
-                if (moveToReservered) {
-                    if (reservedCpu + vmCPU <= totalCpu) {
-                        capacityCpu.setReservedCapacity(reservedCpu + vmCPU);
+                    if (!moveFromReserved) {
+                        /* move resource from used */
+                        if (usedCpu >= vmCPU) {
+                            capacityCpu.setUsedCapacity(usedCpu - vmCPU);
+                        }
+                        if (usedMem >= vmMem) {
+                            capacityMemory.setUsedCapacity(usedMem - vmMem);
+                        }
+
+                        if (moveToReservered) {
+                            if (reservedCpu + vmCPU <= totalCpu) {
+                                capacityCpu.setReservedCapacity(reservedCpu + vmCPU);
+                            }
+                            if (reservedMem + vmMem <= totalMem) {
+                                capacityMemory.setReservedCapacity(reservedMem + vmMem);
+                            }
+                        }
+                    } else {
+                        if (reservedCpu >= vmCPU) {
+                            capacityCpu.setReservedCapacity(reservedCpu - vmCPU);
+                        }
+                        if (reservedMem >= vmMem) {
+                            capacityMemory.setReservedCapacity(reservedMem - vmMem);
+                        }
                     }
-                    if (reservedMem + vmMem <= totalMem) {
-                        capacityMemory.setReservedCapacity(reservedMem + vmMem);
-                    }
-                }
-            } else {
-                if (reservedCpu >= vmCPU) {
-                    capacityCpu.setReservedCapacity(reservedCpu - vmCPU);
-                }
-                if (reservedMem >= vmMem) {
-                    capacityMemory.setReservedCapacity(reservedMem - vmMem);
-                }
-            }
 
-            s_logger.debug("release cpu from host: " + hostId + ", old used: " + usedCpu + ",reserved: " + reservedCpu + ", actual total: "
-                    + actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used: " + capacityCpu.getUsedCapacity() + ",reserved:"
-                    + capacityCpu.getReservedCapacity() + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
+                    s_logger.debug("release cpu from host: " + hostId + ", old used: " + usedCpu + ",reserved: " + reservedCpu + ", actual total: "
+                            + actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used: " + capacityCpu.getUsedCapacity() + ",reserved:"
+                            + capacityCpu.getReservedCapacity() + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
 
-            s_logger.debug("release mem from host: " + hostId + ", old used: " + usedMem + ",reserved: " + reservedMem + ", total: " + totalMem
-                    + "; new used: " + capacityMemory.getUsedCapacity() + ",reserved:" + capacityMemory.getReservedCapacity()
-                    + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
-
-            _capacityDao.update(capacityCpu.getId(), capacityCpu);
-            _capacityDao.update(capacityMemory.getId(), capacityMemory);
-            txn.commit();
+                    s_logger.debug("release mem from host: " + hostId + ", old used: " + usedMem + ",reserved: " + reservedMem + ", total: " + totalMem
+                            + "; new used: " + capacityMemory.getUsedCapacity() + ",reserved:" + capacityMemory.getReservedCapacity()
+                            + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
+                }
+            });
             return true;
         } catch (Exception e) {
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
-            txn.rollback();
             return false;
         }
     }
 
     @DB
     @Override
-    public void allocateVmCapacity(VirtualMachine vm, boolean fromLastHost) {
+    public void allocateVmCapacity(VirtualMachine vm, final boolean fromLastHost) {
 
-        long hostId = vm.getHostId();
+        final long hostId = vm.getHostId();
         HostVO host = _hostDao.findById(hostId);
         long clusterId = host.getClusterId();
-        float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
-        float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio").getValue());
+        final float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
+        final float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio").getValue());
 
         ServiceOfferingVO svo = _offeringsDao.findById(vm.getServiceOfferingId());
 
@@ -272,87 +420,124 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             return;
         }
 
-        int cpu = svo.getCpu() * svo.getSpeed();
-        long ram = svo.getRamSize() * 1024L * 1024L;
-
-
-        Transaction txn = Transaction.currentTxn();
+        final int cpu = svo.getCpu() * svo.getSpeed();
+        final long ram = svo.getRamSize() * 1024L * 1024L;
 
         try {
-            txn.start();
-            capacityCpu = _capacityDao.lockRow(capacityCpu.getId(), true);
-            capacityMem = _capacityDao.lockRow(capacityMem.getId(), true);
-
-            long usedCpu = capacityCpu.getUsedCapacity();
-            long usedMem = capacityMem.getUsedCapacity();
-            long reservedCpu = capacityCpu.getReservedCapacity();
-            long reservedMem = capacityMem.getReservedCapacity();
-            long actualTotalCpu = capacityCpu.getTotalCapacity();
-            long actualTotalMem = capacityMem.getTotalCapacity();
-            long totalCpu = (long) (actualTotalCpu * cpuOvercommitRatio);
-            long totalMem = (long) (actualTotalMem * memoryOvercommitRatio);
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
-            }
-
-            long freeCpu = totalCpu - (reservedCpu + usedCpu);
-            long freeMem = totalMem - (reservedMem + usedMem);
+            updateHostCapacity(hostId, capacityCpu, capacityMem, new CapacityChange() {
+                @Override
+                public void apply(CapacityVO capacityCpu, CapacityVO capacityMem) {
+                    long usedCpu = capacityCpu.getUsedCapacity();
+                    long usedMem = capacityMem.getUsedCapacity();
+                    long reservedCpu = capacityCpu.getReservedCapacity();
+                    long reservedMem = capacityMem.getReservedCapacity();
+                    long actualTotalCpu = capacityCpu.getTotalCapacity();
+                    long actualTotalMem = capacityMem.getTotalCapacity();
+                    long totalCpu = (long) (actualTotalCpu * cpuOvercommitRatio);
+                    long totalMem = (long) (actualTotalMem * memoryOvercommitRatio);
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
+                    }
 
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("We are allocating VM, increasing the used capacity of this host:" + hostId);
-                s_logger.debug("Current Used CPU: " + usedCpu + " , Free CPU:" + freeCpu + " ,Requested CPU: " + cpu);
-                s_logger.debug("Current Used RAM: " + usedMem + " , Free RAM:" + freeMem + " ,Requested RAM: " + ram);
-            }
-            capacityCpu.setUsedCapacity(usedCpu + cpu);
-            capacityMem.setUsedCapacity(usedMem + ram);
+                    long freeCpu = totalCpu - (reservedCpu + usedCpu);
+                    long freeMem = totalMem - (reservedMem + usedMem);
 
-            if (fromLastHost) {
-                /* alloc from reserved */
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("We are allocating VM to the last host again, so adjusting the reserved capacity if it is not less than required");
-                    s_logger.debug("Reserved CPU: " + reservedCpu + " , Requested CPU: " + cpu);
-                    s_logger.debug("Reserved RAM: " + reservedMem + " , Requested RAM: " + ram);
-                }
-                if (reservedCpu >= cpu && reservedMem >= ram) {
-                    capacityCpu.setReservedCapacity(reservedCpu - cpu);
-                    capacityMem.setReservedCapacity(reservedMem - ram);
-                }
-            } else {
-                /* alloc from free resource */
-                if (!((reservedCpu + usedCpu + cpu <= totalCpu) && (reservedMem + usedMem + ram <= totalMem))) {
                     if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Host doesnt seem to have enough free capacity, but increasing the used capacity anyways, since the VM is already starting on this host ");
+                        s_logger.debug("We are allocating VM, increasing the used capacity of this host:" + hostId);
+                        s_logger.debug("Current Used CPU: " + usedCpu + " , Free CPU:" + freeCpu + " ,Requested CPU: " + cpu);
+                        s_logger.debug("Current Used RAM: " + usedMem + " , Free RAM:" + freeMem + " ,Requested RAM: " + ram);
+                    }
+                    capacityCpu.setUsedCapacity(usedCpu + cpu);
+                    capacityMem.setUsedCapacity(usedMem + ram);
+
+                    if (fromLastHost) {
+                        /* alloc from reserved */
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("We are allocating VM to the last host again, so adjusting the reserved capacity if it is not less than required");
+                            s_logger.debug("Reserved CPU: " + reservedCpu + " , Requested CPU: " + cpu);
+                            s_logger.debug("Reserved RAM: " + reservedMem + " , Requested RAM: " + ram);
+                        }
+                        if (reservedCpu >= cpu && reservedMem >= ram) {
+                            capacityCpu.setReservedCapacity(reservedCpu - cpu);
+                            capacityMem.setReservedCapacity(reservedMem - ram);
+                        }
+                    } else {
+                        /* alloc from free resource */
+                        if (!((reservedCpu + usedCpu + cpu <= totalCpu) && (reservedMem + usedMem + ram <= totalMem))) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Host doesnt seem to have enough free capacity, but increasing the used capacity anyways, since the VM is already starting on this host ");
+                            }
+                        }
                     }
+
+                    s_logger.debug("CPU STATS after allocation: for host: " + hostId + ", old used: " + usedCpu + ", old reserved: " + reservedCpu
+                            + ", actual total: " + actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used:"
+                            + capacityCpu.getUsedCapacity() + ", reserved:" + capacityCpu.getReservedCapacity() + "; requested cpu:" + cpu
+                            + ",alloc_from_last:" + fromLastHost);
+
+                    s_logger.debug("RAM STATS after allocation: for host: " + hostId + ", old used: " + usedMem + ", old reserved: " + reservedMem
+                            + ", total: " + totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " + capacityMem.getReservedCapacity()
+                            + "; requested mem: " + ram + ",alloc_from_last:" + fromLastHost);
                 }
-            }
+            });
+        } catch (Exception e) {
+            return;
+        }
+    }
 
-            s_logger.debug("CPU STATS after allocation: for host: " + hostId + ", old used: " + usedCpu + ", old reserved: " + reservedCpu
-                    + ", actual total: " + actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used:"
-                    + capacityCpu.getUsedCapacity() + ", reserved:" + capacityCpu.getReservedCapacity() + "; requested cpu:" + cpu
-                    + ",alloc_from_last:" + fromLastHost);
+    @DB
+    @Override
+    public boolean reserveHostCapacity(long hostId, long cpu, long ram) {
+        HostVO host = _hostDao.findById(hostId);
+        if (host == null || host.getClusterId() == null) {
+            return false;
+        }
+        float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(host.getClusterId(), "cpuOvercommitRatio").getValue());
+        float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(host.getClusterId(), "memoryOvercommitRatio").getValue());
 
-            s_logger.debug("RAM STATS after allocation: for host: " + hostId + ", old used: " + usedMem + ", old reserved: " + reservedMem
-                    + ", total: " + totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " + capacityMem.getReservedCapacity()
-                    + "; requested mem: " + ram + ",alloc_from_last:" + fromLastHost);
+        boolean reserved = _capacityDao.reserveHostCapacityIfAvailable(hostId, cpu, cpuOvercommitRatio, ram, memoryOvercommitRatio);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug((reserved ? "Reserved" : "Not enough capacity to reserve") + " cpu: " + cpu + ", ram: " + ram + " on host: " + hostId);
+        }
+        if (reserved) {
+            updateCapacityIndex(_capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU), _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY));
+        }
+        return reserved;
+    }
 
-            _capacityDao.update(capacityCpu.getId(), capacityCpu);
-            _capacityDao.update(capacityMem.getId(), capacityMem);
-            txn.commit();
-        } catch (Exception e) {
-            txn.rollback();
+    @DB
+    @Override
+    public void releaseHostCapacity(long hostId, final long cpu, final long ram) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+        if (capacityCpu == null || capacityMem == null) {
             return;
         }
+
+        updateHostCapacity(hostId, capacityCpu, capacityMem, new CapacityChange() {
+            @Override
+            public void apply(CapacityVO capacityCpu, CapacityVO capacityMem) {
+                capacityCpu.setReservedCapacity(Math.max(0, capacityCpu.getReservedCapacity() - cpu));
+                capacityMem.setReservedCapacity(Math.max(0, capacityMem.getReservedCapacity() - ram));
+            }
+        });
     }
 
     @Override
     public boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
-        boolean hasCapacity = false;
-
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Checking if host: " + hostId + " has enough capacity for requested CPU: " + cpu + " and requested RAM: " + ram
                     + " , cpuOverprovisioningFactor: " + cpuOvercommitRatio);
         }
 
+        // the index is local to this management server and may lag behind the database, so it can
+        // only rule a host out early; a host it lets through is checked against op_host_capacity
+        HostCapacityIndex.HostCapacity indexed = _capacityIndex != null && _capacityIndex.isReady() ? _capacityIndex.getHostCapacity(hostId) : null;
+        if (indexed != null && !checkIfHostHasCapacity(hostId, cpu, ram, checkFromReservedCapacity, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity,
+                indexed.getUsedCpu(), indexed.getReservedCpu(), indexed.getTotalCpu(), indexed.getUsedMemory(), indexed.getReservedMemory(), indexed.getTotalMemory())) {
+            return false;
+        }
+
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
 
@@ -371,12 +556,14 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             return false;
         }
 
-        long usedCpu = capacityCpu.getUsedCapacity();
-        long usedMem = capacityMem.getUsedCapacity();
-        long reservedCpu = capacityCpu.getReservedCapacity();
-        long reservedMem = capacityMem.getReservedCapacity();
-        long actualTotalCpu = capacityCpu.getTotalCapacity();
-        long actualTotalMem = capacityMem.getTotalCapacity();
+        return checkIfHostHasCapacity(hostId, cpu, ram, checkFromReservedCapacity, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity,
+                capacityCpu.getUsedCapacity(), capacityCpu.getReservedCapacity(), capacityCpu.getTotalCapacity(),
+                capacityMem.getUsedCapacity(), capacityMem.getReservedCapacity(), capacityMem.getTotalCapacity());
+    }
+
+    private boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOvercommitRatio, float memoryOvercommitRatio,
+            boolean considerReservedCapacity, long usedCpu, long reservedCpu, long actualTotalCpu, long usedMem, long reservedMem, long actualTotalMem) {
+        boolean hasCapacity = false;
         long totalCpu = (long) (actualTotalCpu * cpuOvercommitRatio );
         long totalMem = (long) (actualTotalMem * memoryOvercommitRatio);
         if (s_logger.isDebugEnabled()) {
@@ -480,7 +667,26 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation){
+        int ttl = StorageAllocatedCapacityCacheTtl.value();
+        if (ttl <= 0) {
+            return computeAllocatedPoolCapacity(pool, templateForVmCreation);
+        }
 
+        long now = System.currentTimeMillis();
+        AllocatedPoolCapacity cached = _allocatedPoolCapacity.get(pool.getId());
+        Long invalidated = _allocatedPoolCapacityInvalidated.get(pool.getId());
+        if (cached != null && now - cached._computedAt < ttl * 1000L && (invalidated == null || cached._seq >= invalidated)) {
+            return cached._bytes;
+        }
+
+        // a volume changing state while this is computed invalidates the result
+        long seq = _allocatedPoolCapacitySeq.get();
+        long bytes = computeAllocatedPoolCapacity(pool, templateForVmCreation);
+        _allocatedPoolCapacity.put(pool.getId(), new AllocatedPoolCapacity(bytes, now, seq));
+        return bytes;
+    }
+
+    private long computeAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation) {
         // Get size for all the non-destroyed volumes
         Pair<Long, Long> sizes = _volumeDao.getNonDestroyedCountAndTotalByPool(pool.getId());
         long totalAllocatedSize = sizes.second() + sizes.first() * _extraBytesPerVolume;
@@ -513,13 +719,40 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @DB
     @Override
 	public void updateCapacityForHost(Host host){
-    	// prepare the service offerings
+        updateCapacityForHost(host, getOfferingsMap());
+    }
+
+    @Override
+    public int updateCapacityForHosts(List<? extends Host> hosts) {
+        // the offerings are loaded once for all the hosts
+        Map<Long, ServiceOfferingVO> offeringsMap = getOfferingsMap();
+        int drifted = 0;
+        for (Host host : hosts) {
+            try {
+                if (updateCapacityForHost(host, offeringsMap)) {
+                    drifted++;
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to update the cpu/memory capacity of host " + host.getId(), e);
+            }
+        }
+        return drifted;
+    }
+
+    private Map<Long, ServiceOfferingVO> getOfferingsMap() {
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
         for (ServiceOfferingVO offering : offerings) {
             offeringsMap.put(offering.getId(), offering);
         }
+        return offeringsMap;
+    }
 
+    /**
+     * @return true if the capacity rows of the host did not match its VMs, or did not exist
+     */
+    @DB
+    protected boolean updateCapacityForHost(Host host, Map<Long, ServiceOfferingVO> offeringsMap) {
         long usedCpu = 0;
         long usedMemory = 0;
         long reservedMemory = 0;
@@ -550,44 +783,16 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             usedCpu += ((so.getCpu() * so.getSpeed())/cpuOvercommitRatio)*clusterCpuOvercommitRatio;
         }
 
-        List<VMInstanceVO> vmsByLastHostId = _vmDao.listByLastHostId(host.getId());
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Found " + vmsByLastHostId.size() + " VM, not running on host " + host.getId());
-        }
-        for (VMInstanceVO vm : vmsByLastHostId) {
-            long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
-            if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
-                UserVmDetailVO vmDetailCpu = _userVmDetailsDao.findDetail(vm.getId(), "cpuOvercommitRatio");
-                UserVmDetailVO vmDetailRam = _userVmDetailsDao.findDetail(vm.getId(),"memoryOvercommitRatio");
-                if (vmDetailCpu != null ) {
-                    //if vmDetail_cpu is not null it means it is running in a overcommited cluster.
-                    cpuOvercommitRatio = Float.parseFloat(vmDetailCpu.getValue());
-                    ramOvercommitRatio = Float.parseFloat(vmDetailRam.getValue());
-                }
-                ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
-                reservedMemory += ((so.getRamSize() * 1024L * 1024L)/ramOvercommitRatio)*clusterRamOvercommitRatio;
-                reservedCpu += (so.getCpu() * so.getSpeed()/cpuOvercommitRatio)*clusterCpuOvercommitRatio;
-            } else {
-                // signal if not done already, that the VM has been stopped for skip.counting.hours,
-                // hence capacity will not be reserved anymore.
-                UserVmDetailVO messageSentFlag = _userVmDetailsDao.findDetail(vm.getId(), MESSAGE_RESERVED_CAPACITY_FREED_FLAG);
-                if (messageSentFlag == null || !Boolean.valueOf(messageSentFlag.getValue())) {
-                    _messageBus.publish(_name, "VM_ReservedCapacity_Free", PublishScope.LOCAL, vm);
-
-                    if (vm.getType() == VirtualMachine.Type.User) {
-                        UserVmVO userVM = _userVMDao.findById(vm.getId());
-                        _userVMDao.loadDetails(userVM);
-                        userVM.setDetail(MESSAGE_RESERVED_CAPACITY_FREED_FLAG, "true");
-                        _userVMDao.saveDetails(userVM);
-                    }
-                }
-            }
-        }
+        long[] reserved = getReservedCapacity(host, offeringsMap, clusterCpuOvercommitRatio, clusterRamOvercommitRatio);
+        reservedCpu = reserved[0];
+        reservedMemory = reserved[1];
 
         CapacityVO cpuCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_MEMORY);
 
         if (cpuCap != null && memCap != null){
+            boolean drifted = cpuCap.getUsedCapacity() != usedCpu || cpuCap.getReservedCapacity() != reservedCpu
+                    || memCap.getUsedCapacity() != usedMemory || memCap.getReservedCapacity() != reservedMemory;
         	if (cpuCap.getUsedCapacity() == usedCpu && cpuCap.getReservedCapacity() == reservedCpu) {
         		s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
         				+ " reservedCpu: " + cpuCap.getReservedCapacity());
@@ -618,32 +823,37 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 	            memCap.setUsedCapacity(usedMemory);
 	        }
 
+	        if (!drifted) {
+	            return false;
+	        }
 	        try {
 	            _capacityDao.update(cpuCap.getId(), cpuCap);
 	            _capacityDao.update(memCap.getId(), memCap);
+	            updateCapacityIndex(cpuCap, memCap);
 	        } catch (Exception e) {
 	        	s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
 	        }
+	        return true;
         }else {
         	Transaction txn = Transaction.currentTxn();
         	txn.start();
-        	CapacityVO capacity = new CapacityVO(host.getId(),
+        	CapacityVO memCapacity = new CapacityVO(host.getId(),
                     host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemory,
                     host.getTotalMemory(),
                     CapacityVO.CAPACITY_TYPE_MEMORY);
-            capacity.setReservedCapacity(reservedMemory);
+            memCapacity.setReservedCapacity(reservedMemory);
             CapacityState capacityState = CapacityState.Enabled;
             if (host.getClusterId() != null) {
                 cluster = ApiDBUtils.findClusterById(host.getClusterId());
                 if (cluster != null) {
                     capacityState = _configMgr.findClusterAllocationState(cluster) == AllocationState.Disabled ? CapacityState.Disabled
                             : CapacityState.Enabled;
-                    capacity.setCapacityState(capacityState);
+                    memCapacity.setCapacityState(capacityState);
                 }
             }
-            _capacityDao.persist(capacity);
+            _capacityDao.persist(memCapacity);
 
-            capacity = new CapacityVO(
+            CapacityVO capacity = new CapacityVO(
                     host.getId(),
                     host.getDataCenterId(),
                     host.getPodId(),
@@ -655,9 +865,109 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             capacity.setCapacityState(capacityState);
             _capacityDao.persist(capacity);
             txn.commit();
+            updateCapacityIndex(memCapacity, capacity);
+            return true;
+        }
 
+    }
+
+    @Override
+    public int updateReservedCapacityForHosts(List<? extends Host> hosts) {
+        Map<Long, ServiceOfferingVO> offeringsMap = getOfferingsMap();
+        int drifted = 0;
+        for (Host host : hosts) {
+            try {
+                if (updateReservedCapacityForHost(host, offeringsMap)) {
+                    drifted++;
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to update the reserved cpu/memory capacity of host " + host.getId(), e);
+            }
+        }
+        return drifted;
+    }
+
+    /**
+     * @return true if the reserved capacity of the host did not match its stopped VMs
+     */
+    @DB
+    protected boolean updateReservedCapacityForHost(Host host, Map<Long, ServiceOfferingVO> offeringsMap) {
+        CapacityVO cpuCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_CPU);
+        CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_MEMORY);
+        if (cpuCap == null || memCap == null) {
+            // the rows are created when the host is fully verified
+            return false;
         }
 
+        ClusterVO cluster = _clusterDao.findById(host.getClusterId());
+        ClusterDetailsVO clusterDetailCpu = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
+        ClusterDetailsVO clusterDetailRam = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
+        long[] reserved = getReservedCapacity(host, offeringsMap, Float.parseFloat(clusterDetailCpu.getValue()),
+                Float.parseFloat(clusterDetailRam.getValue()));
+        if (cpuCap.getReservedCapacity() == reserved[0] && memCap.getReservedCapacity() == reserved[1]) {
+            return false;
+        }
+
+        s_logger.debug("Calibrate reserved capacity for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity()
+                + " new reservedCpu:" + reserved[0] + " old reservedMem:" + memCap.getReservedCapacity() + " new reservedMem:" + reserved[1]);
+        cpuCap.setReservedCapacity(reserved[0]);
+        memCap.setReservedCapacity(reserved[1]);
+        try {
+            _capacityDao.update(cpuCap.getId(), cpuCap);
+            _capacityDao.update(memCap.getId(), memCap);
+            updateCapacityIndex(cpuCap, memCap);
+        } catch (Exception e) {
+            s_logger.error("Caught exception while updating reserved cpu/memory capacity for the host " + host.getId(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Counts the capacity reserved on the host for the VMs stopped on it within capacity.skipcounting.hours,
+     * and signals VM_ReservedCapacity_Free for the ones whose reservation expired.
+     * @return the reserved cpu and memory
+     */
+    private long[] getReservedCapacity(Host host, Map<Long, ServiceOfferingVO> offeringsMap, float clusterCpuOvercommitRatio,
+            float clusterRamOvercommitRatio) {
+        long reservedMemory = 0;
+        long reservedCpu = 0;
+        Float cpuOvercommitRatio = 1f;
+        Float ramOvercommitRatio = 1f;
+
+        List<VMInstanceVO> vmsByLastHostId = _vmDao.listByLastHostId(host.getId());
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Found " + vmsByLastHostId.size() + " VM, not running on host " + host.getId());
+        }
+        for (VMInstanceVO vm : vmsByLastHostId) {
+            long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
+            if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
+                UserVmDetailVO vmDetailCpu = _userVmDetailsDao.findDetail(vm.getId(), "cpuOvercommitRatio");
+                UserVmDetailVO vmDetailRam = _userVmDetailsDao.findDetail(vm.getId(),"memoryOvercommitRatio");
+                if (vmDetailCpu != null ) {
+                    //if vmDetail_cpu is not null it means it is running in a overcommited cluster.
+                    cpuOvercommitRatio = Float.parseFloat(vmDetailCpu.getValue());
+                    ramOvercommitRatio = Float.parseFloat(vmDetailRam.getValue());
+                }
+                ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
+                reservedMemory += ((so.getRamSize() * 1024L * 1024L)/ramOvercommitRatio)*clusterRamOvercommitRatio;
+                reservedCpu += (so.getCpu() * so.getSpeed()/cpuOvercommitRatio)*clusterCpuOvercommitRatio;
+            } else {
+                // signal if not done already, that the VM has been stopped for skip.counting.hours,
+                // hence capacity will not be reserved anymore.
+                UserVmDetailVO messageSentFlag = _userVmDetailsDao.findDetail(vm.getId(), MESSAGE_RESERVED_CAPACITY_FREED_FLAG);
+                if (messageSentFlag == null || !Boolean.valueOf(messageSentFlag.getValue())) {
+                    _messageBus.publish(_name, "VM_ReservedCapacity_Free", PublishScope.LOCAL, vm);
+
+                    if (vm.getType() == VirtualMachine.Type.User) {
+                        UserVmVO userVM = _userVMDao.findById(vm.getId());
+                        _userVMDao.loadDetails(userVM);
+                        userVM.setDetail(MESSAGE_RESERVED_CAPACITY_FREED_FLAG, "true");
+                        _userVMDao.saveDetails(userVM);
+                    }
+                }
+            }
+        }
+        return new long[] {reservedCpu, reservedMemory};
     }
 
     @Override
@@ -870,8 +1180,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
 	@Override
     public void processDeletHostEventAfter(Host host) {
-		// TODO Auto-generated method stub
-
+        if (_capacityIndex != null) {
+            _capacityIndex.removeHost(host.getId());
+        }
 	}
 
 	@Override
@@ -899,6 +1210,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 	public void processPrepareMaintenaceEventAfter(Long hostId) {
 		_capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
 		_capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
+        if (_capacityIndex != null) {
+            _capacityIndex.removeHost(hostId);
+        }
 	}
 
 	@Override
@@ -930,6 +1244,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor};
+        return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, CapacityIndexEnabled, CapacityIndexReconcileInterval,
+            CapacityUpdateRetries, StorageAllocatedCapacityCacheTtl};
     }
 }
@@ -93,12 +93,17 @@ public enum Config {
 	DirectNetworkNoDefaultRoute("Network", ManagementServer.class, Boolean.class, "direct.network.no.default.route", "false", "Direct Network Dhcp Server should not send a default route", "true/false"),
 	OvsTunnelNetwork("Network", ManagementServer.class, Boolean.class, "sdn.ovs.controller", "false", "Enable/Disable Open vSwitch SDN controller for L2-in-L3 overlay networks", null),
 	OvsTunnelNetworkDefaultLabel("Network", ManagementServer.class, String.class, "sdn.ovs.controller.default.label", "cloud-public", "Default network label to be used when fetching interface for GRE endpoints", null),
+	OvsTunnelCreateWorkers("Network", ManagementServer.class, Integer.class, "sdn.ovs.controller.tunnel.workers", "10", "Maximum number of GRE tunnels the Open vSwitch SDN controller creates in parallel", null),
+	OvsTunnelCreateWait("Network", ManagementServer.class, Integer.class, "sdn.ovs.controller.tunnel.wait", "60", "Time (in seconds) a starting VM waits for the GRE tunnels to and from its host; remaining tunnels are created in the background", null),
 	VmNetworkThrottlingRate("Network", ManagementServer.class, Integer.class, "vm.network.throttling.rate", "200", "Default data transfer rate in megabits per second allowed in User vm's default network.", null),
 
 	SecurityGroupWorkCleanupInterval("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.cleanup.interval", "120", "Time interval (seconds) in which finished work is cleaned up from the work table", null),
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
 	SecurityGroupWorkPerAgentMaxQueueSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.per.agent.queue.size", "100", "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually", null),
+	SecurityGroupWorkCoalesceWindow("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.coalesce.window", "200", "Time (milliseconds) over which security group ruleset updates are collected before they are queued, so that repeated updates of a vm are sent once. 0 queues them right away", null),
+	SecurityGroupWorkBatchSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.batch.size", "100", "Number of vms whose security group rulesets a worker computes together and sends with one message per host", null),
+	SecurityGroupWorkQueueShared("Network", ManagementServer.class, Boolean.class, "network.securitygroups.work.queue.shared", "false", "If true, security group work is queued in the database and shared by the management servers, each one doing the work of the vms on the hosts it manages", null),
 
 	SecurityGroupDefaultAdding("Network", ManagementServer.class, Boolean.class, "network.securitygroups.defaultadding", "true", "If true, the user VM would be added to the default security group by default", null),
 
@@ -168,6 +173,10 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
     MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
+    HAInvestigatorThreads("Advanced", HighAvailabilityManager.class, Integer.class, "ha.investigator.threads", "20", "Number of threads running the investigators of hosts and VMs, the investigators of a host or VM run in parallel.", null),
+    HAInvestigateTimeout("Advanced", HighAvailabilityManager.class, Integer.class, "ha.investigate.timeout", "300", "Time (in seconds) to wait for the investigators to determine the state of a host or VM.", null),
+    HAHostVerdictTtl("Advanced", HighAvailabilityManager.class, Integer.class, "ha.host.verdict.ttl", "600", "Time (in seconds) a host found down is remembered for, its VMs are fenced off without being investigated one by one.", null),
+    HAFencesPerCluster("Advanced", HighAvailabilityManager.class, Integer.class, "ha.fences.per.cluster", "4", "Number of VMs fenced off at the same time in a cluster, 0 for no limit.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/cloudstack/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -213,7 +222,7 @@ public enum Config {
 	HostCapacityTypeToOrderClusters("Advanced", ManagementServer.class, String.class, "host.capacityType.to.order.clusters", "CPU", "The host capacity type (CPU or RAM) is used by deployment planner to order clusters during VM resource allocation", "CPU,RAM"),
 	ApplyAllocationAlgorithmToPods("Advanced", ManagementServer.class, Boolean.class, "apply.allocation.algorithm.to.pods", "false", "If true, deployment planner applies the allocation heuristics at pods first in the given datacenter during VM resource allocation", "true,false"),
 	VmUserDispersionWeight("Advanced", ManagementServer.class, Float.class, "vm.user.dispersion.weight", "1", "Weight for user dispersion heuristic (as a value between 0 and 1) applied to resource allocation during vm deployment. Weight for capacity heuristic will be (1 - weight of user dispersion)", null),
-    VmAllocationAlgorithm("Advanced", ManagementServer.class, String.class, "vm.allocation.algorithm", "random", "'random', 'firstfit', 'userdispersing', 'userconcentratedpod_random', 'userconcentratedpod_firstfit' : Order in which hosts within a cluster will be considered for VM/volume allocation.", null),
+    VmAllocationAlgorithm("Advanced", ManagementServer.class, String.class, "vm.allocation.algorithm", "random", "'random', 'firstfit', 'userdispersing', 'userconcentratedpod_random', 'userconcentratedpod_firstfit', 'scored' : Order in which hosts within a cluster will be considered for VM/volume allocation.", null),
     VmDeploymentPlanner("Advanced", ManagementServer.class, String.class, "vm.deployment.planner", "FirstFitPlanner", "'FirstFitPlanner', 'UserDispersingPlanner', 'UserConcentratedPodPlanner': DeploymentPlanner heuristic that will be used for VM deployment.", null),
 	EndpointeUrl("Advanced", ManagementServer.class, String.class, "endpointe.url", "http://localhost:8080/client/api", "Endpointe Url", null),
 	ElasticLoadBalancerEnabled("Advanced", ManagementServer.class, String.class, "network.loadbalancer.basiczone.elb.enabled", "false", "Whether the load balancing service is enabled for basic zones", "true,false"),
@@ -324,6 +333,8 @@ public enum Config {
 	AgentLoadThreshold("Advanced", ManagementServer.class, Float.class, "agent.load.threshold", "0.7", "Percentage (as a value between 0 and 1) of connected agents after which agent load balancing will start happening", null),
 
 	JavaScriptDefaultContentType("Advanced", ManagementServer.class, String.class, "json.content.type", "text/javascript", "Http response content type for .js files (default is text/javascript)", null),
+	ApiResponseCacheEnabled("Advanced", ManagementServer.class, Boolean.class, "api.response.cache.enabled", "true", "Serve repeated calls of read-only list APIs marked as cacheable from a short-lived per-caller response cache", null),
+	ApiResponseCacheSize("Advanced", ManagementServer.class, Integer.class, "api.response.cache.size", "1000", "Maximum number of API responses kept in the response cache", null),
 
 	DefaultMaxProjectUserVms("Project Defaults", ManagementServer.class, Long.class, "max.project.user.vms", "20", "The default maximum number of user VMs that can be deployed for a project", null),
     DefaultMaxProjectPublicIPs("Project Defaults", ManagementServer.class, Long.class, "max.project.public.ips", "20", "The default maximum number of public IPs that can be consumed by a project", null),
@@ -373,6 +384,9 @@ public enum Config {
 	ApiLimitInterval("Advanced", ManagementServer.class, Integer.class, "api.throttling.interval", "1", "Time interval (in seconds) to reset API count", null),
     ApiLimitMax("Advanced", ManagementServer.class, Integer.class, "api.throttling.max", "25", "Max allowed number of APIs within fixed interval", null),
     ApiLimitCacheSize("Advanced", ManagementServer.class, Integer.class, "api.throttling.cachesize", "50000", "Account based API count cache size", null),
+    ApiLimitStore("Advanced", ManagementServer.class, String.class, "api.throttling.store", "ehcache", "Store used to count APIs per account: ehcache (fixed interval) or slidingwindow (lock-free sliding interval)", "ehcache,slidingwindow"),
+    ApiLimitCommandWeights("Advanced", ManagementServer.class, String.class, "api.throttling.command.weights", null, "Comma separated list of apiName=weight pairs giving the cost of an API against the limit, APIs not listed cost 1", null),
+    ApiLimitClusterAware("Advanced", ManagementServer.class, Boolean.class, "api.throttling.cluster.aware", "false", "Split the API limit of an account evenly between the management servers that are up instead of applying it per management server; each server enforces its share locally, so an account served by a single management server only gets that server's share", null),
 
     // object store
     S3EnableRRS("Advanced", ManagementServer.class, Boolean.class, "s3.rrs.enabled", "false", "enable s3 reduced redundancy storage", null),
@@ -55,4 +55,9 @@ public interface DedicatedResourceDao extends GenericDao<DedicatedResourceVO, Lo
 
     List<DedicatedResourceVO> listByAffinityGroupId(Long affinityGroupId);
 
+    /**
+     * @return the number of dedicated resources and the highest id in use, which together change whenever a resource is dedicated or released
+     */
+    Pair<Long, Long> getCountAndMaxId();
+
 }
\ No newline at end of file
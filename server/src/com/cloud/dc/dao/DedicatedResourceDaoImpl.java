@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.dc.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 
 import javax.ejb.Local;
@@ -32,6 +35,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value={DedicatedResourceDao.class}) @DB
@@ -372,4 +376,20 @@ public class DedicatedResourceDaoImpl extends GenericDaoBase<DedicatedResourceVO
         sc.setParameters("affinityGroupId", affinityGroupId);
         return listBy(sc);
     }
+
+    @Override
+    public Pair<Long, Long> getCountAndMaxId() {
+        Transaction txn = Transaction.currentTxn();
+        String sql = "SELECT COUNT(*), MAX(id) FROM dedicated_resources";
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return new Pair<Long, Long>(rs.getLong(1), rs.getLong(2));
+            }
+            return new Pair<Long, Long>(0L, 0L);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+    }
 }
@@ -17,12 +17,18 @@
 package com.cloud.deploy;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -42,6 +48,7 @@ import org.apache.cloudstack.engine.subsystem.api.storage.StoragePoolAllocator;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
@@ -49,6 +56,9 @@ import org.apache.cloudstack.utils.identity.ManagementServerNode;
 import org.apache.log4j.Logger;
 
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.HostCapacityIndex.HostCapacity;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -68,6 +78,7 @@ import com.cloud.deploy.dao.PlannerHostReservationDao;
 import com.cloud.exception.AffinityConflictException;
 import com.cloud.exception.ConnectionException;
 import com.cloud.exception.InsufficientServerCapacityException;
+import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.host.Host;
 import com.cloud.host.HostVO;
@@ -96,6 +107,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
@@ -126,6 +138,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
     private static final Logger s_logger = Logger.getLogger(DeploymentPlanningManagerImpl.class);
+    private static final String HOST_ANTI_AFFINITY_TYPE = "host anti-affinity";
     @Inject
     AgentManager _agentMgr;
     @Inject
@@ -153,6 +166,10 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
     private static final long INITIAL_RESERVATION_RELEASE_CHECKER_DELAY = 30L * 1000L; // thirty seconds expressed in milliseconds
     protected long _nodeId = -1;
 
+    protected final HostReservationIndex _reservationIndex = new HostReservationIndex();
+    private ExecutorService _reservationReleaseExecutor;
+    private final Set<Long> _pendingReservationReleases = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
     protected List<StoragePoolAllocator> _storagePoolAllocators;
     public List<StoragePoolAllocator> getStoragePoolAllocators() {
         return _storagePoolAllocators;
@@ -209,6 +226,18 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
     public DeployDestination planDeployment(VirtualMachineProfile vmProfile,
             DeploymentPlan plan, ExcludeList avoids) throws InsufficientServerCapacityException,
             AffinityConflictException {
+        // the pool allocators share what they load while the volumes of the VM are placed
+        StoragePoolCatalog catalog = StoragePoolCatalog.open();
+        try {
+            return doPlanDeployment(vmProfile, plan, avoids);
+        } finally {
+            catalog.close();
+        }
+    }
+
+    private DeployDestination doPlanDeployment(VirtualMachineProfile vmProfile,
+            DeploymentPlan plan, ExcludeList avoids) throws InsufficientServerCapacityException,
+            AffinityConflictException {
 
         // call affinitygroup chain
         VirtualMachine vm = vmProfile.getVirtualMachine();
@@ -242,21 +271,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
 
 
         ServiceOffering offering = vmProfile.getServiceOffering();
-        String plannerName = offering.getDeploymentPlanner();
-        if (plannerName == null) {
-            if (vm.getHypervisorType() == HypervisorType.BareMetal) {
-                plannerName = "BareMetalPlanner";
-            } else {
-                plannerName = _configDao.getValue(Config.VmDeploymentPlanner.key());
-            }
-        }
-        DeploymentPlanner planner = null;
-        for (DeploymentPlanner plannerInList : _planners) {
-            if (plannerName.equals(plannerInList.getName())) {
-                planner = plannerInList;
-                break;
-            }
-        }
+        DeploymentPlanner planner = getDeploymentPlanner(vmProfile);
 
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
@@ -450,6 +465,371 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         return dest;
     }
 
+    private DeploymentPlanner getDeploymentPlanner(VirtualMachineProfile vmProfile) {
+        String plannerName = vmProfile.getServiceOffering().getDeploymentPlanner();
+        if (plannerName == null) {
+            if (vmProfile.getVirtualMachine().getHypervisorType() == HypervisorType.BareMetal) {
+                plannerName = "BareMetalPlanner";
+            } else {
+                plannerName = _configDao.getValue(Config.VmDeploymentPlanner.key());
+            }
+        }
+        for (DeploymentPlanner plannerInList : _planners) {
+            if (plannerName.equals(plannerInList.getName())) {
+                return plannerInList;
+            }
+        }
+        return null;
+    }
+
+    @DB
+    @Override
+    public List<DeployDestination> planDeployments(List<VirtualMachineProfile> vmProfiles, DeploymentPlan plan,
+            ExcludeList avoids) throws InsufficientServerCapacityException, AffinityConflictException {
+        if (vmProfiles == null || vmProfiles.isEmpty()) {
+            return new ArrayList<DeployDestination>();
+        }
+        StoragePoolCatalog catalog = StoragePoolCatalog.open();
+        try {
+            return doPlanDeployments(vmProfiles, plan, avoids);
+        } finally {
+            catalog.close();
+        }
+    }
+
+    private List<DeployDestination> doPlanDeployments(List<VirtualMachineProfile> vmProfiles, DeploymentPlan plan,
+            ExcludeList avoids) throws InsufficientServerCapacityException, AffinityConflictException {
+        VirtualMachineProfile first = vmProfiles.get(0);
+        for (VirtualMachineProfile vmProfile : vmProfiles) {
+            if (vmProfile.getServiceOffering().getId() != first.getServiceOffering().getId()
+                    || vmProfile.getTemplateId() != first.getTemplateId()
+                    || vmProfile.getHypervisorType() != first.getHypervisorType()
+                    || vmProfile.getVirtualMachine().getDataCenterId() != first.getVirtualMachine().getDataCenterId()) {
+                throw new InvalidParameterValueException("VMs planned together must share the zone, service offering, template and hypervisor");
+            }
+        }
+
+        DataCenter dc = _dcDao.findById(first.getVirtualMachine().getDataCenterId());
+        ServiceOffering offering = first.getServiceOffering();
+        long cpuRequested = offering.getCpu() * offering.getSpeed();
+        long ramRequested = offering.getRamSize() * 1024L * 1024L;
+        DeploymentPlanner planner = getDeploymentPlanner(first);
+
+        BatchPlacement placement = new BatchPlacement(cpuRequested, ramRequested);
+        List<DeployDestination> destinations = new ArrayList<DeployDestination>();
+        boolean sharedPlanning = planner instanceof DeploymentClusterPlanner && plan.getHostId() == null && plan.getPoolId() == null
+                && first.getHypervisorType() != HypervisorType.BareMetal && planner.canHandle(first, plan, avoids);
+        List<Long> clusterList = null;
+        PlannerResourceUsage resourceUsageRequired = null;
+
+        for (VirtualMachineProfile vmProfile : vmProfiles) {
+            ExcludeList vmAvoids = new ExcludeList(avoids.getDataCentersToAvoid(), avoids.getPodsToAvoid(),
+                    avoids.getClustersToAvoid(), avoids.getHostsToAvoid(), avoids.getPoolsToAvoid());
+            List<Long> antiAffinityGroupIds = placement.addAntiAffinityHostsToAvoid(vmProfile, vmAvoids);
+
+            DeployDestination dest = null;
+            if (!sharedPlanning) {
+                // nothing can be shared with the other VMs, plan this one on its own
+                dest = planDeployment(vmProfile, plan, vmAvoids);
+                while (dest != null && dest.getHost().getClusterId() != null && !placement.fits(dest.getHost().getId(), dest.getHost().getClusterId())) {
+                    // the host is taken by the VMs of the batch planned before this one
+                    vmAvoids.addHost(dest.getHost().getId());
+                    dest = planDeployment(vmProfile, plan, vmAvoids);
+                }
+            } else {
+                processAffinityAndDedication(vmProfile, plan, vmAvoids, dc);
+                if (vmAvoids.shouldAvoid(dc)) {
+                    throw new InsufficientServerCapacityException("DataCenter " + dc.getId() + " is in the avoid set of VM "
+                            + vmProfile.getId(), DataCenter.class, dc.getId());
+                }
+                if (clusterList == null) {
+                    // cluster ordering is done once, for the first VM, against the capacity as it is now
+                    ExcludeList plannerAvoids = new ExcludeList(avoids.getDataCentersToAvoid(), avoids.getPodsToAvoid(),
+                            avoids.getClustersToAvoid(), avoids.getHostsToAvoid(), avoids.getPoolsToAvoid());
+                    clusterList = ((DeploymentClusterPlanner)planner).orderClusters(vmProfile, plan, plannerAvoids);
+                    resourceUsageRequired = getPlannerUsage(planner, vmProfile, plan, plannerAvoids);
+                    if (clusterList == null) {
+                        clusterList = new ArrayList<Long>();
+                    }
+                }
+                dest = placement.place(vmProfile, plan, clusterList, vmAvoids, dc, resourceUsageRequired);
+            }
+
+            if (dest == null) {
+                throw new InsufficientServerCapacityException("Unable to place VM " + vmProfile.getId() + " (" + (destinations.size() + 1)
+                        + " of " + vmProfiles.size() + " in the batch)", DataCenter.class, dc.getId());
+            }
+            placement.record(vmProfile, dest, antiAffinityGroupIds);
+            destinations.add(dest);
+        }
+
+        placement.reserve();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Planned " + destinations.size() + " VMs on hosts " + placement.getReservedHosts());
+        }
+        return destinations;
+    }
+
+    private void processAffinityAndDedication(VirtualMachineProfile vmProfile, DeploymentPlan plan, ExcludeList avoids, DataCenter dc)
+            throws AffinityConflictException {
+        VirtualMachine vm = vmProfile.getVirtualMachine();
+        if (_affinityGroupVMMapDao.countAffinityGroupsForVm(vm.getId()) > 0) {
+            for (AffinityGroupProcessor processor : _affinityProcessors) {
+                processor.process(vmProfile, plan, avoids);
+            }
+        }
+        if (vm.getType() == VirtualMachine.Type.User) {
+            checkForNonDedicatedResources(vmProfile, dc, avoids);
+        }
+    }
+
+    /**
+     * State of a batch planning: the hosts and pools of every cluster looked at, the capacity left
+     * on the hosts once the VMs already placed are accounted for, and the hosts taken by each
+     * anti-affinity group of the batch.
+     */
+    private class BatchPlacement {
+        private final long _cpu;
+        private final long _ram;
+        private final Map<Long, List<Host>> _clusterHosts = new HashMap<Long, List<Host>>();
+        private final Map<Long, Map<String, List<StoragePool>>> _clusterPools = new HashMap<Long, Map<String, List<StoragePool>>>();
+        // free cpu and ram of the hosts, with the batch deducted
+        private final Map<Long, long[]> _hostFree = new HashMap<Long, long[]>();
+        private final Map<Long, List<Long>> _hostVms = new HashMap<Long, List<Long>>();
+        private final Map<Long, List<Volume>> _poolVolumes = new HashMap<Long, List<Volume>>();
+        private final Map<Long, Set<Long>> _antiAffinityGroupHosts = new HashMap<Long, Set<Long>>();
+
+        BatchPlacement(long cpu, long ram) {
+            _cpu = cpu;
+            _ram = ram;
+        }
+
+        List<Long> addAntiAffinityHostsToAvoid(VirtualMachineProfile vmProfile, ExcludeList avoids) {
+            List<Long> groupIds = new ArrayList<Long>();
+            for (AffinityGroupVMMapVO mapping : _affinityGroupVMMapDao.findByVmIdType(vmProfile.getId(), HOST_ANTI_AFFINITY_TYPE)) {
+                groupIds.add(mapping.getAffinityGroupId());
+                Set<Long> hosts = _antiAffinityGroupHosts.get(mapping.getAffinityGroupId());
+                if (hosts != null) {
+                    for (Long hostId : hosts) {
+                        avoids.addHost(hostId);
+                    }
+                }
+            }
+            return groupIds;
+        }
+
+        boolean fits(long hostId, Long clusterId) {
+            long[] free = _hostFree.get(hostId);
+            if (free == null) {
+                free = loadFreeCapacity(hostId, clusterId);
+                _hostFree.put(hostId, free);
+            }
+            return free[0] >= _cpu && free[1] >= _ram;
+        }
+
+        private long[] loadFreeCapacity(long hostId, Long clusterId) {
+            float cpuOvercommitRatio = getOvercommitRatio(clusterId, "cpuOvercommitRatio");
+            float memoryOvercommitRatio = getOvercommitRatio(clusterId, "memoryOvercommitRatio");
+
+            HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+            HostCapacity capacity = capacityIndex != null && capacityIndex.isReady() ? capacityIndex.getHostCapacity(hostId) : null;
+            if (capacity != null) {
+                return new long[] {
+                        (long)(capacity.getTotalCpu() * cpuOvercommitRatio) - capacity.getUsedCpu() - capacity.getReservedCpu(),
+                        (long)(capacity.getTotalMemory() * memoryOvercommitRatio) - capacity.getUsedMemory() - capacity.getReservedMemory()};
+            }
+            CapacityVO cpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+            CapacityVO memory = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+            if (cpu == null || memory == null) {
+                return new long[] {0, 0};
+            }
+            return new long[] {
+                    (long)(cpu.getTotalCapacity() * cpuOvercommitRatio) - cpu.getUsedCapacity() - cpu.getReservedCapacity(),
+                    (long)(memory.getTotalCapacity() * memoryOvercommitRatio) - memory.getUsedCapacity() - memory.getReservedCapacity()};
+        }
+
+        private float getOvercommitRatio(Long clusterId, String name) {
+            ClusterDetailsVO detail = _clusterDetailsDao.findDetail(clusterId, name);
+            return detail != null ? Float.parseFloat(detail.getValue()) : 1.0f;
+        }
+
+        DeployDestination place(VirtualMachineProfile vmProfile, DeploymentPlan plan, List<Long> clusterList, ExcludeList avoids,
+                DataCenter dc, PlannerResourceUsage resourceUsageRequired) {
+            if (clusterList.isEmpty()) {
+                return null;
+            }
+            List<VolumeVO> volumes = _volsDao.findUsableVolumesForInstance(vmProfile.getId());
+            if (volumes.isEmpty()) {
+                throw new CloudRuntimeException("Unable to create deployment, no usable volumes found for the VM");
+            }
+
+            for (Long clusterId : clusterList) {
+                ClusterVO cluster = _clusterDao.findById(clusterId);
+                if (cluster == null || avoids.shouldAvoid(cluster) || cluster.getHypervisorType() != vmProfile.getHypervisorType()) {
+                    continue;
+                }
+                DataCenterDeployment potentialPlan = new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(),
+                        cluster.getId(), null, null, null, plan.getReservationContext());
+
+                List<Host> hosts = _clusterHosts.get(clusterId);
+                if (hosts == null) {
+                    // the allocators only look at the capacity as it was before the batch, what the batch takes is tracked here
+                    ExcludeList clusterAvoids = new ExcludeList();
+                    hosts = new ArrayList<Host>();
+                    for (Host host : findSuitableHosts(vmProfile, potentialPlan, clusterAvoids, HostAllocator.RETURN_UPTO_ALL)) {
+                        if (checkIfHostFitsPlannerUsage(host.getId(), resourceUsageRequired)) {
+                            hosts.add(host);
+                        }
+                    }
+                    _clusterHosts.put(clusterId, hosts);
+                }
+                if (hosts.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, List<StoragePool>> pools = _clusterPools.get(clusterId);
+                if (pools == null) {
+                    pools = new HashMap<String, List<StoragePool>>();
+                    Map<Volume, List<StoragePool>> volumePools = findSuitablePoolsForVolumes(vmProfile, potentialPlan,
+                            new ExcludeList(), StoragePoolAllocator.RETURN_UPTO_ALL).first();
+                    for (Map.Entry<Volume, List<StoragePool>> entry : volumePools.entrySet()) {
+                        pools.put(getVolumeKey(entry.getKey()), entry.getValue());
+                    }
+                    _clusterPools.put(clusterId, pools);
+                }
+                if (pools.isEmpty()) {
+                    continue;
+                }
+
+                for (Host host : hosts) {
+                    if (avoids.shouldAvoid(host) || !fits(host.getId(), clusterId)) {
+                        continue;
+                    }
+                    Map<Volume, StoragePool> storage = findPoolsForHost(host, volumes, pools, avoids);
+                    if (storage != null) {
+                        Pod pod = _podDao.findById(cluster.getPodId());
+                        return new DeployDestination(dc, pod, cluster, _hostDao.findById(host.getId()), storage);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private Map<Volume, StoragePool> findPoolsForHost(Host host, List<VolumeVO> volumes, Map<String, List<StoragePool>> pools,
+                ExcludeList avoids) {
+            Map<Volume, StoragePool> storage = new HashMap<Volume, StoragePool>();
+            Map<Long, List<Volume>> requested = new HashMap<Long, List<Volume>>();
+            for (Volume volume : volumes) {
+                List<StoragePool> candidates = pools.get(getVolumeKey(volume));
+                if (candidates == null) {
+                    return null;
+                }
+                StoragePool chosen = null;
+                for (StoragePool pool : candidates) {
+                    if (avoids.shouldAvoid(pool) || !hostCanAccessSPool(host, pool)) {
+                        continue;
+                    }
+                    List<Volume> poolVolumes = new ArrayList<Volume>();
+                    if (_poolVolumes.containsKey(pool.getId())) {
+                        poolVolumes.addAll(_poolVolumes.get(pool.getId()));
+                    }
+                    if (requested.containsKey(pool.getId())) {
+                        poolVolumes.addAll(requested.get(pool.getId()));
+                    }
+                    poolVolumes.add(volume);
+                    if (_storageMgr.storagePoolHasEnoughSpace(poolVolumes, pool)) {
+                        chosen = pool;
+                        break;
+                    }
+                }
+                if (chosen == null) {
+                    return null;
+                }
+                storage.put(volume, chosen);
+                if (!requested.containsKey(chosen.getId())) {
+                    requested.put(chosen.getId(), new ArrayList<Volume>());
+                }
+                requested.get(chosen.getId()).add(volume);
+            }
+            return storage;
+        }
+
+        void record(VirtualMachineProfile vmProfile, DeployDestination dest, List<Long> antiAffinityGroupIds) {
+            long hostId = dest.getHost().getId();
+            if (dest.getHost().getClusterId() != null) {
+                fits(hostId, dest.getHost().getClusterId());
+                long[] free = _hostFree.get(hostId);
+                free[0] -= _cpu;
+                free[1] -= _ram;
+                if (!_hostVms.containsKey(hostId)) {
+                    _hostVms.put(hostId, new ArrayList<Long>());
+                }
+                _hostVms.get(hostId).add(vmProfile.getId());
+            }
+
+            if (dest.getStorageForDisks() != null) {
+                for (Map.Entry<Volume, StoragePool> entry : dest.getStorageForDisks().entrySet()) {
+                    if (!_poolVolumes.containsKey(entry.getValue().getId())) {
+                        _poolVolumes.put(entry.getValue().getId(), new ArrayList<Volume>());
+                    }
+                    _poolVolumes.get(entry.getValue().getId()).add(entry.getKey());
+                }
+            }
+            for (Long groupId : antiAffinityGroupIds) {
+                if (!_antiAffinityGroupHosts.containsKey(groupId)) {
+                    _antiAffinityGroupHosts.put(groupId, new HashSet<Long>());
+                }
+                _antiAffinityGroupHosts.get(groupId).add(hostId);
+            }
+        }
+
+        /**
+         * Reserves the capacity of the whole batch, host by host.  If a host does not have the
+         * capacity any more, what was already reserved is released and nothing is deployed.
+         *
+         * Once reserved, the host becomes the last host of each of its VMs, which is how the reserved
+         * capacity of a stopped VM is tracked: starting the VM there turns the reservation into used
+         * capacity, a failed start or an expunge gives it back, and a VM that is never started stops
+         * being counted after capacity.skipcounting.hours like any stopped VM.
+         */
+        void reserve() throws InsufficientServerCapacityException {
+            List<Long> reserved = new ArrayList<Long>();
+            for (Map.Entry<Long, List<Long>> entry : _hostVms.entrySet()) {
+                long hostId = entry.getKey();
+                int count = entry.getValue().size();
+                if (!_capacityMgr.reserveHostCapacity(hostId, _cpu * count, _ram * count)) {
+                    for (Long reservedHostId : reserved) {
+                        int reservedCount = _hostVms.get(reservedHostId).size();
+                        _capacityMgr.releaseHostCapacity(reservedHostId, _cpu * reservedCount, _ram * reservedCount);
+                    }
+                    throw new InsufficientServerCapacityException("Host " + hostId + " no longer has the capacity for " + count
+                            + " VMs of the batch", Host.class, hostId);
+                }
+                reserved.add(hostId);
+            }
+
+            for (Map.Entry<Long, List<Long>> entry : _hostVms.entrySet()) {
+                for (Long vmId : entry.getValue()) {
+                    VMInstanceVO vm = _vmInstanceDao.findById(vmId);
+                    if (vm != null) {
+                        vm.setLastHostId(entry.getKey());
+                        _vmInstanceDao.update(vmId, vm);
+                    }
+                }
+            }
+        }
+
+        Set<Long> getReservedHosts() {
+            return _hostVms.keySet();
+        }
+    }
+
+    private static String getVolumeKey(Volume volume) {
+        // VMs planned together share their offerings and template, so volumes of the same type and
+        // disk offering fit in the same pools
+        return volume.getVolumeType() + "-" + volume.getDiskOfferingId();
+    }
+
     private void checkForNonDedicatedResources(VirtualMachineProfile vmProfile, DataCenter dc, ExcludeList avoids) {
         boolean isExplicit = false;
         VirtualMachine vm = vmProfile.getVirtualMachine();
@@ -554,6 +934,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
             PlannerResourceUsage hostResourceType = reservationEntry.getResourceUsage();
 
             if (hostResourceType != null) {
+                _reservationIndex.setResourceUsage(hostId, hostResourceType);
                 if (hostResourceType == resourceUsageRequired) {
                     return true;
                 } else {
@@ -578,6 +959,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
                     if (lockedEntry.getResourceUsage() == null) {
                         lockedEntry.setResourceUsage(resourceUsageRequired);
                         _plannerHostReserveDao.persist(lockedEntry);
+                        _reservationIndex.setResourceUsage(hostId, resourceUsageRequired);
                         return true;
                     } else {
                         // someone updated it earlier. check if we can still use it
@@ -677,6 +1059,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
                     if (lockedEntry.getResourceUsage() != null) {
                         lockedEntry.setResourceUsage(null);
                         _plannerHostReserveDao.persist(lockedEntry);
+                        _reservationIndex.setResourceUsage(hostId, null);
                         return true;
                     }
                 } finally {
@@ -688,6 +1071,30 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         return false;
     }
 
+    /**
+     * Releases the reservation of a host whose last VM just left it, unless a
+     * release of the same host is already queued.
+     */
+    protected void scheduleHostReservationRelease(final long hostId) {
+        if (_reservationReleaseExecutor == null || !_pendingReservationReleases.add(hostId)) {
+            return;
+        }
+        _reservationReleaseExecutor.execute(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                _pendingReservationReleases.remove(hostId);
+                try {
+                    if (checkHostReservationRelease(hostId)) {
+                        _reservationIndex.recordEventRelease();
+                    }
+                } catch (Throwable t) {
+                    s_logger.warn("Unable to release the planner reservation of host " + hostId
+                            + ", the reservation sweep will retry", t);
+                }
+            }
+        });
+    }
+
     class HostReservationReleaseChecker extends ManagedContextTimerTask {
         @Override
         protected void runInContext() {
@@ -701,16 +1108,40 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         }
     }
 
+    /**
+     * Consistency sweep behind the release done on VM state transitions:
+     * reconciles the reservation index with the database and releases the
+     * reservations of hosts left without VMs that the transitions missed.
+     */
     private void checkHostReservations() {
+        long sequence = _reservationIndex.beginReconcile();
         List<PlannerHostReservationVO> reservedHosts = _plannerHostReserveDao.listAllReservedHosts();
+        Map<Long, Long> vmCounts = _vmInstanceDao.countActiveByHostId();
+
+        int drifted = _reservationIndex.reconcile(sequence, reservedHosts, vmCounts);
+        if (drifted > 0) {
+            s_logger.info("Corrected " + drifted + " host entries of the reservation index from the database");
+        }
 
         for (PlannerHostReservationVO hostReservation : reservedHosts) {
+            if (vmCounts.containsKey(hostReservation.getHostId())) {
+                continue;
+            }
             HostVO host = _hostDao.findById(hostReservation.getHostId());
             if (host != null && host.getManagementServerId() != null && host.getManagementServerId() == _nodeId) {
-                checkHostReservationRelease(hostReservation.getHostId());
+                if (checkHostReservationRelease(hostReservation.getHostId())) {
+                    _reservationIndex.recordSweepRelease();
+                }
             }
         }
 
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Host reservation index: " + _reservationIndex.getHostCount() + " hosts, "
+                    + _reservationIndex.getDriftCount() + " drifted entries corrected, "
+                    + _reservationIndex.getEventReleaseCount() + " reservations released on VM transitions, "
+                    + _reservationIndex.getSweepReleaseCount() + " released by the sweep, "
+                    + _reservationIndex.getStaleVmReservationCount() + " stale VM reservations removed");
+        }
     }
 
     @Override
@@ -743,6 +1174,8 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
             PlannerHostReservationVO newHost = new PlannerHostReservationVO(host.getId(), host.getDataCenterId(),
                     host.getPodId(), host.getClusterId());
             _plannerHostReserveDao.persist(newHost);
+        } else {
+            _reservationIndex.setResourceUsage(host.getId(), reservationEntry.getResourceUsage());
         }
 
     }
@@ -797,6 +1230,7 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
         }
 
         _timer = new Timer("HostReservationReleaseChecker");
+        _reservationReleaseExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("HostReservationRelease"));
 
         _nodeId = ManagementServerNode.getManagementServerId();
 
@@ -805,6 +1239,8 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
 
     @Override
     public boolean start() {
+        long sequence = _reservationIndex.beginReconcile();
+        _reservationIndex.reconcile(sequence, _plannerHostReserveDao.listAllReservedHosts(), _vmInstanceDao.countActiveByHostId());
         _timer.schedule(new HostReservationReleaseChecker(), INITIAL_RESERVATION_RELEASE_CHECKER_DELAY,
                 _hostReservationReleasePeriod);
         cleanupVMReservations();
@@ -814,27 +1250,45 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
     @Override
     public boolean stop() {
         _timer.cancel();
+        _reservationReleaseExecutor.shutdownNow();
         return true;
     }
 
     @Override
     public void cleanupVMReservations() {
         List<VMReservationVO> reservations = _reservationDao.listAll();
+        if (reservations.isEmpty()) {
+            return;
+        }
+
+        // reservations are normally removed as the VM leaves Starting, this only catches the ones that were missed
+        List<Long> vmIds = new ArrayList<Long>(reservations.size());
+        for (VMReservationVO reserv : reservations) {
+            vmIds.add(reserv.getVmId());
+        }
+        Map<Long, VMInstanceVO> vms = new HashMap<Long, VMInstanceVO>();
+        for (VMInstanceVO vm : _vmInstanceDao.listByIds(vmIds)) {
+            vms.put(vm.getId(), vm);
+        }
 
+        int removed = 0;
         for (VMReservationVO reserv : reservations) {
-            VMInstanceVO vm = _vmInstanceDao.findById(reserv.getVmId());
+            VMInstanceVO vm = vms.get(reserv.getVmId());
             if (vm != null) {
                 if (vm.getState() == State.Starting || (vm.getState() == State.Stopped && vm.getLastHostId() == null)) {
                     continue;
                 } else {
                     // delete reservation
                     _reservationDao.remove(reserv.getId());
+                    removed++;
                 }
             } else {
                 // delete reservation
                 _reservationDao.remove(reserv.getId());
+                removed++;
             }
         }
+        _reservationIndex.recordStaleVmReservations(removed);
     }
 
     // /refactoring planner methods
@@ -1294,6 +1748,19 @@ public class DeploymentPlanningManagerImpl extends ManagerBase implements Deploy
             sc.addAnd("vmId", SearchCriteria.Op.EQ, vo.getId());
             _reservationDao.expunge(sc);
         }
+        if (opaque instanceof Pair) {
+            @SuppressWarnings("unchecked")
+            Pair<Long, Long> hosts = (Pair<Long, Long>)opaque;
+            Long fromHostId = isActive(oldState) ? hosts.first() : null;
+            Long toHostId = isActive(newState) ? hosts.second() : null;
+            if (_reservationIndex.vmMoved(fromHostId, toHostId)) {
+                scheduleHostReservationRelease(fromHostId);
+            }
+        }
         return true;
     }
+
+    private static boolean isActive(State state) {
+        return state == State.Starting || state == State.Running || state == State.Stopping || state == State.Migrating;
+    }
 }
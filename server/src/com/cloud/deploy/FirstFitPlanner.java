@@ -38,6 +38,7 @@ import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -274,6 +275,9 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
 
+        HostCapacityIndex capacityIndex = getReadyCapacityIndex();
+        Map<Short, Float> disableThresholdMap = capacityIndex != null ? getCapacityThresholdMap() : null;
+
         // For each capacity get the cluster list crossing the threshold and
         // remove it from the clusterList that will be used for vm allocation.
         for (short capacity : capacityList) {
@@ -282,11 +286,21 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
                 return;
             }
             if (capacity == Capacity.CAPACITY_TYPE_CPU) {
-                clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(capacity,
-                        plan.getDataCenterId(), Config.CPUCapacityDisableThreshold.key(), cpu_requested);
+                if (capacityIndex != null) {
+                    clustersCrossingThreshold = capacityIndex.listClustersCrossingThreshold(capacity, plan.getDataCenterId(),
+                            Config.CPUCapacityDisableThreshold.key(), disableThresholdMap.get(capacity), cpu_requested);
+                } else {
+                    clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(capacity,
+                            plan.getDataCenterId(), Config.CPUCapacityDisableThreshold.key(), cpu_requested);
+                }
             } else if (capacity == Capacity.CAPACITY_TYPE_MEMORY) {
-                clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(capacity,
-                        plan.getDataCenterId(), Config.MemoryCapacityDisableThreshold.key(), ram_requested);
+                if (capacityIndex != null) {
+                    clustersCrossingThreshold = capacityIndex.listClustersCrossingThreshold(capacity, plan.getDataCenterId(),
+                            Config.MemoryCapacityDisableThreshold.key(), disableThresholdMap.get(capacity), ram_requested);
+                } else {
+                    clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(capacity,
+                            plan.getDataCenterId(), Config.MemoryCapacityDisableThreshold.key(), ram_requested);
+                }
             }
 
             if (clustersCrossingThreshold != null && clustersCrossingThreshold.size() != 0) {
@@ -380,6 +394,14 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
         return podIdsByCapacity;
     }
 
+    /**
+     * @return the in memory capacity index, or null if it is disabled or not loaded yet and the database has to be queried
+     */
+    private HostCapacityIndex getReadyCapacityIndex() {
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+        return capacityIndex != null && capacityIndex.isReady() ? capacityIndex : null;
+    }
+
     private List<Long> listDisabledClusters(long zoneId, Long podId){
         List<Long> disabledClusters = _clusterDao.listDisabledClusters(zoneId, podId);
         if(podId == null){
@@ -410,11 +432,22 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
             capacityType = CapacityVO.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        HostCapacityIndex capacityIndex = getReadyCapacityIndex();
+        List<Long> clusterIdswithEnoughCapacity;
+        if (capacityIndex != null) {
+            clusterIdswithEnoughCapacity = capacityIndex.listClustersByHostCapacities(id, isZone, requiredCpu, requiredRam);
+        } else {
+            clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (capacityIndex != null) {
+            result = capacityIndex.orderClustersByAggregateCapacity(id, isZone, capacityType);
+        } else {
+            result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        }
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -0,0 +1,372 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidates;
+import com.cloud.dc.DedicatedResourceVO;
+import com.cloud.dc.dao.DedicatedResourceDao;
+import com.cloud.host.HostStats;
+import com.cloud.server.StatsCollector;
+import com.cloud.user.Account;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachineProfile;
+import com.cloud.vm.dao.VMInstanceDao;
+
+/**
+ * Ranks the hosts suitable for a VM by the weighted sum of the scores of the HostScorers it
+ * knows, for the host allocators running with vm.allocation.algorithm 'scored'.  Only the k
+ * best hosts asked for are kept, in a heap, instead of sorting all of them.
+ *
+ * The built in scorers are cpu and memory headroom, VM density, affinity group peers, recent
+ * cpu load from the StatsCollector and dedication to the owner of the VM.  Other scorers are
+ * added with registerScorer() and weighted in host.ranking.weights like the built in ones.
+ */
+@Component
+public class HostRanker implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(HostRanker.class);
+
+    static final ConfigKey<String> HostRankingWeights = new ConfigKey<String>("Advanced", String.class, "host.ranking.weights",
+            "memory=-1,cpu=1,density=0.5,affinity=2,load=1,dedication=4",
+            "Comma separated name=weight pairs for the host scorers when vm.allocation.algorithm is 'scored', a negative weight prefers the hosts a scorer rates low,"
+                    + " e.g. memory=-1 packs memory while cpu=1 spreads cpu. Scorers not listed are not used.", true);
+
+    @Inject
+    AffinityGroupVMMapDao _affinityGroupVMMapDao;
+    @Inject
+    VMInstanceDao _vmInstanceDao;
+    @Inject
+    DedicatedResourceDao _dedicatedDao;
+
+    private final Map<String, HostScorer> _scorers = new ConcurrentHashMap<String, HostScorer>();
+    private volatile String _weightsValue;
+    private volatile Map<String, Double> _weights = Collections.emptyMap();
+
+    public HostRanker() {
+        registerScorer(new CpuHeadroomScorer());
+        registerScorer(new MemoryHeadroomScorer());
+        registerScorer(new DensityScorer());
+        registerScorer(new AffinityScorer());
+        registerScorer(new LoadScorer());
+        registerScorer(new DedicationScorer());
+    }
+
+    /**
+     * Adds a scorer, replacing the one registered under the same name if any.
+     */
+    public void registerScorer(HostScorer scorer) {
+        _scorers.put(scorer.getName(), scorer);
+    }
+
+    /**
+     * Loads what the scorers need to know about the VM: where the VMs sharing its affinity
+     * groups run, the hosts and clusters dedicated to its owner and the last collected cpu
+     * load of the candidates.
+     */
+    public HostScoringContext createContext(VirtualMachineProfile vmProfile, HostCandidates candidates, long cpuRequested, long ramRequested) {
+        HostScoringContext context = new HostScoringContext(cpuRequested, ramRequested);
+        Map<String, Double> weights = getWeights();
+
+        if (isWeighted(weights, AffinityScorer.NAME)) {
+            Set<Long> peerIds = new HashSet<Long>();
+            for (Long groupId : _affinityGroupVMMapDao.listAffinityGroupIdsByVmId(vmProfile.getId())) {
+                peerIds.addAll(_affinityGroupVMMapDao.listVmIdsByAffinityGroup(groupId));
+            }
+            peerIds.remove(vmProfile.getId());
+            if (!peerIds.isEmpty()) {
+                for (VMInstanceVO peer : _vmInstanceDao.listByIds(peerIds)) {
+                    if (peer.getHostId() != null) {
+                        context.addAffinityPeer(peer.getHostId());
+                    }
+                }
+            }
+        }
+
+        Account owner = vmProfile.getOwner();
+        if (isWeighted(weights, DedicationScorer.NAME) && owner != null) {
+            List<DedicatedResourceVO> dedicated = new ArrayList<DedicatedResourceVO>(_dedicatedDao.listByAccountId(owner.getId()));
+            dedicated.addAll(_dedicatedDao.listByDomainId(owner.getDomainId()));
+            for (DedicatedResourceVO resource : dedicated) {
+                if (resource.getHostId() != null) {
+                    context.addDedicatedHost(resource.getHostId());
+                }
+                if (resource.getClusterId() != null) {
+                    context.addDedicatedCluster(resource.getClusterId());
+                }
+            }
+        }
+
+        StatsCollector stats = StatsCollector.getInstance();
+        if (isWeighted(weights, LoadScorer.NAME) && stats != null) {
+            for (int i = 0; i < candidates.size(); i++) {
+                HostStats hostStats = stats.getHostStats(candidates.getId(i));
+                if (hostStats != null) {
+                    context.setCpuUtilization(candidates.getId(i), hostStats.getCpuUtilization());
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * @param indexes indexes of the candidates to rank, ties are broken by their order
+     * @param k number of hosts to return
+     * @return indexes of the k best candidates, best first
+     */
+    public List<Integer> topK(HostCandidates candidates, List<Integer> indexes, HostScoringContext context, int k) {
+        if (k <= 0 || indexes.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+
+        List<HostScorer> scorers = new ArrayList<HostScorer>();
+        List<Double> scorerWeights = new ArrayList<Double>();
+        for (Map.Entry<String, Double> weight : getWeights().entrySet()) {
+            HostScorer scorer = _scorers.get(weight.getKey());
+            if (scorer != null && weight.getValue() != 0) {
+                scorers.add(scorer);
+                scorerWeights.add(weight.getValue());
+            }
+        }
+
+        // min heap of the best hosts seen so far, the worst of them on top to be replaced
+        PriorityQueue<ScoredHost> best = new PriorityQueue<ScoredHost>(Math.min(k, indexes.size()) + 1, WorstFirst);
+        for (int rank = 0; rank < indexes.size(); rank++) {
+            int i = indexes.get(rank);
+            double score = 0;
+            for (int s = 0; s < scorers.size(); s++) {
+                score += scorerWeights.get(s) * scorers.get(s).score(candidates, i, context);
+            }
+            ScoredHost host = new ScoredHost(i, rank, score);
+            if (best.size() < k) {
+                best.add(host);
+            } else if (WorstFirst.compare(host, best.peek()) > 0) {
+                best.poll();
+                best.add(host);
+            }
+        }
+
+        Integer[] ranked = new Integer[best.size()];
+        for (int n = ranked.length - 1; n >= 0; n--) {
+            ranked[n] = best.poll().index;
+        }
+        List<Integer> result = new ArrayList<Integer>(ranked.length);
+        Collections.addAll(result, ranked);
+        return result;
+    }
+
+    private static boolean isWeighted(Map<String, Double> weights, String name) {
+        Double weight = weights.get(name);
+        return weight != null && weight != 0;
+    }
+
+    Map<String, Double> getWeights() {
+        String value = HostRankingWeights.value();
+        if (value != null && !value.equals(_weightsValue)) {
+            _weights = parseWeights(value);
+            _weightsValue = value;
+        }
+        return _weights;
+    }
+
+    static Map<String, Double> parseWeights(String value) {
+        Map<String, Double> weights = new HashMap<String, Double>();
+        for (String pair : value.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            String[] nameWeight = pair.split("=");
+            try {
+                if (nameWeight.length != 2) {
+                    throw new NumberFormatException();
+                }
+                weights.put(nameWeight[0].trim(), Double.parseDouble(nameWeight[1].trim()));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring host ranking weight '" + pair + "', expecting name=weight");
+            }
+        }
+        return weights;
+    }
+
+    private static class ScoredHost {
+        final int index;
+        final int rank;
+        final double score;
+
+        ScoredHost(int index, int rank, double score) {
+            this.index = index;
+            this.rank = rank;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<ScoredHost> WorstFirst = new Comparator<ScoredHost>() {
+        @Override
+        public int compare(ScoredHost h1, ScoredHost h2) {
+            int byScore = Double.compare(h1.score, h2.score);
+            if (byScore != 0) {
+                return byScore;
+            }
+            // on a tie the host that came first is the better one
+            return h1.rank > h2.rank ? -1 : (h1.rank < h2.rank ? 1 : 0);
+        }
+    };
+
+    /**
+     * Prefers the hosts with the most cpu left once the VM is placed.
+     */
+    public static class CpuHeadroomScorer implements HostScorer {
+        public static final String NAME = "cpu";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public double score(HostCandidates candidates, int i, HostScoringContext context) {
+            return candidates.getCpuHeadroom(i, context.getCpuRequested());
+        }
+    }
+
+    /**
+     * Prefers the hosts with the most memory left once the VM is placed.
+     */
+    public static class MemoryHeadroomScorer implements HostScorer {
+        public static final String NAME = "memory";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public double score(HostCandidates candidates, int i, HostScoringContext context) {
+            return candidates.getMemoryHeadroom(i, context.getRamRequested());
+        }
+    }
+
+    /**
+     * Prefers the hosts running the fewest VMs compared to the most they can run.
+     */
+    public static class DensityScorer implements HostScorer {
+        public static final String NAME = "density";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public double score(HostCandidates candidates, int i, HostScoringContext context) {
+            long maxGuests = candidates.getMaxGuests(i);
+            if (maxGuests <= 0) {
+                return 0;
+            }
+            return Math.max(0, 1 - (double)candidates.getRunningVms(i) / maxGuests);
+        }
+    }
+
+    /**
+     * Prefers the hosts running the fewest VMs of the affinity groups of the VM.  Host
+     * anti-affinity groups already keep the VM off such hosts, this spreads the VMs of the
+     * other group types too.
+     */
+    public static class AffinityScorer implements HostScorer {
+        public static final String NAME = "affinity";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public double score(HostCandidates candidates, int i, HostScoringContext context) {
+            return 1.0 / (1 + context.getAffinityPeers(candidates.getId(i)));
+        }
+    }
+
+    /**
+     * Prefers the hosts with the lowest cpu utilization last collected, hosts without stats
+     * score in the middle.
+     */
+    public static class LoadScorer implements HostScorer {
+        public static final String NAME = "load";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public double score(HostCandidates candidates, int i, HostScoringContext context) {
+            Double cpuUtilization = context.getCpuUtilization(candidates.getId(i));
+            if (cpuUtilization == null) {
+                return 0.5;
+            }
+            return Math.max(0, Math.min(1, 1 - cpuUtilization / 100));
+        }
+    }
+
+    /**
+     * Prefers the hosts dedicated to the owner of the VM, or to its domain, over shared ones.
+     */
+    public static class DedicationScorer implements HostScorer {
+        public static final String NAME = "dedication";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public double score(HostCandidates candidates, int i, HostScoringContext context) {
+            if (!context.hasDedicatedResources()) {
+                return 0;
+            }
+            return context.isDedicated(candidates.getId(i), candidates.getHost(i).getClusterId()) ? 1 : 0;
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return HostRanker.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {HostRankingWeights};
+    }
+}
@@ -0,0 +1,218 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.deploy.DeploymentPlanner.PlannerResourceUsage;
+
+/**
+ * In memory view of op_host_planner_reservation together with the number of
+ * Starting, Running, Stopping and Migrating VMs of every host, kept current
+ * from VM state transitions so that a host reservation can be released as soon
+ * as the last VM leaves the host.
+ *
+ * The index only decides when it is worth checking a host; releasing still
+ * goes through the database checks of DeploymentPlanningManagerImpl.  The
+ * periodic reservation sweep reconciles the index with the database and
+ * counts how far it had drifted, which covers transitions handled by other
+ * management servers.
+ */
+public class HostReservationIndex {
+    private static final Logger s_logger = Logger.getLogger(HostReservationIndex.class);
+
+    private static class HostEntry {
+        PlannerResourceUsage _usage;
+        long _vmCount;
+        long _sequence;
+    }
+
+    // guarded by this
+    private final Map<Long, HostEntry> _hosts = new HashMap<Long, HostEntry>();
+    private long _sequence;
+
+    private final AtomicLong _drifted = new AtomicLong();
+    private final AtomicLong _eventReleases = new AtomicLong();
+    private final AtomicLong _sweepReleases = new AtomicLong();
+    private final AtomicLong _staleVmReservations = new AtomicLong();
+
+    private HostEntry entry(long hostId) {
+        HostEntry entry = _hosts.get(hostId);
+        if (entry == null) {
+            entry = new HostEntry();
+            _hosts.put(hostId, entry);
+        }
+        entry._sequence = ++_sequence;
+        return entry;
+    }
+
+    public synchronized PlannerResourceUsage getResourceUsage(long hostId) {
+        HostEntry entry = _hosts.get(hostId);
+        return entry != null ? entry._usage : null;
+    }
+
+    public synchronized long getVmCount(long hostId) {
+        HostEntry entry = _hosts.get(hostId);
+        return entry != null ? entry._vmCount : 0;
+    }
+
+    public synchronized void setResourceUsage(long hostId, PlannerResourceUsage usage) {
+        entry(hostId)._usage = usage;
+    }
+
+    public synchronized void removeHost(long hostId) {
+        _hosts.remove(hostId);
+        _sequence++;
+    }
+
+    /**
+     * Moves a VM from one host to another; either host may be null.
+     * @return true if the VM was the last one on a reserved source host, so
+     *         the reservation of that host may be releasable
+     */
+    public synchronized boolean vmMoved(Long fromHostId, Long toHostId) {
+        if (fromHostId != null && fromHostId.equals(toHostId)) {
+            return false;
+        }
+        if (toHostId != null) {
+            entry(toHostId)._vmCount++;
+        }
+        if (fromHostId == null) {
+            return false;
+        }
+        HostEntry from = entry(fromHostId);
+        if (from._vmCount > 0) {
+            from._vmCount--;
+        }
+        return from._vmCount == 0 && from._usage != null;
+    }
+
+    /**
+     * @return the sequence to pass to {@link #reconcile}, taken before the database is read
+     */
+    public synchronized long beginReconcile() {
+        return _sequence;
+    }
+
+    /**
+     * Replaces the content of the index with what was read from the database.
+     * Hosts updated after the read started keep their newer value.
+     * @param startSequence value of {@link #beginReconcile()} before the database was read
+     * @param reservations every row of op_host_planner_reservation
+     * @param vmCounts number of Starting, Running, Stopping and Migrating VMs of each host
+     * @return number of hosts whose indexed reservation or VM count did not match the database
+     */
+    public synchronized int reconcile(long startSequence, List<PlannerHostReservationVO> reservations, Map<Long, Long> vmCounts) {
+        Map<Long, HostEntry> loaded = new HashMap<Long, HostEntry>();
+        for (PlannerHostReservationVO reservation : reservations) {
+            if (reservation.getHostId() == null) {
+                continue;
+            }
+            HostEntry entry = new HostEntry();
+            entry._usage = reservation.getResourceUsage();
+            Long vmCount = vmCounts.get(reservation.getHostId());
+            entry._vmCount = vmCount != null ? vmCount : 0;
+            loaded.put(reservation.getHostId(), entry);
+        }
+        for (Map.Entry<Long, Long> vmCount : vmCounts.entrySet()) {
+            if (!loaded.containsKey(vmCount.getKey())) {
+                HostEntry entry = new HostEntry();
+                entry._vmCount = vmCount.getValue();
+                loaded.put(vmCount.getKey(), entry);
+            }
+        }
+
+        int drifted = 0;
+        for (Map.Entry<Long, HostEntry> entry : loaded.entrySet()) {
+            HostEntry current = _hosts.get(entry.getKey());
+            if (current != null && current._sequence > startSequence) {
+                continue;
+            }
+            HostEntry fresh = entry.getValue();
+            if (current != null && (current._usage != fresh._usage || current._vmCount != fresh._vmCount)) {
+                drifted++;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Host reservation index drifted for host " + entry.getKey() + ": had " + current._usage + " with "
+                            + current._vmCount + " VMs, database has " + fresh._usage + " with " + fresh._vmCount + " VMs");
+                }
+            }
+            fresh._sequence = startSequence;
+            _hosts.put(entry.getKey(), fresh);
+        }
+        for (Map.Entry<Long, HostEntry> entry : new HashMap<Long, HostEntry>(_hosts).entrySet()) {
+            if (!loaded.containsKey(entry.getKey()) && entry.getValue()._sequence <= startSequence) {
+                HostEntry current = entry.getValue();
+                if (current._usage != null || current._vmCount != 0) {
+                    drifted++;
+                }
+                _hosts.remove(entry.getKey());
+            }
+        }
+
+        _drifted.addAndGet(drifted);
+        return drifted;
+    }
+
+    public void recordEventRelease() {
+        _eventReleases.incrementAndGet();
+    }
+
+    public void recordSweepRelease() {
+        _sweepReleases.incrementAndGet();
+    }
+
+    public void recordStaleVmReservations(int count) {
+        _staleVmReservations.addAndGet(count);
+    }
+
+    public synchronized int getHostCount() {
+        return _hosts.size();
+    }
+
+    /**
+     * @return number of host entries corrected by reconciliation so far
+     */
+    public long getDriftCount() {
+        return _drifted.get();
+    }
+
+    /**
+     * @return number of host reservations released as soon as their last VM left
+     */
+    public long getEventReleaseCount() {
+        return _eventReleases.get();
+    }
+
+    /**
+     * @return number of host reservations only released by the periodic sweep
+     */
+    public long getSweepReleaseCount() {
+        return _sweepReleases.get();
+    }
+
+    /**
+     * @return number of VM reservations removed by the sweep rather than on the VM leaving Starting
+     */
+    public long getStaleVmReservationCount() {
+        return _staleVmReservations.get();
+    }
+}
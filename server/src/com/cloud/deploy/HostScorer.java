@@ -0,0 +1,41 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidates;
+
+/**
+ * Scores a candidate host for a VM.  HostRanker sums the scores of all the scorers it knows
+ * weighted by host.ranking.weights and keeps the hosts with the highest totals, so a negative
+ * weight turns a scorer around, e.g. memory headroom with a negative weight packs memory.
+ *
+ * Scorers run for every suitable host on every deployment and must only read the candidate
+ * arrays and the context, which hold everything loaded for the deployment up front.
+ */
+public interface HostScorer {
+    /**
+     * @return name the weight of the scorer is configured under
+     */
+    String getName();
+
+    /**
+     * @param candidates hosts being ranked
+     * @param i index of the host in the candidates
+     * @return score between 0 and 1, higher is better
+     */
+    double score(HostCandidates candidates, int i, HostScoringContext context);
+}
@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the host scorers know about the VM being deployed, loaded once per deployment by
+ * HostRanker.createContext().
+ */
+public class HostScoringContext {
+    private final long _cpuRequested;
+    private final long _ramRequested;
+    private final Map<Long, Integer> _affinityPeers = new HashMap<Long, Integer>();
+    private final Set<Long> _dedicatedHostIds = new HashSet<Long>();
+    private final Set<Long> _dedicatedClusterIds = new HashSet<Long>();
+    private final Map<Long, Double> _cpuUtilizations = new HashMap<Long, Double>();
+
+    /**
+     * @param cpuRequested cpu requested in MHz
+     * @param ramRequested memory requested in bytes
+     */
+    public HostScoringContext(long cpuRequested, long ramRequested) {
+        _cpuRequested = cpuRequested;
+        _ramRequested = ramRequested;
+    }
+
+    public long getCpuRequested() {
+        return _cpuRequested;
+    }
+
+    public long getRamRequested() {
+        return _ramRequested;
+    }
+
+    /**
+     * Counts a VM sharing an affinity group with the VM being deployed on a host.
+     */
+    public void addAffinityPeer(long hostId) {
+        Integer peers = _affinityPeers.get(hostId);
+        _affinityPeers.put(hostId, peers == null ? 1 : peers + 1);
+    }
+
+    /**
+     * @return number of VMs sharing an affinity group with the VM being deployed on the host
+     */
+    public int getAffinityPeers(long hostId) {
+        Integer peers = _affinityPeers.get(hostId);
+        return peers == null ? 0 : peers;
+    }
+
+    public void addDedicatedHost(long hostId) {
+        _dedicatedHostIds.add(hostId);
+    }
+
+    public void addDedicatedCluster(long clusterId) {
+        _dedicatedClusterIds.add(clusterId);
+    }
+
+    public boolean hasDedicatedResources() {
+        return !_dedicatedHostIds.isEmpty() || !_dedicatedClusterIds.isEmpty();
+    }
+
+    /**
+     * @return true if the host, or its cluster, is dedicated to the owner of the VM
+     */
+    public boolean isDedicated(long hostId, Long clusterId) {
+        return _dedicatedHostIds.contains(hostId) || (clusterId != null && _dedicatedClusterIds.contains(clusterId));
+    }
+
+    public void setCpuUtilization(long hostId, double cpuUtilization) {
+        _cpuUtilizations.put(hostId, cpuUtilization);
+    }
+
+    /**
+     * @return cpu utilization of the host in percent last collected by the StatsCollector, null
+     *         when there are no stats for the host
+     */
+    public Double getCpuUtilization(long hostId) {
+        return _cpuUtilizations.get(hostId);
+    }
+}
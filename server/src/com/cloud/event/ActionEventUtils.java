@@ -31,6 +31,7 @@ import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
 
+import com.cloud.api.ApiResponseCache;
 import com.cloud.event.dao.EventDao;
 import com.cloud.server.ManagementServer;
 import com.cloud.user.Account;
@@ -47,6 +48,7 @@ public class ActionEventUtils {
     private static AccountDao _accountDao;
     protected static UserDao _userDao;
     protected static EventBus _eventBus = null;
+    private static ApiResponseCache _responseCache;
 
     public static final String EventDetails = "event_details";
     public static final String EventId = "event_id";
@@ -57,6 +59,7 @@ public class ActionEventUtils {
     @Inject EventDao eventDao;
     @Inject AccountDao accountDao;
     @Inject UserDao userDao;
+    @Inject ApiResponseCache responseCache;
 
     public ActionEventUtils() {
     }
@@ -66,6 +69,7 @@ public class ActionEventUtils {
     	_eventDao = eventDao;
     	_accountDao = accountDao;
     	_userDao = userDao;
+    	_responseCache = responseCache;
     }
 
     public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
@@ -165,6 +169,11 @@ public class ActionEventUtils {
             event.setStartId(startEventId);
         }
         event = _eventDao.persist(event);
+
+        // cached API responses listening on this event type are stale once the action is done
+        if (_responseCache != null && (state == Event.State.Completed || state == Event.State.Created)) {
+            _responseCache.onActionEvent(type);
+        }
         return event;
     }
 
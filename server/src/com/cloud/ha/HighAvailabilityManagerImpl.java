@@ -21,6 +21,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -52,6 +53,7 @@ import com.cloud.exception.InsufficientCapacityException;
 import com.cloud.exception.InsufficientServerCapacityException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.ha.InvestigationEngine.AdapterCall;
 import com.cloud.ha.dao.HighAvailabilityDao;
 import com.cloud.host.Host;
 import com.cloud.host.HostVO;
@@ -89,6 +91,8 @@ import com.cloud.vm.dao.VMInstanceDao;
  * have re-started more than the configured number of times are marked as in Error state and the user is not allowed to restart
  * the VM.
  * 
+ * The Investigators of a host or VM run in parallel and the first one to determine its state wins, see InvestigationEngine.
+ * 
  * @config {@table || Param Name | Description | Values | Default || || workers | number of worker threads to spin off to do the
  *         processing | int | 1 || || time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
  *         | number of times to retry start | int | 5 || || time.between.failure | Time elapsed between failures before we
@@ -161,6 +165,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
     String _instance;
     ScheduledExecutorService _executor;
+    ExecutorService _investigateExecutor;
+    InvestigationEngine _investigation;
     int _stopRetryInterval;
     int _investigateRetryInterval;
     int _migrateRetryInterval;
@@ -182,21 +188,14 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             return null;
         }
 
-        Status hostState = null;
-        for(Investigator investigator : _investigators) {
-            hostState = investigator.isAgentAlive(host);
-            if (hostState != null) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug(investigator.getName() + " was able to determine host " + hostId + " is in " + hostState.toString());
-                }
-                return hostState;
+        Status hostState = _investigation.firstConclusive(_investigators, new AdapterCall<Investigator, Status>() {
+            @Override
+            public Status call(Investigator investigator) {
+                return investigator.isAgentAlive(host);
             }
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug(investigator.getName() + " unable to determine the state of the host.  Moving on.");
-            }
-        }
-
-        return null;
+        }, "host " + hostId);
+        _investigation.recordHostVerdict(hostId, hostState);
+        return hostState;
     }
 
     @Override
@@ -434,32 +433,45 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
                     return null;
                 }
 
-                Investigator investigator = null;
-                for(Investigator it : _investigators) {
-                    investigator = it;
-                    alive = investigator.isVmAlive(vm, host);
-                    s_logger.info(investigator.getName() + " found " + vm + "to be alive? " + alive);
-                    if (alive != null) {
-                        break;
-                    }
+                // the VMs of a host found down are not worth investigating one by one
+                final VirtualMachine investigatedVm = vm;
+                final HostVO investigatedHost = host;
+                if (host.getStatus() == Status.Down && _investigation.getHostVerdict(host.getId()) == Status.Down) {
+                    s_logger.info("Host " + host.getId() + " was found down, not investigating " + vm);
+                } else {
+                    alive = _investigation.firstConclusive(_investigators, new AdapterCall<Investigator, Boolean>() {
+                        @Override
+                        public Boolean call(Investigator investigator) {
+                            return investigator.isVmAlive(investigatedVm, investigatedHost);
+                        }
+                    }, vm.toString());
+                    s_logger.info("Investigators found " + vm + " to be alive? " + alive);
                 }
 
                 boolean fenced = false;
                 if (alive == null) {
-                    s_logger.debug("Fencing off VM that we don't know the state of");
-                    for(FenceBuilder fb : _fenceBuilders) {
-                        Boolean result = fb.fenceOff(vm, host);
-                        s_logger.info("Fencer " + fb.getName() + " returned " + result);
-                        if (result != null && result) {
-                            fenced = true;
-                            break;
+                    if (!_investigation.acquireFence(host.getClusterId())) {
+                        s_logger.debug("Too many VMs being fenced off in cluster " + host.getClusterId() + ", rescheduling " + vm);
+                        return (System.currentTimeMillis() >> 10) + _investigateRetryInterval;
+                    }
+                    try {
+                        s_logger.debug("Fencing off VM that we don't know the state of");
+                        for(FenceBuilder fb : _fenceBuilders) {
+                            Boolean result = fb.fenceOff(vm, host);
+                            s_logger.info("Fencer " + fb.getName() + " returned " + result);
+                            if (result != null && result) {
+                                fenced = true;
+                                break;
+                            }
                         }
+                    } finally {
+                        _investigation.releaseFence(host.getClusterId());
                     }
 
                 } else if (!alive) {
                     fenced = true;
                 } else {
-                    s_logger.debug("VM " + vm.getHostName() + " is found to be alive by " + investigator.getName());
+                    s_logger.debug("VM " + vm.getHostName() + " is found to be alive");
                     if (host.getStatus() == Status.Up) {
                         s_logger.info(vm + " is alive and host is up. No need to restart it.");
                         return null;
@@ -749,6 +761,13 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         _executor = Executors.newScheduledThreadPool(count, new NamedThreadFactory("HA"));
 
+        int investigatorThreads = NumbersUtil.parseInt(params.get(Config.HAInvestigatorThreads.key()), 20);
+        long investigateTimeout = NumbersUtil.parseLong(params.get(Config.HAInvestigateTimeout.key()), 300) * 1000;
+        long hostVerdictTtl = NumbersUtil.parseLong(params.get(Config.HAHostVerdictTtl.key()), 600) * 1000;
+        int fencesPerCluster = NumbersUtil.parseInt(params.get(Config.HAFencesPerCluster.key()), 4);
+        _investigateExecutor = Executors.newFixedThreadPool(investigatorThreads, new NamedThreadFactory("HA-Investigator"));
+        _investigation = new InvestigationEngine(_investigateExecutor, _managedContext, investigateTimeout, hostVerdictTtl, fencesPerCluster);
+
         return true;
     }
 
@@ -772,6 +791,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         wakeupWorkers();
 
         _executor.shutdown();
+        _investigateExecutor.shutdownNow();
 
         return true;
     }
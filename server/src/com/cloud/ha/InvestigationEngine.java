@@ -0,0 +1,230 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContext;
+
+import com.cloud.host.Status;
+import com.cloud.utils.component.Adapter;
+
+/**
+ * Runs the HA investigators of a host or VM in parallel and takes the first conclusive answer,
+ * instead of waiting for each investigator to time out in turn.  It also remembers the hosts
+ * found down so their VMs are not investigated one by one, and bounds how many VMs are fenced
+ * at the same time in a cluster.
+ */
+public class InvestigationEngine {
+    private static final Logger s_logger = Logger.getLogger(InvestigationEngine.class);
+
+    /**
+     * One call of an investigator, or fencer, for the engine to run.
+     */
+    public interface AdapterCall<A extends Adapter, T> {
+        /**
+         * @return the answer of the adapter, null if it could not determine anything
+         */
+        T call(A adapter) throws Exception;
+    }
+
+    private final ExecutorService _executor;
+    private final ManagedContext _managedContext;
+    private final long _timeout;
+    private final long _verdictTtl;
+    private final int _fencesPerCluster;
+    private final Map<Long, HostVerdict> _hostVerdicts = new ConcurrentHashMap<Long, HostVerdict>();
+    private final Map<Long, Semaphore> _clusterFences = new ConcurrentHashMap<Long, Semaphore>();
+
+    /**
+     * @param managedContext context the adapters are called in, null to call them directly
+     * @param timeout milliseconds to wait for a conclusive answer
+     * @param verdictTtl milliseconds a host found down is remembered for
+     * @param fencesPerCluster number of VMs fenced at the same time in a cluster, 0 for no limit
+     */
+    public InvestigationEngine(ExecutorService executor, ManagedContext managedContext, long timeout, long verdictTtl, int fencesPerCluster) {
+        _executor = executor;
+        _managedContext = managedContext;
+        _timeout = timeout;
+        _verdictTtl = verdictTtl;
+        _fencesPerCluster = fencesPerCluster;
+    }
+
+    /**
+     * Calls all the adapters in parallel and returns the first answer that is not null.  The
+     * calls still running then are cancelled.
+     *
+     * @param what what is investigated, for the logs
+     * @return the first conclusive answer, null if none of the adapters could determine anything
+     *         within the timeout
+     */
+    public <A extends Adapter, T> T firstConclusive(List<A> adapters, final AdapterCall<A, T> call, String what) {
+        if (adapters == null || adapters.isEmpty()) {
+            return null;
+        }
+
+        CompletionService<Answer<T>> completion = new ExecutorCompletionService<Answer<T>>(_executor);
+        List<Future<Answer<T>>> futures = new ArrayList<Future<Answer<T>>>(adapters.size());
+        for (final A adapter : adapters) {
+            futures.add(completion.submit(new Callable<Answer<T>>() {
+                @Override
+                public Answer<T> call() throws Exception {
+                    Callable<T> adapterCall = new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            return call.call(adapter);
+                        }
+                    };
+                    T result = _managedContext != null ? _managedContext.callWithContext(adapterCall) : adapterCall.call();
+                    return new Answer<T>(adapter.getName(), result);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + _timeout;
+        try {
+            for (int pending = futures.size(); pending > 0; pending--) {
+                long wait = deadline - System.currentTimeMillis();
+                Future<Answer<T>> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    s_logger.warn("Investigators did not determine the state of " + what + " within " + _timeout + "ms");
+                    return null;
+                }
+
+                Answer<T> answer;
+                try {
+                    answer = done.get();
+                } catch (ExecutionException e) {
+                    s_logger.warn("Investigating " + what + " failed", e.getCause());
+                    continue;
+                }
+                if (answer.result != null) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(answer.adapterName + " determined " + what + " to be " + answer.result);
+                    }
+                    return answer.result;
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(answer.adapterName + " unable to determine the state of " + what);
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for (Future<Answer<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    public void recordHostVerdict(long hostId, Status status) {
+        if (status == null) {
+            _hostVerdicts.remove(hostId);
+        } else {
+            _hostVerdicts.put(hostId, new HostVerdict(status, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return the state the host was last investigated in, null if it was not investigated
+     *         within the verdict time to live
+     */
+    public Status getHostVerdict(long hostId) {
+        HostVerdict verdict = _hostVerdicts.get(hostId);
+        if (verdict == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - verdict.time > _verdictTtl) {
+            _hostVerdicts.remove(hostId);
+            return null;
+        }
+        return verdict.status;
+    }
+
+    /**
+     * Takes a fence slot in the cluster without waiting for one, release it with releaseFence().  The HA
+     * worker reschedules the work item when no slot is free rather than holding its thread.
+     *
+     * @return true if the slot was acquired, false if none is free
+     */
+    public boolean acquireFence(Long clusterId) {
+        Semaphore fences = getClusterFences(clusterId);
+        if (fences == null) {
+            return true;
+        }
+        return fences.tryAcquire();
+    }
+
+    public void releaseFence(Long clusterId) {
+        Semaphore fences = getClusterFences(clusterId);
+        if (fences != null) {
+            fences.release();
+        }
+    }
+
+    private Semaphore getClusterFences(Long clusterId) {
+        if (_fencesPerCluster <= 0 || clusterId == null) {
+            return null;
+        }
+        Semaphore fences = _clusterFences.get(clusterId);
+        if (fences == null) {
+            synchronized (_clusterFences) {
+                fences = _clusterFences.get(clusterId);
+                if (fences == null) {
+                    fences = new Semaphore(_fencesPerCluster);
+                    _clusterFences.put(clusterId, fences);
+                }
+            }
+        }
+        return fences;
+    }
+
+    private static class Answer<T> {
+        final String adapterName;
+        final T result;
+
+        Answer(String adapterName, T result) {
+            this.adapterName = adapterName;
+            this.result = result;
+        }
+    }
+
+    private static class HostVerdict {
+        final Status status;
+        final long time;
+
+        HostVerdict(Status status, long time) {
+            this.status = status;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.lb.dao.ApplicationLoadBalancerRuleDao;
+
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.NetUtils;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.NicSecondaryIpDao;
+
+/**
+ * Hands out guest IPv4 addresses of isolated networks from a per network
+ * {@link GuestIpBitmap}, instead of loading every used address of the network
+ * for each allocation.
+ *
+ * The bitmap of a network is built from the database the first time it is
+ * needed and rebuilt once it is older than guest.ip.bitmap.ttl, or when it
+ * runs out of addresses, to pick up addresses released without going through
+ * {@link #release}.  An address handed out stays reserved in the bitmap for
+ * the same time, so that it is not handed out again before the nic using it
+ * is in the database.  Every address is checked against the database before
+ * it is returned, which catches allocations made by other management servers;
+ * each management server also starts handing out addresses at a random place
+ * in the cidr to make such conflicts unlikely.
+ */
+@Component
+public class GuestIpAllocator implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(GuestIpAllocator.class);
+
+    static final ConfigKey<Integer> BitmapTtl = new ConfigKey<Integer>("Network", Integer.class, "guest.ip.bitmap.ttl", "300",
+            "Time (in seconds) after which the guest IP allocation bitmap of a network is rebuilt from the database; addresses handed out are held for the same time", true);
+
+    // conflicts with the database before the bitmap is rebuilt
+    private static final int MAX_CONFLICTS = 8;
+
+    @Inject
+    NetworkModel _networkModel;
+    @Inject
+    NicDao _nicDao;
+    @Inject
+    NicSecondaryIpDao _nicSecondaryIpDao;
+    @Inject
+    ApplicationLoadBalancerRuleDao _appLbRuleDao;
+
+    private final ConcurrentHashMap<Long, NetworkIps> _networks = new ConcurrentHashMap<Long, NetworkIps>();
+    private final Random _random = new Random();
+
+    static class NetworkIps {
+        final String _cidr;
+        final long _cidrAddress;
+        final int _prefix;
+        final Long _gateway;
+        GuestIpBitmap _bitmap;
+        long _builtAt;
+        // address -> time until which it is held for the nic being allocated
+        final Map<Long, Long> _reservations = new HashMap<Long, Long>();
+
+        NetworkIps(String cidr, long cidrAddress, int prefix, Long gateway) {
+            _cidr = cidr;
+            _cidrAddress = cidrAddress;
+            _prefix = prefix;
+            _gateway = gateway;
+        }
+
+        boolean isExcluded(long ip) {
+            return _gateway != null && ip == _gateway;
+        }
+    }
+
+    /**
+     * @return whether addresses of the network can be handed out by this allocator
+     */
+    public boolean supports(Network network) {
+        String cidr = network.getCidr();
+        if (cidr == null || !NetUtils.isValidCIDR(cidr)) {
+            return false;
+        }
+        int prefix = Integer.parseInt(cidr.split("/")[1]);
+        return prefix >= 8 && prefix <= 31;
+    }
+
+    /**
+     * Hands out a free address of the network.
+     * @return the address, or null if the network has no free address
+     */
+    public String allocate(Network network) {
+        NetworkIps ips = getNetworkIps(network);
+        boolean rebuilt = false;
+        int conflicts = 0;
+        while (true) {
+            long ip;
+            synchronized (ips) {
+                if (!rebuilt && isStale(ips)) {
+                    rebuild(ips, network);
+                }
+                ip = ips._bitmap.allocateNext();
+                if (ip < 0 || conflicts >= MAX_CONFLICTS) {
+                    if (rebuilt) {
+                        return null;
+                    }
+                    rebuild(ips, network);
+                    rebuilt = true;
+                    conflicts = 0;
+                    continue;
+                }
+                ips._reservations.put(ip, System.currentTimeMillis() + BitmapTtl.value() * 1000L);
+            }
+
+            String address = NetUtils.long2Ip(ip);
+            if (!isIpInUse(network.getId(), address)) {
+                return address;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Guest ip " + address + " of network " + network.getId() + " is already in use, trying the next one");
+            }
+            conflicts++;
+        }
+    }
+
+    /**
+     * Holds a requested address of the network.
+     * @return false if the address is already in use
+     */
+    public boolean reserve(Network network, String requestedIp) {
+        if (isIpInUse(network.getId(), requestedIp)) {
+            return false;
+        }
+        NetworkIps ips = getNetworkIps(network);
+        long ip = NetUtils.ip2Long(requestedIp);
+        synchronized (ips) {
+            if (isStale(ips)) {
+                rebuild(ips, network);
+            }
+            ips._bitmap.markUsed(ip);
+            ips._reservations.put(ip, System.currentTimeMillis() + BitmapTtl.value() * 1000L);
+        }
+        return true;
+    }
+
+    /**
+     * Returns an address of the network to the free ones.
+     */
+    public void release(long networkId, String address) {
+        NetworkIps ips = _networks.get(networkId);
+        if (ips == null || address == null || !NetUtils.isValidIp(address)) {
+            return;
+        }
+        long ip = NetUtils.ip2Long(address);
+        synchronized (ips) {
+            ips._reservations.remove(ip);
+            if (!ips.isExcluded(ip)) {
+                ips._bitmap.markFree(ip);
+            }
+        }
+    }
+
+    /**
+     * Drops the bitmap of a network that is shut down or destroyed; it is rebuilt if the network is used again.
+     */
+    public void evict(long networkId) {
+        if (_networks.remove(networkId) != null && s_logger.isDebugEnabled()) {
+            s_logger.debug("Dropped the guest ip bitmap of network " + networkId);
+        }
+    }
+
+    public boolean hasFreeIp(Network network) {
+        NetworkIps ips = getNetworkIps(network);
+        synchronized (ips) {
+            if (isStale(ips)) {
+                rebuild(ips, network);
+            }
+            return ips._bitmap.getFreeCount() > 0;
+        }
+    }
+
+    /**
+     * Checks the nics, secondary ips and internal load balancer rules of the network.
+     */
+    protected boolean isIpInUse(long networkId, String address) {
+        return _nicDao.findByIp4AddressAndNetworkId(address, networkId) != null
+                || _nicSecondaryIpDao.findByIp4AddressAndNetworkId(address, networkId) != null
+                || _appLbRuleDao.countBySourceIp(new Ip(address), networkId) > 0;
+    }
+
+    private NetworkIps getNetworkIps(Network network) {
+        NetworkIps ips = _networks.get(network.getId());
+        if (ips == null || !ips._cidr.equals(network.getCidr())) {
+            String[] cidr = network.getCidr().split("/");
+            Long gateway = network.getGateway() != null ? NetUtils.ip2Long(network.getGateway()) : null;
+            NetworkIps created = new NetworkIps(network.getCidr(), NetUtils.ip2Long(cidr[0]), Integer.parseInt(cidr[1]), gateway);
+            if (ips == null) {
+                ips = _networks.putIfAbsent(network.getId(), created);
+                ips = ips != null ? ips : created;
+            } else {
+                _networks.replace(network.getId(), ips, created);
+                ips = created;
+            }
+        }
+        return ips;
+    }
+
+    private boolean isStale(NetworkIps ips) {
+        return ips._bitmap == null || System.currentTimeMillis() - ips._builtAt >= BitmapTtl.value() * 1000L;
+    }
+
+    // caller holds the lock of ips
+    private void rebuild(NetworkIps ips, Network network) {
+        long now = System.currentTimeMillis();
+        GuestIpBitmap bitmap = new GuestIpBitmap(ips._cidrAddress, ips._prefix, _random.nextInt(Integer.MAX_VALUE));
+        if (ips._gateway != null) {
+            bitmap.markUsed(ips._gateway);
+        }
+        for (String address : _networkModel.getUsedIpsInNetwork(network)) {
+            if (address != null) {
+                bitmap.markUsed(NetUtils.ip2Long(address));
+            }
+        }
+        for (Iterator<Map.Entry<Long, Long>> it = ips._reservations.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Long> reservation = it.next();
+            if (reservation.getValue() <= now) {
+                it.remove();
+            } else {
+                bitmap.markUsed(reservation.getKey());
+            }
+        }
+        ips._bitmap = bitmap;
+        ips._builtAt = now;
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Rebuilt the guest ip bitmap of network " + network.getId() + ", " + bitmap.getFreeCount() + " of "
+                    + bitmap.getSize() + " addresses free");
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return GuestIpAllocator.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {BitmapTtl};
+    }
+}
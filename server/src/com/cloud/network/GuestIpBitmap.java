@@ -0,0 +1,139 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+/**
+ * Allocation bitmap of the addresses of an IPv4 cidr, one bit per address,
+ * set when the address is in use or may not be handed out.  The network and
+ * broadcast addresses are always set.
+ *
+ * Free addresses are handed out in order from a cursor that wraps around the
+ * cidr, so that consecutive allocations do not rescan the used part of the
+ * range.  Not thread safe.
+ */
+public class GuestIpBitmap {
+    private final long _base;
+    private final int _size;
+    private final long[] _words;
+    private int _free;
+    private int _cursor;
+
+    /**
+     * @param cidrAddress any address of the cidr
+     * @param prefix cidr size, between 8 and 31
+     * @param startOffset offset in the cidr where handing out addresses starts
+     */
+    public GuestIpBitmap(long cidrAddress, int prefix, int startOffset) {
+        if (prefix < 8 || prefix > 31) {
+            throw new IllegalArgumentException("Unsupported cidr size " + prefix);
+        }
+        _size = 1 << (32 - prefix);
+        _base = cidrAddress & ~((long)_size - 1) & 0xffffffffL;
+        _words = new long[(_size + 63) >>> 6];
+        _free = _size;
+        // bits past the end of the cidr never count as free
+        for (int offset = _size; offset < _words.length << 6; offset++) {
+            _words[offset >>> 6] |= 1L << (offset & 63);
+        }
+        set(0);
+        set(_size - 1);
+        _cursor = Math.abs(startOffset % _size);
+    }
+
+    public boolean contains(long ip) {
+        return ip >= _base && ip < _base + _size;
+    }
+
+    public boolean isFree(long ip) {
+        return contains(ip) && !isSet((int)(ip - _base));
+    }
+
+    /**
+     * @return true if the address was free
+     */
+    public boolean markUsed(long ip) {
+        return contains(ip) && set((int)(ip - _base));
+    }
+
+    /**
+     * Frees an address; the network and broadcast addresses stay in use.
+     * @return true if the address was in use
+     */
+    public boolean markFree(long ip) {
+        if (!contains(ip)) {
+            return false;
+        }
+        int offset = (int)(ip - _base);
+        if (offset == 0 || offset == _size - 1 || !isSet(offset)) {
+            return false;
+        }
+        _words[offset >>> 6] &= ~(1L << (offset & 63));
+        _free++;
+        return true;
+    }
+
+    /**
+     * Marks the next free address at or after the cursor as used.
+     * @return the address, or -1 if every address is in use
+     */
+    public long allocateNext() {
+        if (_free == 0) {
+            return -1;
+        }
+        int first = _cursor >>> 6;
+        for (int i = 0; i <= _words.length; i++) {
+            int index = (first + i) % _words.length;
+            long word = _words[index];
+            if (i == 0) {
+                // on the first pass skip the bits before the cursor, they are looked at after wrapping around
+                word |= (1L << (_cursor & 63)) - 1;
+            }
+            if (word != -1L) {
+                int offset = (index << 6) + Long.numberOfTrailingZeros(~word);
+                set(offset);
+                _cursor = (offset + 1) % _size;
+                return _base + offset;
+            }
+        }
+        return -1;
+    }
+
+    public long getNetworkAddress() {
+        return _base;
+    }
+
+    public int getFreeCount() {
+        return _free;
+    }
+
+    public int getSize() {
+        return _size;
+    }
+
+    private boolean isSet(int offset) {
+        return (_words[offset >>> 6] & (1L << (offset & 63))) != 0;
+    }
+
+    private boolean set(int offset) {
+        if (isSet(offset)) {
+            return false;
+        }
+        _words[offset >>> 6] |= 1L << (offset & 63);
+        _free--;
+        return true;
+    }
+}
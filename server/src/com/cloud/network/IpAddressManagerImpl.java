@@ -161,6 +161,9 @@ import com.cloud.vm.dao.VMInstanceDao;
 public class IpAddressManagerImpl extends ManagerBase implements IpAddressManager, Configurable {
     private static final Logger s_logger = Logger.getLogger(IpAddressManagerImpl.class);
 
+    // addresses tried from the free list before locking the first free one
+    private static final int MAX_PUBLIC_IP_CLAIMS = 8;
+
     @Inject
     NetworkOrchestrationService _networkMgr = null;
     @Inject
@@ -257,6 +260,10 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
     @Inject
     NetworkModel _networkModel;
     @Inject
+    GuestIpAllocator _guestIpAllocator;
+    @Inject
+    PublicIpFreeList _publicIpFreeList;
+    @Inject
     NicSecondaryIpDao _nicSecondaryIpDao;
     @Inject
     UserIpv6AddressDao _ipv6Dao;
@@ -717,7 +724,7 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
 
         Filter filter = new Filter(IPAddressVO.class, "vlanId", true, 0l, 1l);
 
-        List<IPAddressVO> addrs = _ipAddressDao.lockRows(sc, filter, true);
+        List<IPAddressVO> addrs = claimFreePublicIp(sc, filter, requestedIp);
 
         // If all the dedicated IPs of the owner are in use fetch an IP from the system pool
         if (addrs.size() == 0 && fetchFromDedicatedRange) {
@@ -727,7 +734,7 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
                 fetchFromDedicatedRange = false;
                 sc.setParameters("vlanId", nonDedicatedVlanDbIds.toArray());
                 errorMessage.append(", vlanId id=" + nonDedicatedVlanDbIds.toArray());
-                addrs = _ipAddressDao.lockRows(sc, filter, true);
+                addrs = claimFreePublicIp(sc, filter, requestedIp);
             }
         }
 
@@ -786,6 +793,37 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
         return PublicIp.createFromAddrAndVlan(addr, _vlanDao.findById(addr.getVlanId()));
     }
 
+    /**
+     * Allocates the first free address matching sc.  The vlan ip range to take
+     * it from is looked up without locking anything, and an address of that
+     * range is claimed through the free list; only when that keeps failing is
+     * the first free address locked the old way.
+     */
+    private List<IPAddressVO> claimFreePublicIp(SearchCriteria<IPAddressVO> sc, Filter filter, String requestedIp) {
+        if (requestedIp == null && _publicIpFreeList.isEnabled()) {
+            List<IPAddressVO> candidates = _ipAddressDao.search(sc, filter);
+            if (candidates.isEmpty()) {
+                return candidates;
+            }
+            long vlanDbId = candidates.get(0).getVlanId();
+            for (int i = 0; i < MAX_PUBLIC_IP_CLAIMS; i++) {
+                Long id = _publicIpFreeList.poll(vlanDbId);
+                if (id == null) {
+                    break;
+                }
+                boolean claimed = _ipAddressDao.claim(id);
+                _publicIpFreeList.recordClaim(claimed);
+                if (claimed) {
+                    List<IPAddressVO> addrs = new ArrayList<IPAddressVO>(1);
+                    addrs.add(_ipAddressDao.findById(id));
+                    return addrs;
+                }
+            }
+            _publicIpFreeList.recordFallback();
+        }
+        return _ipAddressDao.lockRows(sc, filter, true);
+    }
+
     @DB
     @Override
     public void markPublicIpAsAllocated(IPAddressVO addr) {
@@ -1649,6 +1687,27 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return null;
         }
 
+        if (!_guestIpAllocator.supports(network)) {
+            return acquireGuestIpAddressFromAvailableIps(network, requestedIp);
+        }
+
+        if (requestedIp != null) {
+            String[] cidr = network.getCidr().split("/");
+            if (!NetUtils.sameSubnetCIDR(requestedIp, cidr[0], Integer.parseInt(cidr[1]))) {
+                s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
+                return null;
+            }
+            if (!_guestIpAllocator.reserve(network, requestedIp)) {
+                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+                return null;
+            }
+            return requestedIp;
+        }
+
+        return _guestIpAllocator.allocate(network);
+    }
+
+    private String acquireGuestIpAddressFromAvailableIps(Network network, String requestedIp) {
         Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
 
         if (availableIps == null || availableIps.isEmpty()) {
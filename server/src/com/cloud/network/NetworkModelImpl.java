@@ -191,6 +191,8 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
     @Inject
     NicSecondaryIpDao _nicSecondaryIpDao;
     @Inject
+    GuestIpAllocator _guestIpAllocator;
+    @Inject
     ApplicationLoadBalancerRuleDao _appLbRuleDao;
     @Inject
     private ProjectAccountDao _projectAccountDao;
@@ -581,6 +583,8 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
         	if (network.getIp6Gateway() != null) {
         		hasFreeIps = isIP6AddressAvailableInNetwork(network.getId());
         	}
+        } else if (_guestIpAllocator.supports(network)) {
+            hasFreeIps = _guestIpAllocator.hasFreeIp(network);
         } else {
             hasFreeIps = (getAvailableIps(network, null)).size() > 0;
         }
@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+
+import com.cloud.network.dao.IPAddressDao;
+
+/**
+ * Free public addresses of each vlan ip range, split by id into
+ * public.ip.allocation.stripes stripes.  Each management server hands out
+ * the addresses of its own stripe first and only then takes from the
+ * others, so that concurrent allocations, on this server or on others, do
+ * not all go after the first free address of the range.
+ *
+ * The lists are only hints: an address is allocated by {@link IPAddressDao#claim},
+ * which fails if someone else got to it first, in which case the caller
+ * moves on to the next one.  The addresses of a range are loaded from the
+ * database when it is first used, once its lists run dry and at the latest
+ * every public.ip.allocation.refresh seconds, which picks up released addresses.
+ */
+@Component
+public class PublicIpFreeList implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(PublicIpFreeList.class);
+
+    static final ConfigKey<Integer> Stripes = new ConfigKey<Integer>("Network", Integer.class, "public.ip.allocation.stripes", "8",
+            "Number of stripes the free public IPs of a vlan ip range are split in, management servers allocate from different stripes; 0 locks the first free IP instead", false);
+    static final ConfigKey<Integer> RefreshInterval = new ConfigKey<Integer>("Network", Integer.class, "public.ip.allocation.refresh", "60",
+            "Time (in seconds) after which the free public IPs of a vlan ip range are reloaded from the database", true);
+
+    @Inject
+    IPAddressDao _ipAddressDao;
+
+    long _nodeId = ManagementServerNode.getManagementServerId();
+
+    private final ConcurrentHashMap<Long, VlanFreeIps> _vlans = new ConcurrentHashMap<Long, VlanFreeIps>();
+
+    private final AtomicLong _claims = new AtomicLong();
+    private final AtomicLong _claimMisses = new AtomicLong();
+    private final AtomicLong _steals = new AtomicLong();
+    private final AtomicLong _reloads = new AtomicLong();
+    private final AtomicLong _fallbacks = new AtomicLong();
+
+    static class VlanFreeIps {
+        final ArrayDeque<Long>[] _stripes;
+        long _loadedAt;
+        // the last load found no free address
+        boolean _exhausted;
+
+        @SuppressWarnings("unchecked")
+        VlanFreeIps(int stripes) {
+            _stripes = new ArrayDeque[stripes];
+            for (int i = 0; i < stripes; i++) {
+                _stripes[i] = new ArrayDeque<Long>();
+            }
+        }
+
+        boolean isEmpty() {
+            for (ArrayDeque<Long> stripe : _stripes) {
+                if (!stripe.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public boolean isEnabled() {
+        return Stripes.value() > 0;
+    }
+
+    /**
+     * @return the id of a free looking address of the vlan ip range, which
+     * is no longer handed out by this list, or null if the range has none
+     */
+    public Long poll(long vlanDbId) {
+        int stripes = Math.max(1, Stripes.value());
+        VlanFreeIps ips = _vlans.get(vlanDbId);
+        if (ips == null) {
+            ips = new VlanFreeIps(stripes);
+            VlanFreeIps existing = _vlans.putIfAbsent(vlanDbId, ips);
+            if (existing != null) {
+                ips = existing;
+            }
+        }
+
+        synchronized (ips) {
+            long now = System.currentTimeMillis();
+            if (ips._loadedAt == 0 || now - ips._loadedAt >= RefreshInterval.value() * 1000L || ips.isEmpty()) {
+                load(vlanDbId, ips, now);
+            }
+            int count = ips._stripes.length;
+            int own = getStripe(count);
+            for (int i = 0; i < count; i++) {
+                Long id = ips._stripes[(own + i) % count].poll();
+                if (id != null) {
+                    if (i > 0) {
+                        _steals.incrementAndGet();
+                    }
+                    return id;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void recordClaim(boolean claimed) {
+        (claimed ? _claims : _claimMisses).incrementAndGet();
+    }
+
+    public void recordFallback() {
+        _fallbacks.incrementAndGet();
+    }
+
+    public long getClaimCount() {
+        return _claims.get();
+    }
+
+    public long getClaimMissCount() {
+        return _claimMisses.get();
+    }
+
+    public long getStealCount() {
+        return _steals.get();
+    }
+
+    public long getReloadCount() {
+        return _reloads.get();
+    }
+
+    public long getFallbackCount() {
+        return _fallbacks.get();
+    }
+
+    int getStripe(int stripes) {
+        return (int)((_nodeId & Long.MAX_VALUE) % stripes);
+    }
+
+    // caller holds the lock of ips
+    private void load(long vlanDbId, VlanFreeIps ips, long now) {
+        // reloading right after an unsuccessful load would only hammer the database for a full range
+        if (ips._exhausted && now - ips._loadedAt < 1000L) {
+            return;
+        }
+        for (ArrayDeque<Long> stripe : ips._stripes) {
+            stripe.clear();
+        }
+        List<Long> ids = _ipAddressDao.listFreeIdsInVlan(vlanDbId);
+        for (Long id : ids) {
+            ips._stripes[(int)(id % ips._stripes.length)].add(id);
+        }
+        ips._loadedAt = now;
+        ips._exhausted = ids.isEmpty();
+        long reloads = _reloads.incrementAndGet();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded " + ids.size() + " free public ips of vlan " + vlanDbId + " in " + ips._stripes.length + " stripes; " + reloads + " loads, "
+                    + _claims.get() + " claims, " + _claimMisses.get() + " lost to other allocations, " + _steals.get() + " from other stripes, " + _fallbacks.get()
+                    + " locked the first free ip");
+        }
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return PublicIpFreeList.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {Stripes, RefreshInterval};
+    }
+}
@@ -0,0 +1,91 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.network.dao.ServiceMapCache;
+import com.cloud.utils.component.ManagerBase;
+
+/**
+ * Carries the service map cache invalidations of the network and network offering DAOs
+ * between the management servers.  Invalidations published on the local message bus are
+ * broadcast to the other nodes, which publish them on their own message bus.
+ */
+@Component
+public class ServiceMapCacheSync extends ManagerBase implements Configurable, ClusterManager.NotificationListener {
+    private static final Logger s_logger = Logger.getLogger(ServiceMapCacheSync.class);
+
+    // sender address of the invalidations that came from another management server
+    static final String CLUSTER_SENDER = "cluster";
+
+    @Inject
+    MessageBus _messageBus;
+    @Inject
+    ClusterManager _clusterMgr;
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _messageBus.subscribe(ServiceMapCache.TOPIC, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if (!CLUSTER_SENDER.equals(senderAddress)) {
+                    _clusterMgr.broadcastNotification(subject, args != null ? args.toString() : "");
+                }
+            }
+        });
+        _clusterMgr.registerNotificationListener(ServiceMapCache.NETWORK_TOPIC, this);
+        _clusterMgr.registerNotificationListener(ServiceMapCache.OFFERING_TOPIC, this);
+        return true;
+    }
+
+    @Override
+    public void onNotification(String sourcePeer, String topic, String content) {
+        Long ownerId = null;
+        if (content != null && !content.isEmpty()) {
+            try {
+                ownerId = Long.valueOf(content);
+            } catch (NumberFormatException e) {
+                s_logger.warn("Invalid service map invalidation " + content + " from " + sourcePeer + ", invalidating all");
+            }
+        }
+        _messageBus.publish(CLUSTER_SENDER, topic, PublishScope.LOCAL, ownerId);
+    }
+
+    @Override
+    public String getConfigComponentName() {
+        return ServiceMapCacheSync.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {ServiceMapCache.TimeToLive};
+    }
+}
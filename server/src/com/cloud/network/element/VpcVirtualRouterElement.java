@@ -54,6 +54,7 @@ import com.cloud.network.vpc.NetworkACLItemVO;
 import com.cloud.network.vpc.PrivateGateway;
 import com.cloud.network.vpc.StaticRouteProfile;
 import com.cloud.network.vpc.Vpc;
+import com.cloud.network.vpc.VpcConfigurationPlan;
 import com.cloud.network.vpc.VpcGateway;
 import com.cloud.network.vpc.VpcManager;
 import com.cloud.network.vpc.dao.VpcGatewayDao;
@@ -447,7 +448,9 @@ public class VpcVirtualRouterElement extends VirtualRouterElement implements Vpc
             return true;
         }
 
-        if (!_vpcRouterMgr.applyStaticRoutes(routes, routers)) {
+        VpcConfigurationPlan plan = new VpcConfigurationPlan(vpc.getId());
+        plan.setStaticRoutes(routes);
+        if (!_vpcRouterMgr.applyVpcConfiguration(plan, routers)) {
             throw new CloudRuntimeException("Failed to apply static routes in vpc " + vpc);
         } else {
             s_logger.debug("Applied static routes on vpc " + vpc);
@@ -455,6 +458,22 @@ public class VpcVirtualRouterElement extends VirtualRouterElement implements Vpc
         }
     }
 
+    @Override
+    public boolean applyVpcConfiguration(Vpc vpc, VpcConfigurationPlan plan) throws ResourceUnavailableException {
+        List<DomainRouterVO> routers = _vpcRouterMgr.getVpcRouters(vpc.getId());
+        if (routers == null || routers.isEmpty()) {
+            s_logger.debug("Virtual router element doesn't need to apply " + plan + " on the backend; virtual " +
+                    "router doesn't exist in the vpc " + vpc);
+            return true;
+        }
+
+        if (!_vpcRouterMgr.applyVpcConfiguration(plan, routers)) {
+            throw new CloudRuntimeException("Failed to apply " + plan + " in vpc " + vpc);
+        } else {
+            return true;
+        }
+    }
+
     @Override
     public boolean applyACLItemsToPrivateGw(PrivateGateway gateway,List<? extends NetworkACLItem> rules) throws ResourceUnavailableException {
         Network config = _networkDao.findById(gateway.getNetworkId());
@@ -19,6 +19,7 @@ package com.cloud.network.firewall;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -508,6 +509,7 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
     }
 
     @Override
+    @DB
     public boolean applyRules(List<? extends FirewallRule> rules, boolean continueOnError, boolean updateRulesInDB)
             throws ResourceUnavailableException {
         boolean success = true;
@@ -521,6 +523,11 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
             return false;
         } else {
             if (updateRulesInDB) {
+                // the state of the whole rule set is committed at once, the ips left without
+                // rules are unassigned from their VPC network once it is
+                Map<Long, Long> releasedIps = new LinkedHashMap<Long, Long>();
+                Transaction txn = Transaction.currentTxn();
+                txn.start();
                 for (FirewallRule rule : rules) {
                     if (rule.getState() == FirewallRule.State.Revoke) {
                         FirewallRuleVO relatedRule = _firewallDao.findByRelatedId(rule.getId());
@@ -531,9 +538,7 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
                         } else {
                             removeRule(rule);
                             if (rule.getSourceIpAddressId() != null) {
-                                //if the rule is the last one for the ip address assigned to VPC, unassign it from the network
-                                IpAddress ip = _ipAddressDao.findById(rule.getSourceIpAddressId());
-                                _vpcMgr.unassignIPFromVpcNetwork(ip.getId(), rule.getNetworkId());
+                                releasedIps.put(rule.getSourceIpAddressId(), rule.getNetworkId());
                             }
                         }
                     } else if (rule.getState() == FirewallRule.State.Add) {
@@ -542,6 +547,13 @@ public class FirewallManagerImpl extends ManagerBase implements FirewallService,
                         _firewallDao.update(ruleVO.getId(), ruleVO);
                     }
                 }
+                txn.commit();
+
+                for (Map.Entry<Long, Long> releasedIp : releasedIps.entrySet()) {
+                    //if the rule is the last one for the ip address assigned to VPC, unassign it from the network
+                    IpAddress ip = _ipAddressDao.findById(releasedIp.getKey());
+                    _vpcMgr.unassignIPFromVpcNetwork(ip.getId(), releasedIp.getValue());
+                }
             }
         }
 
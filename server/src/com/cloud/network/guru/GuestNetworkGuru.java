@@ -44,6 +44,7 @@ import com.cloud.event.EventVO;
 import com.cloud.exception.InsufficientAddressCapacityException;
 import com.cloud.exception.InsufficientVirtualNetworkCapcityException;
 import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.network.GuestIpAllocator;
 import com.cloud.network.IpAddressManager;
 import com.cloud.network.Network;
 import com.cloud.network.Network.Provider;
@@ -104,6 +105,8 @@ public abstract class GuestNetworkGuru extends AdapterBase implements NetworkGur
     ConfigurationServer _configServer;
     @Inject
     IpAddressManager _ipAddrMgr;
+    @Inject
+    GuestIpAllocator _guestIpAllocator;
     Random _rand = new Random(System.currentTimeMillis());
     
     static final ConfigKey<Boolean> UseSystemGuestVlans = new ConfigKey<Boolean>("Advanced", Boolean.class, "use.system.guest.vlans", "true",
@@ -232,6 +235,8 @@ public abstract class GuestNetworkGuru extends AdapterBase implements NetworkGur
                 txn.commit();
             }
             nic.deallocate();
+        } else if (nic.getIp4Address() != null) {
+            _guestIpAllocator.release(network.getId(), nic.getIp4Address());
         }
     }
 
@@ -421,10 +426,12 @@ public abstract class GuestNetworkGuru extends AdapterBase implements NetworkGur
                             + BroadcastDomainType.getValue(profile.getBroadcastUri()) + " for Network: " + profile.getId(), 0);
         }
         profile.setBroadcastUri(null);
+        _guestIpAllocator.evict(profile.getId());
     }
 
     @Override
     public boolean trash(Network network, NetworkOffering offering) {
+        _guestIpAllocator.evict(network.getId());
         return true;
     }
 
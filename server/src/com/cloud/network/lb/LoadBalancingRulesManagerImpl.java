@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -939,6 +940,10 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
     }
 
     private boolean isRollBackAllowedForProvider(LoadBalancerVO loadBalancer) {
+        // Netscaler and F5 only serve the public scheme
+        if (loadBalancer.getScheme() != Scheme.Public) {
+            return false;
+        }
         Network network = _networkDao.findById(loadBalancer.getNetworkId());
         List<Provider> provider = _networkMgr.getProvidersForServiceInNetwork(network, Service.Lb);
         if (provider == null || provider.size() == 0) {
@@ -1207,44 +1212,12 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
             boolean rollBack) {
         LoadBalancerVO lb = _lbDao.findById(loadBalancerId);
         Transaction txn = Transaction.currentTxn();
-        boolean generateUsageEvent = false;
         boolean success = true;
         FirewallRule.State backupState = lb.getState();
 
         txn.start();
-        if (lb.getState() == FirewallRule.State.Staged) {
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Found a rule that is still in stage state so just removing it: " + lb);
-            }
-            generateUsageEvent = true;
-        } else if (lb.getState() == FirewallRule.State.Add || lb.getState() == FirewallRule.State.Active) {
-            lb.setState(FirewallRule.State.Revoke);
-            _lbDao.persist(lb);
-            generateUsageEvent = true;
-        }
         List<LoadBalancerVMMapVO> backupMaps = _lb2VmMapDao.listByLoadBalancerId(loadBalancerId);
-        List<LoadBalancerVMMapVO> maps = _lb2VmMapDao.listByLoadBalancerId(loadBalancerId);
-        if (maps != null) {
-            for (LoadBalancerVMMapVO map : maps) {
-                map.setRevoke(true);
-                _lb2VmMapDao.persist(map);
-                s_logger.debug("Set load balancer rule for revoke: rule id " + loadBalancerId + ", vmId "
-                        + map.getInstanceId());
-            }
-        }
-
-        List<LBHealthCheckPolicyVO> hcPolicies = _lb2healthcheckDao.listByLoadBalancerId(loadBalancerId);
-        for (LBHealthCheckPolicyVO lbHealthCheck : hcPolicies) {
-            lbHealthCheck.setRevoke(true);
-            _lb2healthcheckDao.persist(lbHealthCheck);
-        }
-
-        if (generateUsageEvent) {
-            // Generate usage event right after all rules were marked for revoke
-            UsageEventUtils.publishUsageEvent(EventTypes.EVENT_LOAD_BALANCER_DELETE, lb.getAccountId(), 0, lb.getId(),
-                    null, LoadBalancingRule.class.getName(), lb.getUuid());
-        }
-
+        markLoadBalancerRuleForRevoke(lb);
         txn.commit();
 
         // gather external network usage stats for this lb rule
@@ -1300,6 +1273,161 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
         return success;
     }
 
+    protected void markLoadBalancerRuleForRevoke(LoadBalancerVO lb) {
+        long loadBalancerId = lb.getId();
+        boolean generateUsageEvent = false;
+        if (lb.getState() == FirewallRule.State.Staged) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found a rule that is still in stage state so just removing it: " + lb);
+            }
+            generateUsageEvent = true;
+        } else if (lb.getState() == FirewallRule.State.Add || lb.getState() == FirewallRule.State.Active) {
+            lb.setState(FirewallRule.State.Revoke);
+            _lbDao.persist(lb);
+            generateUsageEvent = true;
+        }
+        List<LoadBalancerVMMapVO> maps = _lb2VmMapDao.listByLoadBalancerId(loadBalancerId);
+        if (maps != null) {
+            for (LoadBalancerVMMapVO map : maps) {
+                map.setRevoke(true);
+                _lb2VmMapDao.persist(map);
+                s_logger.debug("Set load balancer rule for revoke: rule id " + loadBalancerId + ", vmId "
+                        + map.getInstanceId());
+            }
+        }
+
+        List<LBHealthCheckPolicyVO> hcPolicies = _lb2healthcheckDao.listByLoadBalancerId(loadBalancerId);
+        for (LBHealthCheckPolicyVO lbHealthCheck : hcPolicies) {
+            lbHealthCheck.setRevoke(true);
+            _lb2healthcheckDao.persist(lbHealthCheck);
+        }
+
+        if (generateUsageEvent) {
+            // Generate usage event right after all rules were marked for revoke
+            UsageEventUtils.publishUsageEvent(EventTypes.EVENT_LOAD_BALANCER_DELETE, lb.getAccountId(), 0, lb.getId(),
+                    null, LoadBalancingRule.class.getName(), lb.getUuid());
+        }
+    }
+
+    @Override
+    @DB
+    @ActionEvent(eventType = EventTypes.EVENT_LOAD_BALANCER_DELETE, eventDescription = "deleting load balancers", async = true)
+    public boolean deleteLoadBalancerRules(List<Long> loadBalancerIds, boolean apply) {
+        CallContext ctx = CallContext.current();
+        Account caller = ctx.getCallingAccount();
+
+        if (loadBalancerIds == null || loadBalancerIds.isEmpty()) {
+            throw new InvalidParameterValueException("No load balancer rules specified");
+        }
+
+        Set<Long> missingIds = new LinkedHashSet<Long>(loadBalancerIds);
+        List<LoadBalancerVO> lbs = _lbDao.listByIds(missingIds);
+        for (LoadBalancerVO lb : lbs) {
+            missingIds.remove(lb.getId());
+        }
+        if (!missingIds.isEmpty()) {
+            throw new InvalidParameterValueException("Unable to find load balancer rules " + missingIds);
+        }
+
+        _accountMgr.checkAccess(caller, null, true, lbs.toArray(new LoadBalancerVO[lbs.size()]));
+
+        long networkId = lbs.get(0).getNetworkId();
+        Set<Scheme> schemes = new HashSet<Scheme>();
+        for (LoadBalancerVO lb : lbs) {
+            if (lb.getNetworkId() != networkId) {
+                throw new InvalidParameterValueException("Load balancer rules to delete together have to belong to the same network");
+            }
+            schemes.add(lb.getScheme());
+        }
+
+        // mark all the rules, their mappings and related firewall rules for revoke at once
+        Map<Long, FirewallRule.State> backupStates = new HashMap<Long, FirewallRule.State>();
+        Map<Long, List<LoadBalancerVMMapVO>> backupMaps = new HashMap<Long, List<LoadBalancerVMMapVO>>();
+        Set<Long> firewallIpIds = new LinkedHashSet<Long>();
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        for (LoadBalancerVO lb : lbs) {
+            backupStates.put(lb.getId(), lb.getState());
+            backupMaps.put(lb.getId(), _lb2VmMapDao.listByLoadBalancerId(lb.getId()));
+            if (_firewallDao.findByRelatedId(lb.getId()) != null) {
+                _firewallMgr.revokeRelatedFirewallRule(lb.getId(), false);
+                firewallIpIds.add(lb.getSourceIpAddressId());
+            }
+            markLoadBalancerRuleForRevoke(lb);
+        }
+        txn.commit();
+
+        // gather external network usage stats for these lb rules
+        NetworkVO network = _networkDao.findById(networkId);
+        if (network != null && _networkModel.networkIsConfiguredForExternalNetworking(network.getDataCenterId(), network.getId())) {
+            for (LoadBalancerVO lb : lbs) {
+                _externalDeviceUsageMgr.updateExternalLoadBalancerNetworkUsageStats(lb.getId());
+            }
+        }
+
+        boolean success = true;
+        if (apply) {
+            List<FirewallRuleVO> firewallRules = new ArrayList<FirewallRuleVO>();
+            for (Long ipId : firewallIpIds) {
+                firewallRules.addAll(_firewallDao.listByIpAndPurpose(ipId, Purpose.Firewall));
+            }
+            if (!firewallRules.isEmpty() && !_firewallMgr.applyFirewallRules(firewallRules, false, caller)) {
+                s_logger.warn("Unable to apply the firewall rules related to load balancers " + loadBalancerIds);
+                success = false;
+            }
+
+            // one consolidated rule set per scheme goes to the provider; whether a failure is rolled
+            // back depends on the provider of that scheme
+            for (Scheme scheme : schemes) {
+                List<LoadBalancerVO> schemeLbs = new ArrayList<LoadBalancerVO>();
+                for (LoadBalancerVO lb : lbs) {
+                    if (lb.getScheme() == scheme) {
+                        schemeLbs.add(lb);
+                    }
+                }
+                boolean rollBack = isRollBackAllowedForProvider(schemeLbs.get(0));
+                try {
+                    List<LoadBalancerVO> lbsToApply = rollBack ? schemeLbs : _lbDao.listInTransitionStateByNetworkIdAndScheme(networkId, scheme);
+                    if (!applyLoadBalancerRules(lbsToApply, true)) {
+                        s_logger.warn("Unable to apply the load balancer config");
+                        return false;
+                    }
+                } catch (ResourceUnavailableException e) {
+                    if (rollBack) {
+                        for (LoadBalancerVO lb : schemeLbs) {
+                            for (LoadBalancerVMMapVO map : backupMaps.get(lb.getId())) {
+                                _lb2VmMapDao.persist(map);
+                                s_logger.debug("LB Rollback rule id: " + lb.getId() + ", vmId " + map.getInstanceId());
+                            }
+                            lb.setState(backupStates.get(lb.getId()));
+                            _lbDao.persist(lb);
+                            s_logger.debug("LB Rollback rule id: " + lb.getId() + " while deleting LB rule.");
+                        }
+                    } else {
+                        s_logger.warn("Unable to apply the load balancer config because resource is unavaliable.", e);
+                    }
+                    return false;
+                }
+            }
+        }
+
+        for (LoadBalancerVO lb : lbs) {
+            FirewallRuleVO relatedRule = _firewallDao.findByRelatedId(lb.getId());
+            if (relatedRule != null) {
+                s_logger.warn("Unable to remove firewall rule id=" + lb.getId() + " as it has related firewall rule id="
+                        + relatedRule.getId() + "; leaving it in Revoke state");
+                success = false;
+            } else {
+                _firewallMgr.removeRule(lb);
+            }
+        }
+
+        if (success) {
+            s_logger.debug("Load balancers " + loadBalancerIds + " are removed successfully");
+        }
+        return success;
+    }
+
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_LOAD_BALANCER_CREATE, eventDescription = "creating load balancer")
     public LoadBalancer createPublicLoadBalancerRule(String xId, String name, String description,
@@ -1595,13 +1723,15 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
         }
 
         if (updateRulesInDB) {
+            // the state of the whole rule set is committed at once, the source ips are
+            // released afterwards as that may need to go to the network elements again
+            Set<Long> removedLbIds = new HashSet<Long>();
+            txn.start();
             for (LoadBalancerVO lb : lbs) {
-                boolean checkForReleaseElasticIp = false;
-                txn.start();
                 if (lb.getState() == FirewallRule.State.Revoke) {
                     removeLBRule(lb);
                     s_logger.debug("LB " + lb.getId() + " is successfully removed");
-                    checkForReleaseElasticIp = true;
+                    removedLbIds.add(lb.getId());
                 } else if (lb.getState() == FirewallRule.State.Add) {
                     lb.setState(FirewallRule.State.Active);
                     s_logger.debug("LB rule " + lb.getId() + " state is set to Active");
@@ -1644,9 +1774,15 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
                     _lb2healthcheckDao.remove(lb.getId(), true);
                     s_logger.debug("Load balancer rule id " + lb.getId() + " is removed health check monitors policies");
                 }
+            }
+            txn.commit();
 
-                txn.commit();
-                if (checkForReleaseElasticIp && lb.getSourceIpAddressId() != null) {
+            Set<Long> releasedIpIds = new HashSet<Long>();
+            for (LoadBalancerVO lb : lbs) {
+                if (lb.getSourceIpAddressId() == null || !releasedIpIds.add(lb.getSourceIpAddressId())) {
+                    continue;
+                }
+                if (removedLbIds.contains(lb.getId())) {
                     boolean success = true;
                     long count = _firewallDao.countRulesByIpId(lb.getSourceIpAddressId());
                     if (count == 0) {
@@ -1665,10 +1801,8 @@ public class LoadBalancingRulesManagerImpl<Type> extends ManagerBase implements
                 }
                 // if the rule is the last one for the ip address assigned to
                 // VPC, unassign it from the network
-                if (lb.getSourceIpAddressId() != null) {
-                    IpAddress ip = _ipAddressDao.findById(lb.getSourceIpAddressId());
-                    _vpcMgr.unassignIPFromVpcNetwork(ip.getId(), lb.getNetworkId());
-                }
+                IpAddress ip = _ipAddressDao.findById(lb.getSourceIpAddressId());
+                _vpcMgr.unassignIPFromVpcNetwork(ip.getId(), lb.getNetworkId());
             }
         }
 
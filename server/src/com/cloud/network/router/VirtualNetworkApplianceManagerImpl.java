@@ -31,11 +31,15 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -46,6 +50,7 @@ import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
@@ -85,6 +90,7 @@ import com.cloud.agent.api.routing.SetFirewallRulesCommand;
 import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
 import com.cloud.agent.api.routing.SetPortForwardingRulesVpcCommand;
 import com.cloud.agent.api.routing.SetStaticNatRulesCommand;
+import com.cloud.agent.api.routing.VmConfigBundleCommand;
 import com.cloud.agent.api.routing.VmDataCommand;
 import com.cloud.agent.api.routing.VpnUsersCfgCommand;
 import com.cloud.agent.api.to.DhcpTO;
@@ -263,7 +269,7 @@ import com.cloud.vm.dao.VMInstanceDao;
  */
 @Local(value = { VirtualNetworkApplianceManager.class, VirtualNetworkApplianceService.class })
 public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements VirtualNetworkApplianceManager, VirtualNetworkApplianceService,
-        VirtualMachineGuru, Listener {
+        VirtualMachineGuru, Listener, Configurable {
     private static final Logger s_logger = Logger.getLogger(VirtualNetworkApplianceManagerImpl.class);
 
     @Inject
@@ -380,6 +386,8 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     int _rvrStatusUpdatePoolSize = 10;
     protected ServiceOfferingVO _offering;
     private String _dnsBasicZoneUpdates = "all";
+    // versions of the config bundles sent to routers, only used to tell them apart in the logs
+    private final AtomicLong _configBundleVersion = new AtomicLong(System.currentTimeMillis());
     private final Set<String> _guestOSNeedGatewayOnNonDefaultNetwork = new HashSet<String>();
 
     private boolean _disable_rp_filter = false;
@@ -395,6 +403,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     ScheduledExecutorService _checkExecutor;
     ScheduledExecutorService _networkStatsUpdateExecutor;
     ExecutorService _rvrStatusUpdateExecutor;
+    ExecutorService _routerStatsExecutor;
 
     Account _systemAcct;
 
@@ -639,6 +648,12 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     }
     static final ConfigKey<Boolean> UseExternalDnsServers = new ConfigKey<Boolean>(Boolean.class, "use.external.dns", "Advanced", "false",
         "Bypass internal dns, use external dns1 and dns2", true, ConfigKey.Scope.Zone, null);
+    static final ConfigKey<Integer> RouterConfigBundleThreshold = new ConfigKey<Integer>(Integer.class, "router.config.bundle.threshold", "Advanced", "10",
+        "Number of dhcp and vm data entries of a guest network from which they are sent to a KVM virtual router as one config bundle on start, 0 to always send them one by one", true, ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> RouterStatsPoolSize = new ConfigKey<Integer>(Integer.class, "router.stats.poolsize", "Advanced", "10",
+        "Number of hosts queried in parallel when collecting network usage from virtual routers", false, ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> RouterStatsBatchSize = new ConfigKey<Integer>(Integer.class, "router.stats.batch.size", "Advanced", "20",
+        "Number of virtual routers of a host whose network usage is collected in one request", true, ConfigKey.Scope.Global, null);
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
 
@@ -730,6 +745,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     @Override
     public boolean start() {
         if (_routerStatsInterval > 0){
+            _routerStatsExecutor = Executors.newFixedThreadPool(Math.max(1, RouterStatsPoolSize.value()), new NamedThreadFactory("RouterStatsCollector"));
             _executor.scheduleAtFixedRate(new NetworkUsageTask(), _routerStatsInterval, _routerStatsInterval, TimeUnit.SECONDS);
         }else{
             s_logger.debug("router.stats.interval - " + _routerStatsInterval+ " so not scheduling the router stats thread");
@@ -788,6 +804,9 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public boolean stop() {
+        if (_routerStatsExecutor != null) {
+            _routerStatsExecutor.shutdownNow();
+        }
         return true;
     }
 
@@ -859,106 +878,288 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         @Override
         protected void runInContext() {
             try{
+                final long startTime = System.currentTimeMillis();
                 final List<DomainRouterVO> routers = _routerDao.listByStateAndNetworkType(State.Running, GuestType.Isolated, mgmtSrvrId);
                 s_logger.debug("Found " + routers.size() + " running routers. ");
 
+                // Routers are grouped by host, each host gets the usage commands of its routers in batches
+                // and at most router.stats.poolsize hosts are queried at a time
+                Map<Long, List<DomainRouterVO>> routersByHost = new HashMap<Long, List<DomainRouterVO>>();
                 for (DomainRouterVO router : routers) {
-                    String privateIP = router.getPrivateIpAddress();
-
-                    if (privateIP != null) {
-                        boolean forVpc = router.getVpcId() != null;
-                        List<? extends Nic> routerNics = _nicDao.listByVmId(router.getId());
-                        for (Nic routerNic : routerNics) {
-                            Network network = _networkModel.getNetwork(routerNic.getNetworkId());
-                            //Send network usage command for public nic in VPC VR
-                            //Send network usage command for isolated guest nic of non VPC VR
-                            if ((forVpc && network.getTrafficType() == TrafficType.Public) || (!forVpc && network.getTrafficType() == TrafficType.Guest && network.getGuestType() == Network.GuestType.Isolated)) {
-                                final NetworkUsageCommand usageCmd = new NetworkUsageCommand(privateIP, router.getHostName(),
-                                        forVpc, routerNic.getIp4Address());
-                                String routerType = router.getType().toString();
-                                UserStatisticsVO previousStats = _userStatsDao.findBy(router.getAccountId(),
-                                        router.getDataCenterId(), network.getId(), (forVpc ? routerNic.getIp4Address() : null), router.getId(), routerType);
-                                NetworkUsageAnswer answer = null;
-                                try {
-                                    answer = (NetworkUsageAnswer) _agentMgr.easySend(router.getHostId(), usageCmd);
-                                } catch (Exception e) {
-                                    s_logger.warn("Error while collecting network stats from router: " + router.getInstanceName() + " from host: " + router.getHostId(), e);
-                                    continue;
-                                }
+                    if (router.getPrivateIpAddress() == null || router.getHostId() == null) {
+                        continue;
+                    }
+                    List<DomainRouterVO> hostRouters = routersByHost.get(router.getHostId());
+                    if (hostRouters == null) {
+                        hostRouters = new ArrayList<DomainRouterVO>();
+                        routersByHost.put(router.getHostId(), hostRouters);
+                    }
+                    hostRouters.add(router);
+                }
 
-                                if (answer != null) {
-                                    if (!answer.getResult()) {
-                                        s_logger.warn("Error while collecting network stats from router: " + router.getInstanceName() + " from host: " + router.getHostId() + "; details: " + answer.getDetails());
-                                        continue;
-                                    }
-                                    Transaction txn = Transaction.open(Transaction.CLOUD_DB);
-                                    try {
-                                        if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
-                                            s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
-                                            continue;
-                                        }
-                                        txn.start();
-                                        UserStatisticsVO stats = _userStatsDao.lock(router.getAccountId(),
-                                                router.getDataCenterId(), network.getId(), (forVpc ? routerNic.getIp4Address() : null), router.getId(), routerType);
-                                        if (stats == null) {
-                                            s_logger.warn("unable to find stats for account: " + router.getAccountId());
-                                            continue;
-                                        }
-
-                                        if (previousStats != null
-                                                && ((previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived())
-                                                || (previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent()))) {
-                                            s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. " +
-                                                    "Ignoring current answer. Router: " + answer.getRouterName() + " Rcvd: " +
-                                                    answer.getBytesReceived() + "Sent: " + answer.getBytesSent());
-                                            continue;
-                                        }
-
-                                        if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
-                                            if (s_logger.isDebugEnabled()) {
-                                                s_logger.debug("Received # of bytes that's less than the last one.  " +
-                                                        "Assuming something went wrong and persisting it. Router: " +
-                                                        answer.getRouterName() + " Reported: " + answer.getBytesReceived()
-                                                        + " Stored: " + stats.getCurrentBytesReceived());
-                                            }
-                                            stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                                        }
-                                        stats.setCurrentBytesReceived(answer.getBytesReceived());
-                                        if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
-                                            if (s_logger.isDebugEnabled()) {
-                                                s_logger.debug("Received # of bytes that's less than the last one.  " +
-                                                        "Assuming something went wrong and persisting it. Router: " +
-                                                        answer.getRouterName() + " Reported: " + answer.getBytesSent()
-                                                        + " Stored: " + stats.getCurrentBytesSent());
-                                            }
-                                            stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                                        }
-                                        stats.setCurrentBytesSent(answer.getBytesSent());
-                                        if (! _dailyOrHourly) {
-                                            //update agg bytes
-                                            stats.setAggBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                                            stats.setAggBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                                        }
-                                        _userStatsDao.update(stats.getId(), stats);
-                                        txn.commit();
-                                    } catch (Exception e) {
-                                        txn.rollback();
-                                        s_logger.warn("Unable to update user statistics for account: " + router.getAccountId()
-                                                + " Rx: " + answer.getBytesReceived() + "; Tx: " + answer.getBytesSent());
-                                    } finally {
-                                        txn.close();
-                                    }
-                                }
-                            }
-                        }
+                NetworkUsageCycle cycle = new NetworkUsageCycle();
+                List<Future<?>> futures = new ArrayList<Future<?>>(routersByHost.size());
+                for (Map.Entry<Long, List<DomainRouterVO>> entry : routersByHost.entrySet()) {
+                    futures.add(_routerStatsExecutor.submit(new HostNetworkUsageTask(entry.getKey(), entry.getValue(), cycle)));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        s_logger.warn("Error while collecting network stats", e.getCause());
                     }
                 }
+                cycle.report(routersByHost.size(), System.currentTimeMillis() - startTime);
             } catch (Exception e) {
                 s_logger.warn("Error while collecting network stats", e);
             }
         }
     }
 
+    protected class HostNetworkUsageTask extends ManagedContextRunnable {
+        private final long _hostId;
+        private final List<DomainRouterVO> _routers;
+        private final NetworkUsageCycle _cycle;
+
+        public HostNetworkUsageTask(long hostId, List<DomainRouterVO> routers, NetworkUsageCycle cycle) {
+            _hostId = hostId;
+            _routers = routers;
+            _cycle = cycle;
+        }
+
+        @Override
+        protected void runInContext() {
+            int batchSize = Math.max(1, RouterStatsBatchSize.value());
+            for (int from = 0; from < _routers.size(); from += batchSize) {
+                try {
+                    collectNetworkUsage(_hostId, _routers.subList(from, Math.min(from + batchSize, _routers.size())), _cycle);
+                } catch (Exception e) {
+                    s_logger.warn("Error while collecting network stats from host: " + _hostId, e);
+                }
+            }
+        }
+    }
+
+    protected static class NetworkUsageCycle {
+        final AtomicInteger _requests = new AtomicInteger();
+        final AtomicInteger _collected = new AtomicInteger();
+        final AtomicInteger _failed = new AtomicInteger();
+        final List<String> _timedOut = Collections.synchronizedList(new ArrayList<String>());
+
+        void report(int hosts, long duration) {
+            String msg = "Collected network stats of " + _collected.get() + " router nics from " + hosts + " hosts in " + _requests.get() + " requests, "
+                    + duration + " ms; " + _failed.get() + " failed, " + _timedOut.size() + " routers timed out";
+            if (!_timedOut.isEmpty()) {
+                s_logger.warn(msg + ": " + _timedOut);
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug(msg);
+            }
+        }
+    }
+
+    protected static class NetworkUsageRequest {
+        final DomainRouterVO _router;
+        final Nic _nic;
+        final Network _network;
+        final UserStatisticsVO _previousStats;
+        NetworkUsageAnswer _answer;
+
+        NetworkUsageRequest(DomainRouterVO router, Nic nic, Network network, UserStatisticsVO previousStats) {
+            _router = router;
+            _nic = nic;
+            _network = network;
+            _previousStats = previousStats;
+        }
+
+        String getPublicIp() {
+            return _router.getVpcId() != null ? _nic.getIp4Address() : null;
+        }
+    }
+
+    protected void collectNetworkUsage(long hostId, List<DomainRouterVO> routers, NetworkUsageCycle cycle) {
+        List<Long> routerIds = new ArrayList<Long>(routers.size());
+        for (DomainRouterVO router : routers) {
+            routerIds.add(router.getId());
+        }
+
+        Map<Long, List<NicVO>> nicsByRouter = new HashMap<Long, List<NicVO>>();
+        Set<Long> networkIds = new HashSet<Long>();
+        for (NicVO nic : _nicDao.listByVmIds(routerIds)) {
+            List<NicVO> nics = nicsByRouter.get(nic.getInstanceId());
+            if (nics == null) {
+                nics = new ArrayList<NicVO>();
+                nicsByRouter.put(nic.getInstanceId(), nics);
+            }
+            nics.add(nic);
+            networkIds.add(nic.getNetworkId());
+        }
+        Map<Long, NetworkVO> networks = new HashMap<Long, NetworkVO>();
+        for (NetworkVO network : _networkDao.listByIds(networkIds)) {
+            networks.put(network.getId(), network);
+        }
+        List<UserStatisticsVO> stats = _userStatsDao.listByDeviceIds(routerIds);
+
+        List<NetworkUsageRequest> requests = new ArrayList<NetworkUsageRequest>();
+        Commands cmds = new Commands(Command.OnError.Continue);
+        for (DomainRouterVO router : routers) {
+            List<NicVO> routerNics = nicsByRouter.get(router.getId());
+            if (routerNics == null) {
+                continue;
+            }
+            boolean forVpc = router.getVpcId() != null;
+            for (Nic routerNic : routerNics) {
+                Network network = networks.get(routerNic.getNetworkId());
+                if (network == null) {
+                    continue;
+                }
+                //Send network usage command for public nic in VPC VR
+                //Send network usage command for isolated guest nic of non VPC VR
+                if ((forVpc && network.getTrafficType() == TrafficType.Public) || (!forVpc && network.getTrafficType() == TrafficType.Guest && network.getGuestType() == Network.GuestType.Isolated)) {
+                    UserStatisticsVO previousStats = findUserStatistics(stats, router, network.getId(), forVpc ? routerNic.getIp4Address() : null);
+                    NetworkUsageRequest request = new NetworkUsageRequest(router, routerNic, network, previousStats);
+                    cmds.addCommand(new NetworkUsageCommand(router.getPrivateIpAddress(), router.getHostName(), forVpc, routerNic.getIp4Address()));
+                    requests.add(request);
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        Answer[] answers = null;
+        cycle._requests.incrementAndGet();
+        try {
+            answers = _agentMgr.send(hostId, cmds);
+        } catch (OperationTimedoutException e) {
+            s_logger.warn("Timed out collecting network stats from " + routers.size() + " routers on host: " + hostId);
+            for (DomainRouterVO router : routers) {
+                cycle._timedOut.add(router.getInstanceName());
+            }
+            return;
+        } catch (AgentUnavailableException e) {
+            s_logger.warn("Error while collecting network stats from " + routers.size() + " routers on host: " + hostId + "; details: " + e.getMessage());
+            cycle._failed.addAndGet(requests.size());
+            return;
+        }
+
+        List<NetworkUsageRequest> answered = new ArrayList<NetworkUsageRequest>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            NetworkUsageRequest request = requests.get(i);
+            Answer answer = answers != null && i < answers.length ? answers[i] : null;
+            if (!(answer instanceof NetworkUsageAnswer) || !answer.getResult()) {
+                s_logger.warn("Error while collecting network stats from router: " + request._router.getInstanceName() + " from host: " + hostId
+                        + (answer != null ? "; details: " + answer.getDetails() : ""));
+                cycle._failed.incrementAndGet();
+                continue;
+            }
+            request._answer = (NetworkUsageAnswer) answer;
+            answered.add(request);
+        }
+        updateUserStatistics(answered, cycle);
+    }
+
+    private UserStatisticsVO findUserStatistics(List<UserStatisticsVO> stats, DomainRouterVO router, long networkId, String publicIp) {
+        for (UserStatisticsVO stat : stats) {
+            if (stat.getAccountId() == router.getAccountId() && stat.getDataCenterId() == router.getDataCenterId()
+                    && stat.getNetworkId() != null && stat.getNetworkId() == networkId
+                    && stat.getDeviceId() != null && stat.getDeviceId() == router.getId() && router.getType().toString().equals(stat.getDeviceType())
+                    && (publicIp == null ? stat.getPublicIpAddress() == null : publicIp.equals(stat.getPublicIpAddress()))) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    protected void updateUserStatistics(List<NetworkUsageRequest> requests, NetworkUsageCycle cycle) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            txn.start();
+            for (NetworkUsageRequest request : requests) {
+                updateUserStatistics(request);
+            }
+            txn.commit();
+            cycle._collected.addAndGet(requests.size());
+            return;
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.warn("Unable to update user statistics of " + requests.size() + " router nics at once, updating them one by one", e);
+        } finally {
+            txn.close();
+        }
+
+        for (NetworkUsageRequest request : requests) {
+            txn = Transaction.open(Transaction.CLOUD_DB);
+            try {
+                txn.start();
+                updateUserStatistics(request);
+                txn.commit();
+                cycle._collected.incrementAndGet();
+            } catch (Exception e) {
+                txn.rollback();
+                cycle._failed.incrementAndGet();
+                s_logger.warn("Unable to update user statistics for account: " + request._router.getAccountId()
+                        + " Rx: " + request._answer.getBytesReceived() + "; Tx: " + request._answer.getBytesSent());
+            } finally {
+                txn.close();
+            }
+        }
+    }
+
+    private void updateUserStatistics(NetworkUsageRequest request) {
+        DomainRouterVO router = request._router;
+        NetworkUsageAnswer answer = request._answer;
+        UserStatisticsVO previousStats = request._previousStats;
+        if ((answer.getBytesReceived() == 0) && (answer.getBytesSent() == 0)) {
+            s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
+            return;
+        }
+        UserStatisticsVO stats = _userStatsDao.lock(router.getAccountId(),
+                router.getDataCenterId(), request._network.getId(), request.getPublicIp(), router.getId(), router.getType().toString());
+        if (stats == null) {
+            s_logger.warn("unable to find stats for account: " + router.getAccountId());
+            return;
+        }
+
+        if (previousStats != null
+                && ((previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived())
+                || (previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent()))) {
+            s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. " +
+                    "Ignoring current answer. Router: " + answer.getRouterName() + " Rcvd: " +
+                    answer.getBytesReceived() + "Sent: " + answer.getBytesSent());
+            return;
+        }
+
+        if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Received # of bytes that's less than the last one.  " +
+                        "Assuming something went wrong and persisting it. Router: " +
+                        answer.getRouterName() + " Reported: " + answer.getBytesReceived()
+                        + " Stored: " + stats.getCurrentBytesReceived());
+            }
+            stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+        }
+        stats.setCurrentBytesReceived(answer.getBytesReceived());
+        if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Received # of bytes that's less than the last one.  " +
+                        "Assuming something went wrong and persisting it. Router: " +
+                        answer.getRouterName() + " Reported: " + answer.getBytesSent()
+                        + " Stored: " + stats.getCurrentBytesSent());
+            }
+            stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+        }
+        stats.setCurrentBytesSent(answer.getBytesSent());
+        if (! _dailyOrHourly) {
+            //update agg bytes
+            stats.setAggBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+            stats.setAggBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+        }
+        _userStatsDao.update(stats.getId(), stats);
+    }
+
     protected class NetworkStatsUpdateTask extends ManagedContextRunnable {
 
         public NetworkStatsUpdateTask() {
@@ -2363,17 +2564,55 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     }
 
     protected void finalizeUserDataAndDhcpOnStart(Commands cmds, DomainRouterVO router, Provider provider, Long guestNetworkId) {
+        Commands entries = isConfigBundleSupported(router) ? new Commands(Command.OnError.Continue) : cmds;
         if (_networkModel.isProviderSupportServiceInNetwork(guestNetworkId, Service.Dhcp, provider)) {
             // Resend dhcp
             s_logger.debug("Reapplying dhcp entries as a part of domR " + router + " start...");
-            createDhcpEntryCommandsForVMs(router, cmds, guestNetworkId);
+            createDhcpEntryCommandsForVMs(router, entries, guestNetworkId);
         }
    
         if (_networkModel.isProviderSupportServiceInNetwork(guestNetworkId, Service.UserData, provider)) {
             // Resend user data
             s_logger.debug("Reapplying vm data (userData and metaData) entries as a part of domR " + router + " start...");
-            createVmDataCommandForVMs(router, cmds, guestNetworkId);
+            createVmDataCommandForVMs(router, entries, guestNetworkId);
         }
+
+        if (entries != cmds) {
+            addConfigBundle(cmds, router, entries);
+        }
+    }
+
+    // only the KVM and LXC resources hand network element commands to VirtualRoutingResource, which knows config bundles
+    protected boolean isConfigBundleSupported(DomainRouterVO router) {
+        return (router.getHypervisorType() == HypervisorType.KVM || router.getHypervisorType() == HypervisorType.LXC) && RouterConfigBundleThreshold.value() > 0;
+    }
+
+    /**
+     * Sends the dhcp and vm data entries of a network as one config bundle, so
+     * that a router serving many vms does not need a round trip per entry.
+     */
+    protected void addConfigBundle(Commands cmds, DomainRouterVO router, Commands entries) {
+        if (entries.size() < RouterConfigBundleThreshold.value()) {
+            for (Command cmd : entries) {
+                cmds.addCommand(cmd);
+            }
+            return;
+        }
+
+        VmConfigBundleCommand bundle = new VmConfigBundleCommand(_configBundleVersion.incrementAndGet());
+        for (Command cmd : entries) {
+            if (cmd instanceof DhcpEntryCommand) {
+                bundle.addDhcpEntry((DhcpEntryCommand)cmd);
+            } else if (cmd instanceof VmDataCommand) {
+                bundle.addVmData((VmDataCommand)cmd);
+            } else {
+                cmds.addCommand(cmd);
+            }
+        }
+        bundle.setAccessDetail(NetworkElementCommand.ROUTER_IP, getRouterControlIp(router.getId()));
+        bundle.setAccessDetail(NetworkElementCommand.ROUTER_NAME, router.getInstanceName());
+        s_logger.debug("Sending " + bundle.size() + " dhcp and vm data entries to domR " + router + " as config bundle " + bundle.getVersion());
+        cmds.addCommand("vmConfigBundle", bundle);
     }
 
     protected void finalizeNetworkRulesForNetwork(Commands cmds, DomainRouterVO router, Provider provider, Long guestNetworkId) {
@@ -4068,4 +4307,14 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     public VirtualRouter findRouter(long routerId) {
         return _routerDao.findById(routerId);
     }
+
+    @Override
+    public String getConfigComponentName() {
+        return VirtualNetworkApplianceManagerImpl.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {RouterConfigBundleThreshold, RouterStatsPoolSize, RouterStatsBatchSize};
+    }
 }
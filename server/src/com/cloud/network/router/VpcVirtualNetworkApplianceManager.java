@@ -85,6 +85,16 @@ public interface VpcVirtualNetworkApplianceManager extends VirtualNetworkApplian
      */
     boolean applyStaticRoutes(List<StaticRouteProfile> routes, List<DomainRouterVO> routers) throws ResourceUnavailableException;
 
+    /**
+     * Sends the sections of the plan that changed since they were last applied to each router
+     * as a single command set
+     * @param plan
+     * @param routers
+     * @return
+     * @throws ResourceUnavailableException
+     */
+    boolean applyVpcConfiguration(VpcConfigurationPlan plan, List<DomainRouterVO> routers) throws ResourceUnavailableException;
+
     /**
      * @param conn
      * @param routers
@@ -28,6 +28,7 @@ import java.util.TreeSet;
 import javax.ejb.Local;
 import javax.inject.Inject;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -93,6 +94,7 @@ import com.cloud.network.vpc.PrivateIpVO;
 import com.cloud.network.vpc.StaticRoute;
 import com.cloud.network.vpc.StaticRouteProfile;
 import com.cloud.network.vpc.Vpc;
+import com.cloud.network.vpc.VpcConfigurationPlan;
 import com.cloud.network.vpc.VpcGateway;
 import com.cloud.network.vpc.VpcManager;
 import com.cloud.network.vpc.VpcVO;
@@ -103,6 +105,7 @@ import com.cloud.network.vpc.dao.VpcGatewayDao;
 import com.cloud.network.vpc.dao.VpcOfferingDao;
 import com.cloud.network.vpn.Site2SiteVpnManager;
 import com.cloud.offering.NetworkOffering;
+import com.cloud.serializer.GsonHelper;
 import com.cloud.user.Account;
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.utils.Pair;
@@ -115,6 +118,7 @@ import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
 import com.cloud.vm.NicVO;
 import com.cloud.vm.ReservationContext;
+import com.cloud.vm.UserVmDetailVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.vm.VirtualMachineProfile;
@@ -125,6 +129,11 @@ import com.cloud.vm.dao.VMInstanceDao;
 @Local(value = {VpcVirtualNetworkApplianceManager.class, VpcVirtualNetworkApplianceService.class})
 public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplianceManagerImpl implements VpcVirtualNetworkApplianceManager{
     private static final Logger s_logger = Logger.getLogger(VpcVirtualNetworkApplianceManagerImpl.class);
+
+    // Router details holding the signature of each configuration section last applied on the router
+    protected static final String APPLIED_CONFIG_PREFIX = "vpc.config.";
+    protected static final String STATIC_ROUTES_CONFIG_SECTION = "staticroutes";
+
     String _name;
     @Inject
     VpcDao _vpcDao;
@@ -306,6 +315,7 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
         } finally {
             if (result) {
                 _routerDao.removeRouterFromGuestNetwork(router.getId(), network.getId());
+                saveAppliedConfig(router.getId(), getAclConfigSection(network.getId(), false), null);
             }
         }
         
@@ -657,7 +667,13 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
             throws ResourceUnavailableException {
         Commands cmds = new Commands(Command.OnError.Continue);
         createNetworkACLsCommands(rules, router, cmds, guestNetworkId, isPrivateGateway);
-        return sendCommandsToRouter(router, cmds);
+        String section = getAclConfigSection(guestNetworkId, isPrivateGateway);
+        saveAppliedConfig(router.getId(), section, null);
+        boolean result = sendCommandsToRouter(router, cmds);
+        if (result) {
+            saveAppliedConfig(router.getId(), section, getConfigSignature(cmds));
+        }
+        return result;
     }
     
     private void createNetworkACLsCommands(List<? extends NetworkACLItem> rules, VirtualRouter router, Commands cmds,
@@ -704,6 +720,9 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
         if (!isVpc) {
             return super.finalizeCommandsOnStart(cmds, profile);
         }
+
+        //the router comes up with a fresh configuration, forget what was applied before
+        clearAppliedConfig(router.getId());
         
         //1) FORM SSH CHECK COMMAND
         NicProfile controlNic = getControlNic(profile);
@@ -986,6 +1005,7 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
             s_logger.debug("Failed to delete network acl items on " + gateway +" from router " +  router);
             return false;
         }
+        saveAppliedConfig(router.getId(), getAclConfigSection(gateway.getNetworkId(), true), null);
 
         s_logger.debug("Removing router " + router + " from private network " + privateNetwork + " as a part of delete private gateway");
         result = result && _itMgr.removeVmFromNetwork(router, privateNetwork, null);
@@ -1039,7 +1059,12 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
             throws ResourceUnavailableException {
         Commands cmds = new Commands(Command.OnError.Continue);
         createStaticRouteCommands(staticRoutes, router, cmds);
-        return sendCommandsToRouter(router, cmds);
+        saveAppliedConfig(router.getId(), STATIC_ROUTES_CONFIG_SECTION, null);
+        boolean result = sendCommandsToRouter(router, cmds);
+        if (result) {
+            saveAppliedConfig(router.getId(), STATIC_ROUTES_CONFIG_SECTION, getConfigSignature(cmds));
+        }
+        return result;
     }
 
     /**
@@ -1056,6 +1081,156 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
         cmds.addCommand(cmd);
     }
 
+    @Override
+    public boolean applyVpcConfiguration(VpcConfigurationPlan plan, List<DomainRouterVO> routers) throws ResourceUnavailableException {
+        if (plan.isEmpty()) {
+            s_logger.debug("No vpc configuration to apply for vpc " + plan.getVpcId());
+            return true;
+        }
+
+        boolean result = true;
+        for (DomainRouterVO router : routers) {
+            if (router.getState() == State.Running) {
+                result = sendVpcConfiguration(plan, router) && result;
+            } else if (router.getState() == State.Stopped || router.getState() == State.Stopping) {
+                s_logger.debug("Router " + router.getInstanceName() + " is in " + router.getState() +
+                        ", so not sending vpc configuration to the backend");
+            } else {
+                s_logger.warn("Unable to apply vpc configuration, virtual router is not in the right state " + router.getState());
+
+                throw new ResourceUnavailableException("Unable to apply vpc configuration on the backend," +
+                    " virtual router is not in the right state", DataCenter.class, router.getDataCenterId());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the commands of every section of the plan and sends the ones whose signature differs
+     * from the last applied one to the router in a single command set.
+     */
+    protected boolean sendVpcConfiguration(VpcConfigurationPlan plan, DomainRouterVO router) throws ResourceUnavailableException {
+        Map<String, Commands> sections = new LinkedHashMap<String, Commands>();
+        for (Map.Entry<Long, List<? extends NetworkACLItem>> entry : plan.getTierAcls().entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().isEmpty() && isRouterPartOfNetwork(router, entry.getKey())) {
+                Commands section = new Commands(Command.OnError.Continue);
+                createNetworkACLsCommands(entry.getValue(), router, section, entry.getKey(), false);
+                sections.put(getAclConfigSection(entry.getKey(), false), section);
+            }
+        }
+        for (Map.Entry<Long, List<? extends NetworkACLItem>> entry : plan.getPrivateGatewayAcls().entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().isEmpty() && isRouterPartOfNetwork(router, entry.getKey())) {
+                Commands section = new Commands(Command.OnError.Continue);
+                createNetworkACLsCommands(entry.getValue(), router, section, entry.getKey(), true);
+                sections.put(getAclConfigSection(entry.getKey(), true), section);
+            }
+        }
+        if (plan.getStaticRoutes() != null && !plan.getStaticRoutes().isEmpty()) {
+            Commands section = new Commands(Command.OnError.Continue);
+            createStaticRouteCommands(plan.getStaticRoutes(), router, section);
+            sections.put(STATIC_ROUTES_CONFIG_SECTION, section);
+        }
+
+        Map<String, String> details = _vmDetailsDao.findDetails(router.getId());
+        Map<String, String> signatures = new LinkedHashMap<String, String>();
+        Commands cmds = new Commands(Command.OnError.Continue);
+        for (Map.Entry<String, Commands> section : sections.entrySet()) {
+            String signature = getConfigSignature(section.getValue());
+            if (signature.equals(details.get(APPLIED_CONFIG_PREFIX + section.getKey()))) {
+                continue;
+            }
+            signatures.put(section.getKey(), signature);
+            for (Command cmd : section.getValue()) {
+                cmds.addCommand(cmd);
+            }
+        }
+
+        if (cmds.size() == 0) {
+            s_logger.debug("All " + sections.size() + " sections of " + plan + " are up to date on router " + router);
+            return true;
+        }
+        s_logger.debug("Applying " + signatures.size() + " out of " + sections.size() + " sections of " + plan + " on router " + router);
+
+        boolean result = false;
+        try {
+            result = sendCommandsToRouter(router, cmds);
+        } finally {
+            // Only remember the sections the router has accepted, the rest is sent again next time
+            Answer[] answers = cmds.getAnswers();
+            boolean answered = answers != null && answers.length == cmds.size();
+            int index = 0;
+            for (Map.Entry<String, String> entry : signatures.entrySet()) {
+                int size = sections.get(entry.getKey()).size();
+                boolean applied = answered;
+                for (int i = index; applied && i < index + size; i++) {
+                    applied = answers[i].getResult();
+                }
+                if (!applied) {
+                    entry.setValue(null);
+                }
+                index += size;
+            }
+            saveAppliedConfig(router.getId(), signatures);
+        }
+        return result;
+    }
+
+    private boolean isRouterPartOfNetwork(DomainRouterVO router, long networkId) {
+        if (!_networkModel.isVmPartOfNetwork(router.getId(), networkId)) {
+            s_logger.debug("Router " + router + " is not a part of the network " + networkId + ", skipping its acls");
+            return false;
+        }
+        return true;
+    }
+
+    protected static String getAclConfigSection(long networkId, boolean privateGateway) {
+        return (privateGateway ? "gwacl." : "acl.") + networkId;
+    }
+
+    protected static String getConfigSignature(Commands cmds) {
+        StringBuilder buf = new StringBuilder();
+        for (Command cmd : cmds) {
+            buf.append(cmd.getClass().getName()).append(GsonHelper.getGson().toJson(cmd));
+        }
+        return DigestUtils.md5Hex(buf.toString());
+    }
+
+    protected void saveAppliedConfig(long routerId, String section, String signature) {
+        Map<String, String> signatures = new HashMap<String, String>();
+        signatures.put(section, signature);
+        saveAppliedConfig(routerId, signatures);
+    }
+
+    /**
+     * Records the signatures of the configuration sections applied on the router, a null
+     * signature drops the section so that it is sent again by the next plan.
+     */
+    protected void saveAppliedConfig(long routerId, Map<String, String> signatures) {
+        // Only the vpc.config.* rows are touched, the other details of the router are left alone
+        for (Map.Entry<String, String> entry : signatures.entrySet()) {
+            String key = APPLIED_CONFIG_PREFIX + entry.getKey();
+            UserVmDetailVO detail = _vmDetailsDao.findDetail(routerId, key);
+            if (entry.getValue() == null) {
+                if (detail != null) {
+                    _vmDetailsDao.removeDetails(routerId, key);
+                }
+            } else if (detail == null) {
+                _vmDetailsDao.persist(new UserVmDetailVO(routerId, key, entry.getValue()));
+            } else if (!entry.getValue().equals(detail.getValue())) {
+                detail.setValue(entry.getValue());
+                _vmDetailsDao.update(detail.getId(), detail);
+            }
+        }
+    }
+
+    protected void clearAppliedConfig(long routerId) {
+        for (UserVmDetailVO detail : _vmDetailsDao.findDetailsList(routerId)) {
+            if (detail.getName().startsWith(APPLIED_CONFIG_PREFIX)) {
+                _vmDetailsDao.removeDetails(routerId, detail.getName());
+            }
+        }
+    }
+
     @Override
     public boolean startSite2SiteVpn(Site2SiteVpnConnection conn, VirtualRouter router) throws ResourceUnavailableException {
         if (router.getState() != State.Running) {
@@ -1334,6 +1509,7 @@ public class VpcVirtualNetworkApplianceManagerImpl extends VirtualNetworkApplian
         Long vpcId = router.getVpcId();
         if (vpcId != null) {
             _s2sVpnMgr.markDisconnectVpnConnByVpc(vpcId);
+            clearAppliedConfig(router.getId());
         }
     }
     
@@ -18,6 +18,7 @@ package com.cloud.network.rules;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -702,6 +703,78 @@ public class RulesManagerImpl extends ManagerBase implements RulesManager, Rules
         return success;
     }
 
+    @Override
+    @DB
+    @ActionEvent(eventType = EventTypes.EVENT_NET_RULE_DELETE, eventDescription = "revoking forwarding rules", async = true)
+    public boolean revokePortForwardingRules(List<Long> ruleIds, boolean apply) {
+        CallContext ctx = CallContext.current();
+        Account caller = ctx.getCallingAccount();
+
+        if (ruleIds == null || ruleIds.isEmpty()) {
+            throw new InvalidParameterValueException("No port forwarding rules specified");
+        }
+
+        Set<Long> missingIds = new LinkedHashSet<Long>(ruleIds);
+        List<PortForwardingRuleVO> rules = _portForwardingDao.listByIds(missingIds);
+        for (PortForwardingRuleVO rule : rules) {
+            missingIds.remove(rule.getId());
+        }
+        if (!missingIds.isEmpty()) {
+            throw new InvalidParameterValueException("Unable to find port forwarding rules " + missingIds);
+        }
+
+        _accountMgr.checkAccess(caller, null, true, rules.toArray(new PortForwardingRuleVO[rules.size()]));
+
+        long networkId = rules.get(0).getNetworkId();
+        for (PortForwardingRuleVO rule : rules) {
+            if (rule.getNetworkId() != networkId) {
+                throw new InvalidParameterValueException("Port forwarding rules to revoke together have to belong to the same network");
+            }
+        }
+
+        // revoke the rules and the firewall rules opened for them in one go
+        Set<Long> ipIds = new LinkedHashSet<Long>();
+        Set<Long> firewallIpIds = new LinkedHashSet<Long>();
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        for (PortForwardingRuleVO rule : rules) {
+            if (_firewallDao.findByRelatedId(rule.getId()) != null) {
+                _firewallMgr.revokeRelatedFirewallRule(rule.getId(), false);
+                firewallIpIds.add(rule.getSourceIpAddressId());
+            }
+            _firewallMgr.revokeRule(rule, caller, ctx.getCallingUserId(), true);
+            ipIds.add(rule.getSourceIpAddressId());
+        }
+        txn.commit();
+
+        if (!apply) {
+            return true;
+        }
+
+        // the remaining rules of all the affected ips are sent to the providers as a single set
+        List<FirewallRuleVO> firewallRules = new ArrayList<FirewallRuleVO>();
+        for (Long ipId : firewallIpIds) {
+            firewallRules.addAll(_firewallDao.listByIpAndPurpose(ipId, Purpose.Firewall));
+        }
+        List<PortForwardingRuleVO> pfRules = new ArrayList<PortForwardingRuleVO>();
+        for (Long ipId : ipIds) {
+            pfRules.addAll(_portForwardingDao.listForApplication(ipId));
+        }
+
+        boolean success = firewallRules.isEmpty() || _firewallMgr.applyFirewallRules(firewallRules, false, caller);
+        try {
+            success = _firewallMgr.applyRules(pfRules, true, true) && success;
+        } catch (ResourceUnavailableException ex) {
+            s_logger.warn("Failed to apply port forwarding rules for network id=" + networkId + " due to ", ex);
+            success = false;
+        }
+
+        if (!success) {
+            throw new CloudRuntimeException("Failed to delete port forwarding rules " + ruleIds);
+        }
+        return true;
+    }
+
     @Override
     @ActionEvent(eventType = EventTypes.EVENT_NET_RULE_DELETE, eventDescription = "revoking forwarding rule", async = true)
     public boolean revokeStaticNatRule(long ruleId, boolean apply) {
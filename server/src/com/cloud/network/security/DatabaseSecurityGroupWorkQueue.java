@@ -0,0 +1,159 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.network.security.dao.SecurityGroupWorkDao;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Security Group Work Queue that is kept in the op_nwgrp_work table and shared by the management servers.
+ * A management server takes the work of the vms that run on the hosts it manages, work that stays
+ * untaken longer than the stale timeout can be taken by any server.
+ *
+ */
+public class DatabaseSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
+    protected static Logger s_logger = Logger.getLogger(DatabaseSecurityGroupWorkQueue.class);
+
+    private final SecurityGroupWorkDao _workDao;
+    private final long _serverId;
+    private final long _pollIntervalMs;
+    private final long _staleTimeoutMs;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private boolean _signalled = false;
+    private long _nextPoll = 0;
+
+    public DatabaseSecurityGroupWorkQueue(SecurityGroupWorkDao workDao, long serverId, long pollIntervalMs, long staleTimeoutMs) {
+        _workDao = workDao;
+        _serverId = serverId;
+        _pollIntervalMs = pollIntervalMs;
+        _staleTimeoutMs = staleTimeoutMs;
+    }
+
+    @Override
+    public void submitWorkForVm(long vmId, long sequenceNumber) {
+        Set<Long> vmIds = new HashSet<Long>();
+        vmIds.add(vmId);
+        submitWorkForVms(vmIds);
+    }
+
+    @Override
+    public int submitWorkForVms(Set<Long> vmIds) {
+        Set<Long> newVms = new HashSet<Long>(vmIds);
+        newVms.removeAll(_workDao.listScheduledVmIds(vmIds));
+        if (!newVms.isEmpty()) {
+            Transaction txn = Transaction.currentTxn();
+            txn.start();
+            Date now = new Date();
+            for (Long vmId : newVms) {
+                _workDao.persist(new SecurityGroupWorkVO(vmId, null, now, Step.Scheduled, null));
+            }
+            txn.commit();
+        }
+        signalNotEmpty();
+        return newVms.size();
+    }
+
+    /**
+     * Blocks until there is work this server can take.  Workers of this server are woken up
+     * when it submits work, work submitted by other servers is found by polling.
+     */
+    @Override
+    public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
+        while (true) {
+            _lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                while (!_signalled && now < _nextPoll) {
+                    _notEmpty.await(_nextPoll - now, TimeUnit.MILLISECONDS);
+                    now = System.currentTimeMillis();
+                }
+                _signalled = false;
+                _nextPoll = now + _pollIntervalMs;
+            } finally {
+                _lock.unlock();
+            }
+
+            List<SecurityGroupWorkVO> taken = _workDao.take(_serverId, numberOfWorkItems, new Date(System.currentTimeMillis() - _staleTimeoutMs));
+            if (taken.size() >= numberOfWorkItems) {
+                // There may be more, let another worker look
+                signalNotEmpty();
+            }
+            if (!taken.isEmpty()) {
+                return new ArrayList<SecurityGroupWork>(taken);
+            }
+        }
+    }
+
+    private void signalNotEmpty() {
+        _lock.lock();
+        try {
+            _signalled = true;
+            _notEmpty.signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return _workDao.countScheduledWork();
+    }
+
+    @Override
+    public void clear() {
+        _workDao.deleteScheduledWork();
+    }
+
+    @Override
+    public List<Long> getVmsInQueue() {
+        List<Long> vmIds = new ArrayList<Long>();
+        for (SecurityGroupWorkVO work : _workDao.findScheduledWork()) {
+            vmIds.add(work.getInstanceId());
+        }
+        return vmIds;
+    }
+
+    /**
+     * Fails work whose answer never came back and removes finished work
+     * @return the vms of the failed work
+     */
+    public List<Long> cleanup(Date unfinishedBefore, Date finishedBefore) {
+        List<Long> vmIds = new ArrayList<Long>();
+        for (SecurityGroupWorkVO work : _workDao.findAndCleanupUnfinishedWork(unfinishedBefore)) {
+            vmIds.add(work.getInstanceId());
+        }
+        int deleted = _workDao.deleteFinishedWork(finishedBefore);
+        if (s_logger.isDebugEnabled() && (!vmIds.isEmpty() || deleted > 0)) {
+            s_logger.debug("Security group work cleanup: " + vmIds.size() + " unfinished work items failed, " + deleted + " finished work items removed");
+        }
+        return vmIds;
+    }
+}
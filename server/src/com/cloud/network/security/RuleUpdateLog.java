@@ -25,5 +25,6 @@ import java.util.Set;
 public interface RuleUpdateLog {
      void logScheduledDetails(Set<Long> vmIds);
      void logUpdateDetails(Long vmId, Long seqno);
+     void logAnswerDetails(Long vmId, Long seqno, boolean success);
 
 }
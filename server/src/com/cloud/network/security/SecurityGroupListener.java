@@ -90,6 +90,7 @@ public class SecurityGroupListener implements Listener {
         for (Answer ans: answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
                 SecurityGroupRuleAnswer ruleAnswer = (SecurityGroupRuleAnswer) ans;
+                _securityGroupManager.handleRulesetAnswer(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), ans.getResult());
                 if (ans.getResult()) {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
@@ -111,10 +112,12 @@ public class SecurityGroupListener implements Listener {
                     }
                 }
                 commandNum++;
-                if (_workTracker != null)
-                    _workTracker.processAnswers(agentId, seq, answers);
             }
         }
+        // A message may carry the rulesets of several vms, it is one outstanding message all the same
+        if (commandNum > 0 && _workTracker != null) {
+            _workTracker.processAnswers(agentId, seq, answers);
+        }
 
         if (affectedVms.size() > 0) {
             _securityGroupManager.scheduleRulesetUpdateToHosts(affectedVms, false, new Long(10 * 1000l));
@@ -388,7 +388,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
     protected String generateRulesetSignature(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
         String ruleset = ingress.toString();
-        ruleset.concat(egress.toString());
+        ruleset = ruleset.concat(egress.toString());
         return DigestUtils.md5Hex(ruleset);
     }
 
@@ -1145,6 +1145,12 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         return new Pair<List<SecurityGroupJoinVO>, Integer>(sgs, count);
     }
 
+    /**
+     * Called for every ruleset answer a host sends back
+     */
+    protected void handleRulesetAnswer(long vmId, Long seqno, boolean success) {
+    }
+
     @Override
     public void fullSync(long agentId, HashMap<String, Pair<Long, Long>> newGroupStates) {
         ArrayList<Long> affectedVms = new ArrayList<Long>();
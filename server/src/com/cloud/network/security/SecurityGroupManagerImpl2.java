@@ -16,22 +16,31 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
@@ -40,9 +49,11 @@ import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Profiler;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 
@@ -63,6 +74,19 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
 
+    static final int SHARED_QUEUE_POLL_INTERVAL = 1000; // milliseconds
+    static final int SHARED_QUEUE_STALE_TIMEOUT = 60 * 1000; // milliseconds
+
+    boolean _sharedWorkQueue = false;
+    int _cleanupIntervalSecs = 120;
+    int _coalesceWindowMs = 200;
+    int _workBatchSize = 100;
+    ScheduledExecutorService _scheduler;
+    private final Object _pendingLock = new Object();
+    private Set<Long> _pendingVms = new TreeSet<Long>();
+    private Set<Long> _pendingSeqnoVms = new TreeSet<Long>();
+    private boolean _flushScheduled = false;
+
     
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
@@ -92,6 +116,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         for (int i = 0; i < _workers.length; i++) {
             _workers[i] = new WorkerThread("SecGrp-Worker-" + i);
         }
+        _scheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("SecGrp-Scheduler"));
     }
 
     @Override
@@ -107,9 +132,57 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         Set<Long> workItems = new TreeSet<Long>();
         workItems.addAll(affectedVms);
         workItems.removeAll(_disabledVms);
-        
+
+        if (_coalesceWindowMs <= 0) {
+            submitWorkForVms(workItems, updateSeqno);
+            return;
+        }
+
+        // Updates for the same vms that come in within the window are sent only once
+        synchronized (_pendingLock) {
+            if (updateSeqno) {
+                _pendingSeqnoVms.addAll(workItems);
+            } else {
+                _pendingVms.addAll(workItems);
+            }
+            if (!_flushScheduled) {
+                _flushScheduled = true;
+                _scheduler.schedule(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        flushPendingWork();
+                    }
+                }, _coalesceWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    protected void flushPendingWork() {
+        Set<Long> seqnoVms;
+        Set<Long> vms;
+        synchronized (_pendingLock) {
+            seqnoVms = _pendingSeqnoVms;
+            vms = _pendingVms;
+            _pendingSeqnoVms = new TreeSet<Long>();
+            _pendingVms = new TreeSet<Long>();
+            _flushScheduled = false;
+        }
+        vms.removeAll(seqnoVms);
+        try {
+            if (!seqnoVms.isEmpty()) {
+                submitWorkForVms(seqnoVms, true);
+            }
+            if (!vms.isEmpty()) {
+                submitWorkForVms(vms, false);
+            }
+        } catch (Exception e) {
+            s_logger.error("Security Group Mgr v2: failed to schedule coalesced ruleset updates for " + (seqnoVms.size() + vms.size()) + " vms", e);
+        }
+    }
+
+    protected void submitWorkForVms(Set<Long> workItems, boolean updateSeqno) {
         if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Security Group Mgr v2: scheduling ruleset updates for " + affectedVms.size() + " vms " + " (unique=" + workItems.size() + "), current queue size=" + _workQueue.size());
+            s_logger.debug("Security Group Mgr v2: scheduling ruleset updates for " + workItems.size() + " vms, current queue size=" + _workQueue.size());
         }
 
         Profiler p = new Profiler();
@@ -123,6 +196,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         }
         int newJobs = _workQueue.submitWorkForVms(workItems);
         _mBean.logScheduledDetails(workItems);
+        if (!_sharedWorkQueue) {
+            // shared work may be taken by another management server, it is measured once taken
+            _mBean.logPendingUpdates(workItems);
+        }
         p.stop();
         if (s_logger.isDebugEnabled()){
             s_logger.debug("Security Group Mgr v2: done scheduling ruleset updates for " + workItems.size() + " vms: num new jobs=" + 
@@ -135,6 +212,19 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         for (final WorkerThread thread : _workers) {
             thread.start();
         }
+        if (_sharedWorkQueue) {
+            _scheduler.scheduleWithFixedDelay(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    // an exception would cancel the scheduled cleanup
+                    try {
+                        cleanupFinishedWork();
+                    } catch (Throwable t) {
+                        s_logger.warn("Security Group Mgr v2: failed to clean up the security group work", t);
+                    }
+                }
+            }, _cleanupIntervalSecs, _cleanupIntervalSecs, TimeUnit.SECONDS);
+        }
         return true;
     }
 
@@ -143,85 +233,171 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_workBatchSize);
+            List<SecurityGroupWork> logged = new ArrayList<SecurityGroupWork>(workItems.size());
             for (SecurityGroupWork work: workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
                 }
 
                 try {
-                    VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
-                    if (rulesetLog == null) {
-                        s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
-                        continue;
+                    // Work taken from the shared queue already carries its sequence number
+                    if (work.getLogsequenceNumber() == null) {
+                        VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
+                        if (rulesetLog == null) {
+                            s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
+                            dropWork(work);
+                            continue;
+                        }
+                        work.setLogsequenceNumber(rulesetLog.getLogsequence());
                     }
-                    work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
-                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                    logged.add(work);
                 }catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
                     work.setStep(Step.Error);
                 }
             }
+            sendRulesetUpdates(logged);
         } catch (InterruptedException e1) {
            s_logger.warn("SG work: caught InterruptException", e1);
         }
     }
     
     public void sendRulesetUpdates(SecurityGroupWork work){
-        Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
+        sendRulesetUpdates(Collections.singletonList(work));
+    }
 
-        if (vm != null && vm.getState() == State.Running) {
-            if (s_logger.isTraceEnabled()) { 
-                s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
+    /**
+     * Computes the rulesets of a batch of vms and sends them with one message per host.
+     * The rules and running members of a security group are looked up once for the whole batch.
+     */
+    public void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        if (workItems.isEmpty()) {
+            return;
+        }
+        Map<Long, SecurityGroupWork> workByVm = new HashMap<Long, SecurityGroupWork>();
+        for (SecurityGroupWork work : workItems) {
+            workByVm.put(work.getInstanceId(), work);
+            if (work instanceof SecurityGroupWorkVO) {
+                // taken by this management server, measure the propagation from the time it was queued
+                _mBean.logPendingUpdate(work.getInstanceId(), ((SecurityGroupWorkVO)work).getCreated());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
-            Long agentId = vm.getHostId();
-            if (agentId != null) {
-                String privateIp = vm.getPrivateIpAddress();
-                NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
-                List<String> nicSecIps = null;
-                if (nic != null) {
-                    if (nic.getSecondaryIp()) {
-                        //get secondary ips of the vm
-                        long networkId = nic.getNetworkId();
-                        nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
+        }
+
+        RulesetCache cache = new RulesetCache();
+        Map<Long, Commands> cmdsByHost = new HashMap<Long, Commands>();
+        Map<Long, List<SecurityGroupWork>> workByHost = new HashMap<Long, List<SecurityGroupWork>>();
+        for (UserVmVO vm : _userVMDao.listByIds(workByVm.keySet())) {
+            SecurityGroupWork work = workByVm.remove(vm.getId());
+            try {
+                if (vm.getState() != State.Running) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
                     }
+                    dropWork(work);
+                    continue;
                 }
-                SecurityGroupRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
-                        vm.getPrivateMacAddress(), vm.getId(), null, 
-                        work.getLogsequenceNumber(), ingressRules, egressRules, nicSecIps);
-                cmd.setMsId(_serverId);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("SecurityGroupManager v2: found vm, " + vm.getId() + " state=" + vm.getState());
+                }
+                Long agentId = vm.getHostId();
+                if (agentId == null) {
+                    dropWork(work);
+                    continue;
+                }
+                SecurityGroupRulesCmd cmd = generateRulesetCmd(vm, work, cache);
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + 
                                    ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
                 }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
-                    }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
-                    _workTracker.handleException(agentId);
+                Commands cmds = cmdsByHost.get(agentId);
+                if (cmds == null) {
+                    cmds = new Commands(Command.OnError.Continue);
+                    cmdsByHost.put(agentId, cmds);
+                    workByHost.put(agentId, new ArrayList<SecurityGroupWork>());
                 }
+                cmds.addCommand(cmd);
+                workByHost.get(agentId).add(work);
+            } catch (Exception e) {
+                s_logger.error("Problem during SG work " + work, e);
+                work.setStep(Step.Error);
             }
-        } else {
+        }
+        for (SecurityGroupWork work : workByVm.values()) {
             if (s_logger.isDebugEnabled()) {
-                if (vm != null)
-                    s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
-                else
-                    s_logger.debug("Could not find vm: No rules sent to vm " + userVmId );
+                s_logger.debug("Could not find vm: No rules sent to vm " + work.getInstanceId());
+            }
+            dropWork(work);
+        }
+
+        for (Map.Entry<Long, Commands> entry : cmdsByHost.entrySet()) {
+            Long agentId = entry.getKey();
+            try {
+                _agentMgr.send(agentId, entry.getValue(), _answerListener);
+                for (SecurityGroupWork work : workByHost.get(agentId)) {
+                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                }
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + entry.getValue().size() + " vms to host " + agentId + " curr queue size=" + _workQueue.size());
+                }
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send updates for " + entry.getValue().size() + " vms (agentid=" + agentId + ")");
+                _workTracker.handleException(agentId);
+                for (SecurityGroupWork work : workByHost.get(agentId)) {
+                    dropWork(work);
+                }
             }
         }
     }
 
+    /**
+     * Finishes work that is not sent.  Work taken from the shared queue would otherwise stay in
+     * Processing until the cleanup fails it and schedules the vm again, over and over.
+     */
+    protected void dropWork(SecurityGroupWork work) {
+        _mBean.logUpdateDropped(work.getInstanceId());
+        if (work instanceof SecurityGroupWorkVO) {
+            _workDao.updateStep(((SecurityGroupWorkVO)work).getId(), Step.Done);
+        }
+    }
+
+    protected SecurityGroupRulesCmd generateRulesetCmd(UserVm vm, SecurityGroupWork work, RulesetCache cache) {
+        Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(vm.getId(), SecurityRuleType.IngressRule, cache);
+        Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(vm.getId(), SecurityRuleType.EgressRule, cache);
+        String privateIp = vm.getPrivateIpAddress();
+        NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
+        List<String> nicSecIps = null;
+        if (nic != null) {
+            if (nic.getSecondaryIp()) {
+                //get secondary ips of the vm
+                nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
+            }
+        }
+        // The signature lets the host skip vms whose rules did not change
+        SecurityGroupRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
+                vm.getPrivateMacAddress(), vm.getId(), generateRulesetSignature(ingressRules, egressRules), 
+                work.getLogsequenceNumber(), ingressRules, egressRules, nicSecIps);
+        cmd.setMsId(_serverId);
+        return cmd;
+    }
+
     @Override
     public void cleanupFinishedWork() {
         //TODO: over time clean up op_vm_ruleset_log table for destroyed vms
+        if (_sharedWorkQueue) {
+            Date now = new Date();
+            List<Long> affectedVms = ((DatabaseSecurityGroupWorkQueue)_workQueue).cleanup(new Date(now.getTime() - 2 * _cleanupIntervalSecs * 1000l),
+                    new Date(now.getTime() - 6 * 3600 * 1000l));
+            if (!affectedVms.isEmpty()) {
+                s_logger.info("Security Group Mgr v2: rescheduling " + affectedVms.size() + " vms whose ruleset update was not answered");
+                scheduleRulesetUpdateToHosts(affectedVms, false, null);
+            }
+        }
+    }
+
+    @Override
+    protected void handleRulesetAnswer(long vmId, Long seqno, boolean success) {
+        _mBean.logAnswerDetails(vmId, seqno, success);
     }
     
     /* 
@@ -232,12 +408,16 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, new RulesetCache());
+    }
+
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, RulesetCache cache) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
         List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
         for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+            List<SecurityGroupRuleVO> rules = cache.getRules(mapVO.getSecurityGroupId(), type);
             for (SecurityGroupRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
@@ -245,14 +425,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
+                    cidrs.addAll(cache.getMemberCidrs(rule.getAllowedNetworkId()));
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -265,6 +438,41 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         return allowed;
     }
 
+    /**
+     * Rules and running members of the security groups referenced by one batch of work
+     */
+    protected class RulesetCache {
+        private final Map<Long, List<SecurityGroupRuleVO>> _ingressRules = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        private final Map<Long, List<SecurityGroupRuleVO>> _egressRules = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        private final Map<Long, Set<String>> _memberCidrs = new HashMap<Long, Set<String>>();
+
+        public List<SecurityGroupRuleVO> getRules(long securityGroupId, SecurityRuleType type) {
+            Map<Long, List<SecurityGroupRuleVO>> rulesByGroup = type == SecurityRuleType.EgressRule ? _egressRules : _ingressRules;
+            List<SecurityGroupRuleVO> rules = rulesByGroup.get(securityGroupId);
+            if (rules == null) {
+                rules = _securityGroupRuleDao.listBySecurityGroupId(securityGroupId, type);
+                rulesByGroup.put(securityGroupId, rules);
+            }
+            return rules;
+        }
+
+        public Set<String> getMemberCidrs(long securityGroupId) {
+            Set<String> cidrs = _memberCidrs.get(securityGroupId);
+            if (cidrs == null) {
+                cidrs = new HashSet<String>();
+                List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+                for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+                    //here, we differ from the superclass: instead of creating N more queries to the
+                    //nics table, we use what's already there in the VO since the listBySecurityGroup already
+                    //did a join with the nics table
+                    cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+                }
+                _memberCidrs.put(securityGroupId, cidrs);
+            }
+            return cidrs;
+        }
+    }
+
  
     public int getQueueSize() {
         return _workQueue.size();
@@ -287,6 +495,13 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
         _workTracker =  new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
+        _coalesceWindowMs = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkCoalesceWindow.key()), 200);
+        _cleanupIntervalSecs = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkCleanupInterval.key()), 120);
+        _sharedWorkQueue = Boolean.parseBoolean(configs.get(Config.SecurityGroupWorkQueueShared.key()));
+        if (_sharedWorkQueue) {
+            _workQueue = new DatabaseSecurityGroupWorkQueue(_workDao, _serverId, SHARED_QUEUE_POLL_INTERVAL, SHARED_QUEUE_STALE_TIMEOUT);
+        }
+        _workBatchSize = Math.max(1, NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 100));
         _answerListener.setWorkDispatcher(_workTracker);
         return result;
     }
@@ -54,4 +54,14 @@ public interface SecurityGroupManagerMBean {
     boolean isSchedulerDisabledEntirely();
 
     void clearSchedulerQueueVeryDangerous();
+
+    long getRulesetUpdatesAnswered();
+
+    int getRulesetUpdatesInFlight();
+
+    long getAverageRulesetPropagationMillis();
+
+    long getMaxRulesetPropagationMillis();
+
+    void resetRulesetPropagationStats();
 }
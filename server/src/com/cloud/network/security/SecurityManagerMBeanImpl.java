@@ -22,6 +22,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
@@ -38,6 +40,11 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     //keep track of last scheduled, last update sent and last seqno sent per vm. Make it available over JMX
     Map<Long, Date> _scheduleTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
     Map<Long, Date> _updateTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
+    //time each vm has been waiting for its ruleset update, for the updates sent by this management server, always kept
+    ConcurrentMap<Long, Long> _pendingSince = new ConcurrentHashMap<Long, Long>(4000, 0.75f, 64);
+    AtomicLong _answered = new AtomicLong();
+    AtomicLong _totalPropagationMillis = new AtomicLong();
+    AtomicLong _maxPropagationMillis = new AtomicLong();
     
     
     protected SecurityManagerMBeanImpl(SecurityGroupManagerImpl2 securityGroupManager) {
@@ -69,6 +76,74 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
             }
         }
     }
+
+    /**
+     * Starts measuring the propagation of updates queued for this management server only,
+     * an update that is already pending keeps its start time.
+     */
+    public void logPendingUpdates(Set<Long> vmIds) {
+        Long now = System.currentTimeMillis();
+        for (Long vmId : vmIds) {
+            _pendingSince.putIfAbsent(vmId, now);
+        }
+    }
+
+    /**
+     * Starts measuring the propagation of an update taken from the shared queue, from the time
+     * it was queued by any management server.
+     */
+    public void logPendingUpdate(Long vmId, Date scheduled) {
+        if (scheduled != null) {
+            _pendingSince.put(vmId, scheduled.getTime());
+        }
+    }
+
+    public void logUpdateDropped(Long vmId) {
+        _pendingSince.remove(vmId);
+    }
+
+    @Override
+    public void logAnswerDetails(Long vmId, Long seqno, boolean success) {
+        Long since = _pendingSince.remove(vmId);
+        if (since == null || !success) {
+            return;
+        }
+        long millis = Math.max(0, System.currentTimeMillis() - since);
+        _answered.incrementAndGet();
+        _totalPropagationMillis.addAndGet(millis);
+        long max = _maxPropagationMillis.get();
+        while (millis > max && !_maxPropagationMillis.compareAndSet(max, millis)) {
+            max = _maxPropagationMillis.get();
+        }
+    }
+
+    @Override
+    public long getRulesetUpdatesAnswered() {
+        return _answered.get();
+    }
+
+    @Override
+    public int getRulesetUpdatesInFlight() {
+        return _pendingSince.size();
+    }
+
+    @Override
+    public long getAverageRulesetPropagationMillis() {
+        long answered = _answered.get();
+        return answered == 0 ? 0 : _totalPropagationMillis.get() / answered;
+    }
+
+    @Override
+    public long getMaxRulesetPropagationMillis() {
+        return _maxPropagationMillis.get();
+    }
+
+    @Override
+    public void resetRulesetPropagationStats() {
+        _answered.set(0);
+        _totalPropagationMillis.set(0);
+        _maxPropagationMillis.set(0);
+    }
     
     @Override
     public void enableUpdateMonitor(boolean enable) {
@@ -17,7 +17,9 @@
 package com.cloud.network.vpc;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -94,9 +96,18 @@ public class NetworkACLManagerImpl extends ManagerBase implements NetworkACLMana
         boolean aclApplyStatus = true;
 
         List<NetworkACLItemVO> rules = _networkACLItemDao.listByACL(aclId);
+        //Tiers and private gateways served by the vpc virtual router are programmed
+        //with a single plan per vpc instead of one router call each
+        Map<Long, VpcConfigurationPlan> plans = new LinkedHashMap<Long, VpcConfigurationPlan>();
+
         //Find all networks using this ACL and apply the ACL
         List<NetworkVO> networks = _networkDao.listByAclId(aclId);
         for(NetworkVO network : networks){
+            if (network.getVpcId() != null
+                    && _ntwkModel.isProviderSupportServiceInNetwork(network.getId(), Service.NetworkACL, Network.Provider.VPCVirtualRouter)) {
+                getVpcConfigurationPlan(plans, network.getVpcId()).addTierAcls(network.getId(), rules);
+                continue;
+            }
             if(!applyACLItemsToNetwork(network.getId(), rules)) {
                 handled = false;
                 break;
@@ -105,11 +116,16 @@ public class NetworkACLManagerImpl extends ManagerBase implements NetworkACLMana
 
         List<VpcGatewayVO> vpcGateways = _vpcGatewayDao.listByAclIdAndType(aclId, VpcGateway.Type.Private);
         for (VpcGatewayVO vpcGateway : vpcGateways) {
-            PrivateGateway privateGateway = _entityMgr.findById(PrivateGateway.class, vpcGateway.getId());
-            if (!applyACLToPrivateGw(privateGateway)) {
-                aclApplyStatus = false;
-                s_logger.debug("failed to apply network acl item on private gateway " + privateGateway.getId() + "acl id " + aclId);
-                break;
+            getVpcConfigurationPlan(plans, vpcGateway.getVpcId()).addPrivateGatewayAcls(vpcGateway.getNetworkId(), rules);
+        }
+
+        if (handled) {
+            for (VpcConfigurationPlan plan : plans.values()) {
+                if (!applyVpcConfiguration(plan)) {
+                    aclApplyStatus = false;
+                    s_logger.debug("failed to apply network acl id " + aclId + " with " + plan);
+                    break;
+                }
             }
         }
 
@@ -379,6 +395,24 @@ public class NetworkACLManagerImpl extends ManagerBase implements NetworkACLMana
         return false;
     }
 
+    private VpcConfigurationPlan getVpcConfigurationPlan(Map<Long, VpcConfigurationPlan> plans, long vpcId) {
+        VpcConfigurationPlan plan = plans.get(vpcId);
+        if (plan == null) {
+            plan = new VpcConfigurationPlan(vpcId);
+            plans.put(vpcId, plan);
+        }
+        return plan;
+    }
+
+    private boolean applyVpcConfiguration(VpcConfigurationPlan plan) throws ResourceUnavailableException {
+        VpcProvider provider = (VpcProvider)_ntwkModel.getElementImplementingProvider(Network.Provider.VPCVirtualRouter.getName());
+        if (provider == null) {
+            throw new CloudRuntimeException("Failed to initialize vpc elements");
+        }
+        Vpc vpc = _entityMgr.findById(Vpc.class, plan.getVpcId());
+        return provider.applyVpcConfiguration(vpc, plan);
+    }
+
     @Override
     public boolean applyACLToNetwork(long networkId) throws ResourceUnavailableException {
         Network network = _networkDao.findById(networkId);
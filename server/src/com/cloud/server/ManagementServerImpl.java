@@ -250,6 +250,7 @@ import org.apache.cloudstack.api.command.user.firewall.CreatePortForwardingRuleC
 import org.apache.cloudstack.api.command.user.firewall.DeleteEgressFirewallRuleCmd;
 import org.apache.cloudstack.api.command.user.firewall.DeleteFirewallRuleCmd;
 import org.apache.cloudstack.api.command.user.firewall.DeletePortForwardingRuleCmd;
+import org.apache.cloudstack.api.command.user.firewall.DeletePortForwardingRulesCmd;
 import org.apache.cloudstack.api.command.user.firewall.ListEgressFirewallRulesCmd;
 import org.apache.cloudstack.api.command.user.firewall.ListFirewallRulesCmd;
 import org.apache.cloudstack.api.command.user.firewall.ListPortForwardingRulesCmd;
@@ -277,6 +278,7 @@ import org.apache.cloudstack.api.command.user.loadbalancer.DeleteApplicationLoad
 import org.apache.cloudstack.api.command.user.loadbalancer.DeleteLBHealthCheckPolicyCmd;
 import org.apache.cloudstack.api.command.user.loadbalancer.DeleteLBStickinessPolicyCmd;
 import org.apache.cloudstack.api.command.user.loadbalancer.DeleteLoadBalancerRuleCmd;
+import org.apache.cloudstack.api.command.user.loadbalancer.DeleteLoadBalancerRulesCmd;
 import org.apache.cloudstack.api.command.user.loadbalancer.ListApplicationLoadBalancersCmd;
 import org.apache.cloudstack.api.command.user.loadbalancer.ListLBHealthCheckPoliciesCmd;
 import org.apache.cloudstack.api.command.user.loadbalancer.ListLBStickinessPoliciesCmd;
@@ -2656,6 +2658,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         cmdList.add(DeleteEgressFirewallRuleCmd.class);
         cmdList.add(DeleteFirewallRuleCmd.class);
         cmdList.add(DeletePortForwardingRuleCmd.class);
+        cmdList.add(DeletePortForwardingRulesCmd.class);
         cmdList.add(ListEgressFirewallRulesCmd.class);
         cmdList.add(ListFirewallRulesCmd.class);
         cmdList.add(ListPortForwardingRulesCmd.class);
@@ -2681,6 +2684,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         cmdList.add(DeleteLBStickinessPolicyCmd.class);
         cmdList.add(DeleteLBHealthCheckPolicyCmd.class);
         cmdList.add(DeleteLoadBalancerRuleCmd.class);
+        cmdList.add(DeleteLoadBalancerRulesCmd.class);
         cmdList.add(ListLBStickinessPoliciesCmd.class);
         cmdList.add(ListLBHealthCheckPoliciesCmd.class);
         cmdList.add(ListLoadBalancerRuleInstancesCmd.class);
@@ -108,6 +108,7 @@ import com.cloud.dc.ClusterVO;
 import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.deploy.StoragePoolCatalog;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.ConnectionException;
 import com.cloud.exception.DiscoveryException;
@@ -1508,17 +1509,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         if (pool.getCapacityIops() == null ) {
             return true;
         }
-        long currentIops = 0;
-        List<VolumeVO> volumesInPool = _volumeDao.findByPoolId(pool.getId(), null);
-
-
-        for (VolumeVO volumeInPool : volumesInPool) {
-            Long minIops = volumeInPool.getMinIops();
-
-            if (minIops != null && minIops > 0) {
-                currentIops += minIops;
-            }
-        }
+        long currentIops = StoragePoolCatalog.getAllocatedIops(_volumeDao, pool.getId());
 
         long requestedIops = 0;
 
@@ -0,0 +1,154 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.affinity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.cloud.dc.DedicatedResourceVO;
+import com.cloud.dc.dao.DedicatedResourceDao;
+import com.cloud.utils.Pair;
+
+/**
+ * In-memory view of the dedicated resources used by the affinity group
+ * processors, so that planning does not query the dedicated_resources table
+ * for every host, cluster and pod it walks.
+ *
+ * Dedicated resources are kept as a snapshot indexed by resource, affinity
+ * group, account and domain, reloaded whenever the row count or the highest
+ * id of dedicated_resources changes.
+ */
+@Component
+public class AffinityConstraintIndex {
+    private static final Logger s_logger = Logger.getLogger(AffinityConstraintIndex.class);
+
+    @Inject
+    DedicatedResourceDao _dedicatedDao;
+
+    private volatile Dedications _dedications;
+
+    /**
+     * Returns the current dedicated resources, reloading them when the
+     * dedicated_resources table has changed since the last call.
+     */
+    public Dedications getDedications() {
+        Pair<Long, Long> version = _dedicatedDao.getCountAndMaxId();
+        Dedications dedications = _dedications;
+        if (dedications == null || !dedications.version.equals(version)) {
+            dedications = new Dedications(version, _dedicatedDao.listAll());
+            _dedications = dedications;
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Reloaded " + dedications.size() + " dedicated resources");
+            }
+        }
+        return dedications;
+    }
+
+    /**
+     * Immutable snapshot of the dedicated_resources table.
+     */
+    public static class Dedications {
+        private final Pair<Long, Long> version;
+        private final Map<Long, DedicatedResourceVO> _zones = new HashMap<Long, DedicatedResourceVO>();
+        private final Map<Long, DedicatedResourceVO> _pods = new HashMap<Long, DedicatedResourceVO>();
+        private final Map<Long, DedicatedResourceVO> _clusters = new HashMap<Long, DedicatedResourceVO>();
+        private final Map<Long, DedicatedResourceVO> _hosts = new HashMap<Long, DedicatedResourceVO>();
+        private final Map<Long, List<DedicatedResourceVO>> _byGroup = new HashMap<Long, List<DedicatedResourceVO>>();
+        private final Map<Long, List<DedicatedResourceVO>> _byAccount = new HashMap<Long, List<DedicatedResourceVO>>();
+        private final Map<Long, List<DedicatedResourceVO>> _byDomain = new HashMap<Long, List<DedicatedResourceVO>>();
+        private final int size;
+
+        Dedications(Pair<Long, Long> version, List<DedicatedResourceVO> resources) {
+            this.version = version;
+            this.size = resources.size();
+            for (DedicatedResourceVO resource : resources) {
+                if (resource.getHostId() != null) {
+                    _hosts.put(resource.getHostId(), resource);
+                }
+                if (resource.getClusterId() != null) {
+                    _clusters.put(resource.getClusterId(), resource);
+                }
+                if (resource.getPodId() != null) {
+                    _pods.put(resource.getPodId(), resource);
+                }
+                if (resource.getDataCenterId() != null) {
+                    _zones.put(resource.getDataCenterId(), resource);
+                }
+                add(_byGroup, resource.getAffinityGroupId(), resource);
+                add(_byAccount, resource.getAccountId(), resource);
+                add(_byDomain, resource.getDomainId(), resource);
+            }
+        }
+
+        private static void add(Map<Long, List<DedicatedResourceVO>> index, Long key, DedicatedResourceVO resource) {
+            if (key == null) {
+                return;
+            }
+            List<DedicatedResourceVO> resources = index.get(key);
+            if (resources == null) {
+                resources = new ArrayList<DedicatedResourceVO>();
+                index.put(key, resources);
+            }
+            resources.add(resource);
+        }
+
+        private static List<DedicatedResourceVO> list(Map<Long, List<DedicatedResourceVO>> index, Long key) {
+            List<DedicatedResourceVO> resources = index.get(key);
+            return resources == null ? Collections.<DedicatedResourceVO> emptyList() : Collections.unmodifiableList(resources);
+        }
+
+        public DedicatedResourceVO findByZoneId(Long zoneId) {
+            return _zones.get(zoneId);
+        }
+
+        public DedicatedResourceVO findByPodId(Long podId) {
+            return _pods.get(podId);
+        }
+
+        public DedicatedResourceVO findByClusterId(Long clusterId) {
+            return _clusters.get(clusterId);
+        }
+
+        public DedicatedResourceVO findByHostId(Long hostId) {
+            return _hosts.get(hostId);
+        }
+
+        public List<DedicatedResourceVO> listByAffinityGroupId(Long affinityGroupId) {
+            return list(_byGroup, affinityGroupId);
+        }
+
+        public List<DedicatedResourceVO> listByAccountId(Long accountId) {
+            return list(_byAccount, accountId);
+        }
+
+        public List<DedicatedResourceVO> listByDomainId(Long domainId) {
+            return list(_byDomain, domainId);
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.HostCapacityIndex;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.AllocationAlgorithm;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.deploy.HostRanker;
+import com.cloud.deploy.HostScoringContext;
+import com.cloud.host.Host;
+import com.cloud.host.dao.HostDetailsDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.storage.GuestOSCategoryVO;
+import com.cloud.storage.GuestOSVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.GuestOSCategoryDao;
+import com.cloud.storage.dao.GuestOSDao;
+import com.cloud.vm.VirtualMachineProfile;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class FirstFitAllocatorTest {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    FirstFitAllocator allocator;
+    List<Host> hosts;
+    ServiceOffering offering;
+
+    @Before
+    public void setUp() {
+        allocator = new FirstFitAllocator();
+        allocator._vmInstanceDao = Mockito.mock(VMInstanceDao.class);
+        allocator._hypervisorCapabilitiesDao = Mockito.mock(HypervisorCapabilitiesDao.class);
+        allocator._clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class);
+        allocator._capacityMgr = Mockito.mock(CapacityManager.class);
+        allocator._capacityDao = Mockito.mock(CapacityDao.class);
+
+        hosts = new ArrayList<Host>();
+        List<CapacityVO> cpu = new ArrayList<CapacityVO>();
+        List<CapacityVO> memory = new ArrayList<CapacityVO>();
+        for (long id = 1; id <= 3; id++) {
+            Host host = Mockito.mock(Host.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            Mockito.when(host.getCpus()).thenReturn(4);
+            Mockito.when(host.getSpeed()).thenReturn(2000L);
+            Mockito.when(host.getClusterId()).thenReturn(1L);
+            Mockito.when(host.getHypervisorType()).thenReturn(HypervisorType.XenServer);
+            hosts.add(host);
+            cpu.add(new CapacityVO(id, 1L, 1L, 1L, 0, 8000, CapacityVO.CAPACITY_TYPE_CPU));
+            memory.add(new CapacityVO(id, 1L, 1L, 1L, 0, 8 * GB, CapacityVO.CAPACITY_TYPE_MEMORY));
+        }
+
+        Mockito.when(allocator._vmInstanceDao.countRunningByHostIds(Mockito.anyList())).thenReturn(new HashMap<Long, Long>());
+        Mockito.when(allocator._hypervisorCapabilitiesDao.getMaxGuestsLimit(Mockito.any(HypervisorType.class), Mockito.anyString())).thenReturn(50L);
+        Mockito.when(allocator._clusterDetailsDao.findDetails(Mockito.anyLong())).thenReturn(new HashMap<String, String>());
+        Mockito.when(allocator._capacityDao.listByHostIdsType(Mockito.anyList(), Mockito.eq(CapacityVO.CAPACITY_TYPE_CPU))).thenReturn(cpu);
+        Mockito.when(allocator._capacityDao.listByHostIdsType(Mockito.anyList(), Mockito.eq(CapacityVO.CAPACITY_TYPE_MEMORY))).thenReturn(memory);
+
+        offering = Mockito.mock(ServiceOffering.class);
+        Mockito.when(offering.getCpu()).thenReturn(1);
+        Mockito.when(offering.getSpeed()).thenReturn(1000);
+        Mockito.when(offering.getRamSize()).thenReturn(512);
+    }
+
+    private List<Host> allocate(int returnUpTo) {
+        return allocator.allocateTo(Mockito.mock(VirtualMachineProfile.class), Mockito.mock(DeploymentPlan.class), offering, null, new ExcludeList(), new ArrayList<Host>(hosts), returnUpTo, true, null);
+    }
+
+    @Test
+    public void testReturnUpToAll() {
+        assertEquals(3, allocate(HostAllocator.RETURN_UPTO_ALL).size());
+    }
+
+    @Test
+    public void testReturnUpTo() {
+        assertEquals(1, allocate(1).size());
+        assertEquals(2, allocate(2).size());
+    }
+
+    @Test
+    public void testReturnUpToAllSkipsHostsWithoutCapacity() {
+        Map<Long, Long> runningVms = new HashMap<Long, Long>();
+        runningVms.put(2L, 50L);
+        Mockito.when(allocator._vmInstanceDao.countRunningByHostIds(Mockito.anyList())).thenReturn(runningVms);
+        List<Host> suitable = allocate(HostAllocator.RETURN_UPTO_ALL);
+        assertEquals(2, suitable.size());
+        for (Host host : suitable) {
+            assertTrue(host.getId() != 2L);
+        }
+    }
+
+    private List<CapacityVO> capacities(short capacityType, long total, long usedOnHost1) {
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        for (long id = 1; id <= 3; id++) {
+            rows.add(new CapacityVO(id, 1L, 1L, 1L, id == 1 ? usedOnHost1 : 0, total, capacityType));
+        }
+        return rows;
+    }
+
+    private void useCapacityIndex(long usedCpuOnHost1) {
+        List<CapacityVO> rows = new ArrayList<CapacityVO>(capacities(CapacityVO.CAPACITY_TYPE_CPU, 8000, usedCpuOnHost1));
+        rows.addAll(capacities(CapacityVO.CAPACITY_TYPE_MEMORY, 8 * GB, 0));
+        HostCapacityIndex index = new HostCapacityIndex();
+        index.reconcile(index.beginReconcile(), rows, new HashMap<Long, Map<String, String>>());
+        Mockito.when(allocator._capacityMgr.getHostCapacityIndex()).thenReturn(index);
+    }
+
+    @Test
+    public void testStaleCapacityIndexDoesNotApproveFullHost() {
+        useCapacityIndex(0);
+        Mockito.when(allocator._capacityDao.listByHostIdsType(Mockito.anyList(), Mockito.eq(CapacityVO.CAPACITY_TYPE_CPU)))
+                .thenReturn(capacities(CapacityVO.CAPACITY_TYPE_CPU, 8000, 8000));
+
+        List<Host> suitable = allocate(HostAllocator.RETURN_UPTO_ALL);
+        assertEquals(2, suitable.size());
+        for (Host host : suitable) {
+            assertTrue(host.getId() != 1L);
+        }
+    }
+
+    @Test
+    public void testCapacityIndexRejectsFullHostEarly() {
+        useCapacityIndex(8000);
+
+        List<Host> suitable = allocate(HostAllocator.RETURN_UPTO_ALL);
+        assertEquals(2, suitable.size());
+        Mockito.verify(allocator._capacityDao).listByHostIdsType(Arrays.asList(2L, 3L), CapacityVO.CAPACITY_TYPE_CPU);
+    }
+
+    private GuestOSCategoryVO category(String name) {
+        GuestOSCategoryVO category = Mockito.mock(GuestOSCategoryVO.class);
+        Mockito.when(category.getName()).thenReturn(name);
+        return category;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testScoredKeepsGuestOsCategoryOrder() {
+        allocator._allocationAlgorithm = AllocationAlgorithm.scored.toString();
+        allocator._checkHvm = false;
+        allocator._hostDetailsDao = Mockito.mock(HostDetailsDao.class);
+        allocator._guestOSDao = Mockito.mock(GuestOSDao.class);
+        allocator._guestOSCategoryDao = Mockito.mock(GuestOSCategoryDao.class);
+        allocator._hostRanker = Mockito.mock(HostRanker.class);
+
+        VMTemplateVO template = Mockito.mock(VMTemplateVO.class);
+        Mockito.when(template.getGuestOSId()).thenReturn(7L);
+        GuestOSVO guestOs = Mockito.mock(GuestOSVO.class);
+        Mockito.when(guestOs.getCategoryId()).thenReturn(5L);
+        Mockito.when(allocator._guestOSDao.findById(7L)).thenReturn(guestOs);
+        GuestOSCategoryVO linux = category("Linux");
+        Mockito.when(allocator._guestOSCategoryDao.findById(5L)).thenReturn(linux);
+        Map<Long, String> hostCategories = new HashMap<Long, String>();
+        hostCategories.put(3L, "5");
+        Mockito.when(allocator._hostDetailsDao.findDetail(Mockito.anyList(), Mockito.eq("guest.os.category.id"))).thenReturn(hostCategories);
+
+        // the ranker prefers the hosts in the reverse order it is given them
+        Mockito.when(allocator._hostRanker.topK(Mockito.any(HostCandidates.class), Mockito.anyList(), Mockito.any(HostScoringContext.class), Mockito.anyInt()))
+                .thenAnswer(new Answer<List<Integer>>() {
+                    @Override
+                    public List<Integer> answer(InvocationOnMock invocation) {
+                        List<Integer> ranked = new ArrayList<Integer>((List<Integer>)invocation.getArguments()[1]);
+                        Collections.reverse(ranked);
+                        return ranked;
+                    }
+                });
+
+        List<Host> suitable = allocator.allocateTo(Mockito.mock(VirtualMachineProfile.class), Mockito.mock(DeploymentPlan.class), offering, template,
+                new ExcludeList(), new ArrayList<Host>(hosts), HostAllocator.RETURN_UPTO_ALL, true, null);
+
+        assertEquals(3, suitable.size());
+        assertEquals(3L, suitable.get(0).getId());
+        assertEquals(2L, suitable.get(1).getId());
+        assertEquals(1L, suitable.get(2).getId());
+    }
+}
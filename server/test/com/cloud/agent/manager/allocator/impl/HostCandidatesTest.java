@@ -0,0 +1,88 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidates.Rejection;
+import com.cloud.host.Host;
+
+public class HostCandidatesTest {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    HostCandidates candidates;
+
+    private static Host host(long id, int cpus, long speed) {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        Mockito.when(host.getCpus()).thenReturn(cpus);
+        Mockito.when(host.getSpeed()).thenReturn(speed);
+        return host;
+    }
+
+    @Before
+    public void setUp() {
+        candidates = new HostCandidates(Arrays.asList(host(1L, 4, 2000L), host(2L, 2, 1000L), host(3L, 8, 2000L)));
+        for (int i = 0; i < candidates.size(); i++) {
+            candidates.setRunningVms(i, 0, 50);
+            candidates.setOvercommitRatios(i, 1, 1);
+        }
+    }
+
+    @Test
+    public void testHostFits() {
+        candidates.setCapacity(0, 2000, 0, 8000, 2 * GB, 0, 8 * GB);
+        assertEquals(1L, candidates.getId(0));
+        assertNull(candidates.check(0, 2, 2000, 4 * GB, true));
+    }
+
+    @Test
+    public void testCpuChecks() {
+        candidates.setCapacity(1, 0, 0, 2000, 0, 0, 8 * GB);
+        assertEquals(Rejection.CpuCount, candidates.check(1, 4, 500, GB, true));
+        assertEquals(Rejection.CpuSpeed, candidates.check(1, 1, 2000, GB, true));
+    }
+
+    @Test
+    public void testMaxGuestsChecked() {
+        candidates.setCapacity(0, 0, 0, 8000, 0, 0, 8 * GB);
+        candidates.setRunningVms(0, 50, 50);
+        assertEquals(Rejection.MaxGuestsReached, candidates.check(0, 1, 1000, GB, true));
+    }
+
+    @Test
+    public void testCapacityChecks() {
+        // no capacity rows loaded for the host
+        assertEquals(Rejection.Capacity, candidates.check(2, 1, 1000, GB, true));
+
+        candidates.setCapacity(2, 4000, 4000, 8000, 2 * GB, 4 * GB, 8 * GB);
+        assertEquals(Rejection.Capacity, candidates.check(2, 1, 1000, GB, true));
+        assertNull(candidates.check(2, 1, 1000, GB, false));
+
+        // overcommit makes room for it
+        candidates.setOvercommitRatios(2, 2, 1);
+        assertNull(candidates.check(2, 1, 1000, GB, true));
+        assertEquals(Rejection.Capacity, candidates.check(2, 1, 1000, 3 * GB, true));
+    }
+}
@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.alert;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.cloud.capacity.CapacityManager;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.resource.ResourceManager;
+
+public class AlertManagerImplTest {
+
+    private static List<HostVO> hosts(long... ids) {
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long id : ids) {
+            HostVO host = Mockito.mock(HostVO.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    private static List<Long> ids(List<HostVO> hosts) {
+        List<Long> ids = new ArrayList<Long>();
+        for (HostVO host : hosts) {
+            ids.add(host.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testHostsVerifiedInTurns() {
+        AlertManagerImpl alertMgr = new AlertManagerImpl();
+        List<HostVO> hosts = hosts(4, 2, 5, 1, 3);
+
+        assertEquals("[1, 2]", ids(alertMgr.getHostsToVerify(hosts, 2)).toString());
+        assertEquals("[3, 4]", ids(alertMgr.getHostsToVerify(hosts, 2)).toString());
+        assertEquals("[5, 1]", ids(alertMgr.getHostsToVerify(hosts, 2)).toString());
+        assertEquals("[2, 3]", ids(alertMgr.getHostsToVerify(hosts, 2)).toString());
+    }
+
+    @Test
+    public void testAllHostsVerified() {
+        AlertManagerImpl alertMgr = new AlertManagerImpl();
+        List<HostVO> hosts = hosts(1, 2, 3);
+
+        assertEquals(3, alertMgr.getHostsToVerify(hosts, 0).size());
+        assertEquals(3, alertMgr.getHostsToVerify(hosts, 5).size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testReservedCapacityOfAllHostsVerifiedEveryRun() {
+        AlertManagerImpl alertMgr = new AlertManagerImpl();
+        alertMgr._capacityMgr = Mockito.mock(CapacityManager.class);
+        alertMgr._resourceMgr = Mockito.mock(ResourceManager.class);
+        long[] ids = new long[AlertManager.CapacityCheckHostsPerRun.value() + 2];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i + 1;
+        }
+        List<HostVO> hosts = hosts(ids);
+        Mockito.when(alertMgr._resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null)).thenReturn(hosts);
+
+        alertMgr.verifyCapacity();
+        alertMgr.verifyCapacity();
+
+        ArgumentCaptor<List> verified = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List> reserved = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(alertMgr._capacityMgr, Mockito.times(2)).updateCapacityForHosts(verified.capture());
+        Mockito.verify(alertMgr._capacityMgr, Mockito.times(2)).updateReservedCapacityForHosts(reserved.capture());
+
+        // the hosts left out of a run still get their reservations recomputed
+        assertEquals("[" + (ids.length - 1) + ", " + ids.length + "]", ids(reserved.getAllValues().get(0)).toString());
+        assertEquals("[" + (ids.length - 3) + ", " + (ids.length - 2) + "]", ids(reserved.getAllValues().get(1)).toString());
+        for (int run = 0; run < 2; run++) {
+            assertEquals(ids.length, verified.getAllValues().get(run).size() + reserved.getAllValues().get(run).size());
+        }
+    }
+}
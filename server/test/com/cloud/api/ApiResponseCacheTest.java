@@ -0,0 +1,114 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.CachedResponse;
+import org.apache.cloudstack.api.command.user.zone.ListZonesByCmd;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+import com.cloud.configuration.Config;
+import com.cloud.user.Account;
+
+public class ApiResponseCacheTest {
+    ApiResponseCache _cache;
+    Account _caller;
+
+    @Before
+    public void setup() throws Exception {
+        _cache = new ApiResponseCache();
+        _cache._configDao = Mockito.mock(ConfigurationDao.class);
+        Mockito.when(_cache._configDao.getValue(Config.ApiResponseCacheEnabled.key())).thenReturn("true");
+        Mockito.when(_cache._configDao.getValue(Config.ApiResponseCacheSize.key())).thenReturn("2");
+        _cache.configure("ApiResponseCache", new HashMap<String, Object>());
+
+        _caller = Mockito.mock(Account.class);
+        Mockito.when(_caller.getId()).thenReturn(2L);
+        Mockito.when(_caller.getDomainId()).thenReturn(1L);
+        Mockito.when(_caller.getType()).thenReturn(Account.ACCOUNT_TYPE_ADMIN);
+    }
+
+    private Map<String, String> params(String... pairs) {
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            params.put(pairs[i], pairs[i + 1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void testKeyIgnoresVolatileParams() {
+        String key1 = _cache.buildKey("listZones", params("available", "true", "sessionkey", "a", "_", "1"), BaseCmd.RESPONSE_TYPE_JSON, _caller);
+        String key2 = _cache.buildKey("listZones", params("_", "2", "available", "true", "sessionkey", "b"), BaseCmd.RESPONSE_TYPE_JSON, _caller);
+        String key3 = _cache.buildKey("listZones", params("available", "false"), BaseCmd.RESPONSE_TYPE_JSON, _caller);
+        Assert.assertEquals(key1, key2);
+        Assert.assertFalse(key1.equals(key3));
+    }
+
+    @Test
+    public void testHitMissAndInvalidation() {
+        CachedResponse policy = ListZonesByCmd.class.getAnnotation(CachedResponse.class);
+        Assert.assertNotNull(_cache.getPolicy(ListZonesByCmd.class));
+
+        String key = _cache.buildKey("listZones", params("available", "true"), BaseCmd.RESPONSE_TYPE_JSON, _caller);
+        Assert.assertNull(_cache.get("listZones", key));
+        _cache.put("listZones", key, "zones", policy, _cache.getGeneration("listZones", policy));
+        Assert.assertEquals("zones", _cache.get("listZones", key));
+        Assert.assertEquals(0.5d, _cache.getHitRates().get("listZones"), 0.0001d);
+
+        _cache.onActionEvent("VM.CREATE");
+        Assert.assertEquals("zones", _cache.get("listZones", key));
+
+        _cache.onActionEvent("ZONE.EDIT");
+        Assert.assertNull(_cache.get("listZones", key));
+    }
+
+    @Test
+    public void testResponseOfCommandRacingInvalidationIsStale() {
+        CachedResponse policy = ListZonesByCmd.class.getAnnotation(CachedResponse.class);
+        String key = _cache.buildKey("listZones", params("available", "true"), BaseCmd.RESPONSE_TYPE_JSON, _caller);
+
+        // the zone changes while the first listZones is being dispatched
+        long generation = _cache.getGeneration("listZones", policy);
+        _cache.onActionEvent("ZONE.EDIT");
+        _cache.put("listZones", key, "old zones", policy, generation);
+
+        Assert.assertNull(_cache.get("listZones", key));
+    }
+
+    @Test
+    public void testSizeBound() {
+        CachedResponse policy = ListZonesByCmd.class.getAnnotation(CachedResponse.class);
+        long generation = _cache.getGeneration("listZones", policy);
+        _cache.put("listZones", "k1", "r1", policy, generation);
+        _cache.put("listZones", "k2", "r2", policy, generation);
+        _cache.get("listZones", "k1");
+        _cache.put("listZones", "k3", "r3", policy, generation);
+
+        Assert.assertEquals(2, _cache.getSize());
+        Assert.assertEquals("r1", _cache.get("listZones", "k1"));
+        Assert.assertNull(_cache.get("listZones", "k2"));
+    }
+}
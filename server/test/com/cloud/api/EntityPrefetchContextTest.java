@@ -0,0 +1,84 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.cloud.server.ResourceTag;
+import com.cloud.server.ResourceTag.TaggedResourceType;
+
+public class EntityPrefetchContextTest {
+
+    @After
+    public void tearDown() {
+        while (EntityPrefetchContext.current() != null) {
+            EntityPrefetchContext.current().close();
+        }
+    }
+
+    @Test
+    public void nestedOpenSharesContext() {
+        EntityPrefetchContext outer = EntityPrefetchContext.open();
+        EntityPrefetchContext inner = EntityPrefetchContext.open();
+        assertSame(outer, inner);
+
+        inner.close();
+        assertSame(outer, EntityPrefetchContext.current());
+
+        outer.close();
+        assertNull(EntityPrefetchContext.current());
+    }
+
+    @Test
+    public void entitiesAreKeyedByTypeAndId() {
+        EntityPrefetchContext context = EntityPrefetchContext.open();
+        context.put(String.class, 1L, "one");
+
+        assertEquals("one", context.get(String.class, 1L));
+        assertNull(context.get(String.class, 2L));
+        assertNull(context.get(Integer.class, 1L));
+        assertEquals(1, context.getHits());
+    }
+
+    @Test
+    public void tagsAreGroupedByResource() {
+        ResourceTag tag = mock(ResourceTag.class);
+        when(tag.getResourceId()).thenReturn(1L);
+
+        EntityPrefetchContext context = EntityPrefetchContext.open();
+        context.putTags(TaggedResourceType.Network, Arrays.asList(1L, 2L), Arrays.asList(tag));
+
+        List<ResourceTag> tags = context.getTags(TaggedResourceType.Network, 1L);
+        assertEquals(1, tags.size());
+        assertSame(tag, tags.get(0));
+        // prefetched but untagged resources get an empty list, not a miss
+        assertTrue(context.getTags(TaggedResourceType.Network, 2L).isEmpty());
+        assertNull(context.getTags(TaggedResourceType.Network, 3L));
+        assertNull(context.getTags(TaggedResourceType.PublicIpAddress, 1L));
+    }
+}
@@ -19,16 +19,33 @@ package com.cloud.capacity;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.storage.Volume;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Transaction;
 import com.cloud.vm.UserVmDetailVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.dao.UserVmDetailsDao;
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.config.impl.ConfigDepotImpl;
+import org.apache.cloudstack.framework.config.impl.ConfigurationVO;
+import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import org.apache.log4j.Logger;
 import org.junit.*;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.mockito.Mockito.*;
 
 
@@ -36,6 +53,7 @@ public class CapacityManagerTest {
     CapacityDao CDao = mock(CapacityDao.class);
     ServiceOfferingDao SOfferingDao = mock(ServiceOfferingDao.class);
     ClusterDetailsDao ClusterDetailsDao= mock(com.cloud.dc.ClusterDetailsDao.class);
+    HostDao hostDao = mock(HostDao.class);
     CapacityManagerImpl capMgr;
     private ServiceOfferingVO svo = mock(ServiceOfferingVO.class);
     private CapacityVO cvo_cpu =    mock(CapacityVO.class);
@@ -43,12 +61,14 @@ public class CapacityManagerTest {
     private VirtualMachine vm =     mock(VirtualMachine.class);
     private ClusterDetailsVO cluster_detail_cpu = mock(ClusterDetailsVO.class);
     private ClusterDetailsVO cluster_detail_ram =  mock(ClusterDetailsVO.class);
+    private HostVO host = mock(HostVO.class);
 
     public CapacityManagerImpl  setUp() {
         CapacityManagerImpl  capMgr = new CapacityManagerImpl();
         ((CapacityManagerImpl)capMgr)._clusterDetailsDao= ClusterDetailsDao;
         capMgr._capacityDao = CDao;
         capMgr._offeringsDao = SOfferingDao;
+        capMgr._hostDao = hostDao;
         return capMgr;
     }
 
@@ -75,4 +95,182 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    private void setUpHostCapacity() {
+        when(vm.getHostId()).thenReturn(1l);
+        when(vm.getServiceOfferingId()).thenReturn(2l);
+        when(hostDao.findById(1l)).thenReturn(host);
+        when(host.getClusterId()).thenReturn(3l);
+        when(ClusterDetailsDao.findDetail(3l, "cpuOvercommitRatio")).thenReturn(cluster_detail_cpu);
+        when(ClusterDetailsDao.findDetail(3l, "memoryOvercommitRatio")).thenReturn(cluster_detail_ram);
+        when(cluster_detail_cpu.getValue()).thenReturn("2");
+        when(cluster_detail_ram.getValue()).thenReturn("1.5");
+        when(SOfferingDao.findById(anyLong())).thenReturn(svo);
+        when(svo.getCpu()).thenReturn(1);
+        when(svo.getSpeed()).thenReturn(500);
+        when(svo.getRamSize()).thenReturn(512);
+        when(cvo_cpu.getId()).thenReturn(10l);
+        when(cvo_ram.getId()).thenReturn(11l);
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_CPU))).thenReturn(cvo_cpu);
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_MEMORY))).thenReturn(cvo_ram);
+        when(CDao.findById(10l)).thenReturn(cvo_cpu);
+        when(CDao.findById(11l)).thenReturn(cvo_ram);
+        when(cvo_cpu.getTotalCapacity()).thenReturn(2000l);
+        when(cvo_ram.getTotalCapacity()).thenReturn((long) 1024*1024*1024);
+    }
+
+    @Test
+    public void allocateCapacityRetriesOptimisticUpdateTest() {
+        capMgr = setUp();
+        setUpHostCapacity();
+        when(CDao.updateHostCapacityIfUnchanged(isA(CapacityVO.class), anyLong(), anyLong(), isA(CapacityVO.class), anyLong(), anyLong())).thenReturn(false, true);
+
+        capMgr.allocateVmCapacity(vm, false);
+
+        verify(CDao, times(2)).updateHostCapacityIfUnchanged(isA(CapacityVO.class), anyLong(), anyLong(), isA(CapacityVO.class), anyLong(), anyLong());
+        verify(CDao, never()).lockRow(anyLong(), anyBoolean());
+        verify(cvo_cpu, times(2)).setUsedCapacity(500l);
+    }
+
+    @Test
+    public void releaseCapacityLocksRowsAfterRetriesTest() {
+        capMgr = setUp();
+        setUpHostCapacity();
+        when(CDao.updateHostCapacityIfUnchanged(isA(CapacityVO.class), anyLong(), anyLong(), isA(CapacityVO.class), anyLong(), anyLong())).thenReturn(false);
+        when(CDao.lockRow(10l, true)).thenReturn(cvo_cpu);
+        when(CDao.lockRow(11l, true)).thenReturn(cvo_ram);
+
+        Transaction txn = Transaction.open("releaseCapacityLocksRowsAfterRetriesTest");
+        try {
+            Assert.assertTrue(capMgr.releaseVmCapacity(vm, false, false, 1l));
+        } finally {
+            txn.close();
+        }
+
+        verify(CDao, times(CapacityManager.CapacityUpdateRetries.value())).updateHostCapacityIfUnchanged(isA(CapacityVO.class), anyLong(), anyLong(),
+                isA(CapacityVO.class), anyLong(), anyLong());
+        verify(CDao).update(10l, cvo_cpu);
+        verify(CDao).update(11l, cvo_ram);
+    }
+
+    @Test
+    public void reserveHostCapacityTest() {
+        capMgr = setUp();
+        setUpHostCapacity();
+        when(CDao.reserveHostCapacityIfAvailable(1l, 1000l, 2f, 1024l, 1.5f)).thenReturn(true);
+
+        Assert.assertTrue(capMgr.reserveHostCapacity(1l, 1000l, 1024l));
+        Assert.assertFalse("memory is not available", capMgr.reserveHostCapacity(1l, 1000l, 2048l));
+    }
+
+    private HostCapacityIndex readyIndex(long usedCpu, long usedRam) {
+        HostCapacityIndex index = new HostCapacityIndex();
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        rows.add(new CapacityVO(1l, 1l, 2l, 3l, usedCpu, 2000l, Capacity.CAPACITY_TYPE_CPU));
+        rows.add(new CapacityVO(1l, 1l, 2l, 3l, usedRam, 1024l * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY));
+        index.reconcile(index.beginReconcile(), rows, new HashMap<Long, Map<String, String>>());
+        return index;
+    }
+
+    @Test
+    public void checkCapacityConfirmsIndexAgainstDbTest() {
+        capMgr = setUp();
+        setUpHostCapacity();
+        // the index still has the host empty, another management server already filled it
+        capMgr._capacityIndex = readyIndex(0l, 0l);
+        when(cvo_cpu.getUsedCapacity()).thenReturn(2000l);
+        when(cvo_ram.getUsedCapacity()).thenReturn(0l);
+
+        Assert.assertFalse(capMgr.checkIfHostHasCapacity(1l, 500, 1024, false, 1, 1, true));
+        verify(CDao).findByHostIdType(1l, Capacity.CAPACITY_TYPE_CPU);
+    }
+
+    @Test
+    public void checkCapacityRejectsFromIndexTest() {
+        capMgr = setUp();
+        setUpHostCapacity();
+        capMgr._capacityIndex = readyIndex(2000l, 0l);
+
+        Assert.assertFalse(capMgr.checkIfHostHasCapacity(1l, 500, 1024, false, 1, 1, true));
+        verify(CDao, never()).findByHostIdType(anyLong(), anyShort());
+    }
+
+    private StoragePoolVO setUpPoolCapacity() {
+        capMgr._volumeDao = mock(VolumeDao.class);
+        capMgr._templatePoolDao = mock(VMTemplatePoolDao.class);
+        StoragePoolVO pool = mock(StoragePoolVO.class);
+        when(pool.getId()).thenReturn(5l);
+        when(capMgr._volumeDao.getNonDestroyedCountAndTotalByPool(5l)).thenReturn(new Pair<Long, Long>(2l, 100l));
+        return pool;
+    }
+
+    private Volume volumeOnPool(Long poolId) {
+        Volume volume = mock(Volume.class);
+        when(volume.getPoolId()).thenReturn(poolId);
+        return volume;
+    }
+
+    @After
+    public void tearDown() {
+        ConfigKey.init(null);
+    }
+
+    @Test
+    public void allocatedPoolCapacityIsCachedTest() {
+        capMgr = setUp();
+        StoragePoolVO pool = setUpPoolCapacity();
+
+        Assert.assertEquals(100l, capMgr.getAllocatedPoolCapacity(pool, null));
+        Assert.assertEquals(100l, capMgr.getAllocatedPoolCapacity(pool, null));
+        verify(capMgr._volumeDao, times(1)).getNonDestroyedCountAndTotalByPool(5l);
+    }
+
+    @Test
+    public void allocatedPoolCapacityExpiresTest() throws InterruptedException {
+        ConfigDepotImpl depot = mock(ConfigDepotImpl.class);
+        ConfigurationDao configDao = mock(ConfigurationDao.class);
+        when(depot.global()).thenReturn(configDao);
+        when(configDao.findById(CapacityManager.StorageAllocatedCapacityCacheTtl.key())).thenReturn(
+                new ConfigurationVO("Storage", "DEFAULT", "CapacityManager", CapacityManager.StorageAllocatedCapacityCacheTtl.key(), "1", null));
+        ConfigKey.init(depot);
+
+        capMgr = setUp();
+        StoragePoolVO pool = setUpPoolCapacity();
+
+        capMgr.getAllocatedPoolCapacity(pool, null);
+        capMgr.getAllocatedPoolCapacity(pool, null);
+        verify(capMgr._volumeDao, times(1)).getNonDestroyedCountAndTotalByPool(5l);
+
+        Thread.sleep(1100);
+        when(capMgr._volumeDao.getNonDestroyedCountAndTotalByPool(5l)).thenReturn(new Pair<Long, Long>(3l, 150l));
+        Assert.assertEquals("expired value should be recomputed", 150l, capMgr.getAllocatedPoolCapacity(pool, null));
+        verify(capMgr._volumeDao, times(2)).getNonDestroyedCountAndTotalByPool(5l);
+    }
+
+    @Test
+    public void allocatedPoolCapacityInvalidatedByVolumeChangeTest() {
+        capMgr = setUp();
+        StoragePoolVO pool = setUpPoolCapacity();
+        CapacityManagerImpl.PoolCapacityVolumeListener listener = capMgr.new PoolCapacityVolumeListener();
+
+        capMgr.getAllocatedPoolCapacity(pool, null);
+
+        // volumes on other pools, or not on a pool yet, leave the cached value alone
+        listener.postStateTransitionEvent(Volume.State.Allocated, Volume.Event.CreateRequested, Volume.State.Creating, volumeOnPool(6l), true, null);
+        listener.postStateTransitionEvent(Volume.State.Allocated, Volume.Event.CreateRequested, Volume.State.Creating, volumeOnPool(null), true, null);
+        capMgr.getAllocatedPoolCapacity(pool, null);
+        verify(capMgr._volumeDao, times(1)).getNonDestroyedCountAndTotalByPool(5l);
+
+        // a volume created on the pool
+        when(capMgr._volumeDao.getNonDestroyedCountAndTotalByPool(5l)).thenReturn(new Pair<Long, Long>(3l, 150l));
+        listener.postStateTransitionEvent(Volume.State.Creating, Volume.Event.OperationSucceeded, Volume.State.Ready, volumeOnPool(5l), true, null);
+        Assert.assertEquals(150l, capMgr.getAllocatedPoolCapacity(pool, null));
+        verify(capMgr._volumeDao, times(2)).getNonDestroyedCountAndTotalByPool(5l);
+
+        // a volume destroyed on the pool
+        when(capMgr._volumeDao.getNonDestroyedCountAndTotalByPool(5l)).thenReturn(new Pair<Long, Long>(2l, 100l));
+        listener.postStateTransitionEvent(Volume.State.Ready, Volume.Event.DestroyRequested, Volume.State.Destroy, volumeOnPool(5l), true, null);
+        Assert.assertEquals(100l, capMgr.getAllocatedPoolCapacity(pool, null));
+        verify(capMgr._volumeDao, times(3)).getNonDestroyedCountAndTotalByPool(5l);
+    }
 }
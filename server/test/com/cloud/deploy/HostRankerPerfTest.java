@@ -0,0 +1,166 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidates;
+import com.cloud.host.Host;
+
+/**
+ * Replays a deploy trace against a synthetic inventory of 10000 hosts and reports how fast
+ * HostRanker places the VMs and how tightly it packs them for a few weightings.
+ *
+ * The trace is read from the file named by the host.ranking.trace system property, one deploy
+ * per line as cpus,speed,ramMB, otherwise a random one is generated.  Excluded from the unit
+ * tests as it takes a while, run it with -Dtest=HostRankerPerfTest.
+ */
+public class HostRankerPerfTest {
+    private static final int HOSTS = 10000;
+    private static final int DEPLOYS = 20000;
+    private static final int RETURN_UP_TO = 5;
+    private static final long MB = 1024L * 1024L;
+
+    List<Host> hosts;
+    List<int[]> trace;
+
+    @Before
+    public void setUp() throws IOException {
+        hosts = new ArrayList<Host>(HOSTS);
+        Random random = new Random(42);
+        for (int i = 0; i < HOSTS; i++) {
+            Host host = Mockito.mock(Host.class);
+            Mockito.when(host.getId()).thenReturn((long)i + 1);
+            Mockito.when(host.getCpus()).thenReturn(16 << random.nextInt(3));
+            Mockito.when(host.getSpeed()).thenReturn(2000L + 200L * random.nextInt(6));
+            Mockito.when(host.getClusterId()).thenReturn((long)i / 32 + 1);
+            hosts.add(host);
+        }
+
+        trace = new ArrayList<int[]>();
+        String traceFile = System.getProperty("host.ranking.trace");
+        if (traceFile != null) {
+            BufferedReader reader = new BufferedReader(new FileReader(traceFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split(",");
+                    trace.add(new int[] {Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim())});
+                }
+            } finally {
+                reader.close();
+            }
+        } else {
+            int[][] offerings = new int[][] { {1, 1000, 512}, {1, 2000, 2048}, {2, 2000, 4096}, {4, 2000, 8192}, {8, 2000, 32768}, {2, 1000, 16384}};
+            for (int i = 0; i < DEPLOYS; i++) {
+                trace.add(offerings[random.nextInt(offerings.length)]);
+            }
+        }
+    }
+
+    @Test
+    public void testReplay() {
+        replay("memory=-1,cpu=1");
+        replay("memory=1,cpu=1");
+        replay("memory=-1,cpu=1,density=0.5,affinity=2,load=1,dedication=4");
+    }
+
+    private void replay(final String weights) {
+        HostRanker ranker = new HostRanker() {
+            @Override
+            Map<String, Double> getWeights() {
+                return parseWeights(weights);
+            }
+        };
+
+        int size = hosts.size();
+        long[] usedCpu = new long[size];
+        long[] usedMemory = new long[size];
+        long[] runningVms = new long[size];
+        long[] totalCpu = new long[size];
+        long[] totalMemory = new long[size];
+        for (int i = 0; i < size; i++) {
+            totalCpu[i] = hosts.get(i).getCpus() * hosts.get(i).getSpeed();
+            totalMemory[i] = hosts.get(i).getCpus() * 8192L * MB;
+        }
+
+        HostCandidates candidates = new HostCandidates(hosts);
+        for (int i = 0; i < size; i++) {
+            candidates.setOvercommitRatios(i, 2, 1);
+        }
+
+        int failed = 0;
+        long rankingNanos = 0;
+        List<Integer> suitable = new ArrayList<Integer>(size);
+        for (int[] deploy : trace) {
+            long ramRequested = deploy[2] * MB;
+            for (int i = 0; i < size; i++) {
+                candidates.setRunningVms(i, runningVms[i], 100);
+                candidates.setCapacity(i, usedCpu[i], 0, totalCpu[i], usedMemory[i], 0, totalMemory[i]);
+            }
+
+            long start = System.nanoTime();
+            suitable.clear();
+            for (int i = 0; i < size; i++) {
+                if (candidates.check(i, deploy[0], deploy[1], ramRequested, true) == null) {
+                    suitable.add(i);
+                }
+            }
+            HostScoringContext context = new HostScoringContext((long)deploy[0] * deploy[1], ramRequested);
+            List<Integer> ranked = ranker.topK(candidates, suitable, context, RETURN_UP_TO);
+            rankingNanos += System.nanoTime() - start;
+
+            if (ranked.isEmpty()) {
+                failed++;
+                continue;
+            }
+            int chosen = ranked.get(0);
+            usedCpu[chosen] += (long)deploy[0] * deploy[1];
+            usedMemory[chosen] += ramRequested;
+            runningVms[chosen]++;
+        }
+
+        int hostsUsed = 0;
+        double memoryUtilization = 0;
+        double cpuUtilization = 0;
+        for (int i = 0; i < size; i++) {
+            if (runningVms[i] > 0) {
+                hostsUsed++;
+                memoryUtilization += (double)usedMemory[i] / totalMemory[i];
+                cpuUtilization += (double)usedCpu[i] / (totalCpu[i] * 2);
+            }
+        }
+        System.out.println("Weights " + weights + ": " + trace.size() + " deploys against " + size + " hosts in " + rankingNanos / 1000000 + " ms, "
+                + (trace.size() * 1000000000L / Math.max(1, rankingNanos)) + " deploys/s, " + failed + " failed, " + hostsUsed + " hosts used, average memory "
+                + Math.round(100 * memoryUtilization / Math.max(1, hostsUsed)) + "% and cpu " + Math.round(100 * cpuUtilization / Math.max(1, hostsUsed))
+                + "% used on them");
+    }
+}
@@ -0,0 +1,140 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.agent.manager.allocator.impl.HostCandidates;
+import com.cloud.host.Host;
+
+public class HostRankerTest {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    HostCandidates candidates;
+    List<Integer> all;
+
+    private static Host host(long id) {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        Mockito.when(host.getCpus()).thenReturn(8);
+        Mockito.when(host.getSpeed()).thenReturn(2000L);
+        Mockito.when(host.getClusterId()).thenReturn(1L);
+        return host;
+    }
+
+    private static HostRanker ranker(final String weights) {
+        return new HostRanker() {
+            @Override
+            Map<String, Double> getWeights() {
+                return parseWeights(weights);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        candidates = new HostCandidates(Arrays.asList(host(1L), host(2L), host(3L), host(4L)));
+        all = new ArrayList<Integer>();
+        for (int i = 0; i < candidates.size(); i++) {
+            candidates.setRunningVms(i, i, 50);
+            candidates.setOvercommitRatios(i, 1, 1);
+            all.add(i);
+        }
+        // host 1 has the most memory free and the least cpu free, host 4 the other way around
+        candidates.setCapacity(0, 14000, 0, 16000, 2 * GB, 0, 16 * GB);
+        candidates.setCapacity(1, 10000, 0, 16000, 6 * GB, 0, 16 * GB);
+        candidates.setCapacity(2, 6000, 0, 16000, 10 * GB, 0, 16 * GB);
+        candidates.setCapacity(3, 2000, 0, 16000, 14 * GB, 0, 16 * GB);
+    }
+
+    private List<Long> rank(HostRanker ranker, HostScoringContext context, int k) {
+        List<Long> hostIds = new ArrayList<Long>();
+        for (int i : ranker.topK(candidates, all, context, k)) {
+            hostIds.add(candidates.getId(i));
+        }
+        return hostIds;
+    }
+
+    @Test
+    public void testSpreadAndPack() {
+        HostScoringContext context = new HostScoringContext(1000, GB);
+        assertEquals(Arrays.asList(1L, 2L), rank(ranker("memory=1"), context, 2));
+        assertEquals(Arrays.asList(4L, 3L), rank(ranker("memory=-1"), context, 2));
+        assertEquals(Arrays.asList(4L, 3L, 2L, 1L), rank(ranker("cpu=1"), context, 10));
+    }
+
+    @Test
+    public void testTiesKeepCandidateOrder() {
+        HostScoringContext context = new HostScoringContext(1000, GB);
+        assertEquals(Arrays.asList(1L, 2L, 3L), rank(ranker(""), context, 3));
+        // spreading cpu and memory equally rates all the hosts the same
+        assertEquals(Arrays.asList(1L, 2L), rank(ranker("cpu=1,memory=1"), context, 2));
+    }
+
+    @Test
+    public void testContextScorers() {
+        HostScoringContext context = new HostScoringContext(1000, GB);
+        context.addAffinityPeer(1L);
+        context.addAffinityPeer(2L);
+        context.addAffinityPeer(2L);
+        assertEquals(Arrays.asList(3L, 4L, 1L, 2L), rank(ranker("affinity=1"), context, 4));
+
+        context.setCpuUtilization(3L, 90);
+        context.setCpuUtilization(4L, 10);
+        assertEquals(Arrays.asList(4L, 1L, 2L, 3L), rank(ranker("load=1"), context, 4));
+
+        context.addDedicatedHost(3L);
+        assertEquals(Arrays.asList(3L), rank(ranker("dedication=1"), context, 1));
+        context.addDedicatedCluster(1L);
+        assertEquals(Arrays.asList(1L), rank(ranker("dedication=1"), context, 1));
+    }
+
+    @Test
+    public void testRegisteredScorer() {
+        HostRanker ranker = ranker("last=1,density=0");
+        ranker.registerScorer(new HostScorer() {
+            @Override
+            public String getName() {
+                return "last";
+            }
+
+            @Override
+            public double score(HostCandidates candidates, int i, HostScoringContext context) {
+                return i;
+            }
+        });
+        assertEquals(Arrays.asList(4L), rank(ranker, new HostScoringContext(1000, GB), 1));
+    }
+
+    @Test
+    public void testParseWeights() {
+        Map<String, Double> weights = HostRanker.parseWeights("cpu=1, memory = -0.5,bogus,load=x,");
+        assertEquals(2, weights.size());
+        assertEquals(-0.5, weights.get("memory"), 0);
+        assertTrue(ranker("cpu=1").topK(candidates, all, new HostScoringContext(0, 0), 0).isEmpty());
+    }
+}
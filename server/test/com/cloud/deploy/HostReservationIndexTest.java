@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.deploy.DeploymentPlanner.PlannerResourceUsage;
+
+public class HostReservationIndexTest {
+    HostReservationIndex index;
+
+    private static PlannerHostReservationVO reservation(long hostId, PlannerResourceUsage usage) {
+        PlannerHostReservationVO reservation = new PlannerHostReservationVO(hostId, 1L, 2L, 3L);
+        reservation.setResourceUsage(usage);
+        return reservation;
+    }
+
+    @Before
+    public void setUp() {
+        index = new HostReservationIndex();
+        Map<Long, Long> vmCounts = new HashMap<Long, Long>();
+        vmCounts.put(1L, 2L);
+        vmCounts.put(3L, 1L);
+        index.reconcile(index.beginReconcile(),
+                Arrays.asList(reservation(1L, PlannerResourceUsage.Dedicated), reservation(2L, PlannerResourceUsage.Shared)), vmCounts);
+    }
+
+    @Test
+    public void testLastVmLeavingReservedHost() {
+        assertEquals(2, index.getVmCount(1L));
+        assertFalse(index.vmMoved(1L, null));
+        assertTrue(index.vmMoved(1L, null));
+        assertEquals(0, index.getVmCount(1L));
+
+        // host 3 is not reserved, nothing to release there
+        assertFalse(index.vmMoved(3L, null));
+    }
+
+    @Test
+    public void testMigrationMovesTheCount() {
+        assertFalse(index.vmMoved(3L, 1L));
+        assertEquals(3, index.getVmCount(1L));
+        assertEquals(0, index.getVmCount(3L));
+
+        // same host, no change
+        assertFalse(index.vmMoved(1L, 1L));
+        assertEquals(3, index.getVmCount(1L));
+
+        index.setResourceUsage(3L, PlannerResourceUsage.Shared);
+        assertFalse(index.vmMoved(null, 3L));
+        assertTrue(index.vmMoved(3L, 2L));
+        assertEquals(1, index.getVmCount(2L));
+    }
+
+    @Test
+    public void testReleasedHostIsNotReportedAgain() {
+        index.vmMoved(1L, null);
+        index.setResourceUsage(1L, null);
+        assertFalse(index.vmMoved(1L, null));
+        assertNull(index.getResourceUsage(1L));
+        assertEquals(0, index.getVmCount(1L));
+    }
+
+    @Test
+    public void testReconcileCountsDrift() {
+        long sequence = index.beginReconcile();
+        // a VM started on host 2 by another management server, host 1 was released by it
+        Map<Long, Long> vmCounts = new HashMap<Long, Long>();
+        vmCounts.put(1L, 2L);
+        vmCounts.put(2L, 1L);
+        vmCounts.put(3L, 1L);
+        List<PlannerHostReservationVO> reservations = new ArrayList<PlannerHostReservationVO>();
+        reservations.add(reservation(2L, PlannerResourceUsage.Shared));
+        assertEquals(2, index.reconcile(sequence, reservations, vmCounts));
+        assertEquals(2, index.getDriftCount());
+        assertNull(index.getResourceUsage(1L));
+        assertEquals(1, index.getVmCount(2L));
+
+        assertEquals(0, index.reconcile(index.beginReconcile(), reservations, vmCounts));
+        assertEquals(2, index.getDriftCount());
+    }
+
+    @Test
+    public void testReconcileKeepsNewerUpdates() {
+        long sequence = index.beginReconcile();
+        index.vmMoved(null, 2L);
+        index.setResourceUsage(3L, PlannerResourceUsage.Dedicated);
+
+        Map<Long, Long> vmCounts = new HashMap<Long, Long>();
+        vmCounts.put(1L, 2L);
+        vmCounts.put(3L, 1L);
+        int drifted = index.reconcile(sequence,
+                Arrays.asList(reservation(1L, PlannerResourceUsage.Dedicated), reservation(2L, PlannerResourceUsage.Shared)), vmCounts);
+        assertEquals(0, drifted);
+        assertEquals(1, index.getVmCount(2L));
+        assertEquals(PlannerResourceUsage.Dedicated, index.getResourceUsage(3L));
+    }
+}
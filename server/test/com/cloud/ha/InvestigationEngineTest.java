@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.ha.InvestigationEngine.AdapterCall;
+import com.cloud.host.Host;
+import com.cloud.host.Status;
+
+public class InvestigationEngineTest {
+    ExecutorService executor;
+
+    static final AdapterCall<Investigator, Status> IsAgentAlive = new AdapterCall<Investigator, Status>() {
+        @Override
+        public Status call(Investigator investigator) {
+            return investigator.isAgentAlive(null);
+        }
+    };
+
+    private static Investigator investigator(String name, final Status status, final long delay) {
+        Investigator investigator = Mockito.mock(Investigator.class);
+        Mockito.when(investigator.getName()).thenReturn(name);
+        Mockito.when(investigator.isAgentAlive(Mockito.any(Host.class))).thenAnswer(new Answer<Status>() {
+            @Override
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(delay);
+                return status;
+            }
+        });
+        return investigator;
+    }
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstConclusiveAnswerWins() {
+        InvestigationEngine engine = new InvestigationEngine(executor, null, 10000, 60000, 0);
+        long start = System.currentTimeMillis();
+        Status status = engine.firstConclusive(Arrays.asList(investigator("slow", Status.Up, 5000), investigator("unsure", null, 0),
+                investigator("fast", Status.Down, 50)), IsAgentAlive, "host 1");
+        Assert.assertEquals(Status.Down, status);
+        Assert.assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+
+    @Test
+    public void testNoConclusiveAnswer() {
+        InvestigationEngine engine = new InvestigationEngine(executor, null, 10000, 60000, 0);
+        Investigator failing = investigator("failing", null, 0);
+        Mockito.when(failing.isAgentAlive(Mockito.any(Host.class))).thenThrow(new RuntimeException("unreachable"));
+        Assert.assertNull(engine.firstConclusive(Arrays.asList(investigator("unsure", null, 0), failing), IsAgentAlive, "host 1"));
+    }
+
+    @Test
+    public void testTimeout() {
+        InvestigationEngine engine = new InvestigationEngine(executor, null, 100, 60000, 0);
+        long start = System.currentTimeMillis();
+        Assert.assertNull(engine.firstConclusive(Arrays.asList(investigator("slow", Status.Up, 5000)), IsAgentAlive, "host 1"));
+        Assert.assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+
+    @Test
+    public void testHostVerdicts() throws InterruptedException {
+        InvestigationEngine engine = new InvestigationEngine(executor, null, 100, 60000, 0);
+        Assert.assertNull(engine.getHostVerdict(1L));
+        engine.recordHostVerdict(1L, Status.Down);
+        Assert.assertEquals(Status.Down, engine.getHostVerdict(1L));
+        engine.recordHostVerdict(1L, null);
+        Assert.assertNull(engine.getHostVerdict(1L));
+
+        engine = new InvestigationEngine(executor, null, 100, 10, 0);
+        engine.recordHostVerdict(1L, Status.Down);
+        Thread.sleep(50);
+        Assert.assertNull(engine.getHostVerdict(1L));
+    }
+
+    @Test
+    public void testFencesPerCluster() {
+        InvestigationEngine engine = new InvestigationEngine(executor, null, 50, 60000, 1);
+        Assert.assertTrue(engine.acquireFence(1L));
+        Assert.assertFalse(engine.acquireFence(1L));
+        Assert.assertTrue(engine.acquireFence(2L));
+        Assert.assertTrue(engine.acquireFence(null));
+        engine.releaseFence(1L);
+        Assert.assertTrue(engine.acquireFence(1L));
+
+        engine = new InvestigationEngine(executor, null, 50, 60000, 0);
+        Assert.assertTrue(engine.acquireFence(1L));
+        Assert.assertTrue(engine.acquireFence(1L));
+    }
+
+    @Test
+    public void testFenceDoesNotWait() {
+        InvestigationEngine engine = new InvestigationEngine(executor, null, 60000, 60000, 1);
+        Assert.assertTrue(engine.acquireFence(1L));
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(engine.acquireFence(1L));
+        Assert.assertTrue("acquireFence waited for a slot", System.currentTimeMillis() - start < 1000);
+    }
+}
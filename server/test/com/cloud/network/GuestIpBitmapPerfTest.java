@@ -0,0 +1,82 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * Compares picking a guest ip the way getAvailableIps does, building the set of every free
+ * address of the cidr and taking a random one, with GuestIpBitmap on /16 and /20 networks at
+ * a few fill levels.  Excluded from the unit tests as it takes a while, run it with
+ * -Dtest=GuestIpBitmapPerfTest.
+ */
+public class GuestIpBitmapPerfTest {
+    private static final int ALLOCATIONS = 200;
+    private static final double[] FILL = new double[] {0.1, 0.5, 0.9, 0.99};
+
+    @Test
+    public void testAllocation() {
+        benchmark("10.0.0.0", 16);
+        benchmark("10.1.0.0", 20);
+    }
+
+    private void benchmark(String network, int prefix) {
+        long networkAddress = NetUtils.ip2Long(network);
+        int size = 1 << (32 - prefix);
+        for (double fill : FILL) {
+            Random random = new Random(42);
+            Set<Long> used = new TreeSet<Long>();
+            while (used.size() < (int)(fill * (size - 2))) {
+                used.add(networkAddress + 1 + random.nextInt(size - 2));
+            }
+            int allocations = Math.min(ALLOCATIONS, size - 2 - used.size());
+
+            Set<Long> legacyUsed = new TreeSet<Long>(used);
+            long start = System.nanoTime();
+            for (int i = 0; i < allocations; i++) {
+                Set<Long> available = NetUtils.getAllIpsFromCidr(network, prefix, legacyUsed);
+                List<Long> candidates = new ArrayList<Long>(available);
+                legacyUsed.add(candidates.get(random.nextInt(candidates.size())));
+            }
+            long legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            GuestIpBitmap bitmap = new GuestIpBitmap(networkAddress, prefix, random.nextInt(size));
+            for (Long ip : used) {
+                bitmap.markUsed(ip);
+            }
+            long buildNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < allocations; i++) {
+                bitmap.allocateNext();
+            }
+            long bitmapNanos = System.nanoTime() - start;
+
+            System.out.println("/" + prefix + " " + Math.round(fill * 100) + "% used, " + allocations + " allocations: set of free ips "
+                    + legacyNanos / allocations / 1000 + " us each, bitmap " + Math.max(1, bitmapNanos / allocations) + " ns each after a "
+                    + buildNanos / 1000 + " us build");
+        }
+    }
+}
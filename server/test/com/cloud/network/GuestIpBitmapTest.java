@@ -0,0 +1,97 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.cloud.utils.net.NetUtils;
+
+public class GuestIpBitmapTest {
+
+    @Test
+    public void testNetworkAndBroadcastAreNeverHandedOut() {
+        GuestIpBitmap bitmap = new GuestIpBitmap(NetUtils.ip2Long("10.1.1.77"), 24, 0);
+        assertEquals(NetUtils.ip2Long("10.1.1.0"), bitmap.getNetworkAddress());
+        assertEquals(256, bitmap.getSize());
+        assertEquals(254, bitmap.getFreeCount());
+        assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.1.0")));
+        assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.1.255")));
+        assertFalse(bitmap.markFree(NetUtils.ip2Long("10.1.1.0")));
+        assertFalse(bitmap.markFree(NetUtils.ip2Long("10.1.1.255")));
+
+        assertEquals(NetUtils.ip2Long("10.1.1.1"), bitmap.allocateNext());
+    }
+
+    @Test
+    public void testAllocateWrapsAroundFromCursor() {
+        GuestIpBitmap bitmap = new GuestIpBitmap(NetUtils.ip2Long("10.1.0.0"), 24, 200);
+        assertEquals(NetUtils.ip2Long("10.1.0.200"), bitmap.allocateNext());
+        for (int i = 201; i < 255; i++) {
+            assertTrue(bitmap.markUsed(NetUtils.ip2Long("10.1.0." + i)));
+        }
+        assertEquals(NetUtils.ip2Long("10.1.0.1"), bitmap.allocateNext());
+        assertEquals(NetUtils.ip2Long("10.1.0.2"), bitmap.allocateNext());
+    }
+
+    @Test
+    public void testMarkUsedAndFree() {
+        GuestIpBitmap bitmap = new GuestIpBitmap(NetUtils.ip2Long("192.168.0.0"), 20, 0);
+        long ip = NetUtils.ip2Long("192.168.3.10");
+        assertTrue(bitmap.markUsed(ip));
+        assertFalse(bitmap.markUsed(ip));
+        assertFalse(bitmap.isFree(ip));
+        assertEquals(4093, bitmap.getFreeCount());
+        assertTrue(bitmap.markFree(ip));
+        assertFalse(bitmap.markFree(ip));
+        assertEquals(4094, bitmap.getFreeCount());
+
+        assertFalse(bitmap.markUsed(NetUtils.ip2Long("192.168.16.1")));
+        assertFalse(bitmap.contains(NetUtils.ip2Long("192.168.16.1")));
+    }
+
+    @Test
+    public void testSmallCidrs() {
+        GuestIpBitmap slash31 = new GuestIpBitmap(NetUtils.ip2Long("10.0.0.4"), 31, 0);
+        assertEquals(0, slash31.getFreeCount());
+        assertEquals(-1, slash31.allocateNext());
+
+        GuestIpBitmap slash30 = new GuestIpBitmap(NetUtils.ip2Long("10.0.0.4"), 30, 3);
+        assertEquals(2, slash30.getFreeCount());
+        assertEquals(NetUtils.ip2Long("10.0.0.5"), slash30.allocateNext());
+        assertEquals(NetUtils.ip2Long("10.0.0.6"), slash30.allocateNext());
+        assertEquals(-1, slash30.allocateNext());
+    }
+
+    @Test
+    public void testExhaustion() {
+        GuestIpBitmap bitmap = new GuestIpBitmap(NetUtils.ip2Long("10.2.0.0"), 22, 517);
+        int allocated = 0;
+        while (bitmap.allocateNext() != -1) {
+            allocated++;
+        }
+        assertEquals(1022, allocated);
+        assertEquals(0, bitmap.getFreeCount());
+
+        bitmap.markFree(NetUtils.ip2Long("10.2.1.7"));
+        assertEquals(NetUtils.ip2Long("10.2.1.7"), bitmap.allocateNext());
+        assertEquals(-1, bitmap.allocateNext());
+    }
+}
@@ -0,0 +1,177 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.network.dao.IPAddressDao;
+
+/**
+ * Allocates the addresses of a simulated public ip range from several management servers
+ * at once, once by locking the first free row the way fetchNewPublicIp used to and once
+ * through PublicIpFreeList, and reports the throughput and the time spent waiting on row
+ * locks.  Each allocation holds the lock of its row for a while to stand in for the rest of
+ * the transaction.  Excluded from the unit tests as it takes a while, run it with
+ * -Dtest=PublicIpFreeListPerfTest.
+ */
+public class PublicIpFreeListPerfTest {
+    private static final int ADDRESSES = 4096;
+    private static final int SERVERS = 4;
+    private static final int THREADS_PER_SERVER = 8;
+    private static final int ALLOCATIONS = 2048;
+    private static final long TRANSACTION_MILLIS = 1;
+
+    ReentrantLock[] rowLocks;
+    boolean[] allocated;
+    AtomicInteger remaining;
+    AtomicLong lockWaitNanos;
+
+    @Test
+    public void testConcurrentAllocation() throws Exception {
+        run(false);
+        run(true);
+    }
+
+    private void run(final boolean freeList) throws Exception {
+        rowLocks = new ReentrantLock[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            rowLocks[i] = new ReentrantLock();
+        }
+        allocated = new boolean[ADDRESSES];
+        remaining = new AtomicInteger(ALLOCATIONS);
+        lockWaitNanos = new AtomicLong();
+
+        IPAddressDao ipAddressDao = mock(IPAddressDao.class);
+        when(ipAddressDao.listFreeIdsInVlan(anyLong())).thenAnswer(new Answer<List<Long>>() {
+            @Override
+            public List<Long> answer(InvocationOnMock invocation) {
+                List<Long> ids = new ArrayList<Long>();
+                for (int i = 0; i < ADDRESSES; i++) {
+                    if (!isAllocated(i)) {
+                        ids.add((long)i);
+                    }
+                }
+                return ids;
+            }
+        });
+
+        final CountDownLatch done = new CountDownLatch(SERVERS * THREADS_PER_SERVER);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int server = 0; server < SERVERS; server++) {
+            final PublicIpFreeList list = new PublicIpFreeList();
+            list._ipAddressDao = ipAddressDao;
+            list._nodeId = server;
+            for (int i = 0; i < THREADS_PER_SERVER; i++) {
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (remaining.decrementAndGet() >= 0) {
+                                if (freeList) {
+                                    allocateFromFreeList(list);
+                                } else {
+                                    allocateFirstFree();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        System.out.println((freeList ? "Free list:         " : "First free row:    ") + ALLOCATIONS + " allocations by " + SERVERS * THREADS_PER_SERVER + " threads in "
+                + elapsed / 1000000 + " ms, " + ALLOCATIONS * 1000000000L / elapsed + " allocations/s, " + lockWaitNanos.get() / 1000000 + " ms waiting on row locks");
+    }
+
+    // SELECT ... FOR UPDATE LIMIT 1: wait on the first free row, look again if someone else took it meanwhile
+    private void allocateFirstFree() throws InterruptedException {
+        while (true) {
+            int row = -1;
+            for (int i = 0; i < ADDRESSES && row < 0; i++) {
+                if (!isAllocated(i)) {
+                    row = i;
+                }
+            }
+            lock(row);
+            try {
+                if (!isAllocated(row)) {
+                    Thread.sleep(TRANSACTION_MILLIS);
+                    setAllocated(row);
+                    return;
+                }
+            } finally {
+                rowLocks[row].unlock();
+            }
+        }
+    }
+
+    // UPDATE ... WHERE id = ? AND allocated IS NULL on the addresses handed out by the free list
+    private void allocateFromFreeList(PublicIpFreeList list) throws InterruptedException {
+        while (true) {
+            int row = list.poll(1L).intValue();
+            lock(row);
+            try {
+                boolean claimed = !isAllocated(row);
+                list.recordClaim(claimed);
+                if (claimed) {
+                    Thread.sleep(TRANSACTION_MILLIS);
+                    setAllocated(row);
+                    return;
+                }
+            } finally {
+                rowLocks[row].unlock();
+            }
+        }
+    }
+
+    private void lock(int row) {
+        long start = System.nanoTime();
+        rowLocks[row].lock();
+        lockWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private synchronized boolean isAllocated(int row) {
+        return allocated[row];
+    }
+
+    private synchronized void setAllocated(int row) {
+        allocated[row] = true;
+    }
+}
@@ -0,0 +1,114 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.network.dao.IPAddressDao;
+
+public class PublicIpFreeListTest {
+    PublicIpFreeList freeList;
+    IPAddressDao ipAddressDao;
+
+    @Before
+    public void setUp() {
+        ipAddressDao = mock(IPAddressDao.class);
+        freeList = new PublicIpFreeList();
+        freeList._ipAddressDao = ipAddressDao;
+    }
+
+    @Test
+    public void testOwnStripeFirst() {
+        when(ipAddressDao.listFreeIdsInVlan(1L)).thenReturn(ids(100, 124));
+        freeList._nodeId = 8 * 1000 + 3;
+
+        assertEquals(Long.valueOf(107), freeList.poll(1L));
+        assertEquals(Long.valueOf(115), freeList.poll(1L));
+        assertEquals(Long.valueOf(123), freeList.poll(1L));
+        assertEquals(0, freeList.getStealCount());
+
+        // then the following stripes
+        assertEquals(Long.valueOf(100), freeList.poll(1L));
+        assertEquals(1, freeList.getStealCount());
+        verify(ipAddressDao, times(1)).listFreeIdsInVlan(1L);
+    }
+
+    @Test
+    public void testServersStartOnDifferentStripes() {
+        List<Long> free = ids(100, 164);
+        when(ipAddressDao.listFreeIdsInVlan(1L)).thenReturn(free);
+        PublicIpFreeList other = new PublicIpFreeList();
+        other._ipAddressDao = ipAddressDao;
+        freeList._nodeId = 0;
+        other._nodeId = 1;
+
+        List<Long> mine = new ArrayList<Long>();
+        List<Long> theirs = new ArrayList<Long>();
+        for (int i = 0; i < 8; i++) {
+            mine.add(freeList.poll(1L));
+            theirs.add(other.poll(1L));
+        }
+        for (Long id : mine) {
+            assertEquals(0, id % 8);
+        }
+        for (Long id : theirs) {
+            assertEquals(1, id % 8);
+        }
+    }
+
+    @Test
+    public void testReloadWhenEmpty() {
+        when(ipAddressDao.listFreeIdsInVlan(2L)).thenReturn(Arrays.asList(7L), new ArrayList<Long>());
+
+        assertEquals(Long.valueOf(7), freeList.poll(2L));
+        assertNull(freeList.poll(2L));
+        assertEquals(2, freeList.getReloadCount());
+
+        // an empty range is not reloaded again right away
+        assertNull(freeList.poll(2L));
+        verify(ipAddressDao, times(2)).listFreeIdsInVlan(2L);
+    }
+
+    @Test
+    public void testVlansAreSeparate() {
+        when(ipAddressDao.listFreeIdsInVlan(1L)).thenReturn(Arrays.asList(10L));
+        when(ipAddressDao.listFreeIdsInVlan(2L)).thenReturn(Arrays.asList(20L));
+
+        assertEquals(Long.valueOf(20), freeList.poll(2L));
+        assertEquals(Long.valueOf(10), freeList.poll(1L));
+    }
+
+    private static List<Long> ids(long from, long to) {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = from; id < to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
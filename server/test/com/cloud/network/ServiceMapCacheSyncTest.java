@@ -0,0 +1,74 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.network.dao.ServiceMapCache;
+
+public class ServiceMapCacheSyncTest {
+    ServiceMapCacheSync _sync;
+
+    @Before
+    public void setUp() throws Exception {
+        _sync = new ServiceMapCacheSync();
+        _sync._messageBus = new MessageBusBase();
+        _sync._clusterMgr = mock(ClusterManager.class);
+        _sync.configure("ServiceMapCacheSync", new HashMap<String, Object>());
+    }
+
+    @Test
+    public void testLocalInvalidationIsBroadcast() {
+        _sync._messageBus.publish(ServiceMapCache.NETWORK_TOPIC, ServiceMapCache.NETWORK_TOPIC, PublishScope.LOCAL, 5L);
+        _sync._messageBus.publish(ServiceMapCache.OFFERING_TOPIC, ServiceMapCache.OFFERING_TOPIC, PublishScope.LOCAL, null);
+
+        verify(_sync._clusterMgr).broadcastNotification(ServiceMapCache.NETWORK_TOPIC, "5");
+        verify(_sync._clusterMgr).broadcastNotification(ServiceMapCache.OFFERING_TOPIC, "");
+    }
+
+    @Test
+    public void testPeerInvalidationIsNotBroadcastAgain() {
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        cache.subscribe(_sync._messageBus, ServiceMapCache.NETWORK_TOPIC);
+        cache.get(5, new ServiceMapCache.Loader<String>() {
+            @Override
+            public List<String> load(long ownerId) {
+                return new ArrayList<String>();
+            }
+        });
+
+        _sync.onNotification("2", ServiceMapCache.NETWORK_TOPIC, "5");
+
+        verify(_sync._clusterMgr, never()).broadcastNotification(anyString(), anyString());
+        assertEquals(0, cache.getSize());
+    }
+}
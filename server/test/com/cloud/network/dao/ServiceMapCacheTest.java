@@ -0,0 +1,146 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+public class ServiceMapCacheTest {
+
+    private static class CountingLoader implements ServiceMapCache.Loader<String> {
+        int loads;
+
+        @Override
+        public List<String> load(long ownerId) {
+            loads++;
+            List<String> rows = new ArrayList<String>();
+            rows.add("Dhcp:VirtualRouter:" + ownerId);
+            return rows;
+        }
+    }
+
+    @Test
+    public void testRepeatedLookupsAreServedFromMemory() {
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        CountingLoader loader = new CountingLoader();
+
+        List<String> first = cache.get(1, loader);
+        assertSame(first, cache.get(1, loader));
+        assertSame(first, cache.get(1, loader));
+        cache.get(2, loader);
+
+        assertEquals(2, loader.loads);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0.0001);
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidateReloadsOnlyThatOwner() {
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        CountingLoader loader = new CountingLoader();
+        cache.get(1, loader);
+        cache.get(2, loader);
+
+        cache.invalidate(1);
+        cache.get(1, loader);
+        cache.get(2, loader);
+
+        assertEquals(3, loader.loads);
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void testRowsLoadedDuringWriteQuarantineAreNotKept() {
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 60000);
+        CountingLoader loader = new CountingLoader();
+        cache.invalidate(1);
+
+        cache.get(1, loader);
+        cache.get(1, loader);
+
+        assertEquals(2, loader.loads);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testRowsLoadedWhileVersionMovesAreNotKept() {
+        final ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        ServiceMapCache.Loader<String> racingLoader = new ServiceMapCache.Loader<String>() {
+            @Override
+            public List<String> load(long ownerId) {
+                // a concurrent writer invalidates while the rows are read
+                cache.invalidate(ownerId);
+                return new ArrayList<String>();
+            }
+        };
+
+        cache.get(1, racingLoader);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testZeroTimeToLiveDisablesCaching() {
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        CountingLoader loader = new CountingLoader();
+        cache.get(1, loader);
+
+        cache.setTimeToLive(0);
+        cache.get(1, loader);
+        cache.get(1, loader);
+
+        assertEquals(3, loader.loads);
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCachedRowsAreReadOnly() {
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        cache.get(1, new CountingLoader()).add("Lb:VirtualRouter");
+    }
+
+    @Test
+    public void testInvalidationsTravelOverTheMessageBus() {
+        MessageBus messageBus = new MessageBusBase();
+        ServiceMapCache<String> cache = new ServiceMapCache<String>(60000, 0);
+        cache.subscribe(messageBus, ServiceMapCache.NETWORK_TOPIC);
+        CountingLoader loader = new CountingLoader();
+        cache.get(1, loader);
+        cache.get(2, loader);
+
+        // a write on another management server
+        messageBus.publish("cluster", ServiceMapCache.NETWORK_TOPIC, PublishScope.LOCAL, 1L);
+        assertEquals(1, cache.getSize());
+        messageBus.publish("cluster", ServiceMapCache.NETWORK_TOPIC, PublishScope.LOCAL, null);
+        assertEquals(0, cache.getSize());
+
+        // a local write is published once and not applied twice
+        cache.get(1, loader);
+        cache.invalidate(1);
+        assertEquals(3, cache.getInvalidations());
+    }
+}
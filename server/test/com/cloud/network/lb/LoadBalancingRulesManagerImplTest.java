@@ -0,0 +1,170 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.lb;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
+
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.network.Network;
+import com.cloud.network.Network.Provider;
+import com.cloud.network.Network.Service;
+import com.cloud.network.NetworkModel;
+import com.cloud.network.dao.FirewallRulesDao;
+import com.cloud.network.dao.LoadBalancerDao;
+import com.cloud.network.dao.LoadBalancerVMMapDao;
+import com.cloud.network.dao.LoadBalancerVMMapVO;
+import com.cloud.network.dao.LoadBalancerVO;
+import com.cloud.network.dao.NetworkDao;
+import com.cloud.network.dao.NetworkVO;
+import com.cloud.network.rules.FirewallManager;
+import com.cloud.network.rules.FirewallRule;
+import com.cloud.network.rules.LoadBalancerContainer.Scheme;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+import com.cloud.utils.db.Transaction;
+
+public class LoadBalancingRulesManagerImplTest {
+    LoadBalancingRulesManagerImpl<Object> _lbMgr;
+    Transaction _txn;
+
+    @Before
+    public void setUp() {
+        _lbMgr = new LoadBalancingRulesManagerImpl<Object>() {
+            @Override
+            protected void markLoadBalancerRuleForRevoke(LoadBalancerVO lb) {
+                lb.setState(FirewallRule.State.Revoke);
+            }
+
+            @Override
+            protected boolean applyLoadBalancerRules(List<LoadBalancerVO> lbs, boolean updateRulesInDB) throws ResourceUnavailableException {
+                throw new ResourceUnavailableException("load balancer is down", Network.class, 10);
+            }
+        };
+        _lbMgr._lbDao = mock(LoadBalancerDao.class);
+        _lbMgr._lb2VmMapDao = mock(LoadBalancerVMMapDao.class);
+        _lbMgr._firewallDao = mock(FirewallRulesDao.class);
+        _lbMgr._firewallMgr = mock(FirewallManager.class);
+        _lbMgr._accountMgr = mock(AccountManager.class);
+        _lbMgr._networkDao = mock(NetworkDao.class);
+        _lbMgr._networkModel = mock(NetworkModel.class);
+        _lbMgr._networkMgr = mock(NetworkOrchestrationService.class);
+
+        Account account = new AccountVO("testaccount", 1, "networkdomain", (short)0, UUID.randomUUID().toString());
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString());
+        CallContext.register(user, account);
+        _txn = Transaction.open("LoadBalancingRulesManagerImplTest");
+    }
+
+    @After
+    public void tearDown() {
+        _txn.close();
+        CallContext.unregister();
+    }
+
+    private LoadBalancerVO createLb(long id, long networkId) {
+        return createLb(id, networkId, Scheme.Public);
+    }
+
+    private LoadBalancerVO createLb(long id, long networkId, Scheme scheme) {
+        LoadBalancerVO lb = mock(LoadBalancerVO.class);
+        when(lb.getId()).thenReturn(id);
+        when(lb.getNetworkId()).thenReturn(networkId);
+        when(lb.getScheme()).thenReturn(scheme);
+        when(lb.getState()).thenReturn(FirewallRule.State.Active);
+        return lb;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = InvalidParameterValueException.class)
+    public void testRulesOfDifferentNetworksAreRejected() {
+        LoadBalancerVO lb1 = createLb(1, 10);
+        LoadBalancerVO lb2 = createLb(2, 20);
+        when(_lbMgr._lbDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(lb1, lb2));
+
+        try {
+            _lbMgr.deleteLoadBalancerRules(Arrays.asList(1L, 2L), true);
+        } finally {
+            verify(lb1, never()).setState(any(FirewallRule.State.class));
+            verify(lb2, never()).setState(any(FirewallRule.State.class));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWholeBatchIsRolledBack() {
+        LoadBalancerVO lb1 = createLb(1, 10);
+        LoadBalancerVO lb2 = createLb(2, 10);
+        LoadBalancerVMMapVO map1 = mock(LoadBalancerVMMapVO.class);
+        LoadBalancerVMMapVO map2 = mock(LoadBalancerVMMapVO.class);
+        when(_lbMgr._lbDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(lb1, lb2));
+        when(_lbMgr._lb2VmMapDao.listByLoadBalancerId(1)).thenReturn(Arrays.asList(map1));
+        when(_lbMgr._lb2VmMapDao.listByLoadBalancerId(2)).thenReturn(Arrays.asList(map2));
+        NetworkVO network = mock(NetworkVO.class);
+        when(_lbMgr._networkDao.findById(10L)).thenReturn(network);
+        when(_lbMgr._networkMgr.getProvidersForServiceInNetwork(network, Service.Lb)).thenReturn(Arrays.asList(Provider.Netscaler));
+
+        assertFalse(_lbMgr.deleteLoadBalancerRules(Arrays.asList(1L, 2L), true));
+
+        // every rule of the batch gets its state and vm mappings back
+        verify(lb1).setState(FirewallRule.State.Active);
+        verify(lb2).setState(FirewallRule.State.Active);
+        verify(_lbMgr._lbDao).persist(lb1);
+        verify(_lbMgr._lbDao).persist(lb2);
+        verify(_lbMgr._lb2VmMapDao).persist(map1);
+        verify(_lbMgr._lb2VmMapDao).persist(map2);
+        verify(_lbMgr._firewallMgr, never()).removeRule(any(FirewallRule.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testInternalRulesAreNotRolledBackByPublicProvider() {
+        LoadBalancerVO lb1 = createLb(1, 10, Scheme.Internal);
+        LoadBalancerVMMapVO map1 = mock(LoadBalancerVMMapVO.class);
+        when(_lbMgr._lbDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(lb1));
+        when(_lbMgr._lb2VmMapDao.listByLoadBalancerId(1)).thenReturn(Arrays.asList(map1));
+        NetworkVO network = mock(NetworkVO.class);
+        when(_lbMgr._networkDao.findById(10L)).thenReturn(network);
+        when(_lbMgr._networkMgr.getProvidersForServiceInNetwork(network, Service.Lb)).thenReturn(Arrays.asList(Provider.Netscaler));
+
+        assertFalse(_lbMgr.deleteLoadBalancerRules(Arrays.asList(1L), true));
+
+        // the internal scheme is not served by the Netscaler, so its rules are not rolled back
+        verify(_lbMgr._lbDao).listInTransitionStateByNetworkIdAndScheme(10L, Scheme.Internal);
+        verify(lb1, never()).setState(FirewallRule.State.Active);
+        verify(_lbMgr._lb2VmMapDao, never()).persist(map1);
+    }
+}
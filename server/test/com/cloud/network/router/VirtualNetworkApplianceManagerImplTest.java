@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.network.Network;
+import com.cloud.network.router.VirtualNetworkApplianceManagerImpl.NetworkUsageCycle;
+import com.cloud.network.router.VirtualNetworkApplianceManagerImpl.NetworkUsageRequest;
+import com.cloud.user.UserStatisticsVO;
+import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.vm.DomainRouterVO;
+import com.cloud.vm.Nic;
+import com.cloud.vm.VirtualMachine;
+
+public class VirtualNetworkApplianceManagerImplTest {
+
+    private static DomainRouterVO router(long id) {
+        DomainRouterVO router = mock(DomainRouterVO.class);
+        when(router.getId()).thenReturn(id);
+        when(router.getAccountId()).thenReturn(id);
+        when(router.getDataCenterId()).thenReturn(1L);
+        when(router.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
+        when(router.getInstanceName()).thenReturn("r-" + id + "-VM");
+        return router;
+    }
+
+    private static NetworkUsageRequest request(DomainRouterVO router) {
+        Network network = mock(Network.class);
+        when(network.getId()).thenReturn(10L);
+        NetworkUsageRequest request = new NetworkUsageRequest(router, mock(Nic.class), network, null);
+        NetworkUsageCommand cmd = new NetworkUsageCommand("169.254.0.1", router.getInstanceName(), false, "10.1.1.1");
+        request._answer = new NetworkUsageAnswer(cmd, null, 100L, 200L);
+        return request;
+    }
+
+    private static UserStatisticsVO stats(UserStatisticsDao userStatsDao, long routerId) {
+        UserStatisticsVO stats = mock(UserStatisticsVO.class);
+        when(stats.getId()).thenReturn(routerId);
+        when(userStatsDao.lock(eq(routerId), anyLong(), anyLong(), any(String.class), anyLong(), any(String.class))).thenReturn(stats);
+        return stats;
+    }
+
+    @Test
+    public void testFailedBatchFallsBackToOneCommitPerRouter() {
+        VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl();
+        mgr._userStatsDao = mock(UserStatisticsDao.class);
+        UserStatisticsVO good = stats(mgr._userStatsDao, 1L);
+        UserStatisticsVO bad = stats(mgr._userStatsDao, 2L);
+        when(mgr._userStatsDao.update(2L, bad)).thenThrow(new RuntimeException("update failed"));
+
+        NetworkUsageCycle cycle = new NetworkUsageCycle();
+        mgr.updateUserStatistics(Arrays.asList(request(router(1L)), request(router(2L))), cycle);
+
+        // once in the failed batch, once on its own
+        verify(mgr._userStatsDao, times(2)).update(1L, good);
+        verify(mgr._userStatsDao, times(2)).update(2L, bad);
+        Assert.assertEquals(1, cycle._collected.get());
+        Assert.assertEquals(1, cycle._failed.get());
+    }
+
+    @Test
+    public void testBatchCommittedAtOnce() {
+        VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl();
+        mgr._userStatsDao = mock(UserStatisticsDao.class);
+        UserStatisticsVO first = stats(mgr._userStatsDao, 1L);
+        UserStatisticsVO second = stats(mgr._userStatsDao, 2L);
+
+        NetworkUsageCycle cycle = new NetworkUsageCycle();
+        mgr.updateUserStatistics(Arrays.asList(request(router(1L)), request(router(2L))), cycle);
+
+        verify(mgr._userStatsDao, times(1)).update(1L, first);
+        verify(mgr._userStatsDao, times(1)).update(2L, second);
+        Assert.assertEquals(2, cycle._collected.get());
+        Assert.assertEquals(0, cycle._failed.get());
+    }
+
+    @Test
+    public void testFailedHostBatchDoesNotStopTheOthers() {
+        final List<Integer> batches = new ArrayList<Integer>();
+        VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl() {
+            @Override
+            protected void collectNetworkUsage(long hostId, List<DomainRouterVO> routers, NetworkUsageCycle cycle) {
+                batches.add(routers.size());
+                if (batches.size() == 1) {
+                    throw new RuntimeException("collection failed");
+                }
+            }
+        };
+        int batchSize = VirtualNetworkApplianceManagerImpl.RouterStatsBatchSize.value();
+        List<DomainRouterVO> routers = new ArrayList<DomainRouterVO>();
+        for (long id = 1; id <= 2 * batchSize + 1; id++) {
+            routers.add(router(id));
+        }
+
+        mgr.new HostNetworkUsageTask(1L, routers, new NetworkUsageCycle()).runInContext();
+
+        Assert.assertEquals(Arrays.asList(batchSize, batchSize, 1), batches);
+    }
+
+    @Test
+    public void testStopShutsDownRouterStatsExecutor() {
+        VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl();
+        mgr._routerStatsExecutor = mock(ExecutorService.class);
+
+        mgr.stop();
+
+        verify(mgr._routerStatsExecutor).shutdownNow();
+    }
+}
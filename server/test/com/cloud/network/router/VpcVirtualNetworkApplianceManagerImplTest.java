@@ -0,0 +1,132 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.manager.Commands;
+import com.cloud.dc.DataCenter.NetworkType;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.network.vpc.StaticRoute;
+import com.cloud.network.vpc.StaticRouteProfile;
+import com.cloud.network.vpc.VpcConfigurationPlan;
+import com.cloud.network.vpc.VpcGateway;
+import com.cloud.vm.DomainRouterVO;
+import com.cloud.vm.UserVmDetailVO;
+import com.cloud.vm.dao.UserVmDetailsDao;
+
+public class VpcVirtualNetworkApplianceManagerImplTest {
+    private static final String STATIC_ROUTES_KEY = VpcVirtualNetworkApplianceManagerImpl.APPLIED_CONFIG_PREFIX +
+            VpcVirtualNetworkApplianceManagerImpl.STATIC_ROUTES_CONFIG_SECTION;
+
+    private final List<Commands> _sent = new ArrayList<Commands>();
+    private boolean _answerResult = true;
+    private VpcVirtualNetworkApplianceManagerImpl _mgr;
+    private DomainRouterVO _router;
+    private VpcConfigurationPlan _plan;
+
+    @Before
+    public void setUp() {
+        _mgr = new VpcVirtualNetworkApplianceManagerImpl() {
+            @Override
+            protected String getRouterControlIp(long routerId) {
+                return "169.254.0.1";
+            }
+
+            @Override
+            protected boolean sendCommandsToRouter(VirtualRouter router, Commands cmds) {
+                _sent.add(cmds);
+                Answer[] answers = new Answer[cmds.size()];
+                int i = 0;
+                for (Command cmd : cmds) {
+                    answers[i++] = new Answer(cmd, _answerResult, null);
+                }
+                cmds.setAnswers(answers);
+                return _answerResult;
+            }
+        };
+        _mgr._vmDetailsDao = mock(UserVmDetailsDao.class);
+        _mgr._dcDao = mock(DataCenterDao.class);
+        DataCenterVO dc = mock(DataCenterVO.class);
+        when(dc.getNetworkType()).thenReturn(NetworkType.Advanced);
+        when(_mgr._dcDao.findById(1L)).thenReturn(dc);
+
+        _router = mock(DomainRouterVO.class);
+        when(_router.getId()).thenReturn(2L);
+        when(_router.getDataCenterId()).thenReturn(1L);
+        when(_router.getInstanceName()).thenReturn("r-2-VM");
+
+        StaticRoute route = mock(StaticRoute.class);
+        when(route.getCidr()).thenReturn("10.2.0.0/16");
+        when(route.getState()).thenReturn(StaticRoute.State.Add);
+        VpcGateway gateway = mock(VpcGateway.class);
+        when(gateway.getGateway()).thenReturn("10.3.0.1");
+        when(gateway.getNetmask()).thenReturn("255.255.255.0");
+        _plan = new VpcConfigurationPlan(3L);
+        _plan.setStaticRoutes(Arrays.asList(new StaticRouteProfile(route, gateway)));
+    }
+
+    @Test
+    public void testUnchangedSectionsAreSkipped() throws Exception {
+        when(_mgr._vmDetailsDao.findDetails(2L)).thenReturn(new HashMap<String, String>());
+        Assert.assertTrue(_mgr.sendVpcConfiguration(_plan, _router));
+        Assert.assertEquals(1, _sent.size());
+
+        ArgumentCaptor<UserVmDetailVO> saved = ArgumentCaptor.forClass(UserVmDetailVO.class);
+        verify(_mgr._vmDetailsDao).persist(saved.capture());
+        Assert.assertEquals(STATIC_ROUTES_KEY, saved.getValue().getName());
+
+        HashMap<String, String> details = new HashMap<String, String>();
+        details.put(STATIC_ROUTES_KEY, saved.getValue().getValue());
+        when(_mgr._vmDetailsDao.findDetails(2L)).thenReturn(details);
+        Assert.assertTrue(_mgr.sendVpcConfiguration(_plan, _router));
+        Assert.assertEquals(1, _sent.size());
+    }
+
+    @Test
+    public void testFailedAnswerClearsSignature() throws Exception {
+        HashMap<String, String> details = new HashMap<String, String>();
+        details.put(STATIC_ROUTES_KEY, "stale");
+        when(_mgr._vmDetailsDao.findDetails(2L)).thenReturn(details);
+        when(_mgr._vmDetailsDao.findDetail(2L, STATIC_ROUTES_KEY)).thenReturn(new UserVmDetailVO(2L, STATIC_ROUTES_KEY, "stale"));
+        _answerResult = false;
+
+        Assert.assertFalse(_mgr.sendVpcConfiguration(_plan, _router));
+
+        Assert.assertEquals(1, _sent.size());
+        verify(_mgr._vmDetailsDao).removeDetails(2L, STATIC_ROUTES_KEY);
+        verify(_mgr._vmDetailsDao, never()).persist(any(UserVmDetailVO.class));
+    }
+}
@@ -0,0 +1,146 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.apache.cloudstack.context.CallContext;
+
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.network.dao.FirewallRulesDao;
+import com.cloud.network.rules.dao.PortForwardingRulesDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+import com.cloud.utils.db.Transaction;
+
+public class RulesManagerImplTest {
+    RulesManagerImpl _rulesMgr;
+    Transaction _txn;
+
+    @Before
+    public void setUp() {
+        _rulesMgr = new RulesManagerImpl();
+        _rulesMgr._portForwardingDao = mock(PortForwardingRulesDao.class);
+        _rulesMgr._firewallDao = mock(FirewallRulesDao.class);
+        _rulesMgr._accountMgr = mock(AccountManager.class);
+        _rulesMgr._firewallMgr = mock(FirewallManager.class);
+
+        Account account = new AccountVO("testaccount", 1, "networkdomain", (short)0, UUID.randomUUID().toString());
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString());
+        CallContext.register(user, account);
+        _txn = Transaction.open("RulesManagerImplTest");
+    }
+
+    @After
+    public void tearDown() {
+        _txn.close();
+        CallContext.unregister();
+    }
+
+    private PortForwardingRuleVO createRule(long id, long ipId, long networkId) {
+        PortForwardingRuleVO rule = mock(PortForwardingRuleVO.class);
+        when(rule.getId()).thenReturn(id);
+        when(rule.getSourceIpAddressId()).thenReturn(ipId);
+        when(rule.getNetworkId()).thenReturn(networkId);
+        return rule;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRevokedRulesAreAppliedAsOneSet() throws Exception {
+        PortForwardingRuleVO rule1 = createRule(1, 100, 10);
+        PortForwardingRuleVO rule2 = createRule(2, 100, 10);
+        PortForwardingRuleVO rule3 = createRule(3, 101, 10);
+        when(_rulesMgr._portForwardingDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(rule1, rule2, rule3));
+        when(_rulesMgr._portForwardingDao.listForApplication(100)).thenReturn(Arrays.asList(rule1, rule2));
+        when(_rulesMgr._portForwardingDao.listForApplication(101)).thenReturn(Arrays.asList(rule3));
+        when(_rulesMgr._firewallMgr.applyRules(any(List.class), anyBoolean(), anyBoolean())).thenReturn(true);
+
+        _rulesMgr.revokePortForwardingRules(Arrays.asList(1L, 2L, 3L), true);
+
+        verify(_rulesMgr._firewallMgr, times(3)).revokeRule(any(FirewallRuleVO.class), any(Account.class), anyLong(), anyBoolean());
+        ArgumentCaptor<List> applied = ArgumentCaptor.forClass(List.class);
+        verify(_rulesMgr._firewallMgr, times(1)).applyRules(applied.capture(), anyBoolean(), anyBoolean());
+        assertEquals(3, applied.getValue().size());
+        verify(_rulesMgr._firewallMgr, never()).applyFirewallRules(any(List.class), anyBoolean(), any(Account.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRelatedFirewallRulesAreRevokedWithoutSeparateApply() throws Exception {
+        PortForwardingRuleVO rule1 = createRule(1, 100, 10);
+        PortForwardingRuleVO rule2 = createRule(2, 100, 10);
+        List<FirewallRuleVO> firewallRules = new ArrayList<FirewallRuleVO>();
+        firewallRules.add(mock(FirewallRuleVO.class));
+        when(_rulesMgr._portForwardingDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(rule1, rule2));
+        when(_rulesMgr._firewallDao.findByRelatedId(anyLong())).thenReturn(mock(FirewallRuleVO.class));
+        when(_rulesMgr._firewallDao.listByIpAndPurpose(100, FirewallRule.Purpose.Firewall)).thenReturn(firewallRules);
+        when(_rulesMgr._firewallMgr.applyFirewallRules(any(List.class), anyBoolean(), any(Account.class))).thenReturn(true);
+        when(_rulesMgr._firewallMgr.applyRules(any(List.class), anyBoolean(), anyBoolean())).thenReturn(true);
+
+        _rulesMgr.revokePortForwardingRules(Arrays.asList(1L, 2L), true);
+
+        verify(_rulesMgr._firewallMgr).revokeRelatedFirewallRule(1, false);
+        verify(_rulesMgr._firewallMgr).revokeRelatedFirewallRule(2, false);
+        verify(_rulesMgr._firewallMgr, times(1)).applyFirewallRules(any(List.class), anyBoolean(), any(Account.class));
+        verify(_rulesMgr._firewallMgr, times(1)).applyRules(any(List.class), anyBoolean(), anyBoolean());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = InvalidParameterValueException.class)
+    public void testRulesOfDifferentNetworksAreRejected() {
+        PortForwardingRuleVO rule1 = createRule(1, 100, 10);
+        PortForwardingRuleVO rule2 = createRule(2, 200, 20);
+        when(_rulesMgr._portForwardingDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(rule1, rule2));
+
+        try {
+            _rulesMgr.revokePortForwardingRules(Arrays.asList(1L, 2L), true);
+        } finally {
+            verify(_rulesMgr._firewallMgr, never()).revokeRule(any(FirewallRuleVO.class), any(Account.class), anyLong(), anyBoolean());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = InvalidParameterValueException.class)
+    public void testUnknownRulesAreRejected() {
+        PortForwardingRuleVO rule1 = createRule(1, 100, 10);
+        when(_rulesMgr._portForwardingDao.listByIds(any(Collection.class))).thenReturn(Arrays.asList(rule1));
+
+        _rulesMgr.revokePortForwardingRules(Arrays.asList(1L, 2L), true);
+    }
+}
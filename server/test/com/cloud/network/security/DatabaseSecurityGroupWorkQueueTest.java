@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.network.security.dao.SecurityGroupWorkDao;
+
+public class DatabaseSecurityGroupWorkQueueTest {
+
+    @Test
+    public void testGetWorkPollsUntilWorkIsTaken() throws InterruptedException {
+        SecurityGroupWorkDao workDao = mock(SecurityGroupWorkDao.class);
+        List<SecurityGroupWorkVO> work = Arrays.asList(mock(SecurityGroupWorkVO.class), mock(SecurityGroupWorkVO.class));
+        when(workDao.take(anyLong(), anyInt(), any(Date.class))).thenReturn(new ArrayList<SecurityGroupWorkVO>(), work);
+
+        DatabaseSecurityGroupWorkQueue queue = new DatabaseSecurityGroupWorkQueue(workDao, 1L, 10, 60000);
+        List<SecurityGroupWork> taken = queue.getWork(10);
+
+        assertEquals(2, taken.size());
+        verify(workDao, times(2)).take(anyLong(), anyInt(), any(Date.class));
+    }
+
+    @Test
+    public void testPropagationStats() {
+        SecurityManagerMBeanImpl mBean = new SecurityManagerMBeanImpl(null);
+        mBean.logScheduledDetails(new HashSet<Long>(Arrays.asList(5L)));
+        assertEquals(0, mBean.getRulesetUpdatesInFlight());
+
+        mBean.logPendingUpdates(new HashSet<Long>(Arrays.asList(1L, 2L, 3L)));
+        mBean.logPendingUpdate(4L, new Date(System.currentTimeMillis() - 5000));
+        assertEquals(4, mBean.getRulesetUpdatesInFlight());
+
+        mBean.logAnswerDetails(1L, 1L, true);
+        mBean.logAnswerDetails(2L, 1L, false);
+        mBean.logAnswerDetails(4L, 1L, true);
+        mBean.logUpdateDropped(3L);
+
+        assertEquals(0, mBean.getRulesetUpdatesInFlight());
+        assertEquals(2, mBean.getRulesetUpdatesAnswered());
+        assertEquals(true, mBean.getMaxRulesetPropagationMillis() >= 5000);
+        assertEquals(true, mBean.getAverageRulesetPropagationMillis() >= 2500);
+    }
+
+    @Test
+    public void testTakenWorkReplacesStalePropagationStart() {
+        SecurityManagerMBeanImpl mBean = new SecurityManagerMBeanImpl(null);
+        // left over from an update answered on another management server
+        mBean.logPendingUpdate(1L, new Date(System.currentTimeMillis() - 3600 * 1000L));
+        mBean.logPendingUpdate(1L, new Date());
+
+        mBean.logAnswerDetails(1L, 1L, true);
+
+        assertEquals(0, mBean.getRulesetUpdatesInFlight());
+        assertEquals(true, mBean.getMaxRulesetPropagationMillis() < 3600 * 1000L);
+    }
+}
@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.VirtualMachine.State;
+
+public class SecurityGroupRulesetCacheTest {
+    SecurityGroupManagerImpl2 _sgMgr;
+
+    @Before
+    public void setup() {
+        _sgMgr = new SecurityGroupManagerImpl2();
+        _sgMgr._securityGroupVMMapDao = mock(SecurityGroupVMMapDao.class);
+        _sgMgr._securityGroupRuleDao = mock(SecurityGroupRuleDao.class);
+
+        SecurityGroupVMMapVO web1 = member(10L, 1L, "10.1.1.1");
+        SecurityGroupVMMapVO web2 = member(10L, 2L, "10.1.1.2");
+        when(_sgMgr._securityGroupVMMapDao.listByInstanceId(1L)).thenReturn(Arrays.asList(web1));
+        when(_sgMgr._securityGroupVMMapDao.listByInstanceId(2L)).thenReturn(Arrays.asList(web2));
+        when(_sgMgr._securityGroupVMMapDao.listBySecurityGroup(20L, State.Running)).thenReturn(
+                Arrays.asList(member(20L, 3L, "10.1.2.1"), member(20L, 4L, "10.1.2.2")));
+
+        SecurityGroupRuleVO ssh = mock(SecurityGroupRuleVO.class);
+        when(ssh.getProtocol()).thenReturn("tcp");
+        when(ssh.getStartPort()).thenReturn(22);
+        when(ssh.getEndPort()).thenReturn(22);
+        when(ssh.getAllowedNetworkId()).thenReturn(20L);
+        when(_sgMgr._securityGroupRuleDao.listBySecurityGroupId(10L, SecurityRuleType.IngressRule)).thenReturn(Arrays.asList(ssh));
+    }
+
+    private SecurityGroupVMMapVO member(long securityGroupId, long vmId, String ip) {
+        SecurityGroupVMMapVO mapVO = mock(SecurityGroupVMMapVO.class);
+        when(mapVO.getSecurityGroupId()).thenReturn(securityGroupId);
+        when(mapVO.getInstanceId()).thenReturn(vmId);
+        when(mapVO.getGuestIpAddress()).thenReturn(ip);
+        return mapVO;
+    }
+
+    @Test
+    public void testGroupsAreLoadedOncePerBatch() {
+        SecurityGroupManagerImpl2.RulesetCache cache = _sgMgr.new RulesetCache();
+        Map<PortAndProto, Set<String>> rules1 = _sgMgr.generateRulesForVM(1L, SecurityRuleType.IngressRule, cache);
+        Map<PortAndProto, Set<String>> rules2 = _sgMgr.generateRulesForVM(2L, SecurityRuleType.IngressRule, cache);
+
+        Set<String> expected = new TreeSet<String>(Arrays.asList("10.1.2.1/32", "10.1.2.2/32"));
+        assertEquals(1, rules1.size());
+        assertEquals(expected, new TreeSet<String>(rules1.get(new PortAndProto("tcp", 22, 22))));
+        assertEquals(rules1, rules2);
+
+        verify(_sgMgr._securityGroupRuleDao, times(1)).listBySecurityGroupId(10L, SecurityRuleType.IngressRule);
+        verify(_sgMgr._securityGroupVMMapDao, times(1)).listBySecurityGroup(20L, State.Running);
+    }
+
+    @Test
+    public void testSignatureCoversEgressRules() {
+        Map<PortAndProto, Set<String>> ingress = _sgMgr.generateRulesForVM(1L, SecurityRuleType.IngressRule);
+        Map<PortAndProto, Set<String>> egress = _sgMgr.generateRulesForVM(1L, SecurityRuleType.IngressRule);
+        Map<PortAndProto, Set<String>> noEgress = _sgMgr.generateRulesForVM(1L, SecurityRuleType.EgressRule);
+
+        assertFalse(_sgMgr.generateRulesetSignature(ingress, egress).equals(_sgMgr.generateRulesetSignature(ingress, noEgress)));
+    }
+}
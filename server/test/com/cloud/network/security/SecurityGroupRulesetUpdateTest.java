@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.agent.manager.Commands;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.network.security.dao.SecurityGroupWorkDao;
+import com.cloud.uservm.UserVm;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.UserVmDao;
+
+public class SecurityGroupRulesetUpdateTest {
+    SecurityGroupManagerImpl2 _sgMgr;
+
+    @Before
+    public void setup() {
+        _sgMgr = new SecurityGroupManagerImpl2() {
+            @Override
+            protected SecurityGroupRulesCmd generateRulesetCmd(UserVm vm, SecurityGroupWork work, RulesetCache cache) {
+                SecurityGroupRulesCmd cmd = mock(SecurityGroupRulesCmd.class);
+                when(cmd.getIngressRuleSet()).thenReturn(new IpPortAndProto[0]);
+                when(cmd.getEgressRuleSet()).thenReturn(new IpPortAndProto[0]);
+                return cmd;
+            }
+        };
+        _sgMgr._mBean = new SecurityManagerMBeanImpl(_sgMgr);
+        _sgMgr._workDao = mock(SecurityGroupWorkDao.class);
+        _sgMgr._userVMDao = mock(UserVmDao.class);
+        _sgMgr._agentMgr = mock(AgentManager.class);
+        _sgMgr._workTracker = mock(SecurityGroupWorkTracker.class);
+    }
+
+    private SecurityGroupWork work(long id, long vmId) {
+        SecurityGroupWorkVO work = mock(SecurityGroupWorkVO.class);
+        when(work.getId()).thenReturn(id);
+        when(work.getInstanceId()).thenReturn(vmId);
+        when(work.getLogsequenceNumber()).thenReturn(1L);
+        when(work.getCreated()).thenReturn(new Date());
+        return work;
+    }
+
+    private UserVmVO vm(long id, State state, Long hostId) {
+        UserVmVO vm = mock(UserVmVO.class);
+        when(vm.getId()).thenReturn(id);
+        when(vm.getState()).thenReturn(state);
+        when(vm.getHostId()).thenReturn(hostId);
+        return vm;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWorkThatIsNotSentIsDone() throws AgentUnavailableException {
+        List<UserVmVO> vms = new ArrayList<UserVmVO>(Arrays.asList(vm(1L, State.Stopped, null), vm(2L, State.Running, null),
+                vm(4L, State.Running, 7L), vm(5L, State.Running, 8L)));
+        when(_sgMgr._userVMDao.listByIds(any(Collection.class))).thenReturn(vms);
+        when(_sgMgr._agentMgr.send(eq(7L), any(Commands.class), any(Listener.class))).thenThrow(new AgentUnavailableException(7L));
+
+        // vm 3 no longer exists
+        _sgMgr.sendRulesetUpdates(Arrays.asList(work(11L, 1L), work(12L, 2L), work(13L, 3L), work(14L, 4L), work(15L, 5L)));
+
+        verify(_sgMgr._workDao).updateStep(11L, Step.Done);
+        verify(_sgMgr._workDao).updateStep(12L, Step.Done);
+        verify(_sgMgr._workDao).updateStep(13L, Step.Done);
+        verify(_sgMgr._workDao).updateStep(14L, Step.Done);
+        // sent, finished by its answer
+        verify(_sgMgr._workDao, never()).updateStep(15L, Step.Done);
+        verify(_sgMgr._agentMgr).send(eq(8L), any(Commands.class), any(Listener.class));
+        assertEquals(1, _sgMgr._mBean.getRulesetUpdatesInFlight());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testLocalWorkIsNotWrittenBack() {
+        when(_sgMgr._userVMDao.listByIds(any(Collection.class))).thenReturn(new ArrayList<UserVmVO>());
+        LocalSecurityGroupWorkQueue.LocalSecurityGroupWork work = new LocalSecurityGroupWorkQueue.LocalSecurityGroupWork(1L, 1L, Step.Scheduled);
+
+        _sgMgr.sendRulesetUpdates(work);
+
+        verify(_sgMgr._workDao, never()).updateStep(anyLong(), any(Step.class));
+    }
+}
@@ -20,19 +20,28 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
 import com.cloud.service.ServiceOfferingVO;
+import com.cloud.storage.DiskOfferingVO;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.StoragePoolHostVO;
+import com.cloud.storage.Volume;
+import com.cloud.storage.VolumeVO;
 import com.cloud.storage.StorageManager;
 import com.cloud.storage.dao.DiskOfferingDao;
 import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.storage.dao.StoragePoolHostDao;
 import com.cloud.storage.dao.VolumeDao;
+import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.agent.AgentManager;
@@ -41,7 +50,7 @@ import com.cloud.dc.ClusterVO;
 import com.cloud.dc.DataCenterVO;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
-import com.cloud.dc.dao.DedicatedResourceDao;
+import com.cloud.dc.dao.DedicatedResourceDao;
 import com.cloud.dc.dao.HostPodDao;
 import com.cloud.deploy.DataCenterDeployment;
 import com.cloud.deploy.DeployDestination;
@@ -58,6 +67,7 @@ import org.apache.cloudstack.affinity.AffinityGroupService;
 import org.apache.cloudstack.affinity.dao.AffinityGroupDao;
 import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
 import org.apache.cloudstack.engine.cloud.entity.api.db.dao.VMReservationDao;
+import org.apache.cloudstack.engine.subsystem.api.storage.StoragePoolAllocator;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
@@ -83,6 +93,9 @@ import org.springframework.test.context.support.AnnotationConfigContextLoader;
 
 import com.cloud.exception.AffinityConflictException;
 import com.cloud.exception.InsufficientServerCapacityException;
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.user.AccountManager;
@@ -120,9 +133,33 @@ public class DeploymentPlanningManagerImplTest {
     @Inject
     ClusterDao _clusterDao;
 
-    @Inject
-    DedicatedResourceDao _dedicatedDao;
-
+    @Inject
+    DedicatedResourceDao _dedicatedDao;
+
+    @Inject
+    CapacityManager _capacityMgr;
+
+    @Inject
+    CapacityDao _capacityDao;
+
+    @Inject
+    HostDao _hostDao;
+
+    @Inject
+    VolumeDao _volsDao;
+
+    @Inject
+    DiskOfferingDao _diskOfferingDao;
+
+    @Inject
+    StoragePoolHostDao _poolHostDao;
+
+    @Inject
+    StorageManager _storageMgr;
+
+    @Inject
+    VMInstanceDao _vmInstanceDao;
+
     private static long domainId = 5L;
 
     private static long dataCenterId = 1L;
@@ -201,6 +238,170 @@ public class DeploymentPlanningManagerImplTest {
         assertNull("Planner cannot handle, destination should be null! ", dest);
     }
 
+    @Test
+    public void emptyBatchTest() throws InsufficientServerCapacityException, AffinityConflictException {
+        DataCenterDeployment plan = new DataCenterDeployment(dataCenterId);
+        List<DeployDestination> dests = _dpm.planDeployments(new ArrayList<VirtualMachineProfile>(), plan, avoids);
+        assertTrue("Empty batch, no destination expected! ", dests.isEmpty());
+    }
+
+    @Test(expected = InvalidParameterValueException.class)
+    public void batchWithDifferentTemplatesTest() throws InsufficientServerCapacityException, AffinityConflictException {
+        ServiceOfferingVO svcOffering = new ServiceOfferingVO("testOffering", 1, 512, 500, 1, 1, false, false, false,
+                "test dpm", false, false, null, false, VirtualMachine.Type.User, domainId, null, "FirstFitPlanner");
+        Mockito.when(vmProfile.getServiceOffering()).thenReturn(svcOffering);
+        Mockito.when(vmProfile.getTemplateId()).thenReturn(5L);
+
+        VirtualMachineProfile otherProfile = Mockito.mock(VirtualMachineProfile.class);
+        Mockito.when(otherProfile.getServiceOffering()).thenReturn(svcOffering);
+        Mockito.when(otherProfile.getTemplateId()).thenReturn(6L);
+
+        List<VirtualMachineProfile> profiles = new ArrayList<VirtualMachineProfile>();
+        profiles.add(vmProfile);
+        profiles.add(otherProfile);
+        _dpm.planDeployments(profiles, new DataCenterDeployment(dataCenterId), avoids);
+    }
+
+    @Test(expected = InsufficientServerCapacityException.class)
+    public void batchEmptyClusterListTest() throws InsufficientServerCapacityException, AffinityConflictException {
+        ServiceOfferingVO svcOffering = new ServiceOfferingVO("testOffering", 1, 512, 500, 1, 1, false, false, false,
+                "test dpm", false, false, null, false, VirtualMachine.Type.User, domainId, null, "FirstFitPlanner");
+        Mockito.when(vmProfile.getServiceOffering()).thenReturn(svcOffering);
+        Mockito.when(vmProfile.getTemplateId()).thenReturn(5L);
+
+        DataCenterDeployment plan = new DataCenterDeployment(dataCenterId);
+        Mockito.when(_planner.canHandle(Mockito.any(VirtualMachineProfile.class), Mockito.eq(plan), Mockito.any(ExcludeList.class)))
+                .thenReturn(true);
+        Mockito.when(((DeploymentClusterPlanner) _planner).orderClusters(Mockito.any(VirtualMachineProfile.class), Mockito.eq(plan),
+                Mockito.any(ExcludeList.class))).thenReturn(null);
+
+        List<VirtualMachineProfile> profiles = new ArrayList<VirtualMachineProfile>();
+        profiles.add(vmProfile);
+        _dpm.planDeployments(profiles, plan, avoids);
+    }
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private VirtualMachineProfile batchProfile(long vmId, ServiceOfferingVO svcOffering) {
+        VirtualMachineProfile profile = Mockito.mock(VirtualMachineProfile.class);
+        Mockito.when(profile.getId()).thenReturn(vmId);
+        Mockito.when(profile.getServiceOffering()).thenReturn(svcOffering);
+        Mockito.when(profile.getTemplateId()).thenReturn(5L);
+        Mockito.when(profile.getHypervisorType()).thenReturn(HypervisorType.XenServer);
+        Mockito.when(profile.getType()).thenReturn(VirtualMachine.Type.User);
+        Mockito.when(profile.getVirtualMachine()).thenReturn(new VMInstanceVO());
+        return profile;
+    }
+
+    private HostVO batchHost(long hostId) {
+        HostVO host = Mockito.mock(HostVO.class);
+        Mockito.when(host.getId()).thenReturn(hostId);
+        Mockito.when(host.getClusterId()).thenReturn(1L);
+        Mockito.when(_hostDao.findById(hostId)).thenReturn(host);
+        // 1000 MHz and 1 GB free, room for two VMs of the batch offering
+        Mockito.when(_capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU)).thenReturn(
+                new CapacityVO(hostId, dataCenterId, 1L, 1L, 0, 1000, Capacity.CAPACITY_TYPE_CPU));
+        Mockito.when(_capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(
+                new CapacityVO(hostId, dataCenterId, 1L, 1L, 0, GB, Capacity.CAPACITY_TYPE_MEMORY));
+        return host;
+    }
+
+    /*
+     * Three VMs of 500 MHz and 512 MB on two hosts that fit two VMs each: the first host
+     * takes two VMs and the second one takes the third.
+     */
+    private List<VirtualMachineProfile> setUpBatch(List<VMInstanceVO> vms) {
+        Mockito.reset(_capacityMgr, _vmInstanceDao);
+        ServiceOfferingVO svcOffering = new ServiceOfferingVO("testOffering", 1, 512, 500, 1, 1, false, false, false,
+                "test dpm", false, false, null, false, VirtualMachine.Type.User, domainId, null, "FirstFitPlanner");
+
+        Mockito.when(_planner.canHandle(Mockito.any(VirtualMachineProfile.class), Mockito.any(DataCenterDeployment.class), Mockito.any(ExcludeList.class)))
+                .thenReturn(true);
+        Mockito.when(((DeploymentClusterPlanner) _planner).orderClusters(Mockito.any(VirtualMachineProfile.class), Mockito.any(DataCenterDeployment.class),
+                Mockito.any(ExcludeList.class))).thenReturn(Arrays.asList(1L));
+        Mockito.when(((DeploymentClusterPlanner) _planner).getResourceUsage(Mockito.any(VirtualMachineProfile.class), Mockito.any(DataCenterDeployment.class),
+                Mockito.any(ExcludeList.class))).thenReturn(PlannerResourceUsage.Shared);
+        Mockito.when(_plannerHostReserveDao.findByHostId(Mockito.anyLong())).thenReturn(
+                new PlannerHostReservationVO(1L, dataCenterId, 1L, 1L, PlannerResourceUsage.Shared));
+
+        List<Host> hosts = new ArrayList<Host>();
+        hosts.add(batchHost(1L));
+        hosts.add(batchHost(2L));
+        HostAllocator hostAllocator = Mockito.mock(HostAllocator.class);
+        Mockito.when(hostAllocator.allocateTo(Mockito.any(VirtualMachineProfile.class), Mockito.any(DataCenterDeployment.class),
+                Mockito.eq(Host.Type.Routing), Mockito.any(ExcludeList.class), Mockito.eq(HostAllocator.RETURN_UPTO_ALL))).thenReturn(hosts);
+        _dpm.setHostAllocators(Arrays.asList(hostAllocator));
+
+        VolumeVO rootVolume = Mockito.mock(VolumeVO.class);
+        Mockito.when(rootVolume.getVolumeType()).thenReturn(Volume.Type.ROOT);
+        Mockito.when(rootVolume.getDiskOfferingId()).thenReturn(7L);
+        Mockito.when(_volsDao.findUsableVolumesForInstance(Mockito.anyLong())).thenReturn(Arrays.asList(rootVolume));
+        Mockito.when(_diskOfferingDao.findById(7L)).thenReturn(Mockito.mock(DiskOfferingVO.class));
+
+        StoragePool pool = Mockito.mock(StoragePool.class);
+        Mockito.when(pool.getId()).thenReturn(9L);
+        List<StoragePool> pools = new ArrayList<StoragePool>();
+        pools.add(pool);
+        StoragePoolAllocator poolAllocator = Mockito.mock(StoragePoolAllocator.class);
+        Mockito.when(poolAllocator.allocateToPool(Mockito.any(DiskProfile.class), Mockito.any(VirtualMachineProfile.class),
+                Mockito.any(DataCenterDeployment.class), Mockito.any(ExcludeList.class), Mockito.anyInt())).thenReturn(pools);
+        _dpm.setStoragePoolAllocators(Arrays.asList(poolAllocator));
+        Mockito.when(_poolHostDao.findByPoolHost(Mockito.eq(9L), Mockito.anyLong())).thenReturn(Mockito.mock(StoragePoolHostVO.class));
+        Mockito.when(_storageMgr.storagePoolHasEnoughSpace(Mockito.anyListOf(Volume.class), Mockito.eq(pool))).thenReturn(true);
+
+        List<VirtualMachineProfile> profiles = new ArrayList<VirtualMachineProfile>();
+        for (long vmId = 101; vmId <= 103; vmId++) {
+            profiles.add(batchProfile(vmId, svcOffering));
+            VMInstanceVO vm = new VMInstanceVO();
+            vms.add(vm);
+            Mockito.when(_vmInstanceDao.findById(vmId)).thenReturn(vm);
+        }
+        return profiles;
+    }
+
+    @Test
+    public void batchReservesHostCapacityTest() throws InsufficientServerCapacityException, AffinityConflictException {
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        List<VirtualMachineProfile> profiles = setUpBatch(vms);
+        Mockito.when(_capacityMgr.reserveHostCapacity(Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong())).thenReturn(true);
+
+        List<DeployDestination> dests = _dpm.planDeployments(profiles, new DataCenterDeployment(dataCenterId), new ExcludeList());
+
+        assertEquals(3, dests.size());
+        assertEquals(1L, dests.get(0).getHost().getId());
+        assertEquals(1L, dests.get(1).getHost().getId());
+        assertEquals(2L, dests.get(2).getHost().getId());
+        Mockito.verify(_capacityMgr).reserveHostCapacity(1L, 1000L, GB);
+        Mockito.verify(_capacityMgr).reserveHostCapacity(2L, 500L, GB / 2);
+        Mockito.verify(_capacityMgr, Mockito.never()).releaseHostCapacity(Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong());
+
+        // the reservation is carried by the last host, starting the VM there converts it to used capacity
+        assertEquals(Long.valueOf(1L), vms.get(0).getLastHostId());
+        assertEquals(Long.valueOf(1L), vms.get(1).getLastHostId());
+        assertEquals(Long.valueOf(2L), vms.get(2).getLastHostId());
+    }
+
+    @Test
+    public void batchReleasesReservationWhenHostIsFullTest() throws AffinityConflictException {
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        List<VirtualMachineProfile> profiles = setUpBatch(vms);
+        Mockito.when(_capacityMgr.reserveHostCapacity(1L, 1000L, GB)).thenReturn(true);
+        Mockito.when(_capacityMgr.reserveHostCapacity(2L, 500L, GB / 2)).thenReturn(false);
+
+        try {
+            _dpm.planDeployments(profiles, new DataCenterDeployment(dataCenterId), new ExcludeList());
+            fail("The second host ran out of capacity, the batch should fail");
+        } catch (InsufficientServerCapacityException e) {
+            // expected
+        }
+
+        Mockito.verify(_capacityMgr).releaseHostCapacity(1L, 1000L, GB);
+        Mockito.verify(_vmInstanceDao, Mockito.never()).update(Mockito.anyLong(), Mockito.any(VMInstanceVO.class));
+        for (VMInstanceVO vm : vms) {
+            assertNull(vm.getLastHostId());
+        }
+    }
+
 
     @Configuration
     @ComponentScan(basePackageClasses = { DeploymentPlanningManagerImpl.class }, includeFilters = { @Filter(value = TestConfiguration.Library.class, type = FilterType.CUSTOM) }, useDefaultFilters = false)
@@ -262,11 +463,11 @@ public class DeploymentPlanningManagerImplTest {
         }
 
         @Bean
-        public DedicatedResourceDao dedicatedResourceDao() {
-            return Mockito.mock(DedicatedResourceDao.class);
-        }
-
-        @Bean
+        public DedicatedResourceDao dedicatedResourceDao() {
+            return Mockito.mock(DedicatedResourceDao.class);
+        }
+
+        @Bean
         public GuestOSDao guestOSDao() {
             return Mockito.mock(GuestOSDao.class);
         }
@@ -45,6 +45,7 @@ import com.cloud.network.rules.StaticNat;
 import com.cloud.network.vpc.PrivateGateway;
 import com.cloud.network.vpc.StaticRouteProfile;
 import com.cloud.network.vpc.Vpc;
+import com.cloud.network.vpc.VpcConfigurationPlan;
 import com.cloud.user.Account;
 import com.cloud.user.User;
 import com.cloud.uservm.UserVm;
@@ -382,6 +383,16 @@ VpcVirtualNetworkApplianceService {
         return false;
     }
 
+    /* (non-Javadoc)
+     * @see com.cloud.network.router.VpcVirtualNetworkApplianceManager#applyVpcConfiguration(com.cloud.network.vpc.VpcConfigurationPlan, java.util.List)
+     */
+    @Override
+    public boolean applyVpcConfiguration(VpcConfigurationPlan plan, List<DomainRouterVO> routers)
+            throws ResourceUnavailableException {
+        // TODO Auto-generated method stub
+        return false;
+    }
+
     /* (non-Javadoc)
      * @see com.cloud.network.router.VpcVirtualNetworkApplianceManager#startSite2SiteVpn(com.cloud.network.Site2SiteVpnConnection, com.cloud.network.router.VirtualRouter)
      */
@@ -29,6 +29,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -51,12 +52,15 @@ import com.cloud.network.NetworkModel;
 import com.cloud.network.dao.NetworkDao;
 import com.cloud.network.dao.NetworkVO;
 import com.cloud.network.element.NetworkACLServiceProvider;
+import com.cloud.network.element.VpcProvider;
 import com.cloud.network.vpc.NetworkACLItem;
 import com.cloud.network.vpc.NetworkACLItemDao;
 import com.cloud.network.vpc.NetworkACLItemVO;
 import com.cloud.network.vpc.NetworkACLManager;
 import com.cloud.network.vpc.NetworkACLManagerImpl;
 import com.cloud.network.vpc.NetworkACLVO;
+import com.cloud.network.vpc.Vpc;
+import com.cloud.network.vpc.VpcConfigurationPlan;
 import com.cloud.network.vpc.VpcManager;
 import com.cloud.network.vpc.dao.NetworkACLDao;
 import com.cloud.network.vpc.dao.VpcGatewayDao;
@@ -132,6 +136,36 @@ public class NetworkACLManagerTest extends TestCase{
         assertTrue(_aclMgr.applyACLToNetwork(1L));
     }
 
+    @Test
+    public void testApplyACLToVpcTiersWithSinglePlan() throws Exception {
+        List<NetworkVO> tiers = new ArrayList<NetworkVO>();
+        for (long id = 11; id <= 12; id++) {
+            NetworkVO tier = Mockito.mock(NetworkVO.class);
+            Mockito.when(tier.getId()).thenReturn(id);
+            Mockito.when(tier.getVpcId()).thenReturn(3L);
+            tiers.add(tier);
+        }
+        Mockito.when(_networkDao.listByAclId(100L)).thenReturn(tiers);
+        Mockito.when(_networkModel.isProviderSupportServiceInNetwork(Mockito.anyLong(), Mockito.any(Network.Service.class), Mockito.any(Network.Provider.class))).thenReturn(true);
+        List<NetworkACLItemVO> aclItems = new ArrayList<NetworkACLItemVO>();
+        aclItems.add(aclItem);
+        Mockito.when(_networkACLItemDao.listByACL(100L)).thenReturn(aclItems);
+        Vpc vpc = Mockito.mock(Vpc.class);
+        Mockito.when(_entityMgr.findById(Vpc.class, 3L)).thenReturn(vpc);
+        VpcProvider vpcElement = Mockito.mock(VpcProvider.class);
+        Mockito.when(_networkModel.getElementImplementingProvider(Network.Provider.VPCVirtualRouter.getName())).thenReturn(vpcElement);
+        Mockito.when(vpcElement.applyVpcConfiguration(Mockito.any(Vpc.class), Mockito.any(VpcConfigurationPlan.class))).thenReturn(true);
+
+        assertTrue(_aclMgr.applyNetworkACL(100L));
+
+        ArgumentCaptor<VpcConfigurationPlan> plan = ArgumentCaptor.forClass(VpcConfigurationPlan.class);
+        Mockito.verify(vpcElement, Mockito.times(1)).applyVpcConfiguration(Mockito.eq(vpc), plan.capture());
+        assertEquals(3L, plan.getValue().getVpcId());
+        assertEquals(2, plan.getValue().getTierAcls().size());
+        assertTrue(plan.getValue().getTierAcls().containsKey(11L));
+        assertTrue(plan.getValue().getTierAcls().containsKey(12L));
+    }
+
     @Test
     public void testRevokeACLItem() throws Exception {
         Mockito.when(_networkACLItemDao.findById(Mockito.anyLong())).thenReturn(aclItem);
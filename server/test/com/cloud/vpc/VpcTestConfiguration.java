@@ -20,6 +20,7 @@ package com.cloud.vpc;
 import java.io.IOException;
 
 import org.apache.cloudstack.framework.config.dao.ConfigurationDaoImpl;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.test.utils.SpringUtils;
 
 import org.mockito.Mockito;
@@ -230,6 +231,11 @@ public class VpcTestConfiguration {
     public NetworkDao networkDao() {
         return Mockito.mock(NetworkDao.class);
     }
+
+    @Bean
+    public MessageBus messageBus() {
+        return Mockito.mock(MessageBus.class);
+    }
     
 
     public static class VpcLibrary implements TypeFilter {
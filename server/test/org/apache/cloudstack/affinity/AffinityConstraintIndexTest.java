@@ -0,0 +1,85 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.affinity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.affinity.AffinityConstraintIndex.Dedications;
+
+import com.cloud.dc.DedicatedResourceVO;
+import com.cloud.dc.dao.DedicatedResourceDao;
+import com.cloud.utils.Pair;
+
+public class AffinityConstraintIndexTest {
+    private static final long GROUP = 1L;
+
+    AffinityConstraintIndex _index;
+    DedicatedResourceDao _dedicatedDao;
+
+    @Before
+    public void setUp() {
+        _index = new AffinityConstraintIndex();
+        _dedicatedDao = mock(DedicatedResourceDao.class);
+        _index._dedicatedDao = _dedicatedDao;
+    }
+
+    @Test
+    public void testDedicationsReloadOnlyWhenTableChanges() {
+        DedicatedResourceVO host = mock(DedicatedResourceVO.class);
+        when(host.getHostId()).thenReturn(10L);
+        when(host.getAffinityGroupId()).thenReturn(GROUP);
+        when(host.getDomainId()).thenReturn(2L);
+        DedicatedResourceVO pod = mock(DedicatedResourceVO.class);
+        when(pod.getPodId()).thenReturn(3L);
+        when(pod.getAffinityGroupId()).thenReturn(GROUP);
+        when(pod.getAccountId()).thenReturn(4L);
+        when(_dedicatedDao.listAll()).thenReturn(Arrays.asList(host, pod));
+        when(_dedicatedDao.getCountAndMaxId()).thenReturn(new Pair<Long, Long>(2L, 2L));
+
+        Dedications dedications = _index.getDedications();
+        assertSame(host, dedications.findByHostId(10L));
+        assertSame(pod, dedications.findByPodId(3L));
+        assertEquals(null, dedications.findByClusterId(3L));
+        assertEquals(Arrays.asList(host, pod), dedications.listByAffinityGroupId(GROUP));
+        assertEquals(Arrays.asList(pod), dedications.listByAccountId(4L));
+        assertEquals(Arrays.asList(host), dedications.listByDomainId(2L));
+        assertTrue(dedications.listByDomainId(5L).isEmpty());
+
+        assertSame(dedications, _index.getDedications());
+        verify(_dedicatedDao, times(1)).listAll();
+
+        when(_dedicatedDao.listAll()).thenReturn(Collections.singletonList(host));
+        when(_dedicatedDao.getCountAndMaxId()).thenReturn(new Pair<Long, Long>(1L, 2L));
+        Dedications reloaded = _index.getDedications();
+        assertNotSame(dedications, reloaded);
+        assertEquals(null, reloaded.findByPodId(3L));
+        verify(_dedicatedDao, times(2)).listAll();
+    }
+}
@@ -43,6 +43,7 @@ import org.apache.cloudstack.context.CallContext;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.region.PortableIpDaoImpl;
 import org.apache.cloudstack.region.PortableIpRangeDaoImpl;
 import org.apache.cloudstack.region.dao.RegionDaoImpl;
@@ -378,6 +379,11 @@ public class ChildTestConfiguration {
         return Mockito.mock(AffinityGroupService.class);
     }
 
+    @Bean
+    public MessageBus messageBus() {
+        return Mockito.mock(MessageBus.class);
+    }
+
     public static class Library implements TypeFilter {
 
         @Override
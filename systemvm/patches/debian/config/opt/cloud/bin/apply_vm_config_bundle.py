@@ -0,0 +1,139 @@
+#!/usr/bin/python
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+# 
+#   http://www.apache.org/licenses/LICENSE-2.0
+# 
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+# Applies the dhcp entries and vm data of a config bundle sent by the
+# management server, skipping the entries that are unchanged since the last
+# bundle and still in place.  Entries are never removed here, that is left
+# to the per vm commands as before.
+
+import sys, getopt, json, os, subprocess
+
+STATE_FILE = "/var/cache/cloud/vm_config_bundle.state"
+DHCP_HOSTS = "/etc/dhcphosts.txt"
+
+
+def main(argv):
+    fpath = ''
+    try:
+        opts, args = getopt.getopt(argv, "f:")
+    except getopt.GetoptError:
+        print 'params: -f <filename>'
+        sys.exit(2)
+    for opt, arg in opts:
+        if opt == '-f':
+            fpath = arg
+    if fpath == '':
+        print '-f <filename> required'
+        sys.exit(2)
+
+    fh = open(fpath, 'r')
+    bundle = json.loads(fh.read())
+    fh.close()
+    os.remove(fpath)
+
+    state = loadstate()
+    version = bundle['version']
+
+    failed = applydhcp(bundle['dhcp'], state['dhcp'])
+    failed += applyvmdata(bundle['vmdata'], state['vmdata'])
+
+    state['version'] = version
+    savestate(state)
+    if failed > 0:
+        print str(failed) + ' entries of config bundle ' + str(version) + ' failed'
+        return 1
+    return 0
+
+
+def applydhcp(entries, applied):
+    hosts = ''
+    if os.path.exists(DHCP_HOSTS):
+        fh = open(DHCP_HOSTS, 'r')
+        hosts = fh.read()
+        fh.close()
+
+    failed = 0
+    for entry in entries:
+        mac = entry['mac']
+        if applied.get(mac) == entry and mac in hosts:
+            continue
+        args = ['/root/edithosts.sh', '-m', mac, '-h', entry['host']]
+        for opt, key in (('-4', 'ip'), ('-d', 'router'), ('-s', 'routes'), ('-n', 'dns'), ('-6', 'ip6'), ('-u', 'duid')):
+            if entry.get(key):
+                args += [opt, entry[key]]
+        if not entry['default']:
+            args.append('-N')
+        if subprocess.call(args) == 0:
+            applied[mac] = entry
+        else:
+            applied.pop(mac, None)
+            failed += 1
+    return failed
+
+
+def applyvmdata(vmdata, applied):
+    changed = {}
+    for ip in vmdata:
+        if applied.get(ip) != vmdata[ip] or not present(ip, vmdata[ip]):
+            changed[ip] = vmdata[ip]
+    if len(changed) == 0:
+        return 0
+
+    # vmdata.py removes the file once done
+    tmp = '/var/cache/cloud/vm_config_bundle.vmdata'
+    fh = open(tmp, 'w')
+    fh.write(json.dumps(changed))
+    fh.close()
+    if subprocess.call(['/opt/cloud/bin/vmdata.py', '-f', tmp]) != 0:
+        for ip in changed:
+            applied.pop(ip, None)
+        return len(changed)
+    applied.update(changed)
+    return 0
+
+
+def present(ip, items):
+    for folder, file, data in items:
+        if folder != "userdata" and folder != "metadata":
+            continue
+        if file != "" and data != "" and not os.path.exists("/var/www/html/" + folder + "/" + ip + "/" + file):
+            return False
+    return True
+
+
+def loadstate():
+    if os.path.exists(STATE_FILE):
+        try:
+            fh = open(STATE_FILE, 'r')
+            state = json.loads(fh.read())
+            fh.close()
+            return state
+        except ValueError:
+            pass
+    return {'version': None, 'dhcp': {}, 'vmdata': {}}
+
+
+def savestate(state):
+    fh = open(STATE_FILE + '.new', 'w')
+    fh.write(json.dumps(state))
+    fh.close()
+    os.rename(STATE_FILE + '.new', STATE_FILE)
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1:]))
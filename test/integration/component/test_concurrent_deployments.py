@@ -0,0 +1,204 @@
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+""" Contention benchmark for host capacity allocation: deploys a large number
+    of VMs concurrently into a single cluster of the simulator and checks that
+    the cpu/memory capacity of the cluster stays consistent.
+"""
+from marvin.cloudstackTestCase import cloudstackTestCase
+from marvin.cloudstackAPI import deployVirtualMachine, queryAsyncJobResult, updateCluster
+from marvin.integration.lib.base import Account, VirtualMachine, ServiceOffering, Cluster, Capacities, Resources
+from marvin.integration.lib.common import get_zone, get_domain, get_template, cleanup_resources
+from nose.plugins.attrib import attr
+import time
+
+
+class Services:
+    def __init__(self):
+        self.services = {
+            "account": {
+                "email": "test@test.com",
+                "firstname": "Test",
+                "lastname": "User",
+                "username": "test",
+                # Random characters are appended for unique
+                # username
+                "password": "password",
+            },
+            "service_offering": {
+                "name": "Contention Service Offering",
+                "displaytext": "Contention Service Offering",
+                "cpunumber": 1,
+                "cpuspeed": 100,
+                # in MHz
+                "memory": 128,
+                # In MBs
+            },
+            "ostype": 'CentOS 5.3 (64-bit)',
+            "virtual_machine": {
+                "hypervisor": "Simulator",
+            },
+            # number of deployments issued at the same time
+            "deployments": 200,
+            # seconds to wait for all of them to finish
+            "timeout": 1800,
+        }
+
+
+class TestConcurrentDeployments(cloudstackTestCase):
+    """ Deploy many VMs at once in one cluster
+        - every deployment must succeed
+        - the used capacity of the cluster must account for every VM
+    """
+
+    @classmethod
+    def setUpClass(cls):
+        cls.apiclient = super(TestConcurrentDeployments, cls).getClsTestClient().getApiClient()
+        cls.services = Services().services
+        cls.domain = get_domain(cls.apiclient, cls.services)
+        cls.zone = get_zone(cls.apiclient, cls.services)
+        cls.template = get_template(
+            cls.apiclient,
+            cls.zone.id,
+            cls.services["ostype"]
+        )
+        cls.services["virtual_machine"]["zoneid"] = cls.zone.id
+        cls.services["virtual_machine"]["template"] = cls.template.id
+
+        cls.account = Account.create(
+            cls.apiclient,
+            cls.services["account"],
+            domainid=cls.domain.id
+        )
+        # instances, cpu and memory limits of the account
+        for resourcetype in (0, 8, 9):
+            Resources.updateLimit(
+                cls.apiclient,
+                resourcetype=resourcetype,
+                max=-1,
+                account=cls.account.name,
+                domainid=cls.account.domainid
+            )
+        cls.service_offering = ServiceOffering.create(
+            cls.apiclient,
+            cls.services["service_offering"]
+        )
+
+        # keep a single cluster enabled so that all the deployments compete for it
+        clusters = Cluster.list(cls.apiclient, zoneid=cls.zone.id, allocationstate="Enabled")
+        cls.cluster = clusters[0]
+        cls.disabled_clusters = [c for c in clusters[1:]]
+        for cluster in cls.disabled_clusters:
+            cls.set_cluster_state(cluster, "Disabled")
+
+        cls.cleanup = [
+            cls.account,
+            cls.service_offering
+        ]
+
+    @classmethod
+    def tearDownClass(cls):
+        try:
+            for cluster in cls.disabled_clusters:
+                cls.set_cluster_state(cluster, "Enabled")
+            cleanup_resources(cls.apiclient, cls.cleanup)
+        except Exception as e:
+            raise Exception("Warning: Exception during cleanup : %s" % e)
+
+    @classmethod
+    def set_cluster_state(cls, cluster, state):
+        cmd = updateCluster.updateClusterCmd()
+        cmd.id = cluster.id
+        cmd.allocationstate = state
+        cls.apiclient.updateCluster(cmd)
+
+    def used_capacity(self, capacitytype):
+        capacities = Capacities.list(self.apiclient, zoneid=self.zone.id, type=capacitytype)
+        return sum(c.capacityused for c in capacities if c.clusterid == self.cluster.id)
+
+    @attr(tags=["simulator", "advanced", "basic", "sg", "benchmark"])
+    def test_concurrent_deployments_in_one_cluster(self):
+        """Test concurrent deployments in one cluster
+        """
+        # the first deployment also creates the network and its router, keep it out of the measurement
+        VirtualMachine.create(
+            self.apiclient,
+            self.services["virtual_machine"],
+            accountid=self.account.name,
+            zoneid=self.zone.id,
+            domainid=self.account.domainid,
+            serviceofferingid=self.service_offering.id,
+            templateid=self.template.id
+        )
+
+        count = self.services["deployments"]
+        used_cpu = self.used_capacity(1)
+        used_memory = self.used_capacity(0)
+
+        start = time.time()
+        jobs = []
+        for i in range(count):
+            cmd = deployVirtualMachine.deployVirtualMachineCmd()
+            # return as soon as the job is submitted, all the jobs run at the same time
+            cmd.isAsync = "false"
+            cmd.zoneid = self.zone.id
+            cmd.templateid = self.template.id
+            cmd.serviceofferingid = self.service_offering.id
+            cmd.account = self.account.name
+            cmd.domainid = self.account.domainid
+            cmd.hypervisor = self.services["virtual_machine"]["hypervisor"]
+            jobs.append(self.apiclient.deployVirtualMachine(cmd).jobid)
+        submitted = time.time()
+
+        succeeded = 0
+        failed = []
+        pending = list(jobs)
+        while pending and time.time() - start < self.services["timeout"]:
+            for jobid in list(pending):
+                cmd = queryAsyncJobResult.queryAsyncJobResultCmd()
+                cmd.jobid = jobid
+                cmd.isAsync = "false"
+                result = self.apiclient.queryAsyncJobResult(cmd)
+                if result.jobstatus == 1:
+                    succeeded += 1
+                    pending.remove(jobid)
+                elif result.jobstatus == 2:
+                    failed.append(result.jobresult)
+                    pending.remove(jobid)
+            if pending:
+                time.sleep(5)
+        elapsed = time.time() - start
+
+        self.debug("Submitted %d deployments in %.1fs, %d succeeded, %d failed, %d pending after %.1fs (%.2f deployments/s)"
+                   % (count, submitted - start, succeeded, len(failed), len(pending), elapsed, succeeded / elapsed))
+        self.assertEqual(len(pending), 0, "Deployments did not finish within %ds" % self.services["timeout"])
+        self.assertEqual(len(failed), 0, "Deployments failed: %s" % failed[:5])
+
+        vms = VirtualMachine.list(self.apiclient, account=self.account.name, domainid=self.account.domainid, listall=True)
+        self.assertEqual(len(vms), count + 1, "Not every VM was created")
+        self.assertTrue(all(vm.state == "Running" for vm in vms), "Not every VM is running")
+
+        offering = self.services["service_offering"]
+        self.assertEqual(
+            self.used_capacity(1) - used_cpu,
+            count * offering["cpunumber"] * offering["cpuspeed"],
+            "Used cpu of the cluster does not account for every VM"
+        )
+        self.assertEqual(
+            self.used_capacity(0) - used_memory,
+            count * offering["memory"] * 1024 * 1024,
+            "Used memory of the cluster does not account for every VM"
+        )
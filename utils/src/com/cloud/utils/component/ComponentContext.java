@@ -17,7 +17,12 @@
 
 package com.cloud.utils.component;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -51,6 +56,10 @@ public class ComponentContext implements ApplicationContextAware {
     private static ApplicationContext s_appContext;
     private static boolean s_initializeBeans = true;
 
+    // time spent in configure() and start() of each component, in ms
+    private static final Map<String, Long> s_configureTimes = new LinkedHashMap<String, Long>();
+    private static final Map<String, Long> s_startTimes = new LinkedHashMap<String, Long>();
+
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) {
         s_logger.info("Setup Spring Application context");
@@ -67,11 +76,13 @@ public class ComponentContext implements ApplicationContextAware {
 
         AutowireCapableBeanFactory beanFactory = s_appContext.getAutowireCapableBeanFactory();
 
+        long phaseStart = System.currentTimeMillis();
         Map<String, ComponentMethodInterceptable> interceptableComponents = getApplicationContext().getBeansOfType(ComponentMethodInterceptable.class);
         for (Map.Entry<String, ComponentMethodInterceptable> entry : interceptableComponents.entrySet()) {
             Object bean = getTargetObject(entry.getValue());
             beanFactory.configureBean(bean, entry.getKey());
         }
+        s_logger.info("Configured " + interceptableComponents.size() + " interceptable beans in " + (System.currentTimeMillis() - phaseStart) + " ms");
 
         Map<String, ComponentLifecycle> lifecycleComponents = getApplicationContext().getBeansOfType(ComponentLifecycle.class);
 
@@ -85,6 +96,7 @@ public class ComponentContext implements ApplicationContextAware {
         }
 
         // Run the SystemIntegrityCheckers first
+        phaseStart = System.currentTimeMillis();
         Map<String, SystemIntegrityChecker> integrityCheckers = getApplicationContext().getBeansOfType(SystemIntegrityChecker.class);
         for (Entry<String, SystemIntegrityChecker> entry : integrityCheckers.entrySet()) {
             s_logger.info("Running SystemIntegrityChecker " + entry.getKey());
@@ -95,8 +107,10 @@ public class ComponentContext implements ApplicationContextAware {
                 System.exit(1);
             }
         }
+        s_logger.info("Ran " + integrityCheckers.size() + " system integrity checkers in " + (System.currentTimeMillis() - phaseStart) + " ms");
 
         // configuration phase
+        phaseStart = System.currentTimeMillis();
         Map<String, String> avoidMap = new HashMap<String, String>();
         for (int i = 0; i < ComponentLifecycle.MAX_RUN_LEVELS; i++) {
             for (Map.Entry<String, ComponentLifecycle> entry : classifiedComponents[i].entrySet()) {
@@ -109,18 +123,22 @@ public class ComponentContext implements ApplicationContextAware {
                     continue;
                 }
 
+                long componentStart = System.currentTimeMillis();
                 try {
                     component.configure(component.getName(), component.getConfigParams());
                 } catch (ConfigurationException e) {
                     s_logger.error("Unhandled exception", e);
                     throw new RuntimeException("Unable to configure " + implClassName, e);
                 }
+                s_configureTimes.put(implClassName, System.currentTimeMillis() - componentStart);
 
                 avoidMap.put(implClassName, implClassName);
             }
         }
+        s_logger.info("Configuration phase completed in " + (System.currentTimeMillis() - phaseStart) + " ms");
 
         // starting phase
+        phaseStart = System.currentTimeMillis();
         avoidMap.clear();
         for (int i = 0; i < ComponentLifecycle.MAX_RUN_LEVELS; i++) {
             for (Map.Entry<String, ComponentLifecycle> entry : classifiedComponents[i].entrySet()) {
@@ -133,6 +151,7 @@ public class ComponentContext implements ApplicationContextAware {
                     continue;
                 }
 
+                long componentStart = System.currentTimeMillis();
                 try {
                     component.start();
 
@@ -142,10 +161,66 @@ public class ComponentContext implements ApplicationContextAware {
                     s_logger.error("Unhandled exception", e);
                     throw new RuntimeException("Unable to start " + implClassName, e);
                 }
+                s_startTimes.put(implClassName, System.currentTimeMillis() - componentStart);
 
                 avoidMap.put(implClassName, implClassName);
             }
         }
+        s_logger.info("Starting phase completed in " + (System.currentTimeMillis() - phaseStart) + " ms");
+
+        logStartupTimings();
+    }
+
+    /**
+     * Logs the components that took longest to configure and start, the
+     * full list goes to debug.
+     */
+    static void logStartupTimings() {
+        final Map<String, Long> totals = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : s_configureTimes.entrySet()) {
+            totals.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : s_startTimes.entrySet()) {
+            Long configureTime = totals.get(entry.getKey());
+            totals.put(entry.getKey(), entry.getValue() + (configureTime != null ? configureTime : 0));
+        }
+
+        List<String> components = new ArrayList<String>(totals.keySet());
+        Collections.sort(components, new Comparator<String>() {
+            @Override
+            public int compare(String c1, String c2) {
+                return totals.get(c2).compareTo(totals.get(c1));
+            }
+        });
+
+        for (int i = 0; i < components.size(); i++) {
+            String component = components.get(i);
+            String line = String.format("%s: configure %d ms, start %d ms", component, getTime(s_configureTimes, component), getTime(s_startTimes, component));
+            if (i < 10) {
+                s_logger.info("Slowest startup component " + line);
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Startup component " + line);
+            }
+        }
+    }
+
+    private static long getTime(Map<String, Long> times, String component) {
+        Long time = times.get(component);
+        return time != null ? time : 0;
+    }
+
+    /**
+     * @return time spent in configure() per component class, in ms
+     */
+    public static Map<String, Long> getConfigureTimes() {
+        return Collections.unmodifiableMap(s_configureTimes);
+    }
+
+    /**
+     * @return time spent in start() per component class, in ms
+     */
+    public static Map<String, Long> getStartTimes() {
+        return Collections.unmodifiableMap(s_startTimes);
     }
 
     static void registerMBean(ManagementBean mbean) {